@@ -14,6 +14,8 @@ import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.logging.FLog;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -59,21 +61,29 @@ import javax.annotation.concurrent.GuardedBy;
  * foo(SharedReference r, ...) { // first assert that the reference is valid
  * Preconditions.checkArgument(SharedReference.isValid(r)); ... // increment ref count before
  * returning r.addReference(); return r; }
+ *
+ * <p>The reference count is maintained with compare-and-set operations rather than a monitor, so
+ * cloning and closing references from many threads does not serialize on the reference itself.
  */
 @VisibleForTesting
 public class SharedReference<T> {
 
+  // Number of independently locked maps the live objects are spread across. Must be a power of 2.
+  private static final int LIVE_OBJECTS_STRIPE_COUNT = 16;
+
   // Keeps references to all live objects so finalization of those Objects always happens after
   // SharedReference first disposes of it. Note, this does not prevent CloseableReference's from
   // being finalized when the reference is no longer reachable.
-  @GuardedBy("itself")
-  private static final Map<Object, Integer> sLiveObjects = new IdentityHashMap<>();
+  // The objects are striped by identity hash so that unrelated references do not contend on a
+  // single global lock.
+  private static final LiveObjectsStripe[] sLiveObjects = createLiveObjectsStripes();
 
-  @GuardedBy("this")
-  private T mValue;
+  private static final AtomicIntegerFieldUpdater<SharedReference> REF_COUNT_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(SharedReference.class, "mRefCount");
 
-  @GuardedBy("this")
-  private int mRefCount;
+  private volatile @Nullable T mValue;
+
+  private volatile int mRefCount;
 
   private final ResourceReleaser<T> mResourceReleaser;
 
@@ -92,6 +102,25 @@ public class SharedReference<T> {
     addLiveReference(value);
   }
 
+  private static LiveObjectsStripe[] createLiveObjectsStripes() {
+    LiveObjectsStripe[] stripes = new LiveObjectsStripe[LIVE_OBJECTS_STRIPE_COUNT];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new LiveObjectsStripe();
+    }
+    return stripes;
+  }
+
+  private static LiveObjectsStripe getLiveObjectsStripe(Object value) {
+    int hash = System.identityHashCode(value);
+    // spread the high bits so that aligned identity hashes do not collapse onto a few stripes
+    hash ^= (hash >>> 16);
+    return sLiveObjects[hash & (LIVE_OBJECTS_STRIPE_COUNT - 1)];
+  }
+
+  private static boolean isTrackedAsLiveObject(Object value) {
+    return !(CloseableReference.useGc() && (value instanceof Bitmap || value instanceof HasBitmap));
+  }
+
   /**
    * Increases the reference count of a live object in the static map. Adds it if it's not being
    * held.
@@ -99,15 +128,16 @@ public class SharedReference<T> {
    * @param value the value to add.
    */
   private static void addLiveReference(Object value) {
-    if (CloseableReference.useGc() && (value instanceof Bitmap || value instanceof HasBitmap)) {
+    if (!isTrackedAsLiveObject(value)) {
       return;
     }
-    synchronized (sLiveObjects) {
-      Integer count = sLiveObjects.get(value);
+    LiveObjectsStripe stripe = getLiveObjectsStripe(value);
+    synchronized (stripe) {
+      Integer count = stripe.mObjects.get(value);
       if (count == null) {
-        sLiveObjects.put(value, 1);
+        stripe.mObjects.put(value, 1);
       } else {
-        sLiveObjects.put(value, count + 1);
+        stripe.mObjects.put(value, count + 1);
       }
     }
   }
@@ -119,16 +149,20 @@ public class SharedReference<T> {
    * @param value the value to remove.
    */
   private static void removeLiveReference(Object value) {
-    synchronized (sLiveObjects) {
-      Integer count = sLiveObjects.get(value);
+    if (!isTrackedAsLiveObject(value)) {
+      return;
+    }
+    LiveObjectsStripe stripe = getLiveObjectsStripe(value);
+    synchronized (stripe) {
+      Integer count = stripe.mObjects.get(value);
       if (count == null) {
         // Uh oh.
         FLog.wtf(
             "SharedReference", "No entry in sLiveObjects for value of type %s", value.getClass());
       } else if (count == 1) {
-        sLiveObjects.remove(value);
+        stripe.mObjects.remove(value);
       } else {
-        sLiveObjects.put(value, count - 1);
+        stripe.mObjects.put(value, count - 1);
       }
     }
   }
@@ -138,7 +172,7 @@ public class SharedReference<T> {
    *
    * @return the referenced value
    */
-  public synchronized T get() {
+  public T get() {
     return mValue;
   }
 
@@ -147,7 +181,7 @@ public class SharedReference<T> {
    *
    * @return true if shared reference is valid
    */
-  public synchronized boolean isValid() {
+  public boolean isValid() {
     return mRefCount > 0;
   }
 
@@ -164,26 +198,34 @@ public class SharedReference<T> {
    * Bump up the reference count for the shared reference Note: The reference must be valid (aka not
    * null) at this point
    */
-  public synchronized void addReference() {
-    ensureValid();
-    mRefCount++;
+  public void addReference() {
+    if (!addReferenceIfValid()) {
+      throw new NullReferenceException();
+    }
   }
 
   /** Bump up the reference count for the shared reference if the shared-reference is valid. */
-  public synchronized boolean addReferenceIfValid() {
-    if (isValid()) {
-      addReference();
-      return true;
+  public boolean addReferenceIfValid() {
+    while (true) {
+      int refCount = mRefCount;
+      if (refCount <= 0) {
+        return false;
+      }
+      if (REF_COUNT_UPDATER.compareAndSet(this, refCount, refCount + 1)) {
+        return true;
+      }
     }
-    return false;
   }
 
-  public synchronized boolean deleteReferenceIfValid() {
-    if (isValid()) {
-      deleteReference();
-      return true;
+  public boolean deleteReferenceIfValid() {
+    int refCount = tryDecreaseRefCount();
+    if (refCount < 0) {
+      return false;
     }
-    return false;
+    if (refCount == 0) {
+      releaseValue();
+    }
+    return true;
   }
 
   /**
@@ -191,42 +233,40 @@ public class SharedReference<T> {
    * then dispose of the referenced value
    */
   public void deleteReference() {
-    if (decreaseRefCount() == 0) {
-      T deleted;
-      synchronized (this) {
-        deleted = mValue;
-        mValue = null;
-      }
-      mResourceReleaser.release(deleted);
-      removeLiveReference(deleted);
+    if (!deleteReferenceIfValid()) {
+      throw new NullReferenceException();
     }
   }
 
   /**
-   * Decrements reference count for the shared reference. Returns value of mRefCount after
-   * decrementing
+   * Decrements reference count for the shared reference if it is valid. Returns value of mRefCount
+   * after decrementing, or -1 if the reference was not valid
    */
-  private synchronized int decreaseRefCount() {
-    ensureValid();
-    Preconditions.checkArgument(mRefCount > 0);
-
-    mRefCount--;
-    return mRefCount;
+  private int tryDecreaseRefCount() {
+    while (true) {
+      int refCount = mRefCount;
+      if (refCount <= 0) {
+        return -1;
+      }
+      if (REF_COUNT_UPDATER.compareAndSet(this, refCount, refCount - 1)) {
+        return refCount - 1;
+      }
+    }
   }
 
   /**
-   * Assert that there is a valid referenced value. Throw a NullReferenceException otherwise
-   *
-   * @throws NullReferenceException, if the reference is invalid (i.e.) the underlying value is null
+   * Disposes of the referenced value. Only the thread that dropped the reference count to zero gets
+   * here, and the count can never become positive again, so no further synchronization is needed.
    */
-  private void ensureValid() {
-    if (!isValid(this)) {
-      throw new NullReferenceException();
-    }
+  private void releaseValue() {
+    T deleted = mValue;
+    mValue = null;
+    mResourceReleaser.release(deleted);
+    removeLiveReference(deleted);
   }
 
   /** A test-only method to get the ref count DO NOT USE in regular code */
-  public synchronized int getRefCountTestOnly() {
+  public int getRefCountTestOnly() {
     return mRefCount;
   }
 
@@ -241,8 +281,20 @@ public class SharedReference<T> {
   }
 
   public static String reportData() {
+    int liveObjectsCount = 0;
+    for (LiveObjectsStripe stripe : sLiveObjects) {
+      synchronized (stripe) {
+        liveObjectsCount += stripe.mObjects.size();
+      }
+    }
     return Objects.toStringHelper("SharedReference")
-        .add("live_objects_count", sLiveObjects.size())
+        .add("live_objects_count", liveObjectsCount)
         .toString();
   }
+
+  /** One independently locked shard of the live objects map. */
+  private static class LiveObjectsStripe {
+    @GuardedBy("this")
+    final Map<Object, Integer> mObjects = new IdentityHashMap<>();
+  }
 }
@@ -10,6 +10,7 @@ package com.facebook.common.references;
 import com.facebook.common.internal.Closeables;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 import junit.framework.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -90,6 +91,47 @@ public class SharedReferenceTest {
     Mockito.verify(releaser, Mockito.times(1)).release(thing);
   }
 
+  @Test
+  public void testConcurrentAddAndDeleteReference() throws InterruptedException {
+    final int threadCount = 4;
+    final int iterations = 10000;
+    final Thing thing = new Thing("abc");
+    final ResourceReleaser releaser = Mockito.mock(ResourceReleaser.class);
+    final SharedReference<Thing> tRef = new SharedReference<Thing>(thing, releaser);
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] =
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                start.await();
+              } catch (InterruptedException e) {
+                return;
+              }
+              for (int j = 0; j < iterations; j++) {
+                tRef.addReference();
+                tRef.deleteReference();
+              }
+            }
+          };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(1, tRef.getRefCountTestOnly());
+    Mockito.verify(releaser, Mockito.never()).release(thing);
+    Assert.assertTrue(tRef.deleteReferenceIfValid());
+    Assert.assertFalse(tRef.deleteReferenceIfValid());
+    Assert.assertFalse(tRef.addReferenceIfValid());
+    Assert.assertNull(tRef.get());
+    Mockito.verify(releaser, Mockito.times(1)).release(thing);
+  }
+
   public static class Thing implements Closeable {
     private String mValue;
 
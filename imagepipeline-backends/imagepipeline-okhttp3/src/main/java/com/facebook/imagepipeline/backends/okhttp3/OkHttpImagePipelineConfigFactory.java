@@ -9,6 +9,8 @@ package com.facebook.imagepipeline.backends.okhttp3;
 
 import android.content.Context;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.producers.PriorityNetworkFetcher;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 
 /**
@@ -21,4 +23,39 @@ public class OkHttpImagePipelineConfigFactory {
     return ImagePipelineConfig.newBuilder(context)
         .setNetworkFetcher(new OkHttpNetworkFetcher(okHttpClient));
   }
+
+  /**
+   * Same as {@link #newBuilder(Context, OkHttpClient)}, but the images are fetched in the order of
+   * their priority, see {@link #newPriorityNetworkFetcher(OkHttpClient)}.
+   */
+  public static ImagePipelineConfig.Builder newPrioritizedBuilder(
+      Context context, OkHttpClient okHttpClient) {
+    return ImagePipelineConfig.newBuilder(context)
+        .setNetworkFetcher(newPriorityNetworkFetcher(okHttpClient));
+  }
+
+  /**
+   * Creates a network fetcher that makes the OkHttp calls of high-priority images, like visible
+   * ones, before the ones of low-priority images, like prefetches.
+   *
+   * <p>OkHttp runs a limited number of calls at once, and of calls to a host, and queues the others
+   * in the order they were made, regardless of the priority of the images. High-priority images may
+   * use all of the calls the dispatcher of the client runs. Low-priority images are only fetched
+   * while fewer calls than half of the ones it runs to a host are made, so that they never take
+   * more than half of the calls to any host, whichever hosts the images are on. A high-priority
+   * image that finds no call left pre-empts the low-priority download that started last. Priority
+   * changes reorder the images until their call is made.
+   */
+  public static PriorityNetworkFetcher<OkHttpNetworkFetcher.OkHttpNetworkFetchState>
+      newPriorityNetworkFetcher(OkHttpClient okHttpClient) {
+    final Dispatcher dispatcher = okHttpClient.dispatcher();
+    return new PriorityNetworkFetcher<>(
+        new OkHttpNetworkFetcher(okHttpClient),
+        false /* isHiPriFifo */,
+        Math.max(2, dispatcher.getMaxRequests()),
+        Math.max(1, dispatcher.getMaxRequestsPerHost() / 2),
+        null /* concurrencyLimiter */,
+        true /* isPreemptionEnabled */,
+        0 /* priorityAgingMs */);
+  }
 }
@@ -10,15 +10,21 @@ package com.facebook.imagepipeline.backends.okhttp3;
 import android.net.Uri;
 import android.os.Looper;
 import android.os.SystemClock;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.producers.BaseNetworkFetcher;
 import com.facebook.imagepipeline.producers.BaseProducerContextCallbacks;
 import com.facebook.imagepipeline.producers.Consumer;
+import com.facebook.imagepipeline.producers.DirectReadable;
 import com.facebook.imagepipeline.producers.FetchState;
 import com.facebook.imagepipeline.producers.NetworkFetcher;
 import com.facebook.imagepipeline.producers.ProducerContext;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -29,8 +35,15 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
 
-/** Network fetcher that uses OkHttp 3 as a backend. */
+/**
+ * Network fetcher that uses OkHttp 3 as a backend.
+ *
+ * <p>Response bodies are passed on as {@link DirectReadable} streams, so that their bytes are
+ * written to the pooled memory straight from the segments OkHttp reads them into.
+ */
 public class OkHttpNetworkFetcher
     extends BaseNetworkFetcher<OkHttpNetworkFetcher.OkHttpNetworkFetchState> {
 
@@ -50,6 +63,7 @@ public class OkHttpNetworkFetcher
   private static final String FETCH_TIME = "fetch_time";
   private static final String TOTAL_TIME = "total_time";
   private static final String IMAGE_SIZE = "image_size";
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
   private final Call.Factory mCallFactory;
   private final @Nullable CacheControl mCacheControl;
@@ -103,8 +117,25 @@ public class OkHttpNetworkFetcher
       }
 
       final BytesRange bytesRange = fetchState.getContext().getImageRequest().getBytesRange();
+      final CacheValidators resumeValidators = fetchState.getResumeValidators();
       if (bytesRange != null) {
         requestBuilder.addHeader("Range", bytesRange.toHttpRangeHeaderValue());
+      } else if (resumeValidators != null
+          && resumeValidators.getIfRange() != null
+          && fetchState.getResumeOffset() > 0) {
+        requestBuilder.addHeader(
+            "Range", BytesRange.from(fetchState.getResumeOffset()).toHttpRangeHeaderValue());
+        requestBuilder.addHeader("If-Range", resumeValidators.getIfRange());
+      }
+
+      final CacheValidators cachedValidators = fetchState.getCachedValidators();
+      if (cachedValidators != null) {
+        if (cachedValidators.getETag() != null) {
+          requestBuilder.addHeader("If-None-Match", cachedValidators.getETag());
+        }
+        if (cachedValidators.getLastModified() != null) {
+          requestBuilder.addHeader("If-Modified-Since", cachedValidators.getLastModified());
+        }
       }
 
       fetchWithRequest(fetchState, callback, requestBuilder.build());
@@ -162,6 +193,29 @@ public class OkHttpNetworkFetcher
             fetchState.responseTime = SystemClock.elapsedRealtime();
             final ResponseBody body = response.body();
             try {
+              fetchState.setResponseValidators(
+                  CacheValidators.fromResponseHeaders(
+                      response.header("ETag"),
+                      response.header("Last-Modified"),
+                      response.header("Cache-Control"),
+                      System.currentTimeMillis()));
+              if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED
+                  && fetchState.getCachedValidators() != null) {
+                fetchState.setNotModified(true);
+                callback.onResponse(body.byteStream(), 0);
+                return;
+              }
+
+              final boolean isResuming = request.header("If-Range") != null;
+              if (isResuming && response.code() == HTTP_RANGE_NOT_SATISFIABLE) {
+                // the held bytes cannot be resumed from, the whole image is downloaded instead
+                fetchWithRequest(
+                    fetchState,
+                    callback,
+                    request.newBuilder().removeHeader("Range").removeHeader("If-Range").build());
+                return;
+              }
+
               if (!response.isSuccessful()) {
                 handleException(
                     call, new IOException("Unexpected HTTP code " + response), callback);
@@ -170,7 +224,16 @@ public class OkHttpNetworkFetcher
 
               BytesRange responseRange =
                   BytesRange.fromContentRangeHeader(response.header("Content-Range"));
-              if (responseRange != null
+              fetchState.setResumed(
+                  isResuming && response.code() == HttpURLConnection.HTTP_PARTIAL);
+              if (fetchState.isResumed()) {
+                // the server sent the rest of the image, to be appended to the held bytes
+                if (responseRange == null || responseRange.from != fetchState.getResumeOffset()) {
+                  handleException(
+                      call, new IOException("Unexpected Content-Range " + response), callback);
+                  return;
+                }
+              } else if (responseRange != null
                   && !(responseRange.from == 0
                       && responseRange.to == BytesRange.TO_END_OF_CONTENT)) {
                 // Only treat as a partial image if the range is not all of the content
@@ -182,7 +245,7 @@ public class OkHttpNetworkFetcher
               if (contentLength < 0) {
                 contentLength = 0;
               }
-              callback.onResponse(body.byteStream(), (int) contentLength);
+              callback.onResponse(new BodyInputStream(body.source()), (int) contentLength);
             } catch (Exception e) {
               handleException(call, e, callback);
             } finally {
@@ -211,4 +274,48 @@ public class OkHttpNetworkFetcher
       callback.onFailure(e);
     }
   }
+
+  /** Response body stream that can be read straight from the segments buffered by OkHttp. */
+  @VisibleForTesting
+  static class BodyInputStream extends InputStream implements DirectReadable {
+
+    private final BufferedSource mSource;
+    private final InputStream mInputStream;
+
+    BodyInputStream(BufferedSource source) {
+      mSource = source;
+      mInputStream = source.inputStream();
+    }
+
+    @Override
+    public int read() throws IOException {
+      return mInputStream.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return mInputStream.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return mInputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      mInputStream.close();
+    }
+
+    @Override
+    public int readTo(OutputStream os, int maxLength) throws IOException {
+      if (!mSource.request(1)) {
+        return -1;
+      }
+      final Buffer buffer = mSource.buffer();
+      final int length = (int) Math.min(buffer.size(), maxLength);
+      buffer.writeTo(os, length);
+      return length;
+    }
+  }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.okhttp3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.junit.Test;
+
+public class BodyInputStreamTest {
+
+  @Test
+  public void testReadToWritesBufferedBytes() throws IOException {
+    final OkHttpNetworkFetcher.BodyInputStream stream =
+        new OkHttpNetworkFetcher.BodyInputStream(new Buffer().write(newBody(10)));
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+    assertEquals(4, stream.readTo(os, 4));
+    assertEquals(6, stream.readTo(os, 100));
+    assertEquals(-1, stream.readTo(os, 100));
+    assertArrayEquals(newBody(10), os.toByteArray());
+  }
+
+  @Test
+  public void testReadToReadsSourceAsBytesArrive() throws IOException {
+    final OkHttpNetworkFetcher.BodyInputStream stream =
+        new OkHttpNetworkFetcher.BodyInputStream(Okio.buffer(new ChunkedSource(newBody(10), 3)));
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+    // only the bytes already received are written, without waiting for more
+    assertEquals(3, stream.readTo(os, 100));
+    assertEquals(1, stream.read(new byte[1], 0, 1));
+    assertEquals(2, stream.readTo(os, 100));
+    assertEquals(3, stream.readTo(os, 100));
+    assertEquals(1, stream.readTo(os, 100));
+    assertEquals(-1, stream.readTo(os, 100));
+    final byte[] expected = newBody(10);
+    assertArrayEquals(
+        new byte[] {
+          expected[0], expected[1], expected[2], expected[4], expected[5], expected[6],
+          expected[7], expected[8], expected[9]
+        },
+        os.toByteArray());
+  }
+
+  private static byte[] newBody(int length) {
+    final byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) (i * 31);
+    }
+    return body;
+  }
+
+  /** Source that receives the body a few bytes at a time, like a response from the network. */
+  private static class ChunkedSource implements Source {
+
+    private final Buffer mBody;
+    private final int mChunkSize;
+
+    ChunkedSource(byte[] body, int chunkSize) {
+      mBody = new Buffer().write(body);
+      mChunkSize = chunkSize;
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      if (mBody.size() == 0) {
+        return -1;
+      }
+      return mBody.read(sink, Math.min(byteCount, mChunkSize));
+    }
+
+    @Override
+    public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
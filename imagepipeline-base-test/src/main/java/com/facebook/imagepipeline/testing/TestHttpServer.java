@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * HTTP/1.1 server on the loopback interface answering requests with the responses queued in
+ * order, so that network fetchers can be tested against real sockets.
+ *
+ * <p>Connections are kept alive unless a response asks for them to be closed. Requests are recorded
+ * and can be taken in the order they are received.
+ */
+public class TestHttpServer implements Closeable {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final long TIMEOUT_MS = 5000;
+
+  /** A request received by the server. */
+  public static class Request {
+
+    private final String mRequestLine;
+    private final Map<String, String> mHeaders;
+    private final int mConnectionIndex;
+
+    private Request(String requestLine, Map<String, String> headers, int connectionIndex) {
+      mRequestLine = requestLine;
+      mHeaders = headers;
+      mConnectionIndex = connectionIndex;
+    }
+
+    /** @return the request line, e.g. "GET /image.jpg HTTP/1.1" */
+    public String getRequestLine() {
+      return mRequestLine;
+    }
+
+    /** @return the value of the header, or null if the request does not have it */
+    public @Nullable String getHeader(String name) {
+      return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    /** @return the index of the connection the request was received on, starting from 0 */
+    public int getConnectionIndex() {
+      return mConnectionIndex;
+    }
+  }
+
+  /** A response to queue. */
+  public static class Response {
+
+    private final int mCode;
+    private final List<String> mHeaders = new ArrayList<>();
+    private byte[] mBody = new byte[0];
+    private int mChunkSize;
+    private int mStallAfterBytes = -1;
+    private boolean mIsClosingConnection;
+
+    public Response(int code) {
+      mCode = code;
+    }
+
+    public Response addHeader(String name, String value) {
+      mHeaders.add(name + ": " + value);
+      return this;
+    }
+
+    public Response setBody(byte[] body) {
+      mBody = body;
+      return this;
+    }
+
+    /** Sends the body with chunked transfer encoding, in chunks of the given size. */
+    public Response setChunked(int chunkSize) {
+      mChunkSize = chunkSize;
+      return this;
+    }
+
+    /**
+     * Sends only the first bytes of the body, then keeps the connection open without sending
+     * anything until the client closes it or the server is closed.
+     */
+    public Response stallAfter(int byteCount) {
+      mStallAfterBytes = byteCount;
+      return this;
+    }
+
+    /** Closes the connection once the response is sent. */
+    public Response closeConnection() {
+      mIsClosingConnection = true;
+      return this;
+    }
+  }
+
+  private final ServerSocket mServerSocket;
+  private final BlockingQueue<Response> mResponses = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Request> mRequests = new LinkedBlockingQueue<>();
+  private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+  private final AtomicInteger mConnectionCount = new AtomicInteger();
+  private final CountDownLatch mClosed = new CountDownLatch(1);
+
+  public TestHttpServer() throws IOException {
+    mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    final Thread acceptThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                acceptConnections();
+              }
+            },
+            "TestHttpServer");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  /** @return the URL of the path on this server, e.g. "http://127.0.0.1:1234/image.jpg" */
+  public String getUrl(String path) {
+    return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+  }
+
+  public void enqueue(Response response) {
+    mResponses.add(response);
+  }
+
+  /** Waits for the next request received, failing if none is received in time. */
+  public Request takeRequest() throws InterruptedException {
+    final Request request = mRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    if (request == null) {
+      throw new AssertionError("No request received");
+    }
+    return request;
+  }
+
+  /** @return the number of connections accepted so far */
+  public int getConnectionCount() {
+    return mConnectionCount.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    mClosed.countDown();
+    mServerSocket.close();
+    synchronized (mSockets) {
+      for (Socket socket : mSockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private void acceptConnections() {
+    try {
+      while (true) {
+        final Socket socket = mServerSocket.accept();
+        mSockets.add(socket);
+        final int connectionIndex = mConnectionCount.getAndIncrement();
+        final Thread connectionThread =
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    serveConnection(socket, connectionIndex);
+                  }
+                },
+                "TestHttpServer-" + connectionIndex);
+        connectionThread.setDaemon(true);
+        connectionThread.start();
+      }
+    } catch (IOException e) {
+      // the server is closed
+    }
+  }
+
+  private void serveConnection(Socket socket, int connectionIndex) {
+    try {
+      final InputStream in = socket.getInputStream();
+      final OutputStream out = socket.getOutputStream();
+      while (true) {
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+          return;
+        }
+        final Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+          final int colon = line.indexOf(':');
+          headers.put(
+              line.substring(0, colon).trim().toLowerCase(Locale.US),
+              line.substring(colon + 1).trim());
+        }
+        mRequests.add(new Request(requestLine, headers, connectionIndex));
+        final Response response = mResponses.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (response == null) {
+          return;
+        }
+        writeResponse(out, response);
+        if (response.mStallAfterBytes >= 0) {
+          mClosed.await();
+          return;
+        }
+        if (response.mIsClosingConnection) {
+          return;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // the client or the server closed the connection
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private static void writeResponse(OutputStream out, Response response) throws IOException {
+    final StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(response.mCode).append(" Test\r\n");
+    for (String header : response.mHeaders) {
+      head.append(header).append("\r\n");
+    }
+    if (response.mChunkSize > 0) {
+      head.append("Transfer-Encoding: chunked\r\n");
+    } else {
+      head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+    }
+    if (response.mIsClosingConnection) {
+      head.append("Connection: close\r\n");
+    }
+    head.append("\r\n");
+    out.write(head.toString().getBytes(ASCII));
+
+    final byte[] body = response.mBody;
+    final int length =
+        response.mStallAfterBytes >= 0
+            ? Math.min(response.mStallAfterBytes, body.length)
+            : body.length;
+    if (response.mChunkSize > 0) {
+      for (int offset = 0; offset < length; offset += response.mChunkSize) {
+        final int chunkLength = Math.min(response.mChunkSize, length - offset);
+        out.write((Integer.toHexString(chunkLength) + "\r\n").getBytes(ASCII));
+        out.write(body, offset, chunkLength);
+        out.write("\r\n".getBytes(ASCII));
+      }
+      if (response.mStallAfterBytes < 0) {
+        out.write("0\r\n\r\n".getBytes(ASCII));
+      }
+    } else {
+      out.write(body, 0, length);
+    }
+    out.flush();
+  }
+
+  private static @Nullable String readLine(InputStream in) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+    return new String(line.toByteArray(), ASCII);
+  }
+}
@@ -633,9 +633,19 @@ public class DefaultDiskStorage implements DiskStorage {
 
     @Override
     public void writeData(WriterCallback callback, Object debugInfo) throws IOException {
+      writeData(callback, /* append */ false);
+    }
+
+    @Override
+    public void appendData(WriterCallback callback, Object debugInfo) throws IOException {
+      writeData(callback, /* append */ true);
+    }
+
+    private void writeData(WriterCallback callback, boolean append) throws IOException {
+      final long previousLength = append ? mTemporaryFile.length() : 0;
       FileOutputStream fileStream;
       try {
-        fileStream = new FileOutputStream(mTemporaryFile);
+        fileStream = new FileOutputStream(mTemporaryFile, append);
       } catch (FileNotFoundException fne) {
         mCacheErrorLogger.logError(
             CacheErrorLogger.CacheErrorCategory.WRITE_UPDATE_FILE_NOT_FOUND,
@@ -661,8 +671,8 @@ public class DefaultDiskStorage implements DiskStorage {
       }
       // this code should never throw, but if filesystem doesn't fail on a failing/uncomplete close
       // we want to know and manually fail
-      if (mTemporaryFile.length() != length) {
-        throw new IncompleteFileException(length, mTemporaryFile.length());
+      if (mTemporaryFile.length() != previousLength + length) {
+        throw new IncompleteFileException(previousLength + length, mTemporaryFile.length());
       }
     }
 
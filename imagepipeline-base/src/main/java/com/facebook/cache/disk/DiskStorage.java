@@ -178,6 +178,16 @@ public interface DiskStorage {
      */
     void writeData(WriterCallback callback, Object debugInfo) throws IOException;
 
+    /**
+     * Appends to the contents of the resource to be inserted, after the ones written so far.
+     * Executes outside the session lock.
+     *
+     * @param callback the write callback
+     * @param debugInfo helper object for debugging
+     * @throws IOException
+     */
+    void appendData(WriterCallback callback, Object debugInfo) throws IOException;
+
     /**
      * Commits the insertion into the cache. Once this is called the entry will be available to
      * clients of the cache.
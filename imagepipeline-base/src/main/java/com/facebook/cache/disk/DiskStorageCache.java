@@ -89,11 +89,13 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
   @VisibleForTesting
   static class CacheStats {
 
-    private boolean mInitialized = false;
-    private long mSize = UNINITIALIZED; // size of the cache (in bytes)
-    private long mCount = UNINITIALIZED; // number of items in the cache
+    // Updates are serialized, reads are lock-free: the fields are volatile so that readers always
+    // see the latest value without contending with writers.
+    private volatile boolean mInitialized = false;
+    private volatile long mSize = UNINITIALIZED; // size of the cache (in bytes)
+    private volatile long mCount = UNINITIALIZED; // number of items in the cache
 
-    public synchronized boolean isInitialized() {
+    public boolean isInitialized() {
       return mInitialized;
     }
 
@@ -116,11 +118,11 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
       }
     }
 
-    public synchronized long getSize() {
+    public long getSize() {
       return mSize;
     }
 
-    public synchronized long getCount() {
+    public long getCount() {
       return mCount;
     }
   }
@@ -238,6 +240,15 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
    */
   @Override
   public @Nullable BinaryResource getResource(final CacheKey key) {
+    return getResource(key, true);
+  }
+
+  @Override
+  public @Nullable BinaryResource getResourceUntracked(final CacheKey key) {
+    return getResource(key, false);
+  }
+
+  private @Nullable BinaryResource getResource(final CacheKey key, boolean isTracked) {
     String resourceId = null;
     SettableCacheEvent cacheEvent = SettableCacheEvent.obtain().setCacheKey(key);
     try {
@@ -253,10 +264,14 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
           }
         }
         if (resource == null) {
-          mCacheEventListener.onMiss(cacheEvent);
+          if (isTracked) {
+            mCacheEventListener.onMiss(cacheEvent);
+          }
           mResourceIndex.remove(resourceId);
         } else {
-          mCacheEventListener.onHit(cacheEvent);
+          if (isTracked) {
+            mCacheEventListener.onHit(cacheEvent);
+          }
           mResourceIndex.add(resourceId);
         }
         return resource;
@@ -364,6 +379,82 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
     }
   }
 
+  @Override
+  public Insertion startInsertion(CacheKey key) throws IOException {
+    final String resourceId;
+    synchronized (mLock) {
+      resourceId = CacheKeyUtil.getFirstResourceId(key);
+    }
+    try {
+      return new InsertionImpl(key, resourceId, startInsert(resourceId, key));
+    } catch (IOException ioe) {
+      onInsertionException(key, resourceId, ioe);
+      throw ioe;
+    }
+  }
+
+  private void onInsertionException(CacheKey key, String resourceId, IOException ioe) {
+    SettableCacheEvent cacheEvent =
+        SettableCacheEvent.obtain().setCacheKey(key).setResourceId(resourceId).setException(ioe);
+    mCacheEventListener.onWriteException(cacheEvent);
+    FLog.e(TAG, "Failed inserting a file into the cache", ioe);
+    cacheEvent.recycle();
+  }
+
+  /**
+   * Insertion writing the parts of the resource to the temp file of the inserter, which is only
+   * moved into place when committed, like {@link #insert} does.
+   */
+  private class InsertionImpl implements Insertion {
+
+    private final CacheKey mKey;
+    private final String mResourceId;
+    private final DiskStorage.Inserter mInserter;
+
+    private InsertionImpl(CacheKey key, String resourceId, DiskStorage.Inserter inserter) {
+      mKey = key;
+      mResourceId = resourceId;
+      mInserter = inserter;
+    }
+
+    @Override
+    public void append(WriterCallback writer) throws IOException {
+      try {
+        mInserter.appendData(writer, mKey);
+      } catch (IOException ioe) {
+        onInsertionException(mKey, mResourceId, ioe);
+        throw ioe;
+      }
+    }
+
+    @Override
+    public BinaryResource commit() throws IOException {
+      SettableCacheEvent cacheEvent =
+          SettableCacheEvent.obtain().setCacheKey(mKey).setResourceId(mResourceId);
+      mCacheEventListener.onWriteAttempt(cacheEvent);
+      try {
+        BinaryResource resource = endInsert(mInserter, mKey, mResourceId);
+        cacheEvent.setItemSize(resource.size()).setCacheSize(mCacheStats.getSize());
+        mCacheEventListener.onWriteSuccess(cacheEvent);
+        return resource;
+      } catch (IOException ioe) {
+        cacheEvent.setException(ioe);
+        mCacheEventListener.onWriteException(cacheEvent);
+        FLog.e(TAG, "Failed inserting a file into the cache", ioe);
+        throw ioe;
+      } finally {
+        cacheEvent.recycle();
+      }
+    }
+
+    @Override
+    public void discard() {
+      if (!mInserter.cleanUp()) {
+        FLog.e(TAG, "Failed to delete temp file");
+      }
+    }
+  }
+
   @Override
   public void remove(CacheKey key) {
     synchronized (mLock) {
@@ -28,6 +28,12 @@ public interface FileCache extends DiskTrimmable {
   /** Returns the binary resource cached with key. */
   BinaryResource getResource(CacheKey key);
 
+  /**
+   * Same as {@link #getResource}, but the hit or miss is not reported to the cache event listener.
+   * Used for entries kept alongside the images, which the app never requests.
+   */
+  BinaryResource getResourceUntracked(CacheKey key);
+
   /**
    * Returns true if the key is in the in-memory key index.
    *
@@ -52,6 +58,16 @@ public interface FileCache extends DiskTrimmable {
    */
   BinaryResource insert(CacheKey key, WriterCallback writer) throws IOException;
 
+  /**
+   * Starts inserting a resource whose bytes are written in several parts, for instance as they are
+   * downloaded. The resource is not visible to readers until it is committed.
+   *
+   * @param key cache key
+   * @return the insertion, which must be committed or discarded
+   * @throws IOException
+   */
+  Insertion startInsertion(CacheKey key) throws IOException;
+
   /**
    * Removes a resource by key from cache.
    *
@@ -76,4 +92,27 @@ public interface FileCache extends DiskTrimmable {
   void clearAll();
 
   DiskStorage.DiskDumpInfo getDumpInfo() throws IOException;
+
+  /** Resource being inserted in several parts, see {@link #startInsertion}. */
+  interface Insertion {
+
+    /**
+     * Appends bytes to the resource.
+     *
+     * @param writer Callback that writes the bytes to an output stream
+     * @throws IOException
+     */
+    void append(WriterCallback writer) throws IOException;
+
+    /**
+     * Makes the resource available to readers.
+     *
+     * @return the resource inserted
+     * @throws IOException
+     */
+    BinaryResource commit() throws IOException;
+
+    /** Discards the resource, unless it has been committed. */
+    void discard();
+  }
 }
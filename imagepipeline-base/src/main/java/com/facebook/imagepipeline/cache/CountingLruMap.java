@@ -25,8 +25,13 @@ public class CountingLruMap<K, V> {
   @GuardedBy("this")
   private final LinkedHashMap<K, V> mMap = new LinkedHashMap<>();
 
+  // The counters are only modified while holding the lock, but they are volatile so that they can
+  // be read without taking it.
   @GuardedBy("this")
-  private int mSizeInBytes = 0;
+  private volatile int mCount = 0;
+
+  @GuardedBy("this")
+  private volatile int mSizeInBytes = 0;
 
   public CountingLruMap(ValueDescriptor<V> valueDescriptor) {
     mValueDescriptor = valueDescriptor;
@@ -43,12 +48,12 @@ public class CountingLruMap<K, V> {
   }
 
   /** Gets the count of the elements in the map. */
-  public synchronized int getCount() {
-    return mMap.size();
+  public int getCount() {
+    return mCount;
   }
 
   /** Gets the total size in bytes of the elements in the map. */
-  public synchronized int getSizeInBytes() {
+  public int getSizeInBytes() {
     return mSizeInBytes;
   }
 
@@ -90,6 +95,7 @@ public class CountingLruMap<K, V> {
     mSizeInBytes -= getValueSizeInBytes(oldValue);
     mMap.put(key, value);
     mSizeInBytes += getValueSizeInBytes(value);
+    mCount = mMap.size();
     return oldValue;
   }
 
@@ -98,6 +104,7 @@ public class CountingLruMap<K, V> {
   public synchronized V remove(K key) {
     V oldValue = mMap.remove(key);
     mSizeInBytes -= getValueSizeInBytes(oldValue);
+    mCount = mMap.size();
     return oldValue;
   }
 
@@ -113,6 +120,7 @@ public class CountingLruMap<K, V> {
         iterator.remove();
       }
     }
+    mCount = mMap.size();
     return oldValues;
   }
 
@@ -120,6 +128,7 @@ public class CountingLruMap<K, V> {
   public synchronized ArrayList<V> clear() {
     ArrayList<V> oldValues = new ArrayList<>(mMap.values());
     mMap.clear();
+    mCount = 0;
     mSizeInBytes = 0;
     return oldValues;
   }
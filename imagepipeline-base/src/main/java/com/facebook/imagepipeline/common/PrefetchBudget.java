@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.common;
+
+import com.facebook.common.internal.Preconditions;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Limits on the work a batch of prefetches may do.
+ *
+ * <p>Images already cached, or requested twice in the batch, do not count towards the limits.
+ */
+@Immutable
+public class PrefetchBudget {
+
+  public static final int UNLIMITED_COUNT = Integer.MAX_VALUE;
+  public static final long UNLIMITED_BYTES = Long.MAX_VALUE;
+
+  /** Maximum number of images fetched. */
+  public final int maxCount;
+
+  /**
+   * Number of bytes downloaded from the network after which no more images are fetched. Images
+   * read from the disk cache do not count. Images being fetched when it is reached are completed,
+   * so the batch may fetch more.
+   */
+  public final long maxBytes;
+
+  /** Maximum number of images fetched at once. */
+  public final int maxConcurrency;
+
+  public PrefetchBudget(int maxCount, long maxBytes, int maxConcurrency) {
+    Preconditions.checkArgument(maxCount >= 0);
+    Preconditions.checkArgument(maxBytes >= 0);
+    Preconditions.checkArgument(maxConcurrency > 0);
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /** @return a budget only limiting the number of images fetched at once */
+  public static PrefetchBudget forConcurrency(int maxConcurrency) {
+    return new PrefetchBudget(UNLIMITED_COUNT, UNLIMITED_BYTES, maxConcurrency);
+  }
+
+  @Override
+  public String toString() {
+    return "PrefetchBudget{count="
+        + maxCount
+        + ", bytes="
+        + maxBytes
+        + ", concurrency="
+        + maxConcurrency
+        + "}";
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.imagepipeline.common.Priority;
+
+/**
+ * A {@link Runnable} that knows the priority of the request it does work for.
+ *
+ * <p>{@link PriorityTaskExecutor} runs queued prioritized runnables in order of their priority.
+ */
+public interface PrioritizedRunnable extends Runnable {
+
+  /** Returns the current priority of this runnable. */
+  Priority getPriority();
+}
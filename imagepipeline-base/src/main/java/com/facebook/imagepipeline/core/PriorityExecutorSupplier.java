@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import android.os.Process;
+import java.util.concurrent.Executor;
+
+/**
+ * Implementation of {@link ExecutorSupplier} that runs decodes and background tasks by request
+ * priority rather than in submission order.
+ *
+ * <p>Work for images currently visible on screen is executed before queued prefetches, no matter
+ * how long those have been waiting. In newest-first mode, work of the same priority runs most
+ * recent first. The I/O-bound and lightweight executors are the ones of {@link
+ * DefaultExecutorSupplier}.
+ */
+public class PriorityExecutorSupplier extends DefaultExecutorSupplier {
+
+  private final PriorityTaskExecutor mDecodeExecutor;
+  private final PriorityTaskExecutor mBackgroundExecutor;
+
+  public PriorityExecutorSupplier(int numCpuBoundThreads) {
+    this(numCpuBoundThreads, false);
+  }
+
+  public PriorityExecutorSupplier(int numCpuBoundThreads, boolean newestFirst) {
+    super(numCpuBoundThreads);
+    mDecodeExecutor =
+        new PriorityTaskExecutor(
+            numCpuBoundThreads,
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoPriorityDecodeExecutor", true),
+            newestFirst);
+    mBackgroundExecutor =
+        new PriorityTaskExecutor(
+            numCpuBoundThreads,
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoPriorityBackgroundExecutor", true),
+            newestFirst);
+  }
+
+  @Override
+  public Executor forDecode() {
+    return mDecodeExecutor;
+  }
+
+  @Override
+  public Executor forBackgroundTasks() {
+    return mBackgroundExecutor;
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.imagepipeline.common.Priority;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An {@link Executor} with a fixed number of threads that runs queued tasks by priority.
+ *
+ * <p>Tasks implementing {@link PrioritizedRunnable} are ordered by their priority, tasks of the
+ * same priority by the time they were submitted. Plain runnables are treated as {@link
+ * Priority#HIGH}, so that work which does not belong to a request is never starved.
+ *
+ * <p>In newest-first mode, tasks of the same priority run in reverse submission order instead. This
+ * favours the images that became visible most recently, e.g. at the end of a fling.
+ *
+ * <p>The priority of a task is read when it is submitted. If it changes while the task is queued,
+ * {@link #updatePriority} moves the task to its new position. Queued tasks that are no longer
+ * needed can be dropped with {@link #remove}.
+ */
+@ThreadSafe
+public class PriorityTaskExecutor implements Executor {
+
+  private final int mMaxThreads;
+  private final ThreadFactory mThreadFactory;
+
+  @GuardedBy("this")
+  private final TreeSet<Task> mQueue;
+
+  /** Queued tasks by runnable, so that they can be found in O(1) for reprioritizing or removal. */
+  @GuardedBy("this")
+  private final Map<Runnable, Task> mQueuedTasks;
+
+  @GuardedBy("this")
+  private long mNextSequenceNumber;
+
+  @GuardedBy("this")
+  private int mThreadCount;
+
+  @GuardedBy("this")
+  private int mIdleThreadCount;
+
+  /**
+   * Idle threads that have been notified but have not woken up yet. They still count as idle until
+   * they wake up, so they must not be handed further tasks.
+   */
+  @GuardedBy("this")
+  private int mPendingWakeupCount;
+
+  public PriorityTaskExecutor(int maxThreads, ThreadFactory threadFactory) {
+    this(maxThreads, threadFactory, false);
+  }
+
+  public PriorityTaskExecutor(int maxThreads, ThreadFactory threadFactory, boolean newestFirst) {
+    if (maxThreads <= 0) {
+      throw new IllegalArgumentException("max threads must be > 0");
+    }
+    mMaxThreads = maxThreads;
+    mThreadFactory = threadFactory;
+    mQueue = new TreeSet<>(newestFirst ? NEWEST_FIRST : OLDEST_FIRST);
+    mQueuedTasks = new IdentityHashMap<>();
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    if (runnable == null) {
+      throw new NullPointerException("runnable parameter is null");
+    }
+    // read the priority before taking the lock, it may require the request's lock
+    final Priority priority = getPriority(runnable);
+    final boolean startThread;
+    synchronized (this) {
+      final Task task = new Task(runnable, priority, mNextSequenceNumber++);
+      mQueue.add(task);
+      mQueuedTasks.put(runnable, task);
+      final boolean wakeIdleThread = mIdleThreadCount > mPendingWakeupCount;
+      startThread = !wakeIdleThread && mThreadCount < mMaxThreads;
+      if (wakeIdleThread) {
+        mPendingWakeupCount++;
+        notify();
+      } else if (startThread) {
+        mThreadCount++;
+      }
+    }
+    if (startThread) {
+      startWorkerThread();
+    }
+  }
+
+  /**
+   * Moves the given runnable to the position matching its current priority, if it is still queued.
+   *
+   * @return true if the runnable was queued
+   */
+  public boolean updatePriority(PrioritizedRunnable runnable) {
+    final Priority priority = runnable.getPriority();
+    synchronized (this) {
+      final Task task = mQueuedTasks.get(runnable);
+      if (task == null) {
+        return false;
+      }
+      if (task.mPriority != priority) {
+        mQueue.remove(task);
+        task.mPriority = priority;
+        mQueue.add(task);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Removes the given runnable from the queue so that it does not get executed.
+   *
+   * @return true if the runnable was queued and has been removed, false if it has already started
+   *     or has never been submitted
+   */
+  public synchronized boolean remove(Runnable runnable) {
+    final Task task = mQueuedTasks.remove(runnable);
+    if (task == null) {
+      return false;
+    }
+    mQueue.remove(task);
+    return true;
+  }
+
+  /** Returns the number of tasks that are queued and not started yet. */
+  public synchronized int getQueueSize() {
+    return mQueue.size();
+  }
+
+  @VisibleForTesting
+  synchronized int getThreadCount() {
+    return mThreadCount;
+  }
+
+  private static Priority getPriority(Runnable runnable) {
+    if (runnable instanceof PrioritizedRunnable) {
+      final Priority priority = ((PrioritizedRunnable) runnable).getPriority();
+      if (priority != null) {
+        return priority;
+      }
+    }
+    return Priority.HIGH;
+  }
+
+  private void startWorkerThread() {
+    mThreadFactory
+        .newThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                runWorker();
+              }
+            })
+        .start();
+  }
+
+  private void runWorker() {
+    boolean completedNormally = false;
+    try {
+      while (true) {
+        final Task task;
+        synchronized (this) {
+          while (mQueue.isEmpty()) {
+            mIdleThreadCount++;
+            try {
+              wait();
+            } finally {
+              mIdleThreadCount--;
+              if (mPendingWakeupCount > 0) {
+                mPendingWakeupCount--;
+              }
+            }
+          }
+          task = mQueue.pollFirst();
+          if (mQueuedTasks.get(task.mRunnable) == task) {
+            mQueuedTasks.remove(task.mRunnable);
+          }
+        }
+        task.mRunnable.run();
+      }
+    } catch (InterruptedException e) {
+      completedNormally = true;
+      Thread.currentThread().interrupt();
+    } finally {
+      onWorkerExit(completedNormally);
+    }
+  }
+
+  private void onWorkerExit(boolean completedNormally) {
+    final boolean startReplacement;
+    synchronized (this) {
+      mThreadCount--;
+      // a task threw, keep serving the queue as a fixed thread pool would
+      startReplacement = !completedNormally && !mQueue.isEmpty();
+      if (startReplacement) {
+        mThreadCount++;
+      }
+    }
+    if (startReplacement) {
+      startWorkerThread();
+    }
+  }
+
+  private static final Comparator<Task> OLDEST_FIRST =
+      new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+          final int priorityOrder = comparePriorities(lhs, rhs);
+          return priorityOrder != 0
+              ? priorityOrder
+              : compareSequenceNumbers(lhs.mSequenceNumber, rhs.mSequenceNumber);
+        }
+      };
+
+  private static final Comparator<Task> NEWEST_FIRST =
+      new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+          final int priorityOrder = comparePriorities(lhs, rhs);
+          return priorityOrder != 0
+              ? priorityOrder
+              : compareSequenceNumbers(rhs.mSequenceNumber, lhs.mSequenceNumber);
+        }
+      };
+
+  /** Orders higher priorities first. */
+  private static int comparePriorities(Task lhs, Task rhs) {
+    return rhs.mPriority.ordinal() - lhs.mPriority.ordinal();
+  }
+
+  private static int compareSequenceNumbers(long lhs, long rhs) {
+    return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+  }
+
+  private static class Task {
+    private final Runnable mRunnable;
+    private final long mSequenceNumber;
+
+    @GuardedBy("PriorityTaskExecutor.this")
+    private Priority mPriority;
+
+    private Task(Runnable runnable, Priority priority, long sequenceNumber) {
+      mRunnable = runnable;
+      mPriority = priority;
+      mSequenceNumber = sequenceNumber;
+    }
+  }
+}
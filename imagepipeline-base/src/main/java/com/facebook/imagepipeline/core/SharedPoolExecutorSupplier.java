@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import android.os.Process;
+import com.facebook.common.executors.ConstrainedExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link ExecutorSupplier} in which decodes and background tasks share one pool
+ * of CPU-bound threads.
+ *
+ * <p>With separate pools, a backlog of decodes cannot use the threads of an idle background pool
+ * and vice versa, while all pools being busy at once runs more threads than there are cores. Here,
+ * each stage is limited to a maximum number of concurrent tasks by a {@link
+ * ConstrainedExecutorService}, and the stages borrow threads from a shared pool sized to the number
+ * of cores. Threads of the shared pool are only started when there is queued work, and stop again
+ * after being idle for {@link #KEEP_ALIVE_TIME_MS} milliseconds.
+ *
+ * <p>The I/O-bound and lightweight executors are the ones of {@link DefaultExecutorSupplier}.
+ */
+public class SharedPoolExecutorSupplier extends DefaultExecutorSupplier {
+
+  private static final long KEEP_ALIVE_TIME_MS = 10000;
+
+  private final ThreadPoolExecutor mCpuBoundExecutor;
+  private final ConstrainedExecutorService mDecodeExecutor;
+  private final ConstrainedExecutorService mBackgroundExecutor;
+
+  /**
+   * Creates a supplier whose decodes may use all shared threads but one, and whose background tasks
+   * may use half of them, so that neither stage can take the whole pool while the other has work.
+   *
+   * @param numCpuBoundThreads the maximum number of threads shared by all CPU-bound stages
+   */
+  public SharedPoolExecutorSupplier(int numCpuBoundThreads) {
+    this(
+        numCpuBoundThreads,
+        Math.max(1, numCpuBoundThreads - 1),
+        Math.max(1, numCpuBoundThreads / 2));
+  }
+
+  /**
+   * @param numCpuBoundThreads the maximum number of threads shared by all CPU-bound stages
+   * @param maxDecodeConcurrency the maximum number of decodes to run at the same time
+   * @param maxBackgroundConcurrency the maximum number of background tasks to run at the same time
+   */
+  public SharedPoolExecutorSupplier(
+      int numCpuBoundThreads, int maxDecodeConcurrency, int maxBackgroundConcurrency) {
+    super(numCpuBoundThreads);
+    mCpuBoundExecutor =
+        new ThreadPoolExecutor(
+            numCpuBoundThreads,
+            numCpuBoundThreads,
+            KEEP_ALIVE_TIME_MS,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoSharedCpuBoundExecutor", true));
+    mCpuBoundExecutor.allowCoreThreadTimeOut(true);
+    mDecodeExecutor =
+        new ConstrainedExecutorService(
+            "FrescoDecodeExecutor",
+            maxDecodeConcurrency,
+            mCpuBoundExecutor,
+            new LinkedBlockingQueue<Runnable>());
+    mBackgroundExecutor =
+        new ConstrainedExecutorService(
+            "FrescoBackgroundExecutor",
+            maxBackgroundConcurrency,
+            mCpuBoundExecutor,
+            new LinkedBlockingQueue<Runnable>());
+  }
+
+  @Override
+  public Executor forDecode() {
+    return mDecodeExecutor;
+  }
+
+  @Override
+  public Executor forBackgroundTasks() {
+    return mBackgroundExecutor;
+  }
+
+  /** Returns the number of threads currently running in the shared CPU-bound pool. */
+  public int getCpuBoundPoolSize() {
+    return mCpuBoundExecutor.getPoolSize();
+  }
+}
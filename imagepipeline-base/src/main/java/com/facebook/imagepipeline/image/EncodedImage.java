@@ -9,7 +9,9 @@ package com.facebook.imagepipeline.image;
 
 import android.graphics.ColorSpace;
 import android.media.ExifInterface;
+import android.os.Build;
 import android.util.Pair;
+import com.facebook.common.internal.Closeables;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Supplier;
 import com.facebook.common.internal.VisibleForTesting;
@@ -23,6 +25,7 @@ import com.facebook.imageformat.ImageFormatChecker;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imageutils.BitmapUtil;
 import com.facebook.imageutils.HeifExifUtil;
+import com.facebook.imageutils.ImageHeaderScanner;
 import com.facebook.imageutils.ImageMetaData;
 import com.facebook.imageutils.JfifUtil;
 import com.facebook.imageutils.WebpUtil;
@@ -54,6 +57,8 @@ public class EncodedImage implements Closeable {
 
   public static final int DEFAULT_SAMPLE_SIZE = 1;
 
+  private static boolean sUseHeaderScanner = false;
+
   // Only one of this will be set. The EncodedImage can either be backed by a ByteBuffer or a
   // Supplier of InputStream, but not both.
   private final @Nullable CloseableReference<PooledByteBuffer> mPooledByteBufferRef;
@@ -321,6 +326,15 @@ public class EncodedImage implements Closeable {
     return stringBuilder.toString();
   }
 
+  /**
+   * Sets whether the format and meta data of the images supported by {@link ImageHeaderScanner}
+   * are read in a single pass over the header, instead of by separate passes for format,
+   * dimensions and orientation.
+   */
+  public static void setUseHeaderScanner(boolean useHeaderScanner) {
+    sUseHeaderScanner = useHeaderScanner;
+  }
+
   /** Sets the encoded image meta data if needed. */
   private void parseMetaDataIfNeeded() {
     if (mWidth < 0 || mHeight < 0) {
@@ -330,6 +344,9 @@ public class EncodedImage implements Closeable {
 
   /** Sets the encoded image meta data. */
   public void parseMetaData() {
+    if (sUseHeaderScanner && scanMetaData()) {
+      return;
+    }
     final ImageFormat imageFormat =
         ImageFormatChecker.getImageFormat_WrapIOException(getInputStream());
     mImageFormat = imageFormat;
@@ -356,6 +373,53 @@ public class EncodedImage implements Closeable {
     }
   }
 
+  /**
+   * Sets the format and meta data read by {@link ImageHeaderScanner}.
+   *
+   * @return false if the format is not supported by the scanner, or the header could not be read
+   */
+  private boolean scanMetaData() {
+    final InputStream inputStream = getInputStream();
+    if (inputStream == null) {
+      return false;
+    }
+    final ImageHeaderScanner.ImageHeader header;
+    try {
+      header = ImageHeaderScanner.scan(inputStream);
+    } finally {
+      Closeables.closeQuietly(inputStream);
+    }
+    if (header == null) {
+      return false;
+    }
+    mImageFormat = header.getImageFormat();
+    final boolean hasDimensions = header.hasDimensions();
+    if (hasDimensions) {
+      mWidth = header.getWidth();
+      mHeight = header.getHeight();
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      if (header.hasColorProfile()) {
+        // ColorSpace cannot be built from an ICC profile, only BitmapFactory parses it: images
+        // with a profile take a bounds decode, a second pass over the header. The others are sRGB
+        readImageMetaData();
+      } else {
+        mColorSpace = ColorSpace.get(ColorSpace.Named.SRGB);
+      }
+    }
+    if (mRotationAngle == UNKNOWN_ROTATION_ANGLE) {
+      // Set the JPEG rotation angle only if we have the dimensions
+      if (mImageFormat == DefaultImageFormats.HEIF
+          || (mImageFormat == DefaultImageFormats.JPEG && hasDimensions)) {
+        mExifOrientation = header.getExifOrientation();
+        mRotationAngle = JfifUtil.getAutoRotateAngleFromOrientation(mExifOrientation);
+      } else if (mImageFormat != DefaultImageFormats.JPEG) {
+        mRotationAngle = 0;
+      }
+    }
+    return true;
+  }
+
   /** We get the size from a WebP image */
   private Pair<Integer, Integer> readWebPImageSize() {
     final Pair<Integer, Integer> dimensions = WebpUtil.getSize(getInputStream());
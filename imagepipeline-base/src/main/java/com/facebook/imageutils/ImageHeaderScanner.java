@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imageutils;
+
+import android.media.ExifInterface;
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.streams.LimitedInputStream;
+import com.facebook.common.util.StreamUtil;
+import com.facebook.imageformat.DefaultImageFormatChecker;
+import com.facebook.imageformat.DefaultImageFormats;
+import com.facebook.imageformat.ImageFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Reads the format, dimensions, EXIF orientation and presence of a color profile of an image in a
+ * single forward pass over its header.
+ *
+ * <p>The format is told by {@link DefaultImageFormatChecker} from the first bytes of the header,
+ * so that it is the same as the one {@link com.facebook.imageformat.ImageFormatChecker} finds.
+ *
+ * <p>Supports JPEG (SOFn, APP1 EXIF, APP2 ICC profile), PNG (IHDR, iCCP, cHRM), WebP (VP8, VP8L,
+ * VP8X), GIF, BMP and HEIF (ispe, irot, colr). Only header structures are read, everything else is
+ * skipped, and nothing past {@link #MAX_HEADER_SIZE} bytes is looked at. Unlike {@link
+ * BitmapUtil#decodeDimensionsAndColorSpace}, this does not involve {@link
+ * android.graphics.BitmapFactory}.
+ */
+public class ImageHeaderScanner {
+
+  /** Header data beyond this offset is not read. */
+  @VisibleForTesting static final int MAX_HEADER_SIZE = 1024 * 1024;
+
+  public static final int UNKNOWN_SIZE = -1;
+
+  private static final DefaultImageFormatChecker FORMAT_CHECKER = new DefaultImageFormatChecker();
+
+  private static final int JPEG_SOI = 0xFFD8;
+  private static final int BMP_SIGNATURE = 0x424D; // "BM"
+  private static final int PNG_SIGNATURE_FIRST = 0x89504E47; // "\x89PNG"
+  private static final int PNG_SIGNATURE_SECOND = 0x0D0A1A0A;
+  private static final int RIFF_SIGNATURE = 0x52494646; // "RIFF"
+  private static final int GIF_SIGNATURE = 0x47494638; // "GIF8"
+
+  private static final int APP2_ICC_PROFILE_MAGIC = 0x4943435F; // "ICC_"
+
+  private static final int PNG_IHDR = 0x49484452;
+  private static final int PNG_ICCP = 0x69434350;
+  private static final int PNG_CHRM = 0x6348524D;
+  private static final int PNG_IDAT = 0x49444154;
+
+  private static final int WEBP_SIGNATURE = 0x57454250; // "WEBP"
+  private static final int WEBP_VP8 = 0x56503820; // "VP8 "
+  private static final int WEBP_VP8L = 0x5650384C;
+  private static final int WEBP_VP8X = 0x56503858;
+  private static final int VP8_START_CODE = 0x9D012A;
+  private static final int VP8L_SIGNATURE = 0x2F;
+  private static final int VP8X_FLAG_ICC = 0x20;
+
+  private static final int BMP_CORE_HEADER_SIZE = 12;
+
+  private static final int BOX_FTYP = 0x66747970;
+  private static final int BOX_META = 0x6D657461;
+  private static final int BOX_IPRP = 0x69707270;
+  private static final int BOX_IPCO = 0x6970636F;
+  private static final int BOX_ISPE = 0x69737065;
+  private static final int BOX_IROT = 0x69726F74;
+  private static final int BOX_COLR = 0x636F6C72;
+  private static final int BOX_MDAT = 0x6D646174;
+  private static final int COLR_NCLX = 0x6E636C78;
+
+  /** Metadata read from the header of an image. */
+  public static class ImageHeader {
+    private ImageFormat mImageFormat = ImageFormat.UNKNOWN;
+    private int mWidth = UNKNOWN_SIZE;
+    private int mHeight = UNKNOWN_SIZE;
+    private int mExifOrientation = ExifInterface.ORIENTATION_UNDEFINED;
+    private boolean mHasColorProfile;
+
+    /** Returns the format of the image, one of the supported {@link DefaultImageFormats}. */
+    public ImageFormat getImageFormat() {
+      return mImageFormat;
+    }
+
+    /** Returns the width of the image, or {@link #UNKNOWN_SIZE}. */
+    public int getWidth() {
+      return mWidth;
+    }
+
+    /** Returns the height of the image, or {@link #UNKNOWN_SIZE}. */
+    public int getHeight() {
+      return mHeight;
+    }
+
+    public boolean hasDimensions() {
+      return mWidth > 0 && mHeight > 0;
+    }
+
+    /**
+     * Returns the EXIF orientation of JPEG and HEIF images, or {@link
+     * ExifInterface#ORIENTATION_UNDEFINED}.
+     */
+    public int getExifOrientation() {
+      return mExifOrientation;
+    }
+
+    /**
+     * Returns whether the image specifies its own color space, in which case the color space may
+     * be other than sRGB.
+     */
+    public boolean hasColorProfile() {
+      return mHasColorProfile;
+    }
+
+    private void setDimensions(int width, int height) {
+      if (width > 0 && height > 0) {
+        mWidth = width;
+        mHeight = height;
+      }
+    }
+  }
+
+  private ImageHeaderScanner() {}
+
+  /**
+   * Reads the header of the image. The stream is read from its current position but not closed.
+   *
+   * @param is the input stream of the image
+   * @return the metadata found, parts of it are unknown if the header is incomplete, or null if
+   *     the format is not supported
+   */
+  public static @Nullable ImageHeader scan(InputStream is) {
+    Preconditions.checkNotNull(is);
+    InputStream headerStream = new LimitedInputStream(is, MAX_HEADER_SIZE);
+    final ImageHeader header = new ImageHeader();
+    try {
+      headerStream = readImageFormat(headerStream, header);
+    } catch (IOException ioe) {
+      return null;
+    }
+    if (!isSupported(header.mImageFormat)) {
+      return null;
+    }
+    try {
+      final int first = readInt(headerStream, 2);
+      if (first == JPEG_SOI) {
+        scanJpeg(headerStream, header);
+        return header;
+      } else if (first == BMP_SIGNATURE) {
+        scanBmp(headerStream, header);
+        return header;
+      }
+      final int signature = (first << 16) | readInt(headerStream, 2);
+      if (signature == PNG_SIGNATURE_FIRST) {
+        scanPng(headerStream, header);
+      } else if (signature == RIFF_SIGNATURE) {
+        if (!scanWebp(headerStream, header)) {
+          return null;
+        }
+      } else if (signature == GIF_SIGNATURE) {
+        // skip the rest of the version, "7a" or "9a"
+        StreamUtil.skip(headerStream, 2);
+        header.setDimensions(readIntLE(headerStream, 2), readIntLE(headerStream, 2));
+      } else if (readInt(headerStream, 4) == BOX_FTYP) {
+        // the signature is the size of the ftyp box
+        scanHeif(headerStream, signature - 8, header);
+      } else {
+        return null;
+      }
+    } catch (IOException ioe) {
+      // the header is incomplete, return what was found so far
+      return header;
+    }
+    return header;
+  }
+
+  /**
+   * Sets the format of the image from the first bytes of the header.
+   *
+   * @return the stream to read the header from, positioned at its start again
+   */
+  private static InputStream readImageFormat(InputStream is, ImageHeader header)
+      throws IOException {
+    final byte[] formatBytes = new byte[FORMAT_CHECKER.getHeaderSize()];
+    final int formatByteCount;
+    final InputStream headerStream;
+    if (is.markSupported()) {
+      is.mark(formatBytes.length);
+      formatByteCount = ByteStreams.read(is, formatBytes, 0, formatBytes.length);
+      is.reset();
+      headerStream = is;
+    } else {
+      formatByteCount = ByteStreams.read(is, formatBytes, 0, formatBytes.length);
+      headerStream =
+          new SequenceInputStream(new ByteArrayInputStream(formatBytes, 0, formatByteCount), is);
+    }
+    final ImageFormat imageFormat = FORMAT_CHECKER.determineFormat(formatBytes, formatByteCount);
+    header.mImageFormat = imageFormat != null ? imageFormat : ImageFormat.UNKNOWN;
+    return headerStream;
+  }
+
+  private static boolean isSupported(ImageFormat imageFormat) {
+    return imageFormat == DefaultImageFormats.JPEG
+        || imageFormat == DefaultImageFormats.PNG
+        || imageFormat == DefaultImageFormats.GIF
+        || imageFormat == DefaultImageFormats.BMP
+        || imageFormat == DefaultImageFormats.HEIF
+        || DefaultImageFormats.isWebpFormat(imageFormat);
+  }
+
+  private static void scanJpeg(InputStream is, ImageHeader header) throws IOException {
+    // ISO/IEC 10918-1:1993(E)
+    while (readInt(is, 1) == JfifUtil.MARKER_FIRST_BYTE) {
+      int marker = JfifUtil.MARKER_FIRST_BYTE;
+      while (marker == JfifUtil.MARKER_FIRST_BYTE) {
+        marker = readInt(is, 1);
+      }
+      if (marker == JfifUtil.MARKER_SOI
+          || marker == JfifUtil.MARKER_TEM
+          || (marker >= JfifUtil.MARKER_RST0 && marker <= JfifUtil.MARKER_RST7)) {
+        continue;
+      }
+      if (marker == JfifUtil.MARKER_EOI || marker == JfifUtil.MARKER_SOS) {
+        return;
+      }
+      // subtract 2 as length contains the size field
+      int length = readInt(is, 2) - 2;
+      if (length < 0) {
+        return;
+      }
+      if (JfifUtil.isSOFn(marker)) {
+        if (length >= 5) {
+          // skip the sample precision
+          readInt(is, 1);
+          final int height = readInt(is, 2);
+          header.setDimensions(readInt(is, 2), height);
+        }
+        // metadata segments don't come after the frame header
+        return;
+      } else if (marker == JfifUtil.MARKER_APP1 && length > 6) {
+        final int magic = readInt(is, 4);
+        final int zero = readInt(is, 2);
+        length -= 6;
+        if (magic == JfifUtil.APP1_EXIF_MAGIC && zero == 0) {
+          // JEITA CP-3451 Exif Version 2.2
+          final InputStream exifStream = new LimitedInputStream(is, length);
+          header.mExifOrientation = TiffUtil.readOrientationFromTIFF(exifStream, length);
+          StreamUtil.skip(exifStream, length);
+          length = 0;
+        }
+      } else if (marker == JfifUtil.MARKER_APP2 && length >= 4) {
+        header.mHasColorProfile |= readInt(is, 4) == APP2_ICC_PROFILE_MAGIC;
+        length -= 4;
+      }
+      StreamUtil.skip(is, length);
+    }
+  }
+
+  private static void scanPng(InputStream is, ImageHeader header) throws IOException {
+    if (readInt(is, 4) != PNG_SIGNATURE_SECOND) {
+      return;
+    }
+    while (true) {
+      int length = readInt(is, 4);
+      final int type = readInt(is, 4);
+      if (length < 0 || type == PNG_IDAT) {
+        return;
+      }
+      if (type == PNG_IHDR && length >= 8) {
+        header.setDimensions(readInt(is, 4), readInt(is, 4));
+        length -= 8;
+      } else if (type == PNG_ICCP || type == PNG_CHRM) {
+        header.mHasColorProfile = true;
+      }
+      // skip the rest of the chunk and its CRC
+      StreamUtil.skip(is, length + 4L);
+    }
+  }
+
+  private static boolean scanWebp(InputStream is, ImageHeader header) throws IOException {
+    // skip the file size
+    StreamUtil.skip(is, 4);
+    if (readInt(is, 4) != WEBP_SIGNATURE) {
+      return false;
+    }
+    final int chunkType = readInt(is, 4);
+    // skip the chunk size
+    StreamUtil.skip(is, 4);
+    if (chunkType == WEBP_VP8) {
+      // skip the frame tag
+      StreamUtil.skip(is, 3);
+      if (readInt(is, 3) == VP8_START_CODE) {
+        // the two most significant bits are the scale
+        final int width = readIntLE(is, 2) & 0x3FFF;
+        header.setDimensions(width, readIntLE(is, 2) & 0x3FFF);
+      }
+    } else if (chunkType == WEBP_VP8L) {
+      if (readInt(is, 1) == VP8L_SIGNATURE) {
+        // 14 bits each, minus one
+        final int bits = readIntLE(is, 4);
+        header.setDimensions((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1);
+      }
+    } else if (chunkType == WEBP_VP8X) {
+      header.mHasColorProfile = (readInt(is, 1) & VP8X_FLAG_ICC) != 0;
+      // skip the reserved bytes
+      StreamUtil.skip(is, 3);
+      final int width = readIntLE(is, 3) + 1;
+      header.setDimensions(width, readIntLE(is, 3) + 1);
+    }
+    return true;
+  }
+
+  private static void scanBmp(InputStream is, ImageHeader header) throws IOException {
+    // skip the file size, the reserved bytes and the offset of the pixels
+    StreamUtil.skip(is, 12);
+    if (readIntLE(is, 4) == BMP_CORE_HEADER_SIZE) {
+      final int width = readIntLE(is, 2);
+      header.setDimensions(width, readIntLE(is, 2));
+    } else {
+      final int width = readIntLE(is, 4);
+      // the height is negative for top-down bitmaps
+      header.setDimensions(width, Math.abs(readIntLE(is, 4)));
+    }
+  }
+
+  private static void scanHeif(InputStream is, int ftypSize, ImageHeader header)
+      throws IOException {
+    if (ftypSize < 0) {
+      return;
+    }
+    StreamUtil.skip(is, ftypSize);
+    header.mExifOrientation = ExifInterface.ORIENTATION_NORMAL;
+    scanBoxes(is, Integer.MAX_VALUE, header);
+  }
+
+  /**
+   * Scans the ISO base media file format boxes in the next bytesLeft bytes.
+   *
+   * @return true if the metadata has been read and no further box needs to be looked at
+   */
+  private static boolean scanBoxes(InputStream is, int bytesLeft, ImageHeader header)
+      throws IOException {
+    while (bytesLeft >= 8) {
+      int size = readInt(is, 4);
+      final int type = readInt(is, 4);
+      if (size == 1) {
+        // 64-bit size, which no metadata box needs
+        return true;
+      }
+      if (size == 0 || size > bytesLeft) {
+        // the box extends to the end of its container
+        size = bytesLeft;
+      }
+      int bodySize = size - 8;
+      if (bodySize < 0 || type == BOX_MDAT) {
+        return true;
+      }
+      bytesLeft -= size;
+      switch (type) {
+        case BOX_META:
+          if (bodySize < 4) {
+            return true;
+          }
+          // skip the version and flags
+          StreamUtil.skip(is, 4);
+          scanBoxes(is, bodySize - 4, header);
+          return true;
+        case BOX_IPRP:
+        case BOX_IPCO:
+          if (scanBoxes(is, bodySize, header)) {
+            return true;
+          }
+          bodySize = 0;
+          break;
+        case BOX_ISPE:
+          if (bodySize >= 12) {
+            // skip the version and flags
+            StreamUtil.skip(is, 4);
+            final int width = readInt(is, 4);
+            final int height = readInt(is, 4);
+            bodySize -= 12;
+            // thumbnails and grid tiles have their own size, keep the largest one
+            if ((long) width * height > (long) header.mWidth * header.mHeight) {
+              header.setDimensions(width, height);
+            }
+          }
+          break;
+        case BOX_IROT:
+          if (bodySize >= 1) {
+            header.mExifOrientation = getOrientationFromIrot(readInt(is, 1));
+            bodySize -= 1;
+          }
+          break;
+        case BOX_COLR:
+          if (bodySize >= 4) {
+            header.mHasColorProfile |= readInt(is, 4) != COLR_NCLX;
+            bodySize -= 4;
+          }
+          break;
+        default:
+          break;
+      }
+      StreamUtil.skip(is, bodySize);
+    }
+    return false;
+  }
+
+  /** irot holds the number of anti-clockwise rotations by 90 degrees in its lowest two bits. */
+  private static int getOrientationFromIrot(int irot) {
+    switch (irot & 0x3) {
+      case 1:
+        return ExifInterface.ORIENTATION_ROTATE_270;
+      case 2:
+        return ExifInterface.ORIENTATION_ROTATE_180;
+      case 3:
+        return ExifInterface.ORIENTATION_ROTATE_90;
+      default:
+        return ExifInterface.ORIENTATION_NORMAL;
+    }
+  }
+
+  private static int readInt(InputStream is, int numBytes) throws IOException {
+    return StreamProcessor.readPackedInt(is, numBytes, false);
+  }
+
+  private static int readIntLE(InputStream is, int numBytes) throws IOException {
+    return StreamProcessor.readPackedInt(is, numBytes, true);
+  }
+}
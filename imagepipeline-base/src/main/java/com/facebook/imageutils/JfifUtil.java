@@ -28,6 +28,7 @@ public class JfifUtil {
   public static final int MARKER_EOI = 0xD9;
   public static final int MARKER_SOS = 0xDA;
   public static final int MARKER_APP1 = 0xE1;
+  public static final int MARKER_APP2 = 0xE2;
   public static final int MARKER_SOFn = 0xC0;
   public static final int MARKER_RST0 = 0xD0;
   public static final int MARKER_RST7 = 0xD7;
@@ -120,7 +121,7 @@ public class JfifUtil {
     return false;
   }
 
-  private static boolean isSOFn(int marker) {
+  static boolean isSOFn(int marker) {
     // There are no SOF4, SOF8, SOF12
     switch (marker) {
       case 0xC0:
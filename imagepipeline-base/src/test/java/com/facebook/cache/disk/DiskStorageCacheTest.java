@@ -15,8 +15,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -174,6 +176,44 @@ public class DiskStorageCacheTest {
     verifyNoMoreInteractions(mCacheEventListener);
   }
 
+  @Test
+  public void testInsertionInParts() throws Exception {
+    CacheKey key = new SimpleCacheKey("foo");
+    FileCache.Insertion insertion = mCache.startInsertion(key);
+    insertion.append(WriterCallbacks.from(new byte[] {1, 2}));
+    insertion.append(WriterCallbacks.from(new byte[] {3}));
+    assertNull(getResource(key));
+
+    insertion.commit();
+    insertion.discard();
+
+    assertArrayEquals(new byte[] {1, 2, 3}, getContents(getResource(key)));
+    assertTrue(mCache.hasKeySync(key));
+  }
+
+  @Test
+  public void testDiscardedInsertionIsNotCached() throws Exception {
+    CacheKey key = new SimpleCacheKey("foo");
+    FileCache.Insertion insertion = mCache.startInsertion(key);
+    insertion.append(WriterCallbacks.from(new byte[] {1, 2}));
+
+    insertion.discard();
+
+    assertNull(getResource(key));
+    assertFalse(mCache.hasKeySync(key));
+  }
+
+  @Test
+  public void testUntrackedLookupIsNotReported() throws Exception {
+    CacheKey key = putOneThingInCache();
+
+    assertNotNull(mCache.getResourceUntracked(key));
+    assertNull(mCache.getResourceUntracked(new SimpleCacheKey("bar")));
+
+    verify(mCacheEventListener, never()).onHit(any(CacheEvent.class));
+    verify(mCacheEventListener, never()).onMiss(any(CacheEvent.class));
+  }
+
   private BinaryResource getResource(DiskStorage storage, final CacheKey key) throws IOException {
     return storage.getResource(CacheKeyUtil.getFirstResourceId(key), key);
   }
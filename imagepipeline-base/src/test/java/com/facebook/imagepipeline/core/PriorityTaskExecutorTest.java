@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import static org.junit.Assert.*;
+
+import com.facebook.imagepipeline.common.Priority;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class PriorityTaskExecutorTest {
+
+  private PriorityTaskExecutor mExecutor;
+  private CountDownLatch mBlockerStarted;
+  private CountDownLatch mReleaseBlocker;
+  private List<String> mExecuted;
+
+  @Before
+  public void setUp() throws Exception {
+    startBlockedExecutor(false);
+  }
+
+  private void startBlockedExecutor(boolean newestFirst) throws InterruptedException {
+    mExecutor = new PriorityTaskExecutor(1, Executors.defaultThreadFactory(), newestFirst);
+    mBlockerStarted = new CountDownLatch(1);
+    mReleaseBlocker = new CountDownLatch(1);
+    mExecuted = new ArrayList<>();
+    // occupy the only thread so that the following tasks get queued
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            mBlockerStarted.countDown();
+            try {
+              mReleaseBlocker.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    assertTrue(mBlockerStarted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testRunsByPriorityThenSubmissionOrder() throws Exception {
+    mExecutor.execute(new Task("low1", Priority.LOW));
+    mExecutor.execute(new Task("medium", Priority.MEDIUM));
+    mExecutor.execute(new Task("low2", Priority.LOW));
+    mExecutor.execute(new Task("high", Priority.HIGH));
+    assertEquals(4, mExecutor.getQueueSize());
+
+    runQueuedTasks();
+
+    assertEquals(Arrays.asList("high", "medium", "low1", "low2"), mExecuted);
+  }
+
+  @Test
+  public void testNewestFirst() throws Exception {
+    mReleaseBlocker.countDown();
+    startBlockedExecutor(true);
+    final CountDownLatch done = new CountDownLatch(1);
+    // submitted first, so it runs last
+    mExecutor.execute(
+        new Task("done", Priority.LOW) {
+          @Override
+          public void run() {
+            done.countDown();
+          }
+        });
+
+    mExecutor.execute(new Task("low1", Priority.LOW));
+    mExecutor.execute(new Task("high1", Priority.HIGH));
+    mExecutor.execute(new Task("low2", Priority.LOW));
+    mExecutor.execute(new Task("high2", Priority.HIGH));
+
+    mReleaseBlocker.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("high2", "high1", "low2", "low1"), mExecuted);
+  }
+
+  @Test
+  public void testPlainRunnableIsTreatedAsHighPriority() throws Exception {
+    mExecutor.execute(new Task("low", Priority.LOW));
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            record("plain");
+          }
+        });
+
+    runQueuedTasks();
+
+    assertEquals(Arrays.asList("plain", "low"), mExecuted);
+  }
+
+  @Test
+  public void testUpdatePriority() throws Exception {
+    final Task first = new Task("first", Priority.MEDIUM);
+    final Task second = new Task("second", Priority.LOW);
+    mExecutor.execute(first);
+    mExecutor.execute(second);
+
+    second.mPriority = Priority.HIGH;
+    assertTrue(mExecutor.updatePriority(second));
+
+    runQueuedTasks();
+
+    assertEquals(Arrays.asList("second", "first"), mExecuted);
+    assertFalse(mExecutor.updatePriority(second));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    final Task removed = new Task("removed", Priority.HIGH);
+    mExecutor.execute(removed);
+    mExecutor.execute(new Task("kept", Priority.LOW));
+
+    assertTrue(mExecutor.remove(removed));
+    assertFalse(mExecutor.remove(removed));
+    assertEquals(1, mExecutor.getQueueSize());
+
+    runQueuedTasks();
+
+    assertEquals(Arrays.asList("kept"), mExecuted);
+  }
+
+  @Test
+  public void testThreadCountIsBounded() throws Exception {
+    mExecutor.execute(new Task("a", Priority.LOW));
+    mExecutor.execute(new Task("b", Priority.LOW));
+    assertEquals(1, mExecutor.getThreadCount());
+    runQueuedTasks();
+  }
+
+  @Test
+  public void testBackToBackTasksDoNotAllWaitForOneIdleThread() throws Exception {
+    runQueuedTasks();
+    mExecutor = new PriorityTaskExecutor(3, Executors.defaultThreadFactory());
+    final CountDownLatch firstDone = new CountDownLatch(1);
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            firstDone.countDown();
+          }
+        });
+    assertTrue(firstDone.await(5, TimeUnit.SECONDS));
+    assertEquals(1, mExecutor.getThreadCount());
+
+    // the only thread is idle, the two following tasks need threads of their own
+    final CountDownLatch started = new CountDownLatch(3);
+    final CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 3; i++) {
+      mExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              started.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
+    }
+    try {
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      assertEquals(3, mExecutor.getThreadCount());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private void runQueuedTasks() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    mExecutor.execute(
+        new Task("done", Priority.LOW) {
+          @Override
+          public void run() {
+            done.countDown();
+          }
+        });
+    mReleaseBlocker.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  private synchronized void record(String name) {
+    mExecuted.add(name);
+  }
+
+  private class Task implements PrioritizedRunnable {
+    private final String mName;
+    private volatile Priority mPriority;
+
+    Task(String name, Priority priority) {
+      mName = name;
+      mPriority = priority;
+    }
+
+    @Override
+    public Priority getPriority() {
+      return mPriority;
+    }
+
+    @Override
+    public void run() {
+      record(mName);
+    }
+  }
+}
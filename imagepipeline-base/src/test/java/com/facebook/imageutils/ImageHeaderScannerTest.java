@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imageutils;
+
+import static org.junit.Assert.*;
+
+import android.media.ExifInterface;
+import com.facebook.imageformat.DefaultImageFormats;
+import com.facebook.imageformat.ImageFormat;
+import com.facebook.imageformat.ImageFormatChecker;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests {@link ImageHeaderScanner} */
+@RunWith(RobolectricTestRunner.class)
+public class ImageHeaderScannerTest {
+
+  @Test
+  public void testJpegs() {
+    checkImage("jpegs/1.jpeg", 240, 181);
+    checkImage("jpegs/2.jpeg", 240, 93);
+    checkImage("jpegs/3.jpeg", 240, 240);
+    checkImage("jpegs/1cut.jpeg", 240, 181);
+  }
+
+  @Test
+  public void testJpegWithExifAndColorProfile() {
+    ImageHeaderScanner.ImageHeader header = checkImage("jpegs/1prog.jpeg", 981, 657);
+    assertEquals(ExifInterface.ORIENTATION_NORMAL, header.getExifOrientation());
+    assertTrue(header.hasColorProfile());
+  }
+
+  @Test
+  public void testJpegOrientation() {
+    String ifd =
+        JfifTestUtils.makeIfd(
+            new String[] {JfifTestUtils.makeOrientationEntry(6, false)}, 0, false);
+    byte[] jpeg =
+        JfifTestUtils.hexStringToByteArray(
+            JfifTestUtils.makeTestImageWithAPP1(
+                JfifTestUtils.makeAPP1_EXIF(JfifTestUtils.makeTiff(ifd, false))));
+    ImageHeaderScanner.ImageHeader header =
+        ImageHeaderScanner.scan(new ByteArrayInputStream(jpeg));
+    assertEquals(ExifInterface.ORIENTATION_ROTATE_90, header.getExifOrientation());
+  }
+
+  @Test
+  public void testPngs() {
+    checkImage("pngs/1.png", 240, 181);
+    checkImage("pngs/2.png", 240, 246);
+    assertFalse(checkImage("pngs/3.png", 240, 180).hasColorProfile());
+  }
+
+  @Test
+  public void testGifs() {
+    checkImage("gifs/1.gif", 240, 181);
+    checkImage("gifs/2.gif", 240, 246);
+    checkImage("gifs/3.gif", 240, 180);
+  }
+
+  @Test
+  public void testBmps() {
+    checkImage("bmps/1.bmp", 240, 181);
+    checkImage("bmps/2.bmp", 240, 246);
+    checkImage("bmps/3.bmp", 240, 180);
+  }
+
+  @Test
+  public void testWebps() {
+    checkImage("webps/1_webp_plain.webp", 320, 214);
+    checkImage("webps/1_webp_ll.webp", 400, 301);
+    checkImage("webps/1_webp_e.webp", 480, 320);
+    checkImage("webps/1_webp_ea.webp", 400, 301);
+    checkImage("webps/1_webp_anim.webp", 322, 477);
+  }
+
+  @Test
+  public void testUnsupportedFormat() {
+    assertNull(ImageHeaderScanner.scan(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6})));
+  }
+
+  @Test
+  public void testHeif() {
+    // the primary image is described after its thumbnail, the largest ispe is the image size
+    ImageHeaderScanner.ImageHeader header =
+        checkImage("/com/facebook/imageformat/heifs/1.heif", 574, 1024);
+    assertEquals(ExifInterface.ORIENTATION_NORMAL, header.getExifOrientation());
+    assertTrue(header.hasColorProfile());
+  }
+
+  @Test
+  public void testHeifRotation() {
+    assertEquals(ExifInterface.ORIENTATION_NORMAL, scanHeif(makeIrot(0)).getExifOrientation());
+    assertEquals(ExifInterface.ORIENTATION_ROTATE_270, scanHeif(makeIrot(1)).getExifOrientation());
+    assertEquals(ExifInterface.ORIENTATION_ROTATE_180, scanHeif(makeIrot(2)).getExifOrientation());
+    assertEquals(ExifInterface.ORIENTATION_ROTATE_90, scanHeif(makeIrot(3)).getExifOrientation());
+  }
+
+  @Test
+  public void testHeifColorProfile() {
+    ImageHeaderScanner.ImageHeader header = scanHeif(makeBox("colr", "nclx", 0, 1, 0, 1));
+    assertEquals(300, header.getWidth());
+    assertEquals(200, header.getHeight());
+    assertFalse(header.hasColorProfile());
+
+    assertTrue(scanHeif(makeBox("colr", "prof", 1, 2, 3, 4)).hasColorProfile());
+    assertTrue(scanHeif(makeBox("colr", "rICC", 1, 2, 3, 4)).hasColorProfile());
+  }
+
+  @Test
+  public void testHeifPropertiesAfterMediaDataAreIgnored() {
+    byte[] ftyp = makeBox("ftyp", "heic", 0, 0, 0, 0, 'm', 'i', 'f', '1');
+    byte[] mdat = makeBox("mdat", "", 1, 2, 3, 4);
+    ImageHeaderScanner.ImageHeader header =
+        ImageHeaderScanner.scan(
+            new ByteArrayInputStream(concat(ftyp, mdat, makeMeta(makeIspe(300, 200)))));
+    assertNotNull(header);
+    assertFalse(header.hasDimensions());
+  }
+
+  @Test
+  public void testImageFormat() throws IOException {
+    String[] paths = {
+      "jpegs/1.jpeg",
+      "pngs/1.png",
+      "gifs/1.gif",
+      "bmps/1.bmp",
+      "webps/1_webp_plain.webp",
+      "webps/1_webp_ll.webp",
+      "webps/1_webp_e.webp",
+      "webps/1_webp_ea.webp",
+      "webps/1_webp_anim.webp",
+      "/com/facebook/imageformat/heifs/1.heif"
+    };
+    for (String path : paths) {
+      ImageFormat expected =
+          ImageFormatChecker.getImageFormat(ImageHeaderScannerTest.class.getResourceAsStream(path));
+      assertEquals(
+          expected,
+          ImageHeaderScanner.scan(ImageHeaderScannerTest.class.getResourceAsStream(path))
+              .getImageFormat());
+    }
+  }
+
+  @Test
+  public void testStreamWithoutMark() {
+    InputStream png =
+        new FilterInputStream(ImageHeaderScannerTest.class.getResourceAsStream("pngs/1.png")) {
+          @Override
+          public boolean markSupported() {
+            return false;
+          }
+        };
+    ImageHeaderScanner.ImageHeader header = ImageHeaderScanner.scan(png);
+    assertEquals(DefaultImageFormats.PNG, header.getImageFormat());
+    assertEquals(240, header.getWidth());
+    assertEquals(181, header.getHeight());
+  }
+
+  @Test
+  public void testUnsupportedFtypBrand() {
+    byte[] ftyp = makeBox("ftyp", "avif", 0, 0, 0, 0);
+    byte[] heif = concat(ftyp, makeMeta(makeIspe(300, 200)));
+    assertNull(ImageHeaderScanner.scan(new ByteArrayInputStream(heif)));
+  }
+
+  @Test
+  public void testTruncatedHeader() {
+    ImageHeaderScanner.ImageHeader header =
+        ImageHeaderScanner.scan(
+            new ByteArrayInputStream(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}));
+    assertFalse(header.hasDimensions());
+    assertEquals(ImageHeaderScanner.UNKNOWN_SIZE, header.getWidth());
+  }
+
+  private static ImageHeaderScanner.ImageHeader checkImage(
+      String path, int expectedWidth, int expectedHeight) {
+    ImageHeaderScanner.ImageHeader header =
+        ImageHeaderScanner.scan(ImageHeaderScannerTest.class.getResourceAsStream(path));
+    assertNotNull(header);
+    assertEquals(expectedWidth, header.getWidth());
+    assertEquals(expectedHeight, header.getHeight());
+    return header;
+  }
+
+  /** Scans a HEIF file holding a 300x200 ispe followed by the given property. */
+  private static ImageHeaderScanner.ImageHeader scanHeif(byte[] property) {
+    byte[] ftyp = makeBox("ftyp", "heic", 0, 0, 0, 0, 'm', 'i', 'f', '1');
+    byte[] meta = makeMeta(concat(makeIspe(300, 200), property));
+    ImageHeaderScanner.ImageHeader header =
+        ImageHeaderScanner.scan(new ByteArrayInputStream(concat(ftyp, meta)));
+    assertNotNull(header);
+    return header;
+  }
+
+  private static byte[] makeMeta(byte[] properties) {
+    byte[] ipco = makeBox("ipco", "", properties);
+    byte[] iprp = makeBox("iprp", "", ipco);
+    // meta is a full box, its children follow the version and flags
+    return makeBox("meta", "", concat(new byte[4], makeBox("hdlr", "", new byte[25]), iprp));
+  }
+
+  private static byte[] makeIspe(int width, int height) {
+    // ispe is a full box
+    return makeBox("ispe", "", concat(new byte[4], toBytes(width), toBytes(height)));
+  }
+
+  private static byte[] makeIrot(int rotations) {
+    return makeBox("irot", "", rotations);
+  }
+
+  private static byte[] makeBox(String type, String prefix, int... body) {
+    byte[] bytes = new byte[body.length];
+    for (int i = 0; i < body.length; i++) {
+      bytes[i] = (byte) body[i];
+    }
+    return makeBox(type, prefix, bytes);
+  }
+
+  private static byte[] makeBox(String type, String prefix, byte[] body) {
+    byte[] prefixBytes = prefix.getBytes(Charset.forName("US-ASCII"));
+    int size = 8 + prefixBytes.length + body.length;
+    return concat(toBytes(size), type.getBytes(Charset.forName("US-ASCII")), prefixBytes, body);
+  }
+
+  private static byte[] toBytes(int value) {
+    return new byte[] {
+      (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value
+    };
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+}
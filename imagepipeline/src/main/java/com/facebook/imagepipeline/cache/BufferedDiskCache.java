@@ -7,9 +7,11 @@
 
 package com.facebook.imagepipeline.cache;
 
+import bolts.Continuation;
 import bolts.Task;
 import com.facebook.binaryresource.BinaryResource;
 import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.cache.common.WriterCallback;
 import com.facebook.cache.disk.FileCache;
 import com.facebook.common.internal.Preconditions;
@@ -29,6 +31,8 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * BufferedDiskCache provides get and put operations to take care of scheduling disk-cache
@@ -144,9 +148,9 @@ public class BufferedDiskCache {
       }
       final EncodedImage pinnedImage = mStagingArea.get(key);
       if (pinnedImage != null) {
-        return foundPinnedImage(key, pinnedImage);
+        return foundPinnedImage(key, pinnedImage, mImageCacheStatsTracker);
       }
-      return getAsync(key, isCancelled);
+      return getAsync(key, isCancelled, mImageCacheStatsTracker, true);
     } finally {
       if (FrescoSystrace.isTracing()) {
         FrescoSystrace.endSection();
@@ -154,6 +158,20 @@ public class BufferedDiskCache {
     }
   }
 
+  /**
+   * Same as {@link #get(CacheKey, AtomicBoolean)}, but the look up is neither reported to the
+   * {@link ImageCacheStatsTracker} nor to the cache event listener of the file cache. Used for
+   * entries that are not images requested by the app.
+   */
+  public Task<EncodedImage> getUntracked(CacheKey key) {
+    final ImageCacheStatsTracker statsTracker = NoOpImageCacheStatsTracker.getInstance();
+    final EncodedImage pinnedImage = mStagingArea.get(key);
+    if (pinnedImage != null) {
+      return foundPinnedImage(key, pinnedImage, statsTracker);
+    }
+    return getAsync(key, new AtomicBoolean(false), statsTracker, false);
+  }
+
   /**
    * Performs key-value look up in disk cache. If value is not found in disk cache staging area then
    * disk cache probing is scheduled on background thread.
@@ -209,7 +227,11 @@ public class BufferedDiskCache {
     }
   }
 
-  private Task<EncodedImage> getAsync(final CacheKey key, final AtomicBoolean isCancelled) {
+  private Task<EncodedImage> getAsync(
+      final CacheKey key,
+      final AtomicBoolean isCancelled,
+      final ImageCacheStatsTracker statsTracker,
+      final boolean isTracked) {
     try {
       final Object token = FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_getAsync");
       return Task.call(
@@ -224,13 +246,14 @@ public class BufferedDiskCache {
                 EncodedImage result = mStagingArea.get(key);
                 if (result != null) {
                   FLog.v(TAG, "Found image for %s in staging area", key.getUriString());
-                  mImageCacheStatsTracker.onStagingAreaHit(key);
+                  statsTracker.onStagingAreaHit(key);
                 } else {
                   FLog.v(TAG, "Did not find image for %s in staging area", key.getUriString());
-                  mImageCacheStatsTracker.onStagingAreaMiss(key);
+                  statsTracker.onStagingAreaMiss(key);
 
                   try {
-                    final PooledByteBuffer buffer = readFromDiskCache(key);
+                    final PooledByteBuffer buffer =
+                        readFromDiskCache(key, statsTracker, isTracked);
                     if (buffer == null) {
                       return null;
                     }
@@ -323,6 +346,38 @@ public class BufferedDiskCache {
     }
   }
 
+  /**
+   * Starts an entry whose bytes are written in several parts, as they become available. The entry
+   * is only committed if all its parts are written, and is discarded otherwise.
+   *
+   * @return the write of the entry, which must be committed or discarded
+   */
+  public IncrementalWrite startIncrementalWrite(CacheKey key) {
+    Preconditions.checkNotNull(key);
+    return new IncrementalWrite(key);
+  }
+
+  /**
+   * Keeps the image in the staging area until the write of its entry completes, like {@link
+   * #put(CacheKey, EncodedImage)} does for the writes it schedules.
+   */
+  public void stageUntil(final CacheKey key, EncodedImage encodedImage, Task<Boolean> write) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkArgument(EncodedImage.isValid(encodedImage));
+    mStagingArea.put(key, encodedImage);
+    final EncodedImage finalEncodedImage = EncodedImage.cloneOrNull(encodedImage);
+    // run at once if the write has already completed
+    write.continueWith(
+        new Continuation<Boolean, Void>() {
+          @Override
+          public Void then(Task<Boolean> task) {
+            mStagingArea.remove(key, finalEncodedImage);
+            EncodedImage.closeSafely(finalEncodedImage);
+            return null;
+          }
+        });
+  }
+
   /** Removes the item from the disk cache and the staging area. */
   public Task<Void> remove(final CacheKey key) {
     Preconditions.checkNotNull(key);
@@ -337,6 +392,7 @@ public class BufferedDiskCache {
               try {
                 mStagingArea.remove(key);
                 mFileCache.remove(key);
+                mFileCache.remove(getValidatorsKey(key));
               } catch (Throwable th) {
                 FrescoInstrumenter.markFailure(token, th);
                 throw th;
@@ -386,29 +442,169 @@ public class BufferedDiskCache {
     }
   }
 
+  /**
+   * Reads the validators kept for the cached image with the given key on a background thread. Any
+   * error manifests itself as a miss, i.e. the returned task resolves to null.
+   *
+   * <p>Like the other entries that are not images, the look up is not reported to the {@link
+   * ImageCacheStatsTracker} nor to the cache event listener of the file cache.
+   *
+   * @param key key of the cached image
+   * @return task that resolves to the validators, or to null if there are none
+   */
+  public Task<CacheValidators> getValidators(final CacheKey key) {
+    try {
+      final Object token = FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_getValidators");
+      return Task.call(
+          new Callable<CacheValidators>() {
+            @Override
+            public @Nullable CacheValidators call() throws Exception {
+              final Object currentToken = FrescoInstrumenter.onBeginWork(token, null);
+              try {
+                return getValidatorsSync(key);
+              } catch (Throwable th) {
+                FrescoInstrumenter.markFailure(token, th);
+                throw th;
+              } finally {
+                FrescoInstrumenter.onEndWork(currentToken);
+              }
+            }
+          },
+          mReadExecutor);
+    } catch (Exception exception) {
+      FLog.w(TAG, exception, "Failed to schedule validators read for %s", key.getUriString());
+      return Task.forResult(null);
+    }
+  }
+
+  /**
+   * Same as {@link #getValidators}, but the disk read is performed on the calling thread.
+   *
+   * @param key key of the cached image
+   * @return the validators, or null if there are none
+   */
+  public @Nullable CacheValidators getValidatorsSync(CacheKey key) {
+    final CacheKey validatorsKey = getValidatorsKey(key);
+    try {
+      final BinaryResource resource = mFileCache.getResourceUntracked(validatorsKey);
+      if (resource == null) {
+        return null;
+      }
+      final InputStream is = resource.openStream();
+      try {
+        return CacheValidators.readFrom(is);
+      } finally {
+        is.close();
+      }
+    } catch (IOException ioe) {
+      FLog.w(TAG, ioe, "Failed to read validators for %s", key.getUriString());
+      return null;
+    }
+  }
+
+  /**
+   * Associates validators with the cached image with the given key. Disk write is performed on
+   * background thread, so the caller of this method is not blocked.
+   */
+  public void putValidators(final CacheKey key, final CacheValidators validators) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(validators);
+    try {
+      final Object token =
+          FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_putValidators");
+      mWriteExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              final Object currentToken = FrescoInstrumenter.onBeginWork(token, null);
+              try {
+                mFileCache.insert(
+                    getValidatorsKey(key),
+                    new WriterCallback() {
+                      @Override
+                      public void write(OutputStream os) throws IOException {
+                        validators.writeTo(os);
+                      }
+                    });
+              } catch (IOException ioe) {
+                FLog.w(TAG, ioe, "Failed to write validators for %s", key.getUriString());
+              } catch (Throwable th) {
+                FrescoInstrumenter.markFailure(token, th);
+                throw th;
+              } finally {
+                FrescoInstrumenter.onEndWork(currentToken);
+              }
+            }
+          });
+    } catch (Exception exception) {
+      FLog.w(TAG, exception, "Failed to schedule validators write for %s", key.getUriString());
+    }
+  }
+
+  /** Removes the validators kept for the cached image with the given key, if any. */
+  public Task<Void> removeValidators(final CacheKey key) {
+    Preconditions.checkNotNull(key);
+    try {
+      final Object token =
+          FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_removeValidators");
+      return Task.call(
+          new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              final Object currentToken = FrescoInstrumenter.onBeginWork(token, null);
+              try {
+                mFileCache.remove(getValidatorsKey(key));
+              } catch (Throwable th) {
+                FrescoInstrumenter.markFailure(token, th);
+                throw th;
+              } finally {
+                FrescoInstrumenter.onEndWork(currentToken);
+              }
+              return null;
+            }
+          },
+          mWriteExecutor);
+    } catch (Exception exception) {
+      FLog.w(TAG, exception, "Failed to schedule validators remove for %s", key.getUriString());
+      return Task.forError(exception);
+    }
+  }
+
+  /**
+   * Validators are kept as a separate small entry of the same file cache, so that they are evicted
+   * along with the other entries and the format of the image entries is unchanged.
+   */
+  private static CacheKey getValidatorsKey(CacheKey key) {
+    return new SimpleCacheKey(key.getUriString() + "#validators");
+  }
+
   public long getSize() {
     return mFileCache.getSize();
   }
 
-  private Task<EncodedImage> foundPinnedImage(CacheKey key, EncodedImage pinnedImage) {
+  private static Task<EncodedImage> foundPinnedImage(
+      CacheKey key, EncodedImage pinnedImage, ImageCacheStatsTracker statsTracker) {
     FLog.v(TAG, "Found image for %s in staging area", key.getUriString());
-    mImageCacheStatsTracker.onStagingAreaHit(key);
+    statsTracker.onStagingAreaHit(key);
     return Task.forResult(pinnedImage);
   }
 
   /** Performs disk cache read. In case of any exception null is returned. */
-  private @Nullable PooledByteBuffer readFromDiskCache(final CacheKey key) throws IOException {
+  private @Nullable PooledByteBuffer readFromDiskCache(
+      final CacheKey key, ImageCacheStatsTracker statsTracker, boolean isTracked)
+      throws IOException {
     try {
       FLog.v(TAG, "Disk cache read for %s", key.getUriString());
 
-      final BinaryResource diskCacheResource = mFileCache.getResource(key);
+      final BinaryResource diskCacheResource =
+          isTracked ? mFileCache.getResource(key) : mFileCache.getResourceUntracked(key);
       if (diskCacheResource == null) {
         FLog.v(TAG, "Disk cache miss for %s", key.getUriString());
-        mImageCacheStatsTracker.onDiskCacheMiss(key);
+        statsTracker.onDiskCacheMiss(key);
         return null;
       } else {
         FLog.v(TAG, "Found entry in disk cache for %s", key.getUriString());
-        mImageCacheStatsTracker.onDiskCacheHit(key);
+        statsTracker.onDiskCacheHit(key);
       }
 
       PooledByteBuffer byteBuffer;
@@ -426,7 +622,7 @@ public class BufferedDiskCache {
       // TODO: 5258772 - uncomment line below
       // mFileCache.remove(key);
       FLog.w(TAG, ioe, "Exception reading from cache for %s", key.getUriString());
-      mImageCacheStatsTracker.onDiskCacheGetFail(key);
+      statsTracker.onDiskCacheGetFail(key);
       throw ioe;
     }
   }
@@ -455,4 +651,115 @@ public class BufferedDiskCache {
       FLog.w(TAG, ioe, "Failed to write to disk-cache for key %s", key.getUriString());
     }
   }
+
+  /**
+   * Entry of the disk cache written in several parts, see {@link #startIncrementalWrite}.
+   *
+   * <p>Each call schedules a short task on the write executor, and the tasks run one after the
+   * other in the order of the calls. The write executor never waits for the next part: an entry
+   * whose bytes are slow to come only holds its temporary file.
+   */
+  @ThreadSafe
+  public class IncrementalWrite {
+
+    private final CacheKey mKey;
+
+    /** Last task scheduled, which resolves to the insertion once the previous ones succeed. */
+    @GuardedBy("this")
+    private Task<FileCache.Insertion> mLastTask;
+
+    private IncrementalWrite(final CacheKey key) {
+      mKey = key;
+      mLastTask =
+          Task.call(
+              new Callable<FileCache.Insertion>() {
+                @Override
+                public FileCache.Insertion call() throws Exception {
+                  return mFileCache.startInsertion(key);
+                }
+              },
+              mWriteExecutor);
+    }
+
+    /**
+     * Appends bytes to the entry. If a part cannot be written, the entry is discarded and the next
+     * parts are ignored.
+     *
+     * @return a task resolving once the bytes are written, or failing if they are not
+     */
+    public synchronized Task<Void> append(final byte[] bytes) {
+      mLastTask =
+          mLastTask.onSuccess(
+              new Continuation<FileCache.Insertion, FileCache.Insertion>() {
+                @Override
+                public FileCache.Insertion then(Task<FileCache.Insertion> task)
+                    throws IOException {
+                  final FileCache.Insertion insertion = task.getResult();
+                  try {
+                    insertion.append(
+                        new WriterCallback() {
+                          @Override
+                          public void write(OutputStream os) throws IOException {
+                            os.write(bytes);
+                          }
+                        });
+                  } catch (IOException ioe) {
+                    FLog.w(
+                        TAG, ioe, "Failed to write to disk-cache for key %s", mKey.getUriString());
+                    insertion.discard();
+                    throw ioe;
+                  }
+                  return insertion;
+                }
+              },
+              mWriteExecutor);
+      return mLastTask.makeVoid();
+    }
+
+    /**
+     * Commits the entry once all its parts are written.
+     *
+     * @return the commit, which resolves to whether the entry was committed
+     */
+    public synchronized Task<Boolean> commit() {
+      return mLastTask.continueWith(
+          new Continuation<FileCache.Insertion, Boolean>() {
+            @Override
+            public Boolean then(Task<FileCache.Insertion> task) {
+              if (task.isFaulted() || task.isCancelled()) {
+                return false;
+              }
+              final FileCache.Insertion insertion = task.getResult();
+              try {
+                insertion.commit();
+                mImageCacheStatsTracker.onDiskCachePut(mKey);
+                FLog.v(TAG, "Successful disk-cache write for key %s", mKey.getUriString());
+                return true;
+              } catch (IOException ioe) {
+                FLog.w(TAG, ioe, "Failed to write to disk-cache for key %s", mKey.getUriString());
+                return false;
+              } finally {
+                // no-op once committed
+                insertion.discard();
+              }
+            }
+          },
+          mWriteExecutor);
+    }
+
+    /** Discards the entry once the parts being written are. */
+    public synchronized void discard() {
+      mLastTask.continueWith(
+          new Continuation<FileCache.Insertion, Void>() {
+            @Override
+            public Void then(Task<FileCache.Insertion> task) {
+              if (!task.isFaulted() && !task.isCancelled()) {
+                task.getResult().discard();
+              }
+              return null;
+            }
+          },
+          mWriteExecutor);
+    }
+  }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.common.internal.Objects;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * HTTP validators of a cached network response, used to revalidate the cached bytes with a
+ * conditional request once they are no longer fresh.
+ *
+ * <p>Freshness is only derived from the max-age and no-cache directives of the Cache-Control
+ * header. Responses without either are considered fresh forever, as they were before validators
+ * were kept.
+ */
+@Immutable
+public class CacheValidators {
+
+  /** Value of {@link #getExpiresAtMs()} for responses without a freshness lifetime. */
+  public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+  private static final int SERIALIZATION_VERSION = 1;
+  private static final String MAX_AGE = "max-age=";
+  private static final String NO_CACHE = "no-cache";
+
+  private final @Nullable String mETag;
+  private final @Nullable String mLastModified;
+  private final long mExpiresAtMs;
+
+  public CacheValidators(@Nullable String eTag, @Nullable String lastModified, long expiresAtMs) {
+    mETag = eTag;
+    mLastModified = lastModified;
+    mExpiresAtMs = expiresAtMs;
+  }
+
+  /**
+   * Creates the validators of a response from its headers.
+   *
+   * @param eTag value of the ETag header, if any
+   * @param lastModified value of the Last-Modified header, if any
+   * @param cacheControl value of the Cache-Control header, if any
+   * @param nowMs current wall clock time
+   * @return the validators, or null if the response has neither an ETag nor a Last-Modified date
+   */
+  public static @Nullable CacheValidators fromResponseHeaders(
+      @Nullable String eTag,
+      @Nullable String lastModified,
+      @Nullable String cacheControl,
+      long nowMs) {
+    if (eTag == null && lastModified == null) {
+      return null;
+    }
+    return new CacheValidators(eTag, lastModified, parseExpiresAtMs(cacheControl, nowMs));
+  }
+
+  private static long parseExpiresAtMs(@Nullable String cacheControl, long nowMs) {
+    if (cacheControl == null) {
+      return NEVER_EXPIRES;
+    }
+    long expiresAtMs = NEVER_EXPIRES;
+    for (String directive : cacheControl.split(",")) {
+      final String trimmed = directive.trim().toLowerCase(Locale.US);
+      if (trimmed.startsWith(NO_CACHE)) {
+        return nowMs;
+      } else if (trimmed.startsWith(MAX_AGE)) {
+        try {
+          final long maxAgeSeconds = Long.parseLong(trimmed.substring(MAX_AGE.length()).trim());
+          expiresAtMs = nowMs + Math.max(0, maxAgeSeconds) * 1000;
+        } catch (NumberFormatException e) {
+          // an invalid max-age leaves the freshness unknown
+        }
+      }
+    }
+    return expiresAtMs;
+  }
+
+  public @Nullable String getETag() {
+    return mETag;
+  }
+
+  public @Nullable String getLastModified() {
+    return mLastModified;
+  }
+
+  public long getExpiresAtMs() {
+    return mExpiresAtMs;
+  }
+
+  /**
+   * Returns the value of the If-Range header to resume a download of the response with. Weak ETags
+   * cannot be used for range requests, so the Last-Modified date is used instead if there is one.
+   *
+   * @return the validator, or null if the download cannot be resumed
+   */
+  public @Nullable String getIfRange() {
+    if (mETag != null && !mETag.startsWith("W/")) {
+      return mETag;
+    }
+    return mLastModified;
+  }
+
+  /** @return whether the cached response has to be revalidated before being used at nowMs */
+  public boolean isStale(long nowMs) {
+    return nowMs >= mExpiresAtMs;
+  }
+
+  /**
+   * Returns the validators to keep after a 304 Not Modified response. The new response may omit
+   * headers, in which case the previous values are kept.
+   */
+  public CacheValidators refresh(@Nullable CacheValidators notModifiedResponse) {
+    if (notModifiedResponse == null) {
+      return this;
+    }
+    return new CacheValidators(
+        notModifiedResponse.mETag != null ? notModifiedResponse.mETag : mETag,
+        notModifiedResponse.mLastModified != null
+            ? notModifiedResponse.mLastModified
+            : mLastModified,
+        notModifiedResponse.mExpiresAtMs);
+  }
+
+  public void writeTo(OutputStream os) throws IOException {
+    final DataOutputStream dos = new DataOutputStream(os);
+    dos.writeInt(SERIALIZATION_VERSION);
+    writeNullableString(dos, mETag);
+    writeNullableString(dos, mLastModified);
+    dos.writeLong(mExpiresAtMs);
+    dos.flush();
+  }
+
+  /** @return the validators written by {@link #writeTo(OutputStream)}, or null if unreadable */
+  public static @Nullable CacheValidators readFrom(InputStream is) throws IOException {
+    final DataInputStream dis = new DataInputStream(is);
+    if (dis.readInt() != SERIALIZATION_VERSION) {
+      return null;
+    }
+    final String eTag = readNullableString(dis);
+    final String lastModified = readNullableString(dis);
+    return new CacheValidators(eTag, lastModified, dis.readLong());
+  }
+
+  private static void writeNullableString(DataOutputStream dos, @Nullable String value)
+      throws IOException {
+    dos.writeBoolean(value != null);
+    if (value != null) {
+      dos.writeUTF(value);
+    }
+  }
+
+  private static @Nullable String readNullableString(DataInputStream dis) throws IOException {
+    return dis.readBoolean() ? dis.readUTF() : null;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof CacheValidators)) {
+      return false;
+    }
+    final CacheValidators that = (CacheValidators) o;
+    return Objects.equal(mETag, that.mETag)
+        && Objects.equal(mLastModified, that.mLastModified)
+        && mExpiresAtMs == that.mExpiresAtMs;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(mETag, mLastModified, mExpiresAtMs);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("eTag", mETag)
+        .add("lastModified", mLastModified)
+        .add("expiresAtMs", mExpiresAtMs)
+        .toString();
+  }
+}
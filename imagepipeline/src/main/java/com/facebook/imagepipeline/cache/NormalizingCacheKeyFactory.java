@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import android.net.Uri;
+import com.facebook.common.util.UriUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * {@link CacheKeyFactory} that keys network images on a canonical form of their URL, so that URLs
+ * that differ only in ways the server ignores share the same bitmap, encoded and disk cache
+ * entries.
+ *
+ * <p>The scheme and host are lowercased, host aliases are replaced by their canonical host, the
+ * fragment is dropped and the query parameters that are kept are sorted. Optionally {@code https}
+ * is folded into {@code http}. Query parameters are either removed by name or prefix, like rotating
+ * signatures or tracking parameters, or only the parameters of an allowlist are kept.
+ *
+ * <p>Only the cache keys are affected: images are still fetched from the URI of the request.
+ */
+@Immutable
+public class NormalizingCacheKeyFactory extends DefaultCacheKeyFactory {
+
+  private final Set<String> mRemovedQueryParameters;
+  private final List<String> mRemovedQueryParameterPrefixes;
+  private final @Nullable Set<String> mKeptQueryParameters;
+  private final Map<String, String> mHostAliases;
+  private final boolean mIsSchemeFoldingEnabled;
+
+  private NormalizingCacheKeyFactory(Builder builder) {
+    mRemovedQueryParameters = new HashSet<>(builder.mRemovedQueryParameters);
+    mRemovedQueryParameterPrefixes = new ArrayList<>(builder.mRemovedQueryParameterPrefixes);
+    mKeptQueryParameters =
+        builder.mKeptQueryParameters == null
+            ? null
+            : new HashSet<>(builder.mKeptQueryParameters);
+    mHostAliases = new HashMap<>(builder.mHostAliases);
+    mIsSchemeFoldingEnabled = builder.mIsSchemeFoldingEnabled;
+  }
+
+  @Override
+  protected Uri getCacheKeySourceUri(Uri sourceUri) {
+    if (sourceUri.getScheme() == null || sourceUri.getHost() == null) {
+      return sourceUri;
+    }
+    String scheme = sourceUri.getScheme().toLowerCase(Locale.US);
+    if (!UriUtil.HTTP_SCHEME.equals(scheme) && !UriUtil.HTTPS_SCHEME.equals(scheme)) {
+      return sourceUri;
+    }
+    if (mIsSchemeFoldingEnabled && UriUtil.HTTPS_SCHEME.equals(scheme)) {
+      scheme = UriUtil.HTTP_SCHEME;
+    }
+    String host = sourceUri.getHost().toLowerCase(Locale.US);
+    final String canonicalHost = mHostAliases.get(host);
+    if (canonicalHost != null) {
+      host = canonicalHost;
+    }
+    final int port = sourceUri.getPort();
+    return new Uri.Builder()
+        .scheme(scheme)
+        .encodedAuthority(port == -1 ? host : host + ":" + port)
+        .encodedPath(sourceUri.getEncodedPath())
+        .encodedQuery(normalizeQuery(sourceUri.getEncodedQuery()))
+        .build();
+  }
+
+  @Nullable
+  private String normalizeQuery(@Nullable String encodedQuery) {
+    if (encodedQuery == null || encodedQuery.isEmpty()) {
+      return null;
+    }
+    final List<String> parameters = new ArrayList<>();
+    for (String parameter : encodedQuery.split("&")) {
+      if (!parameter.isEmpty() && isQueryParameterKept(parameter)) {
+        parameters.add(parameter);
+      }
+    }
+    if (parameters.isEmpty()) {
+      return null;
+    }
+    Collections.sort(parameters);
+    final StringBuilder query = new StringBuilder();
+    for (String parameter : parameters) {
+      if (query.length() > 0) {
+        query.append('&');
+      }
+      query.append(parameter);
+    }
+    return query.toString();
+  }
+
+  private boolean isQueryParameterKept(String encodedParameter) {
+    final int separator = encodedParameter.indexOf('=');
+    final String name =
+        Uri.decode(separator == -1 ? encodedParameter : encodedParameter.substring(0, separator));
+    if (mKeptQueryParameters != null) {
+      return mKeptQueryParameters.contains(name);
+    }
+    if (mRemovedQueryParameters.contains(name)) {
+      return false;
+    }
+    for (String prefix : mRemovedQueryParameterPrefixes) {
+      if (name.startsWith(prefix)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private final Set<String> mRemovedQueryParameters = new HashSet<>();
+    private final List<String> mRemovedQueryParameterPrefixes = new ArrayList<>();
+    private @Nullable Set<String> mKeptQueryParameters;
+    private final Map<String, String> mHostAliases = new HashMap<>();
+    private boolean mIsSchemeFoldingEnabled;
+
+    private Builder() {}
+
+    /** Removes the query parameters with the given names from the cache keys. */
+    public Builder removeQueryParameters(String... names) {
+      Collections.addAll(mRemovedQueryParameters, names);
+      return this;
+    }
+
+    /** Removes the query parameters whose name starts with the given prefix from the cache keys. */
+    public Builder removeQueryParametersWithPrefix(String prefix) {
+      mRemovedQueryParameterPrefixes.add(prefix);
+      return this;
+    }
+
+    /**
+     * Keeps only the query parameters with the given names in the cache keys. Takes precedence
+     * over the parameters to remove.
+     */
+    public Builder keepOnlyQueryParameters(String... names) {
+      if (mKeptQueryParameters == null) {
+        mKeptQueryParameters = new HashSet<>();
+      }
+      Collections.addAll(mKeptQueryParameters, names);
+      return this;
+    }
+
+    /** Keys the images of the given host as if they were served by the canonical host. */
+    public Builder addHostAlias(String alias, String canonicalHost) {
+      mHostAliases.put(alias.toLowerCase(Locale.US), canonicalHost.toLowerCase(Locale.US));
+      return this;
+    }
+
+    /** Keys the images served over {@code https} and {@code http} the same. */
+    public Builder setIsSchemeFoldingEnabled(boolean isSchemeFoldingEnabled) {
+      mIsSchemeFoldingEnabled = isSchemeFoldingEnabled;
+      return this;
+    }
+
+    public NormalizingCacheKeyFactory build() {
+      return new NormalizingCacheKeyFactory(this);
+    }
+  }
+}
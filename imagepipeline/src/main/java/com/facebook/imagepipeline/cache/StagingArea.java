@@ -7,6 +7,7 @@
 
 package com.facebook.imagepipeline.cache;
 
+import android.annotation.SuppressLint;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.logging.FLog;
@@ -180,8 +181,11 @@ public class StagingArea {
     }
   }
 
-  /** Simple 'debug' logging of stats. */
-  private synchronized void logStats() {
-    FLog.v(TAG, "Count = %d", mMap.size());
+  /** Simple 'debug' logging of stats. WARNING: The caller is responsible for synchronization */
+  @SuppressLint("InvalidAccessToGuardedField")
+  private void logStats() {
+    if (FLog.isLoggable(FLog.VERBOSE)) {
+      FLog.v(TAG, "Count = %d", mMap.size());
+    }
   }
 }
@@ -12,6 +12,7 @@ import com.facebook.common.references.CloseableReference;
 import com.facebook.common.references.ResourceReleaser;
 import com.facebook.common.references.SharedReference;
 import com.facebook.imagepipeline.debug.CloseableReferenceLeakTracker;
+import com.facebook.imagepipeline.debug.StacktraceSamplingLeakTracker;
 import java.io.Closeable;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -40,6 +41,10 @@ public class CloseableReferenceFactory {
 
           @Override
           public boolean requiresStacktrace() {
+            if (closeableReferenceLeakTracker instanceof StacktraceSamplingLeakTracker) {
+              return ((StacktraceSamplingLeakTracker) closeableReferenceLeakTracker)
+                  .shouldCaptureStacktrace();
+            }
             return closeableReferenceLeakTracker.isSet();
           }
         };
@@ -25,7 +25,10 @@ import com.facebook.datasource.SimpleDataSource;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.common.PrefetchBudget;
 import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.datasource.BatchPrefetchDataSource;
 import com.facebook.imagepipeline.datasource.CloseableProducerToDataSourceAdapter;
 import com.facebook.imagepipeline.datasource.ProducerToDataSourceAdapter;
 import com.facebook.imagepipeline.image.CloseableImage;
@@ -36,10 +39,17 @@ import com.facebook.imagepipeline.listener.RequestListener2;
 import com.facebook.imagepipeline.producers.InternalRequestListener;
 import com.facebook.imagepipeline.producers.Producer;
 import com.facebook.imagepipeline.producers.SettableProducerContext;
+import com.facebook.imagepipeline.producers.SizeVariantProducer;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.facebook.imagepipeline.request.SizeVariantUriRewriter;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicLong;
@@ -411,7 +421,17 @@ public class ImagePipeline {
     return prefetchToBitmapCache(imageRequest, callerContext, Priority.HIGH);
   }
 
-  private DataSource<Void> prefetchToBitmapCache(
+  /**
+   * Submits a request for prefetching to the bitmap cache.
+   *
+   * <p>Beware that if your network fetcher doesn't support priorities prefetch requests may slow
+   * down images which are immediately required on screen.
+   *
+   * @param imageRequest the request to submit
+   * @param priority custom priority for the fetch
+   * @return a DataSource that can safely be ignored.
+   */
+  public DataSource<Void> prefetchToBitmapCache(
       ImageRequest imageRequest, Object callerContext, Priority priority) {
     if (!mIsPrefetchEnabledSupplier.get()) {
       return DataSources.immediateFailedDataSource(PREFETCH_EXCEPTION);
@@ -523,7 +543,109 @@ public class ImagePipeline {
   }
 
   /**
-   * Removes all images with the specified {@link Uri} from memory cache.
+   * Submits a batch of requests for prefetching to the bitmap cache.
+   *
+   * <p>The images already in the bitmap cache, and the ones requested earlier in the batch, are not
+   * prefetched again. The others are prefetched within the budget, see {@link
+   * BatchPrefetchDataSource}.
+   *
+   * @param imageRequests the requests to submit, in the order they should be prefetched
+   * @param budget limits on the prefetches of the batch
+   * @param priority priority of the whole batch, which can be changed on the data source
+   * @return the data source of the batch, whose result is the outcome of each request
+   */
+  public BatchPrefetchDataSource prefetchToBitmapCache(
+      List<ImageRequest> imageRequests,
+      final Object callerContext,
+      PrefetchBudget budget,
+      Priority priority) {
+    return BatchPrefetchDataSource.create(
+        imageRequests,
+        getBatchPrefetchOutcomes(imageRequests, callerContext, true),
+        budget,
+        priority,
+        new BatchPrefetchDataSource.PrefetchSubmitter() {
+          @Override
+          public DataSource<Void> submit(ImageRequest imageRequest, Priority priority) {
+            return prefetchToBitmapCache(imageRequest, callerContext, priority);
+          }
+        });
+  }
+
+  /**
+   * Submits a batch of requests for prefetching to the disk cache.
+   *
+   * <p>The images already in the encoded memory cache or the disk cache, and the ones requested
+   * earlier in the batch, are not prefetched again. The others are prefetched within the budget,
+   * see {@link BatchPrefetchDataSource}.
+   *
+   * @param imageRequests the requests to submit, in the order they should be prefetched
+   * @param budget limits on the prefetches of the batch
+   * @param priority priority of the whole batch, which can be changed on the data source
+   * @return the data source of the batch, whose result is the outcome of each request
+   */
+  public BatchPrefetchDataSource prefetchToDiskCache(
+      List<ImageRequest> imageRequests,
+      final Object callerContext,
+      PrefetchBudget budget,
+      Priority priority) {
+    return BatchPrefetchDataSource.create(
+        imageRequests,
+        getBatchPrefetchOutcomes(imageRequests, callerContext, false),
+        budget,
+        priority,
+        new BatchPrefetchDataSource.PrefetchSubmitter() {
+          @Override
+          public DataSource<Void> submit(ImageRequest imageRequest, Priority priority) {
+            return prefetchToDiskCache(imageRequest, callerContext, priority);
+          }
+        });
+  }
+
+  /**
+   * Checks the requests of a batch against the caches, and against each other, in one pass.
+   *
+   * @return the initial outcome of each request for {@link BatchPrefetchDataSource}
+   */
+  private int[] getBatchPrefetchOutcomes(
+      List<ImageRequest> imageRequests, Object callerContext, boolean toBitmapCache) {
+    final int[] outcomes = new int[imageRequests.size()];
+    if (!mIsPrefetchEnabledSupplier.get()) {
+      Arrays.fill(outcomes, BatchPrefetchDataSource.OUTCOME_FAILED);
+      return outcomes;
+    }
+    final Set<CacheKey> cacheKeys = new HashSet<>(imageRequests.size());
+    for (int i = 0; i < outcomes.length; i++) {
+      final ImageRequest imageRequest = imageRequests.get(i);
+      final CacheKey cacheKey =
+          toBitmapCache
+              ? mCacheKeyFactory.getBitmapCacheKey(imageRequest, callerContext)
+              : mCacheKeyFactory.getEncodedCacheKey(imageRequest, callerContext);
+      if (!cacheKeys.add(cacheKey)) {
+        outcomes[i] = BatchPrefetchDataSource.OUTCOME_DUPLICATE;
+      } else if (toBitmapCache
+          ? mBitmapMemoryCache.contains(cacheKey)
+          : mEncodedMemoryCache.contains(cacheKey) || isInDiskCacheIndex(imageRequest, cacheKey)) {
+        outcomes[i] = BatchPrefetchDataSource.OUTCOME_ALREADY_CACHED;
+      } else {
+        outcomes[i] = BatchPrefetchDataSource.OUTCOME_PENDING;
+      }
+    }
+    return outcomes;
+  }
+
+  /** Checks the index of the disk cache for the request, without reading the disk. */
+  private boolean isInDiskCacheIndex(ImageRequest imageRequest, CacheKey cacheKey) {
+    final BufferedDiskCache diskCache =
+        imageRequest.getCacheChoice() == ImageRequest.CacheChoice.SMALL
+            ? mSmallImageBufferedDiskCache
+            : mMainBufferedDiskCache;
+    return diskCache.containsSync(cacheKey);
+  }
+
+  /**
+   * Removes all images with the specified {@link Uri} from memory cache, along with the size
+   * variants of the image.
    *
    * @param uri The uri of the image to evict
    */
@@ -531,6 +653,9 @@ public class ImagePipeline {
     Predicate<CacheKey> predicate = predicateForUri(uri);
     mBitmapMemoryCache.removeAll(predicate);
     mEncodedMemoryCache.removeAll(predicate);
+    for (ImageRequest variantRequest : getVariantRequests(ImageRequest.fromUri(uri), 0)) {
+      mEncodedMemoryCache.removeAll(predicateForUri(variantRequest.getSourceUri()));
+    }
   }
 
   /**
@@ -545,14 +670,16 @@ public class ImagePipeline {
   }
 
   /**
-   * Removes all images with the specified {@link Uri} from disk cache.
+   * Removes all images with the specified {@link Uri} from disk cache, along with the size variants
+   * of the image.
    *
    * @param imageRequest The imageRequest for the image to evict from disk cache
    */
   public void evictFromDiskCache(final ImageRequest imageRequest) {
-    CacheKey cacheKey = mCacheKeyFactory.getEncodedCacheKey(imageRequest, null);
-    mMainBufferedDiskCache.remove(cacheKey);
-    mSmallImageBufferedDiskCache.remove(cacheKey);
+    for (CacheKey cacheKey : getEncodedCacheKeys(imageRequest, 0)) {
+      mMainBufferedDiskCache.remove(cacheKey);
+      mSmallImageBufferedDiskCache.remove(cacheKey);
+    }
   }
 
   /**
@@ -662,12 +789,13 @@ public class ImagePipeline {
    *
    * @param uri the uri for the image to be looked up.
    * @param cacheChoice the cacheChoice for the cache to be looked up.
-   * @return true if the image was found in the disk cache, false otherwise.
+   * @return true if the image, or one of its size variants, was found in the disk cache, false
+   *     otherwise.
    */
   public boolean isInDiskCacheSync(final Uri uri, final ImageRequest.CacheChoice cacheChoice) {
     ImageRequest imageRequest =
         ImageRequestBuilder.newBuilderWithSource(uri).setCacheChoice(cacheChoice).build();
-    return isInDiskCacheSync(imageRequest);
+    return isInDiskCacheSync(imageRequest, 0);
   }
 
   /**
@@ -676,20 +804,31 @@ public class ImagePipeline {
    * thread until the cache check is completed.
    *
    * @param imageRequest the imageRequest for the image to be looked up.
-   * @return true if the image was found in the disk cache, false otherwise.
+   * @return true if the image, or a size variant of it the request can be served from, was found
+   *     in the disk cache, false otherwise.
    */
   public boolean isInDiskCacheSync(final ImageRequest imageRequest) {
-    final CacheKey cacheKey = mCacheKeyFactory.getEncodedCacheKey(imageRequest, null);
-    final ImageRequest.CacheChoice cacheChoice = imageRequest.getCacheChoice();
+    return isInDiskCacheSync(imageRequest, getMinVariantSize(imageRequest));
+  }
 
-    switch (cacheChoice) {
+  private boolean isInDiskCacheSync(final ImageRequest imageRequest, int minVariantSize) {
+    final BufferedDiskCache diskCache;
+    switch (imageRequest.getCacheChoice()) {
       case DEFAULT:
-        return mMainBufferedDiskCache.diskCheckSync(cacheKey);
+        diskCache = mMainBufferedDiskCache;
+        break;
       case SMALL:
-        return mSmallImageBufferedDiskCache.diskCheckSync(cacheKey);
+        diskCache = mSmallImageBufferedDiskCache;
+        break;
       default:
         return false;
     }
+    for (CacheKey cacheKey : getEncodedCacheKeys(imageRequest, minVariantSize)) {
+      if (diskCache.diskCheckSync(cacheKey)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -700,43 +839,97 @@ public class ImagePipeline {
    * from the URI. If that is not the case, use {@link #isInDiskCache(ImageRequest)}.
    *
    * @param uri the uri for the image to be looked up.
-   * @return true if the image was found in the disk cache, false otherwise.
+   * @return true if the image, or one of its size variants, was found in the disk cache, false
+   *     otherwise.
    */
   public DataSource<Boolean> isInDiskCache(final Uri uri) {
-    return isInDiskCache(ImageRequest.fromUri(uri));
+    return isInDiskCache(getEncodedCacheKeys(ImageRequest.fromUri(uri), 0));
   }
 
   /**
    * Returns whether the image is stored in the disk cache.
    *
    * @param imageRequest the imageRequest for the image to be looked up.
-   * @return true if the image was found in the disk cache, false otherwise.
+   * @return true if the image, or a size variant of it the request can be served from, was found
+   *     in the disk cache, false otherwise.
    */
   public DataSource<Boolean> isInDiskCache(final ImageRequest imageRequest) {
-    final CacheKey cacheKey = mCacheKeyFactory.getEncodedCacheKey(imageRequest, null);
+    return isInDiskCache(getEncodedCacheKeys(imageRequest, getMinVariantSize(imageRequest)));
+  }
+
+  private DataSource<Boolean> isInDiskCache(List<CacheKey> cacheKeys) {
     final SimpleDataSource<Boolean> dataSource = SimpleDataSource.create();
-    mMainBufferedDiskCache
-        .contains(cacheKey)
-        .continueWithTask(
-            new Continuation<Boolean, Task<Boolean>>() {
-              @Override
-              public Task<Boolean> then(Task<Boolean> task) throws Exception {
-                if (!task.isCancelled() && !task.isFaulted() && task.getResult()) {
-                  return Task.forResult(true);
-                }
-                return mSmallImageBufferedDiskCache.contains(cacheKey);
-              }
-            })
-        .continueWith(
-            new Continuation<Boolean, Void>() {
-              @Override
-              public Void then(Task<Boolean> task) throws Exception {
-                dataSource.setResult(!task.isCancelled() && !task.isFaulted() && task.getResult());
-                return null;
-              }
-            });
+    Task<Boolean> isInDiskCache = Task.forResult(false);
+    for (final CacheKey cacheKey : cacheKeys) {
+      isInDiskCache =
+          isInDiskCache
+              .continueWithTask(
+                  new Continuation<Boolean, Task<Boolean>>() {
+                    @Override
+                    public Task<Boolean> then(Task<Boolean> task) throws Exception {
+                      if (isTrue(task)) {
+                        return Task.forResult(true);
+                      }
+                      return mMainBufferedDiskCache.contains(cacheKey);
+                    }
+                  })
+              .continueWithTask(
+                  new Continuation<Boolean, Task<Boolean>>() {
+                    @Override
+                    public Task<Boolean> then(Task<Boolean> task) throws Exception {
+                      if (isTrue(task)) {
+                        return Task.forResult(true);
+                      }
+                      return mSmallImageBufferedDiskCache.contains(cacheKey);
+                    }
+                  });
+    }
+    isInDiskCache.continueWith(
+        new Continuation<Boolean, Void>() {
+          @Override
+          public Void then(Task<Boolean> task) throws Exception {
+            dataSource.setResult(isTrue(task));
+            return null;
+          }
+        });
     return dataSource;
   }
+
+  private static boolean isTrue(Task<Boolean> task) {
+    return !task.isCancelled() && !task.isFaulted() && task.getResult();
+  }
+
+  /**
+   * @return the encoded cache key of the request, followed by the ones of the size variants of the
+   *     image at least as large as the given size, see {@link SizeVariantProducer}
+   */
+  private List<CacheKey> getEncodedCacheKeys(ImageRequest imageRequest, int minVariantSize) {
+    final List<CacheKey> cacheKeys = new ArrayList<>();
+    cacheKeys.add(mCacheKeyFactory.getEncodedCacheKey(imageRequest, null));
+    for (ImageRequest variantRequest : getVariantRequests(imageRequest, minVariantSize)) {
+      cacheKeys.add(mCacheKeyFactory.getEncodedCacheKey(variantRequest, null));
+    }
+    return cacheKeys;
+  }
+
+  private List<ImageRequest> getVariantRequests(ImageRequest imageRequest, int minVariantSize) {
+    final SizeVariantUriRewriter uriRewriter = mConfig.getSizeVariantUriRewriter();
+    if (uriRewriter == null) {
+      return Collections.emptyList();
+    }
+    return SizeVariantProducer.getVariantRequests(uriRewriter, imageRequest, minVariantSize);
+  }
+
+  /**
+   * @return the size of the smallest variant the request can be served from. Requests without
+   *     resize options are only served from the image itself.
+   */
+  private static int getMinVariantSize(ImageRequest imageRequest) {
+    final ResizeOptions resizeOptions = imageRequest.getResizeOptions();
+    return resizeOptions != null
+        ? Math.max(resizeOptions.width, resizeOptions.height)
+        : Integer.MAX_VALUE;
+  }
   /** @return {@link CacheKey} for doing bitmap cache lookups in the pipeline. */
   @Nullable
   public CacheKey getCacheKey(@Nullable ImageRequest imageRequest, Object callerContext) {
@@ -48,6 +48,7 @@ import com.facebook.imagepipeline.memory.PoolConfig;
 import com.facebook.imagepipeline.memory.PoolFactory;
 import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher;
 import com.facebook.imagepipeline.producers.NetworkFetcher;
+import com.facebook.imagepipeline.request.SizeVariantUriRewriter;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import com.facebook.imagepipeline.transcoder.ImageTranscoderFactory;
 import java.util.Collections;
@@ -95,6 +96,7 @@ public class ImagePipelineConfig {
   @MemoryChunkType private final int mMemoryChunkType;
   private final NetworkFetcher mNetworkFetcher;
   private final int mHttpNetworkTimeout;
+  @Nullable private final SizeVariantUriRewriter mSizeVariantUriRewriter;
   @Nullable private final PlatformBitmapFactory mPlatformBitmapFactory;
   private final PoolFactory mPoolFactory;
   private final ProgressiveJpegConfig mProgressiveJpegConfig;
@@ -183,6 +185,7 @@ public class ImagePipelineConfig {
     if (FrescoSystrace.isTracing()) {
       FrescoSystrace.endSection();
     }
+    mSizeVariantUriRewriter = builder.mSizeVariantUriRewriter;
     mPlatformBitmapFactory = builder.mPlatformBitmapFactory;
     mPoolFactory =
         builder.mPoolFactory == null
@@ -208,10 +211,13 @@ public class ImagePipelineConfig {
     mImageDecoderConfig = builder.mImageDecoderConfig;
     // Below this comment can't be built in alphabetical order, because of dependencies
     int numCpuBoundThreads = mPoolFactory.getFlexByteArrayPoolMaxNumThreads();
-    mExecutorSupplier =
-        builder.mExecutorSupplier == null
-            ? new DefaultExecutorSupplier(numCpuBoundThreads)
-            : builder.mExecutorSupplier;
+    if (builder.mExecutorSupplier != null) {
+      mExecutorSupplier = builder.mExecutorSupplier;
+    } else if (mImagePipelineExperiments.isNewestFirstSchedulingEnabled()) {
+      mExecutorSupplier = new PriorityExecutorSupplier(numCpuBoundThreads, true);
+    } else {
+      mExecutorSupplier = new DefaultExecutorSupplier(numCpuBoundThreads);
+    }
     mDiskCacheEnabled = builder.mDiskCacheEnabled;
     mCallerContextVerifier = builder.mCallerContextVerifier;
     mCloseableReferenceLeakTracker = builder.mCloseableReferenceLeakTracker;
@@ -360,6 +366,11 @@ public class ImagePipelineConfig {
     return mNetworkFetcher;
   }
 
+  @Nullable
+  public SizeVariantUriRewriter getSizeVariantUriRewriter() {
+    return mSizeVariantUriRewriter;
+  }
+
   @Nullable
   public PlatformBitmapFactory getPlatformBitmapFactory() {
     return mPlatformBitmapFactory;
@@ -487,6 +498,7 @@ public class ImagePipelineConfig {
     private MemoryTrimmableRegistry mMemoryTrimmableRegistry;
     @Nullable @MemoryChunkType private Integer mMemoryChunkType = null;
     private NetworkFetcher mNetworkFetcher;
+    private SizeVariantUriRewriter mSizeVariantUriRewriter;
     private PlatformBitmapFactory mPlatformBitmapFactory;
     private PoolFactory mPoolFactory;
     private ProgressiveJpegConfig mProgressiveJpegConfig;
@@ -636,6 +648,15 @@ public class ImagePipelineConfig {
       return this;
     }
 
+    /**
+     * Makes requests for network images with resize options fetch the variants of the images that
+     * the server resized, see {@link SizeVariantUriRewriter}.
+     */
+    public Builder setSizeVariantUriRewriter(SizeVariantUriRewriter sizeVariantUriRewriter) {
+      mSizeVariantUriRewriter = sizeVariantUriRewriter;
+      return this;
+    }
+
     public Builder setPlatformBitmapFactory(PlatformBitmapFactory platformBitmapFactory) {
       mPlatformBitmapFactory = platformBitmapFactory;
       return this;
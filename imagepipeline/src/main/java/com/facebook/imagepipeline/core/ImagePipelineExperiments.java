@@ -23,7 +23,10 @@ import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.producers.AimdConcurrencyLimiter;
+import com.facebook.imagepipeline.producers.ConcurrencyLimiter;
 import com.facebook.imageutils.BitmapUtil;
+import javax.annotation.Nullable;
 
 /**
  * Encapsulates additional elements of the {@link ImagePipelineConfig} which are currently in an
@@ -60,7 +63,17 @@ public class ImagePipelineExperiments {
   private final boolean mEnsureTranscoderLibraryLoaded;
   private final boolean mIsEncodedMemoryCacheProbingEnabled;
   private final boolean mIsDiskCacheProbingEnabled;
+  private final boolean mIsResizeAwareMultiplexingEnabled;
+  private final boolean mIsNewestFirstSchedulingEnabled;
+  private final boolean mIsAdaptiveProgressiveDecodingEnabled;
+  private final boolean mIsProgressiveBitmapReuseEnabled;
+  private final boolean mIsHeaderScannerEnabled;
+  private final boolean mIsDiskCacheRevalidationEnabled;
+  private final boolean mIsDiskCacheWriteThroughEnabled;
+  private final boolean mIsResumableNetworkFetchEnabled;
+  private final boolean mIsDiskCacheReadHedgingEnabled;
   private final int mTrackedKeysSize;
+  private final @Nullable Supplier<ConcurrencyLimiter> mLocalThrottlingLimiterSupplier;
 
   private ImagePipelineExperiments(Builder builder) {
     mWebpSupportEnabled = builder.mWebpSupportEnabled;
@@ -93,7 +106,17 @@ public class ImagePipelineExperiments {
     mEnsureTranscoderLibraryLoaded = builder.mEnsureTranscoderLibraryLoaded;
     mIsEncodedMemoryCacheProbingEnabled = builder.mIsEncodedMemoryCacheProbingEnabled;
     mIsDiskCacheProbingEnabled = builder.mIsDiskCacheProbingEnabled;
+    mIsResizeAwareMultiplexingEnabled = builder.mIsResizeAwareMultiplexingEnabled;
+    mIsNewestFirstSchedulingEnabled = builder.mIsNewestFirstSchedulingEnabled;
+    mIsAdaptiveProgressiveDecodingEnabled = builder.mIsAdaptiveProgressiveDecodingEnabled;
+    mIsProgressiveBitmapReuseEnabled = builder.mIsProgressiveBitmapReuseEnabled;
+    mIsHeaderScannerEnabled = builder.mIsHeaderScannerEnabled;
+    mIsDiskCacheRevalidationEnabled = builder.mIsDiskCacheRevalidationEnabled;
+    mIsDiskCacheWriteThroughEnabled = builder.mIsDiskCacheWriteThroughEnabled;
+    mIsResumableNetworkFetchEnabled = builder.mIsResumableNetworkFetchEnabled;
+    mIsDiskCacheReadHedgingEnabled = builder.mIsDiskCacheReadHedgingEnabled;
     mTrackedKeysSize = builder.mTrackedKeysSize;
+    mLocalThrottlingLimiterSupplier = builder.mLocalThrottlingLimiterSupplier;
   }
 
   public boolean isEncodedCacheEnabled() {
@@ -177,6 +200,42 @@ public class ImagePipelineExperiments {
     return mIsDiskCacheProbingEnabled;
   }
 
+  public boolean isResizeAwareMultiplexingEnabled() {
+    return mIsResizeAwareMultiplexingEnabled;
+  }
+
+  public boolean isNewestFirstSchedulingEnabled() {
+    return mIsNewestFirstSchedulingEnabled;
+  }
+
+  public boolean isAdaptiveProgressiveDecodingEnabled() {
+    return mIsAdaptiveProgressiveDecodingEnabled;
+  }
+
+  public boolean isProgressiveBitmapReuseEnabled() {
+    return mIsProgressiveBitmapReuseEnabled;
+  }
+
+  public boolean isHeaderScannerEnabled() {
+    return mIsHeaderScannerEnabled;
+  }
+
+  public boolean isDiskCacheRevalidationEnabled() {
+    return mIsDiskCacheRevalidationEnabled;
+  }
+
+  public boolean isDiskCacheWriteThroughEnabled() {
+    return mIsDiskCacheWriteThroughEnabled;
+  }
+
+  public boolean isResumableNetworkFetchEnabled() {
+    return mIsResumableNetworkFetchEnabled;
+  }
+
+  public boolean isDiskCacheReadHedgingEnabled() {
+    return mIsDiskCacheReadHedgingEnabled;
+  }
+
   public boolean isEncodedMemoryCacheProbingEnabled() {
     return mIsEncodedMemoryCacheProbingEnabled;
   }
@@ -205,6 +264,10 @@ public class ImagePipelineExperiments {
     return mTrackedKeysSize;
   }
 
+  public @Nullable Supplier<ConcurrencyLimiter> getLocalThrottlingLimiterSupplier() {
+    return mLocalThrottlingLimiterSupplier;
+  }
+
   public boolean shouldKeepCancelledFetchAsLowPriority() {
     return mKeepCancelledFetchAsLowPriority;
   }
@@ -238,7 +301,17 @@ public class ImagePipelineExperiments {
     public boolean mEnsureTranscoderLibraryLoaded = true;
     private boolean mIsEncodedMemoryCacheProbingEnabled = false;
     private boolean mIsDiskCacheProbingEnabled = false;
+    private boolean mIsResizeAwareMultiplexingEnabled = false;
+    private boolean mIsNewestFirstSchedulingEnabled = false;
+    private boolean mIsAdaptiveProgressiveDecodingEnabled = false;
+    private boolean mIsProgressiveBitmapReuseEnabled = false;
+    private boolean mIsHeaderScannerEnabled = false;
+    private boolean mIsDiskCacheRevalidationEnabled = false;
+    private boolean mIsDiskCacheWriteThroughEnabled = false;
+    private boolean mIsResumableNetworkFetchEnabled = false;
+    private boolean mIsDiskCacheReadHedgingEnabled = false;
     private int mTrackedKeysSize = 20;
+    private @Nullable Supplier<ConcurrencyLimiter> mLocalThrottlingLimiterSupplier;
 
     public Builder(ImagePipelineConfig.Builder configBuilder) {
       mConfigBuilder = configBuilder;
@@ -415,6 +488,104 @@ public class ImagePipelineExperiments {
       return mConfigBuilder;
     }
 
+    /**
+     * If enabled, requests for the same image that only differ in their resize options share a
+     * single decode. Smaller requests receive a downscaled copy of the larger decoded bitmap.
+     */
+    public ImagePipelineConfig.Builder setIsResizeAwareMultiplexingEnabled(
+        boolean isResizeAwareMultiplexingEnabled) {
+      mIsResizeAwareMultiplexingEnabled = isResizeAwareMultiplexingEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, queued work is served newest first, so that images that just became visible are
+     * loaded before the ones that scrolled by. This applies to the thread handoff queue, the local
+     * image throttling queue and, unless a custom executor supplier is set, the decode and
+     * background executors, which then also order work by request priority.
+     */
+    public ImagePipelineConfig.Builder setIsNewestFirstSchedulingEnabled(
+        boolean isNewestFirstSchedulingEnabled) {
+      mIsNewestFirstSchedulingEnabled = isNewestFirstSchedulingEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, intermediate scans of progressive JPEGs are decoded no more often than the
+     * measured decode duration allows. Scans are skipped when the image is unlikely to be visible,
+     * or when the download rate suggests the full image arrives before the scan could be shown.
+     */
+    public ImagePipelineConfig.Builder setIsAdaptiveProgressiveDecodingEnabled(
+        boolean isAdaptiveProgressiveDecodingEnabled) {
+      mIsAdaptiveProgressiveDecodingEnabled = isAdaptiveProgressiveDecodingEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, the scans of a progressive JPEG are decoded into the bitmaps of previous scans
+     * of the same request once those are released, so that a request allocates about two bitmaps
+     * instead of one per scan.
+     */
+    public ImagePipelineConfig.Builder setIsProgressiveBitmapReuseEnabled(
+        boolean isProgressiveBitmapReuseEnabled) {
+      mIsProgressiveBitmapReuseEnabled = isProgressiveBitmapReuseEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, the dimensions, orientation and color space of common image formats are read in
+     * a single pass over the header, without decoding the bounds with BitmapFactory.
+     */
+    public ImagePipelineConfig.Builder setIsHeaderScannerEnabled(boolean isHeaderScannerEnabled) {
+      mIsHeaderScannerEnabled = isHeaderScannerEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, the ETag and Last-Modified validators of network responses are kept next to the
+     * disk cache entries. Entries past their Cache-Control max-age are then revalidated with a
+     * conditional request, and the cached bytes are used if the server answers 304 Not Modified.
+     */
+    public ImagePipelineConfig.Builder setIsDiskCacheRevalidationEnabled(
+        boolean isDiskCacheRevalidationEnabled) {
+      mIsDiskCacheRevalidationEnabled = isDiskCacheRevalidationEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, the bytes of network responses are passed to the disk cache's write executor
+     * while they are downloaded, and the entry is committed when the download completes, so that
+     * the disk write starts before the image is passed on. Otherwise the complete image is written
+     * once it has been passed on.
+     */
+    public ImagePipelineConfig.Builder setIsDiskCacheWriteThroughEnabled(
+        boolean isDiskCacheWriteThroughEnabled) {
+      mIsDiskCacheWriteThroughEnabled = isDiskCacheWriteThroughEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, the bytes received by a network fetch that fails or is cancelled are kept in the
+     * disk cache, and the next fetch of the image only downloads the rest of it with a range
+     * request if the server still has the same version of the image.
+     */
+    public ImagePipelineConfig.Builder setIsResumableNetworkFetchEnabled(
+        boolean isResumableNetworkFetchEnabled) {
+      mIsResumableNetworkFetchEnabled = isResumableNetworkFetchEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * If enabled, a disk cache read that takes longer than 95% of the recent ones is raced against
+     * a network fetch of the image. The first of the two to provide the image wins, and the other
+     * one is cancelled. Prefetches are not raced.
+     */
+    public ImagePipelineConfig.Builder setIsDiskCacheReadHedgingEnabled(
+        boolean isDiskCacheReadHedgingEnabled) {
+      mIsDiskCacheReadHedgingEnabled = isDiskCacheReadHedgingEnabled;
+      return mConfigBuilder;
+    }
+
     public ImagePipelineConfig.Builder setIsEncodedMemoryCacheProbingEnabled(
         boolean isEncodedMemoryCacheProbingEnabled) {
       mIsEncodedMemoryCacheProbingEnabled = isEncodedMemoryCacheProbingEnabled;
@@ -426,6 +597,17 @@ public class ImagePipelineExperiments {
       return mConfigBuilder;
     }
 
+    /**
+     * Sets the supplier of the {@link ConcurrencyLimiter}s that limit how many local images are
+     * fetched and transformed at the same time, for instance an {@link AimdConcurrencyLimiter}.
+     * Each local image sequence gets its own limiter. If not set, a fixed number is allowed.
+     */
+    public ImagePipelineConfig.Builder setLocalThrottlingLimiterSupplier(
+        @Nullable Supplier<ConcurrencyLimiter> localThrottlingLimiterSupplier) {
+      mLocalThrottlingLimiterSupplier = localThrottlingLimiterSupplier;
+      return mConfigBuilder;
+    }
+
     public ImagePipelineExperiments build() {
       return new ImagePipelineExperiments(this);
     }
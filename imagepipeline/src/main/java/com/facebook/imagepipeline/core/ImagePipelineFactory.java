@@ -35,6 +35,7 @@ import com.facebook.imagepipeline.decoder.DefaultImageDecoder;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import com.facebook.imagepipeline.drawable.DrawableFactory;
 import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.platform.PlatformDecoder;
 import com.facebook.imagepipeline.platform.PlatformDecoderFactory;
 import com.facebook.imagepipeline.producers.ExperimentalThreadHandoffProducerQueueImpl;
@@ -161,9 +162,11 @@ public class ImagePipelineFactory {
             ? new ExperimentalThreadHandoffProducerQueueImpl(
                 config.getExecutorSupplier().forLightweightBackgroundTasks())
             : new ThreadHandoffProducerQueueImpl(
-                config.getExecutorSupplier().forLightweightBackgroundTasks());
+                config.getExecutorSupplier().forLightweightBackgroundTasks(),
+                mConfig.getExperiments().isNewestFirstSchedulingEnabled());
     CloseableReference.setDisableCloseableReferencesForBitmaps(
         config.getExperiments().getBitmapCloseableRefType());
+    EncodedImage.setUseHeaderScanner(config.getExperiments().isHeaderScannerEnabled());
     mCloseableReferenceFactory =
         new CloseableReferenceFactory(config.getCloseableReferenceLeakTracker());
     if (FrescoSystrace.isTracing()) {
@@ -395,7 +398,11 @@ public class ImagePipelineFactory {
               mConfig.isDiskCacheEnabled(),
               getImageTranscoderFactory(),
               mConfig.getExperiments().isEncodedMemoryCacheProbingEnabled(),
-              mConfig.getExperiments().isDiskCacheProbingEnabled());
+              mConfig.getExperiments().isDiskCacheProbingEnabled(),
+              mConfig.getExperiments().isResizeAwareMultiplexingEnabled(),
+              mConfig.getExperiments().isNewestFirstSchedulingEnabled(),
+              mConfig.getSizeVariantUriRewriter(),
+              mConfig.getExperiments().getLocalThrottlingLimiterSupplier());
     }
     return mProducerSequenceFactory;
   }
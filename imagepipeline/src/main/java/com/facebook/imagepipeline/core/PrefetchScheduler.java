@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.executors.CallerThreadExecutor;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.datasource.AbstractDataSource;
+import com.facebook.datasource.DataSource;
+import com.facebook.datasource.DataSubscriber;
+import com.facebook.imagepipeline.common.PrefetchBudget;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.datasource.PrefetchStarter;
+import com.facebook.imagepipeline.listener.ForegroundRequestTracker;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Holds prefetches back while images are needed on screen, and runs them when the pipeline is
+ * idle.
+ *
+ * <p>Prefetches are queued by priority, then in the order they were scheduled. They are only
+ * started while the {@link ForegroundRequestTracker} sees no foreground request in flight, once
+ * it has been idle for the idle delay. At most {@link PrefetchBudget#maxConcurrency} run at once,
+ * and no more are started once {@link PrefetchBudget#maxCount} prefetches have completed or
+ * {@link PrefetchBudget#maxBytes} bytes have been fetched from the network, until {@link
+ * #resetBudget} is called.
+ *
+ * <p>As soon as a foreground request starts, no more prefetches are started, and the running ones
+ * are demoted to {@link Priority#LOW} rather than cancelled, so that the bytes they have received
+ * are not lost. They get their own priority back once the pipeline has been idle for the idle
+ * delay again. The data source of a prefetch finishes with the prefetch, and closing it removes the
+ * prefetch from the queue or cancels it.
+ */
+@ThreadSafe
+public class PrefetchScheduler implements ForegroundRequestTracker.Listener {
+
+  private final ImagePipeline mImagePipeline;
+  private final ForegroundRequestTracker mForegroundRequestTracker;
+  private final PrefetchBudget mBudget;
+  private final long mIdleDelayMs;
+  private final @Nullable ScheduledExecutorService mScheduledExecutorService;
+
+  @GuardedBy("this")
+  private final PriorityQueue<ScheduledPrefetch> mQueue = new PriorityQueue<>();
+
+  @GuardedBy("this")
+  private final Set<ScheduledPrefetch> mRunning = new HashSet<>();
+
+  /** Whether the foreground has been idle long enough for prefetches to run. */
+  @GuardedBy("this")
+  private boolean mIsReleasing;
+
+  @GuardedBy("this")
+  private @Nullable ScheduledFuture<?> mPendingRelease;
+
+  @GuardedBy("this")
+  private long mNextSequenceNumber;
+
+  @GuardedBy("this")
+  private int mCompletedCount;
+
+  @GuardedBy("this")
+  private long mFetchedBytes;
+
+  /**
+   * Held while the priorities of the running prefetches are changed, so that they end up matching
+   * the latest state of the foreground. Taken before the scheduler's lock, never after.
+   */
+  private final Object mPriorityLock = new Object();
+
+  private final PrefetchStarter mPrefetchStarter =
+      new PrefetchStarter() {
+        @Override
+        protected boolean startNextPrefetch() {
+          return PrefetchScheduler.this.startNextPrefetch();
+        }
+      };
+
+  /**
+   * @param idleDelayMs time the foreground has to stay idle before prefetches start, so that they
+   *     are not started and cancelled between two foreground requests
+   * @param scheduledExecutorService executor the idle delay is waited on; prefetches start as
+   *     soon as the foreground is idle if null
+   */
+  public PrefetchScheduler(
+      ImagePipeline imagePipeline,
+      ForegroundRequestTracker foregroundRequestTracker,
+      PrefetchBudget budget,
+      long idleDelayMs,
+      @Nullable ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkArgument(idleDelayMs >= 0);
+    mImagePipeline = imagePipeline;
+    mForegroundRequestTracker = foregroundRequestTracker;
+    mBudget = budget;
+    mIdleDelayMs = idleDelayMs;
+    mScheduledExecutorService = scheduledExecutorService;
+    mForegroundRequestTracker.addListener(this);
+    if (mForegroundRequestTracker.isIdle()) {
+      onForegroundIdle();
+    }
+  }
+
+  /**
+   * Schedules a prefetch to the bitmap cache.
+   *
+   * @param priority priority in the queue, and of the prefetch once started
+   * @return a data source finishing with the prefetch, that can safely be ignored
+   */
+  public DataSource<Void> prefetchToBitmapCache(
+      ImageRequest imageRequest, Object callerContext, Priority priority) {
+    return schedule(new ScheduledPrefetch(imageRequest, callerContext, priority, true));
+  }
+
+  /**
+   * Schedules a prefetch to the disk cache.
+   *
+   * @param priority priority in the queue, and of the prefetch once started
+   * @return a data source finishing with the prefetch, that can safely be ignored
+   */
+  public DataSource<Void> prefetchToDiskCache(
+      ImageRequest imageRequest, Object callerContext, Priority priority) {
+    return schedule(new ScheduledPrefetch(imageRequest, callerContext, priority, false));
+  }
+
+  private DataSource<Void> schedule(ScheduledPrefetch prefetch) {
+    synchronized (this) {
+      prefetch.mSequenceNumber = mNextSequenceNumber++;
+      mQueue.add(prefetch);
+    }
+    mPrefetchStarter.startPrefetches();
+    return prefetch;
+  }
+
+  /** @return the number of prefetches waiting to be started */
+  public synchronized int getQueuedCount() {
+    return mQueue.size();
+  }
+
+  /** @return the number of prefetches running */
+  public synchronized int getRunningCount() {
+    return mRunning.size();
+  }
+
+  /** Resets the count of completed prefetches and of fetched bytes, and resumes the prefetches. */
+  public void resetBudget() {
+    synchronized (this) {
+      mCompletedCount = 0;
+      mFetchedBytes = 0;
+    }
+    mPrefetchStarter.startPrefetches();
+  }
+
+  @Override
+  public void onForegroundBusy() {
+    synchronized (this) {
+      mIsReleasing = false;
+      if (mPendingRelease != null) {
+        mPendingRelease.cancel(false);
+        mPendingRelease = null;
+      }
+    }
+    updateRunningPriorities();
+    // The foreground may have become idle again before this was notified
+    if (mForegroundRequestTracker.isIdle()) {
+      onForegroundIdle();
+    }
+  }
+
+  @Override
+  public void onForegroundIdle() {
+    synchronized (this) {
+      if (mIsReleasing || mPendingRelease != null) {
+        return;
+      }
+      if (mIdleDelayMs > 0 && mScheduledExecutorService != null) {
+        mPendingRelease =
+            mScheduledExecutorService.schedule(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    onIdleDelayElapsed();
+                  }
+                },
+                mIdleDelayMs,
+                TimeUnit.MILLISECONDS);
+        return;
+      }
+      // A foreground request may have started since this was notified
+      if (!mForegroundRequestTracker.isIdle()) {
+        return;
+      }
+      mIsReleasing = true;
+    }
+    updateRunningPriorities();
+    mPrefetchStarter.startPrefetches();
+  }
+
+  private void onIdleDelayElapsed() {
+    synchronized (this) {
+      mPendingRelease = null;
+      if (!mForegroundRequestTracker.isIdle()) {
+        return;
+      }
+      mIsReleasing = true;
+    }
+    updateRunningPriorities();
+    mPrefetchStarter.startPrefetches();
+  }
+
+  /**
+   * Demotes the running prefetches to {@link Priority#LOW} while prefetches are held back, and
+   * gives them their own priority back otherwise.
+   */
+  private void updateRunningPriorities() {
+    synchronized (mPriorityLock) {
+      final List<DataSource<Void>> dataSources = new ArrayList<>();
+      final List<Priority> priorities = new ArrayList<>();
+      synchronized (this) {
+        for (ScheduledPrefetch prefetch : mRunning) {
+          if (prefetch.mDataSource != null) {
+            dataSources.add(prefetch.mDataSource);
+            priorities.add(mIsReleasing ? prefetch.mPriority : Priority.LOW);
+          }
+        }
+      }
+      for (int i = 0; i < dataSources.size(); i++) {
+        PrefetchStarter.setPriority(dataSources.get(i), priorities.get(i));
+      }
+    }
+  }
+
+  /** Starts the next prefetch, unless the foreground is busy or the budget is used up. */
+  private boolean startNextPrefetch() {
+    final ScheduledPrefetch prefetch;
+    synchronized (this) {
+      if (!mIsReleasing
+          || mQueue.isEmpty()
+          || mRunning.size() >= mBudget.maxConcurrency
+          || mCompletedCount + mRunning.size() >= mBudget.maxCount
+          || mFetchedBytes >= mBudget.maxBytes) {
+        return false;
+      }
+      prefetch = mQueue.poll();
+      mRunning.add(prefetch);
+    }
+    prefetch.start();
+    return true;
+  }
+
+  private void onPrefetchFinished(ScheduledPrefetch prefetch, DataSource<Void> dataSource) {
+    synchronized (this) {
+      if (prefetch.mDataSource != dataSource || !mRunning.remove(prefetch)) {
+        // The prefetch was closed
+        return;
+      }
+      prefetch.mDataSource = null;
+      mCompletedCount++;
+      mFetchedBytes += PrefetchStarter.getFetchedSize(dataSource);
+    }
+    prefetch.onFinished(dataSource);
+    mPrefetchStarter.startPrefetches();
+  }
+
+  private void onPrefetchClosed(ScheduledPrefetch prefetch) {
+    final DataSource<Void> dataSource;
+    synchronized (this) {
+      if (mQueue.remove(prefetch)) {
+        return;
+      }
+      if (!mRunning.remove(prefetch)) {
+        return;
+      }
+      dataSource = prefetch.mDataSource;
+      prefetch.mDataSource = null;
+    }
+    if (dataSource != null) {
+      dataSource.close();
+    }
+    mPrefetchStarter.startPrefetches();
+  }
+
+  private class ScheduledPrefetch extends AbstractDataSource<Void>
+      implements Comparable<ScheduledPrefetch> {
+
+    private final ImageRequest mImageRequest;
+    private final Object mCallerContext;
+    private final Priority mPriority;
+    private final boolean mIsToBitmapCache;
+
+    @GuardedBy("PrefetchScheduler.this")
+    private long mSequenceNumber;
+
+    /** Data source of the prefetch while it runs. */
+    @GuardedBy("PrefetchScheduler.this")
+    private @Nullable DataSource<Void> mDataSource;
+
+    private ScheduledPrefetch(
+        ImageRequest imageRequest,
+        Object callerContext,
+        Priority priority,
+        boolean isToBitmapCache) {
+      mImageRequest = imageRequest;
+      mCallerContext = callerContext;
+      mPriority = priority;
+      mIsToBitmapCache = isToBitmapCache;
+    }
+
+    private void start() {
+      final DataSource<Void> prefetchDataSource =
+          mIsToBitmapCache
+              ? mImagePipeline.prefetchToBitmapCache(mImageRequest, mCallerContext, mPriority)
+              : mImagePipeline.prefetchToDiskCache(mImageRequest, mCallerContext, mPriority);
+      final boolean isRunning;
+      final boolean isHeldBack;
+      synchronized (PrefetchScheduler.this) {
+        isRunning = mRunning.contains(this) && mDataSource == null;
+        if (isRunning) {
+          mDataSource = prefetchDataSource;
+        }
+        isHeldBack = !mIsReleasing;
+      }
+      if (!isRunning) {
+        // Closed while being submitted
+        prefetchDataSource.close();
+        return;
+      }
+      if (isHeldBack) {
+        // The foreground became busy while the prefetch was being submitted
+        updateRunningPriorities();
+      }
+      prefetchDataSource.subscribe(
+          new DataSubscriber<Void>() {
+            @Override
+            public void onNewResult(DataSource<Void> dataSource) {
+              if (dataSource.isFinished()) {
+                onPrefetchFinished(ScheduledPrefetch.this, dataSource);
+              }
+            }
+
+            @Override
+            public void onFailure(DataSource<Void> dataSource) {
+              onPrefetchFinished(ScheduledPrefetch.this, dataSource);
+            }
+
+            @Override
+            public void onCancellation(DataSource<Void> dataSource) {
+              onPrefetchFinished(ScheduledPrefetch.this, dataSource);
+            }
+
+            @Override
+            public void onProgressUpdate(DataSource<Void> dataSource) {}
+          },
+          CallerThreadExecutor.getInstance());
+    }
+
+    private void onFinished(DataSource<Void> dataSource) {
+      if (dataSource.hasFailed()) {
+        setFailure(dataSource.getFailureCause());
+      } else if (dataSource.isClosed()) {
+        setFailure(new CancellationException());
+      } else {
+        setResult(null, /* isLast */ true, dataSource.getExtras());
+      }
+    }
+
+    @Override
+    public boolean close() {
+      if (!super.close()) {
+        return false;
+      }
+      onPrefetchClosed(this);
+      return true;
+    }
+
+    @Override
+    public int compareTo(ScheduledPrefetch other) {
+      if (mPriority != other.mPriority) {
+        return mPriority.ordinal() > other.mPriority.ordinal() ? -1 : 1;
+      }
+      return mSequenceNumber < other.mSequenceNumber
+          ? -1
+          : (mSequenceNumber == other.mSequenceNumber ? 0 : 1);
+    }
+  }
+}
@@ -32,6 +32,7 @@ import com.facebook.imagepipeline.producers.BitmapMemoryCacheProducer;
 import com.facebook.imagepipeline.producers.BitmapPrepareProducer;
 import com.facebook.imagepipeline.producers.BitmapProbeProducer;
 import com.facebook.imagepipeline.producers.BranchOnSeparateImagesProducer;
+import com.facebook.imagepipeline.producers.ConcurrencyLimiter;
 import com.facebook.imagepipeline.producers.DataFetchProducer;
 import com.facebook.imagepipeline.producers.DecodeProducer;
 import com.facebook.imagepipeline.producers.DiskCacheReadProducer;
@@ -55,6 +56,8 @@ import com.facebook.imagepipeline.producers.PostprocessorProducer;
 import com.facebook.imagepipeline.producers.Producer;
 import com.facebook.imagepipeline.producers.QualifiedResourceFetchProducer;
 import com.facebook.imagepipeline.producers.ResizeAndRotateProducer;
+import com.facebook.imagepipeline.producers.ResizeAwareBitmapMultiplexProducer;
+import com.facebook.imagepipeline.producers.SizeVariantProducer;
 import com.facebook.imagepipeline.producers.SwallowResultProducer;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducer;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
@@ -62,7 +65,9 @@ import com.facebook.imagepipeline.producers.ThrottlingProducer;
 import com.facebook.imagepipeline.producers.ThumbnailBranchProducer;
 import com.facebook.imagepipeline.producers.ThumbnailProducer;
 import com.facebook.imagepipeline.producers.WebpTranscodeProducer;
+import com.facebook.imagepipeline.request.SizeVariantUriRewriter;
 import com.facebook.imagepipeline.transcoder.ImageTranscoderFactory;
+import javax.annotation.Nullable;
 
 public class ProducerFactory {
 
@@ -185,6 +190,16 @@ public class ProducerFactory {
     return new BitmapMemoryCacheProducer(mBitmapMemoryCache, mCacheKeyFactory, inputProducer);
   }
 
+  public ResizeAwareBitmapMultiplexProducer newResizeAwareBitmapMultiplexProducer(
+      Producer<CloseableReference<CloseableImage>> inputProducer) {
+    return new ResizeAwareBitmapMultiplexProducer(
+        mBitmapMemoryCache,
+        mCacheKeyFactory,
+        mPlatformBitmapFactory,
+        mCloseableReferenceFactory,
+        inputProducer);
+  }
+
   public static BranchOnSeparateImagesProducer newBranchOnSeparateImagesProducer(
       Producer<EncodedImage> inputProducer1, Producer<EncodedImage> inputProducer2) {
     return new BranchOnSeparateImagesProducer(inputProducer1, inputProducer2);
@@ -210,7 +225,11 @@ public class ProducerFactory {
 
   public DiskCacheReadProducer newDiskCacheReadProducer(Producer<EncodedImage> inputProducer) {
     return new DiskCacheReadProducer(
-        mDefaultBufferedDiskCache, mSmallImageBufferedDiskCache, mCacheKeyFactory, inputProducer);
+        mDefaultBufferedDiskCache,
+        mSmallImageBufferedDiskCache,
+        mCacheKeyFactory,
+        inputProducer,
+        mExecutorSupplier.forLightweightBackgroundTasks());
   }
 
   public DiskCacheWriteProducer newDiskCacheWriteProducer(Producer<EncodedImage> inputProducer) {
@@ -228,6 +247,17 @@ public class ProducerFactory {
         inputProducer);
   }
 
+  public SizeVariantProducer newSizeVariantProducer(
+      SizeVariantUriRewriter uriRewriter, Producer<EncodedImage> inputProducer) {
+    return new SizeVariantProducer(
+        uriRewriter,
+        mEncodedMemoryCache,
+        mDefaultBufferedDiskCache,
+        mSmallImageBufferedDiskCache,
+        mCacheKeyFactory,
+        inputProducer);
+  }
+
   public EncodedCacheKeyMultiplexProducer newEncodedCacheKeyMultiplexProducer(
       Producer<EncodedImage> inputProducer) {
     return new EncodedCacheKeyMultiplexProducer(
@@ -348,10 +378,34 @@ public class ProducerFactory {
   }
 
   public <T> ThrottlingProducer<T> newThrottlingProducer(Producer<T> inputProducer) {
+    return newThrottlingProducer(inputProducer, false);
+  }
+
+  public <T> ThrottlingProducer<T> newThrottlingProducer(
+      Producer<T> inputProducer, boolean newestFirst) {
+    return newThrottlingProducer(inputProducer, newestFirst, null);
+  }
+
+  /**
+   * @param concurrencyLimiter limiter providing the number of simultaneous requests, or null to
+   *     allow a fixed number
+   */
+  public <T> ThrottlingProducer<T> newThrottlingProducer(
+      Producer<T> inputProducer,
+      boolean newestFirst,
+      @Nullable ConcurrencyLimiter concurrencyLimiter) {
+    if (concurrencyLimiter != null) {
+      return new ThrottlingProducer<T>(
+          concurrencyLimiter,
+          mExecutorSupplier.forLightweightBackgroundTasks(),
+          inputProducer,
+          newestFirst);
+    }
     return new ThrottlingProducer<T>(
         MAX_SIMULTANEOUS_REQUESTS,
         mExecutorSupplier.forLightweightBackgroundTasks(),
-        inputProducer);
+        inputProducer,
+        newestFirst);
   }
 
   public WebpTranscodeProducer newWebpTranscodeProducer(Producer<EncodedImage> inputProducer) {
@@ -19,6 +19,7 @@ import static com.facebook.imagepipeline.common.SourceUriType.SOURCE_TYPE_QUALIF
 import android.content.ContentResolver;
 import android.net.Uri;
 import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Supplier;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.media.MediaUtils;
 import com.facebook.common.memory.PooledByteBuffer;
@@ -29,6 +30,7 @@ import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.producers.BitmapMemoryCacheGetProducer;
 import com.facebook.imagepipeline.producers.BitmapMemoryCacheKeyMultiplexProducer;
 import com.facebook.imagepipeline.producers.BitmapMemoryCacheProducer;
+import com.facebook.imagepipeline.producers.ConcurrencyLimiter;
 import com.facebook.imagepipeline.producers.DecodeProducer;
 import com.facebook.imagepipeline.producers.DiskCacheReadProducer;
 import com.facebook.imagepipeline.producers.EncodedMemoryCacheProducer;
@@ -51,10 +53,12 @@ import com.facebook.imagepipeline.producers.ThrottlingProducer;
 import com.facebook.imagepipeline.producers.ThumbnailBranchProducer;
 import com.facebook.imagepipeline.producers.ThumbnailProducer;
 import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.SizeVariantUriRewriter;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import com.facebook.imagepipeline.transcoder.ImageTranscoderFactory;
 import java.util.HashMap;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 public class ProducerSequenceFactory {
 
@@ -71,6 +75,10 @@ public class ProducerSequenceFactory {
   private final ImageTranscoderFactory mImageTranscoderFactory;
   private final boolean mIsEncodedMemoryCacheProbingEnabled;
   private final boolean mIsDiskCacheProbingEnabled;
+  private final boolean mIsResizeAwareMultiplexingEnabled;
+  private final boolean mIsNewestFirstSchedulingEnabled;
+  @Nullable private final SizeVariantUriRewriter mSizeVariantUriRewriter;
+  @Nullable private final Supplier<ConcurrencyLimiter> mLocalThrottlingLimiterSupplier;
 
   // Saved sequences
   @VisibleForTesting Producer<CloseableReference<CloseableImage>> mNetworkFetchSequence;
@@ -123,7 +131,11 @@ public class ProducerSequenceFactory {
       boolean diskCacheEnabled,
       ImageTranscoderFactory imageTranscoderFactory,
       boolean isEncodedMemoryCacheProbingEnabled,
-      boolean isDiskCacheProbingEnabled) {
+      boolean isDiskCacheProbingEnabled,
+      boolean isResizeAwareMultiplexingEnabled,
+      boolean isNewestFirstSchedulingEnabled,
+      @Nullable SizeVariantUriRewriter sizeVariantUriRewriter,
+      @Nullable Supplier<ConcurrencyLimiter> localThrottlingLimiterSupplier) {
     mContentResolver = contentResolver;
     mProducerFactory = producerFactory;
     mNetworkFetcher = networkFetcher;
@@ -140,6 +152,10 @@ public class ProducerSequenceFactory {
     mImageTranscoderFactory = imageTranscoderFactory;
     mIsEncodedMemoryCacheProbingEnabled = isEncodedMemoryCacheProbingEnabled;
     mIsDiskCacheProbingEnabled = isDiskCacheProbingEnabled;
+    mIsResizeAwareMultiplexingEnabled = isResizeAwareMultiplexingEnabled;
+    mIsNewestFirstSchedulingEnabled = isNewestFirstSchedulingEnabled;
+    mSizeVariantUriRewriter = sizeVariantUriRewriter;
+    mLocalThrottlingLimiterSupplier = localThrottlingLimiterSupplier;
   }
 
   /**
@@ -461,7 +477,10 @@ public class ProducerSequenceFactory {
     return mNetworkFetchToEncodedMemoryPrefetchSequence;
   }
 
-  /** multiplex -> encoded cache -> disk cache -> (webp transcode) -> network fetch. */
+  /**
+   * (size variant) -> multiplex -> encoded cache -> disk cache -> (webp transcode) -> network
+   * fetch.
+   */
   private synchronized Producer<EncodedImage> getCommonNetworkFetchToEncodedMemorySequence() {
     if (FrescoSystrace.isTracing()) {
       FrescoSystrace.beginSection(
@@ -475,6 +494,10 @@ public class ProducerSequenceFactory {
       Producer<EncodedImage> inputProducer =
           newEncodedCacheMultiplexToTranscodeSequence(
               mProducerFactory.newNetworkFetchProducer(mNetworkFetcher));
+      if (mSizeVariantUriRewriter != null) {
+        inputProducer =
+            mProducerFactory.newSizeVariantProducer(mSizeVariantUriRewriter, inputProducer);
+      }
       mCommonNetworkFetchToEncodedMemorySequence =
           ProducerFactory.newAddImageTransformMetaDataProducer(inputProducer);
 
@@ -800,15 +823,19 @@ public class ProducerSequenceFactory {
   }
 
   /**
-   * Bitmap cache get -> thread hand off -> multiplex -> bitmap cache
+   * Bitmap cache get -> thread hand off -> multiplex -> (resize aware multiplex) -> bitmap cache
    *
    * @param inputProducer producer providing the input to the bitmap cache
    * @return bitmap cache get to bitmap cache sequence
    */
   private Producer<CloseableReference<CloseableImage>> newBitmapCacheGetToBitmapCacheSequence(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
-    BitmapMemoryCacheProducer bitmapMemoryCacheProducer =
+    Producer<CloseableReference<CloseableImage>> bitmapMemoryCacheProducer =
         mProducerFactory.newBitmapMemoryCacheProducer(inputProducer);
+    if (mIsResizeAwareMultiplexingEnabled) {
+      bitmapMemoryCacheProducer =
+          mProducerFactory.newResizeAwareBitmapMultiplexProducer(bitmapMemoryCacheProducer);
+    }
     BitmapMemoryCacheKeyMultiplexProducer bitmapKeyMultiplexProducer =
         mProducerFactory.newBitmapMemoryCacheKeyMultiplexProducer(bitmapMemoryCacheProducer);
     ThreadHandoffProducer<CloseableReference<CloseableImage>> threadHandoffProducer =
@@ -839,7 +866,10 @@ public class ProducerSequenceFactory {
         mProducerFactory.newResizeAndRotateProducer(
             localImageProducer, true, mImageTranscoderFactory);
     ThrottlingProducer<EncodedImage> localImageThrottlingProducer =
-        mProducerFactory.newThrottlingProducer(localImageProducer);
+        mProducerFactory.newThrottlingProducer(
+            localImageProducer,
+            mIsNewestFirstSchedulingEnabled,
+            mLocalThrottlingLimiterSupplier != null ? mLocalThrottlingLimiterSupplier.get() : null);
     return mProducerFactory.newBranchOnSeparateImagesProducer(
         newLocalThumbnailProducer(thumbnailProducers), localImageThrottlingProducer);
   }
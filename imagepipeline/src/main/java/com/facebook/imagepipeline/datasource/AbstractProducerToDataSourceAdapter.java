@@ -9,6 +9,7 @@ package com.facebook.imagepipeline.datasource;
 
 import com.facebook.common.internal.Preconditions;
 import com.facebook.datasource.AbstractDataSource;
+import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.listener.RequestListener2;
 import com.facebook.imagepipeline.producers.BaseConsumer;
 import com.facebook.imagepipeline.producers.Consumer;
@@ -115,6 +116,11 @@ public abstract class AbstractProducerToDataSourceAdapter<T> extends AbstractDat
     return mSettableProducerContext.getImageRequest();
   }
 
+  /** Changes the priority of the request, see {@link PrefetchStarter#setPriority}. */
+  void setPriority(Priority priority) {
+    mSettableProducerContext.setPriority(priority);
+  }
+
   @Override
   public boolean close() {
     if (!super.close()) {
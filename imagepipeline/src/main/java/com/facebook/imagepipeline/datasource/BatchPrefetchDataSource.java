@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.datasource;
+
+import com.facebook.common.executors.CallerThreadExecutor;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.datasource.AbstractDataSource;
+import com.facebook.datasource.DataSource;
+import com.facebook.datasource.DataSubscriber;
+import com.facebook.imagepipeline.common.PrefetchBudget;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Data source of a batch of prefetches, sharing a budget and a priority.
+ *
+ * <p>The requests are prefetched in order, at most {@link PrefetchBudget#maxConcurrency} at once.
+ * No more are started once {@link PrefetchBudget#maxCount} requests have been started or {@link
+ * PrefetchBudget#maxBytes} bytes have been fetched from the network. The priority of the whole
+ * batch can be changed with {@link #setPriority}, and closing the data source cancels all its
+ * prefetches.
+ *
+ * <p>The result is the outcome of each request, one of the {@code OUTCOME_} constants, in the
+ * order of the requests. It is available, and updated, while the batch runs: subscribers are
+ * notified of the progress each time a request finishes. The data source finishes once all the
+ * requests have an outcome other than {@link #OUTCOME_PENDING}.
+ */
+@ThreadSafe
+public class BatchPrefetchDataSource extends AbstractDataSource<int[]> {
+
+  /** The request has not finished yet. */
+  public static final int OUTCOME_PENDING = 0;
+  /** The image has been fetched. */
+  public static final int OUTCOME_PREFETCHED = 1;
+  /** The image was already cached when the batch was submitted. */
+  public static final int OUTCOME_ALREADY_CACHED = 2;
+  /** The image is requested earlier in the batch. */
+  public static final int OUTCOME_DUPLICATE = 3;
+  /** The prefetch failed. */
+  public static final int OUTCOME_FAILED = 4;
+  /** The prefetch was cancelled. */
+  public static final int OUTCOME_CANCELLED = 5;
+  /** The request was not prefetched because the budget of the batch had been used up. */
+  public static final int OUTCOME_OVER_BUDGET = 6;
+
+  /** Starts the prefetch of one request of a batch. */
+  public interface PrefetchSubmitter {
+    DataSource<Void> submit(ImageRequest imageRequest, Priority priority);
+  }
+
+  private final List<ImageRequest> mImageRequests;
+  private final PrefetchBudget mBudget;
+  private final PrefetchSubmitter mPrefetchSubmitter;
+
+  @GuardedBy("this")
+  private final int[] mOutcomes;
+
+  /** Data sources of the prefetches being run, by request. */
+  @GuardedBy("this")
+  private final List<DataSource<Void>> mDataSources;
+
+  @GuardedBy("this")
+  private Priority mPriority;
+
+  @GuardedBy("this")
+  private int mNextRequest;
+
+  @GuardedBy("this")
+  private int mStartedCount;
+
+  @GuardedBy("this")
+  private int mRunningCount;
+
+  @GuardedBy("this")
+  private int mFinishedCount;
+
+  @GuardedBy("this")
+  private long mFetchedBytes;
+
+  private final PrefetchStarter mPrefetchStarter =
+      new PrefetchStarter() {
+        @Override
+        protected boolean startNextPrefetch() {
+          return BatchPrefetchDataSource.this.startNextPrefetch();
+        }
+      };
+
+  private BatchPrefetchDataSource(
+      List<ImageRequest> imageRequests,
+      int[] outcomes,
+      PrefetchBudget budget,
+      Priority priority,
+      PrefetchSubmitter prefetchSubmitter) {
+    Preconditions.checkArgument(imageRequests.size() == outcomes.length);
+    mImageRequests = new ArrayList<>(imageRequests);
+    mOutcomes = Arrays.copyOf(outcomes, outcomes.length);
+    mDataSources = new ArrayList<>(outcomes.length);
+    for (int i = 0; i < outcomes.length; i++) {
+      mDataSources.add(null);
+      if (outcomes[i] != OUTCOME_PENDING) {
+        mFinishedCount++;
+      }
+    }
+    mBudget = budget;
+    mPriority = priority;
+    mPrefetchSubmitter = prefetchSubmitter;
+  }
+
+  /**
+   * Creates the data source of a batch and starts its first prefetches.
+   *
+   * @param outcomes initial outcome of each request: {@link #OUTCOME_PENDING} for the requests to
+   *     prefetch, or the final outcome of the ones not to prefetch
+   */
+  public static BatchPrefetchDataSource create(
+      List<ImageRequest> imageRequests,
+      int[] outcomes,
+      PrefetchBudget budget,
+      Priority priority,
+      PrefetchSubmitter prefetchSubmitter) {
+    final BatchPrefetchDataSource dataSource =
+        new BatchPrefetchDataSource(imageRequests, outcomes, budget, priority, prefetchSubmitter);
+    dataSource.mPrefetchStarter.startPrefetches();
+    return dataSource;
+  }
+
+  @Override
+  @Nullable
+  public synchronized int[] getResult() {
+    return isClosed() ? null : Arrays.copyOf(mOutcomes, mOutcomes.length);
+  }
+
+  @Override
+  public synchronized boolean hasResult() {
+    return !isClosed();
+  }
+
+  /** @return the outcome of the request at the given index of the batch */
+  public synchronized int getOutcome(int index) {
+    return mOutcomes[index];
+  }
+
+  public synchronized Priority getPriority() {
+    return mPriority;
+  }
+
+  /** Changes the priority of the prefetches being run and of the ones still to start. */
+  public void setPriority(Priority priority) {
+    final List<DataSource<Void>> runningDataSources;
+    synchronized (this) {
+      if (mPriority == priority) {
+        return;
+      }
+      mPriority = priority;
+      runningDataSources = getRunningDataSources();
+    }
+    for (DataSource<Void> dataSource : runningDataSources) {
+      PrefetchStarter.setPriority(dataSource, priority);
+    }
+  }
+
+  @Override
+  public boolean close() {
+    if (!super.close()) {
+      return false;
+    }
+    final List<DataSource<Void>> runningDataSources;
+    synchronized (this) {
+      runningDataSources = getRunningDataSources();
+    }
+    for (DataSource<Void> dataSource : runningDataSources) {
+      dataSource.close();
+    }
+    return true;
+  }
+
+  @GuardedBy("this")
+  private List<DataSource<Void>> getRunningDataSources() {
+    final List<DataSource<Void>> runningDataSources = new ArrayList<>(mRunningCount);
+    for (DataSource<Void> dataSource : mDataSources) {
+      if (dataSource != null) {
+        runningDataSources.add(dataSource);
+      }
+    }
+    return runningDataSources;
+  }
+
+  /**
+   * Starts the next request, unless the concurrency or the budget is used up. The batch is
+   * finished instead once no prefetch is running and none can be started anymore.
+   */
+  private boolean startNextPrefetch() {
+    final int index;
+    final Priority priority;
+    synchronized (this) {
+      if (isClosed()) {
+        return false;
+      }
+      while (mNextRequest < mOutcomes.length && mOutcomes[mNextRequest] != OUTCOME_PENDING) {
+        mNextRequest++;
+      }
+      if (mNextRequest == mOutcomes.length
+          || mRunningCount >= mBudget.maxConcurrency
+          || mStartedCount >= mBudget.maxCount
+          || mFetchedBytes >= mBudget.maxBytes) {
+        index = -1;
+        priority = null;
+      } else {
+        index = mNextRequest++;
+        priority = mPriority;
+        mStartedCount++;
+        mRunningCount++;
+      }
+    }
+    if (index < 0) {
+      maybeFinish();
+      return false;
+    }
+    final DataSource<Void> dataSource =
+        mPrefetchSubmitter.submit(mImageRequests.get(index), priority);
+    final boolean isClosed;
+    final Priority currentPriority;
+    synchronized (this) {
+      isClosed = isClosed();
+      if (!isClosed) {
+        mDataSources.set(index, dataSource);
+      }
+      currentPriority = mPriority;
+    }
+    if (isClosed) {
+      dataSource.close();
+      return false;
+    }
+    if (currentPriority != priority) {
+      // The priority of the batch changed while the prefetch was being submitted
+      PrefetchStarter.setPriority(dataSource, currentPriority);
+    }
+    dataSource.subscribe(new PrefetchSubscriber(index), CallerThreadExecutor.getInstance());
+    return true;
+  }
+
+  /** Finishes the batch if no prefetch is running and none can be started anymore. */
+  private void maybeFinish() {
+    synchronized (this) {
+      if (mRunningCount > 0 || isClosed()) {
+        return;
+      }
+      for (int i = mNextRequest; i < mOutcomes.length; i++) {
+        if (mOutcomes[i] == OUTCOME_PENDING) {
+          mOutcomes[i] = OUTCOME_OVER_BUDGET;
+        }
+      }
+      mFinishedCount = mOutcomes.length;
+    }
+    setResult(null, /* isLast */ true, null);
+  }
+
+  private void onPrefetchFinished(int index, DataSource<Void> dataSource, int outcome) {
+    final float progress;
+    synchronized (this) {
+      if (mDataSources.get(index) != dataSource) {
+        return;
+      }
+      mDataSources.set(index, null);
+      mOutcomes[index] = outcome;
+      mRunningCount--;
+      mFinishedCount++;
+      mFetchedBytes += PrefetchStarter.getFetchedSize(dataSource);
+      progress = (float) mFinishedCount / mOutcomes.length;
+    }
+    setProgress(progress);
+    mPrefetchStarter.startPrefetches();
+  }
+
+  private class PrefetchSubscriber implements DataSubscriber<Void> {
+
+    private final int mIndex;
+
+    private PrefetchSubscriber(int index) {
+      mIndex = index;
+    }
+
+    @Override
+    public void onNewResult(DataSource<Void> dataSource) {
+      if (dataSource.isFinished()) {
+        onPrefetchFinished(mIndex, dataSource, OUTCOME_PREFETCHED);
+      }
+    }
+
+    @Override
+    public void onFailure(DataSource<Void> dataSource) {
+      onPrefetchFinished(mIndex, dataSource, OUTCOME_FAILED);
+    }
+
+    @Override
+    public void onCancellation(DataSource<Void> dataSource) {
+      onPrefetchFinished(mIndex, dataSource, OUTCOME_CANCELLED);
+    }
+
+    @Override
+    public void onProgressUpdate(DataSource<Void> dataSource) {}
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.datasource;
+
+import com.facebook.datasource.DataSource;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import java.util.Map;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Starts the prefetches of a queue one after the other, as long as {@link #startNextPrefetch}
+ * starts one.
+ *
+ * <p>Only one thread starts prefetches at a time. Prefetches finishing at once, on the same thread
+ * or not, leave it to the thread already starting prefetches to start the next ones: it tries
+ * again once it runs out of prefetches to start, so that none is left waiting.
+ */
+@ThreadSafe
+public abstract class PrefetchStarter {
+
+  @GuardedBy("this")
+  private boolean mIsStarting;
+
+  @GuardedBy("this")
+  private boolean mIsRequestedAgain;
+
+  /**
+   * Starts the next prefetch, if any can be started. It is never called from two threads at once,
+   * nor while the starter's lock is held.
+   *
+   * @return whether a prefetch was started
+   */
+  protected abstract boolean startNextPrefetch();
+
+  /** Starts prefetches until {@link #startNextPrefetch} does not start any. */
+  public final void startPrefetches() {
+    synchronized (this) {
+      if (mIsStarting) {
+        mIsRequestedAgain = true;
+        return;
+      }
+      mIsStarting = true;
+    }
+    while (true) {
+      synchronized (this) {
+        mIsRequestedAgain = false;
+      }
+      while (startNextPrefetch()) {}
+      synchronized (this) {
+        if (!mIsRequestedAgain) {
+          mIsStarting = false;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes a finished prefetch fetched from the network, see {@link
+   *     ProducerContext.ExtraKeys#FETCHED_SIZE}
+   */
+  public static int getFetchedSize(DataSource<?> dataSource) {
+    final Map<String, Object> extras = dataSource.getExtras();
+    final Object fetchedSize =
+        extras == null ? null : extras.get(ProducerContext.ExtraKeys.FETCHED_SIZE);
+    return fetchedSize instanceof Integer ? (Integer) fetchedSize : 0;
+  }
+
+  /**
+   * Changes the priority of a running prefetch. It has no effect on data sources that are not
+   * backed by a producer.
+   */
+  public static void setPriority(DataSource<?> dataSource, Priority priority) {
+    if (dataSource instanceof AbstractProducerToDataSourceAdapter) {
+      ((AbstractProducerToDataSourceAdapter<?>) dataSource).setPriority(priority);
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.debug;
+
+import android.graphics.Bitmap;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.SharedReference;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imageutils.BitmapUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Leak tracker that is cheap enough to be enabled in production.
+ *
+ * <p>Only one out of every {@code sampleInterval} references created by a thread gets its
+ * allocation stacktrace captured, so the cost of enabling the tracker is the increment of a counter
+ * of the thread per reference plus one stacktrace per sample. Threads do not contend on a shared
+ * counter, they only add to it once per sample. Leaks are detected through the finalizer every
+ * {@link com.facebook.common.references.CloseableReference} already has, so the tracker does not
+ * register any additional finalizers or references with the garbage collector.
+ *
+ * <p>Leaks are aggregated by allocation site together with the number of bytes they kept alive.
+ * Leaks of references that were not sampled are aggregated under {@link #UNKNOWN_SITE}, so that
+ * the totals cover all leaks. At most {@code maxTrackedSites} distinct sites are kept, any further
+ * sites are folded into {@link #OTHER_SITES}.
+ */
+public class SamplingCloseableReferenceLeakTracker implements StacktraceSamplingLeakTracker {
+
+  public static final String UNKNOWN_SITE = "unknown";
+  public static final String OTHER_SITES = "other";
+
+  private static final int DEFAULT_MAX_TRACKED_SITES = 64;
+
+  private static final String REFERENCES_PACKAGE = "com.facebook.common.references.";
+  private static final String CLOSEABLE_REFERENCE_FACTORY =
+      "com.facebook.imagepipeline.core.CloseableReferenceFactory";
+
+  private final int mSampleInterval;
+  private final int mMaxTrackedSites;
+
+  private final ThreadLocal<Counter> mThreadReferenceCount =
+      new ThreadLocal<Counter>() {
+        @Override
+        protected Counter initialValue() {
+          return new Counter();
+        }
+      };
+  private final AtomicLong mReferenceCount = new AtomicLong();
+  private final AtomicLong mSampledReferenceCount = new AtomicLong();
+  private final AtomicLong mLeakCount = new AtomicLong();
+  private final AtomicLong mLeakedBytes = new AtomicLong();
+
+  @GuardedBy("mLeakSites")
+  private final Map<String, LeakSite> mLeakSites = new HashMap<>();
+
+  private volatile @Nullable Listener mListener;
+
+  /**
+   * @param sampleInterval a stacktrace is captured for one out of every {@code sampleInterval}
+   *     references
+   */
+  public SamplingCloseableReferenceLeakTracker(int sampleInterval) {
+    this(sampleInterval, DEFAULT_MAX_TRACKED_SITES);
+  }
+
+  /**
+   * @param sampleInterval a stacktrace is captured for one out of every {@code sampleInterval}
+   *     references
+   * @param maxTrackedSites maximum number of distinct allocation sites that are kept
+   */
+  public SamplingCloseableReferenceLeakTracker(int sampleInterval, int maxTrackedSites) {
+    Preconditions.checkArgument(sampleInterval > 0);
+    Preconditions.checkArgument(maxTrackedSites > 0);
+    mSampleInterval = sampleInterval;
+    mMaxTrackedSites = maxTrackedSites;
+  }
+
+  @Override
+  public void trackCloseableReferenceLeak(
+      SharedReference<Object> reference, @Nullable Throwable stacktrace) {
+    final int sizeInBytes = getSizeInBytes(reference.get());
+    mLeakCount.incrementAndGet();
+    mLeakedBytes.addAndGet(sizeInBytes);
+
+    String site = getAllocationSite(stacktrace);
+    synchronized (mLeakSites) {
+      LeakSite leakSite = mLeakSites.get(site);
+      if (leakSite == null) {
+        if (mLeakSites.size() >= mMaxTrackedSites) {
+          site = OTHER_SITES;
+          leakSite = mLeakSites.get(site);
+        }
+        if (leakSite == null) {
+          leakSite = new LeakSite(site);
+          mLeakSites.put(site, leakSite);
+        }
+      }
+      leakSite.mLeakCount++;
+      leakSite.mLeakedBytes += sizeInBytes;
+    }
+
+    final Listener listener = mListener;
+    if (listener != null) {
+      listener.onCloseableReferenceLeak(reference, stacktrace);
+    }
+  }
+
+  @Override
+  public void setListener(@Nullable Listener listener) {
+    mListener = listener;
+  }
+
+  @Override
+  public boolean isSet() {
+    return mListener != null;
+  }
+
+  @Override
+  public boolean shouldCaptureStacktrace() {
+    final Counter counter = mThreadReferenceCount.get();
+    if (++counter.mCount < mSampleInterval) {
+      return false;
+    }
+    counter.mCount = 0;
+    mReferenceCount.addAndGet(mSampleInterval);
+    mSampledReferenceCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return number of references that were considered for sampling. Each thread adds its references
+   *     once per sample, so up to {@code sampleInterval - 1} references per thread are not counted
+   *     yet
+   */
+  public long getReferenceCount() {
+    return mReferenceCount.get();
+  }
+
+  /** @return number of references for which a stacktrace was captured */
+  public long getSampledReferenceCount() {
+    return mSampledReferenceCount.get();
+  }
+
+  /** @return total number of leaked references, sampled or not */
+  public long getLeakCount() {
+    return mLeakCount.get();
+  }
+
+  /** @return total number of bytes held by leaked references, sampled or not */
+  public long getLeakedBytes() {
+    return mLeakedBytes.get();
+  }
+
+  /** @return a snapshot of the leaks aggregated by allocation site, largest first */
+  public List<LeakSite> getLeakSites() {
+    List<LeakSite> leakSites;
+    synchronized (mLeakSites) {
+      leakSites = new ArrayList<>(mLeakSites.size());
+      for (LeakSite leakSite : mLeakSites.values()) {
+        leakSites.add(leakSite.copy());
+      }
+    }
+    Collections.sort(
+        leakSites,
+        new Comparator<LeakSite>() {
+          @Override
+          public int compare(LeakSite lhs, LeakSite rhs) {
+            if (lhs.mLeakedBytes != rhs.mLeakedBytes) {
+              return lhs.mLeakedBytes > rhs.mLeakedBytes ? -1 : 1;
+            }
+            return lhs.mLeakCount > rhs.mLeakCount ? -1 : (lhs.mLeakCount < rhs.mLeakCount ? 1 : 0);
+          }
+        });
+    return leakSites;
+  }
+
+  /** Clears all the statistics gathered so far. */
+  public void reset() {
+    synchronized (mLeakSites) {
+      mLeakSites.clear();
+    }
+    mReferenceCount.set(0);
+    mSampledReferenceCount.set(0);
+    mLeakCount.set(0);
+    mLeakedBytes.set(0);
+  }
+
+  /**
+   * Returns the first stack frame that is outside of the reference machinery, or {@link
+   * #UNKNOWN_SITE} if the reference was not sampled.
+   */
+  @VisibleForTesting
+  static String getAllocationSite(@Nullable Throwable stacktrace) {
+    if (stacktrace == null) {
+      return UNKNOWN_SITE;
+    }
+    for (StackTraceElement element : stacktrace.getStackTrace()) {
+      final String className = element.getClassName();
+      if (!className.startsWith(REFERENCES_PACKAGE)
+          && !className.equals(CLOSEABLE_REFERENCE_FACTORY)) {
+        return element.toString();
+      }
+    }
+    return UNKNOWN_SITE;
+  }
+
+  @VisibleForTesting
+  static int getSizeInBytes(@Nullable Object value) {
+    if (value instanceof CloseableImage) {
+      return ((CloseableImage) value).getSizeInBytes();
+    } else if (value instanceof PooledByteBuffer) {
+      return ((PooledByteBuffer) value).size();
+    } else if (value instanceof Bitmap) {
+      return BitmapUtil.getSizeInBytes((Bitmap) value);
+    }
+    return 0;
+  }
+
+  /** Number of references a thread has created since its last sample. */
+  private static class Counter {
+    private int mCount;
+  }
+
+  /** Leaks attributed to a single allocation site. */
+  public static class LeakSite {
+    private final String mSite;
+    private long mLeakCount;
+    private long mLeakedBytes;
+
+    private LeakSite(String site) {
+      mSite = site;
+    }
+
+    private LeakSite copy() {
+      LeakSite copy = new LeakSite(mSite);
+      copy.mLeakCount = mLeakCount;
+      copy.mLeakedBytes = mLeakedBytes;
+      return copy;
+    }
+
+    public String getSite() {
+      return mSite;
+    }
+
+    public long getLeakCount() {
+      return mLeakCount;
+    }
+
+    public long getLeakedBytes() {
+      return mLeakedBytes;
+    }
+  }
+}
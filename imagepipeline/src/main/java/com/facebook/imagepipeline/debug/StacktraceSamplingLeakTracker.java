@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.debug;
+
+/**
+ * Leak tracker deciding, reference by reference, whether the allocation stacktrace is captured.
+ *
+ * <p>Trackers that only implement {@link CloseableReferenceLeakTracker} get a stacktrace for every
+ * reference while a listener is set.
+ */
+public interface StacktraceSamplingLeakTracker extends CloseableReferenceLeakTracker {
+
+  /**
+   * Indicate whether an allocation stacktrace should be captured for the reference that is about to
+   * be created. Capturing a stacktrace is expensive, so this should only return true sparingly.
+   */
+  boolean shouldCaptureStacktrace();
+}
@@ -19,6 +19,8 @@ import com.facebook.imagepipeline.image.CloseableStaticBitmap;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.image.ImmutableQualityInfo;
 import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.memory.BitmapPool;
+import com.facebook.imagepipeline.platform.DefaultDecoder;
 import com.facebook.imagepipeline.platform.PlatformDecoder;
 import com.facebook.imagepipeline.transformation.BitmapTransformation;
 import java.util.Map;
@@ -102,6 +104,21 @@ public class DefaultImageDecoder implements ImageDecoder {
       final int length,
       final QualityInfo qualityInfo,
       final ImageDecodeOptions options) {
+    return decode(encodedImage, length, qualityInfo, options, null);
+  }
+
+  /**
+   * Decodes image, like {@link #decode(EncodedImage, int, QualityInfo, ImageDecodeOptions)}, but
+   * decodes JPEGs into bitmaps of the given pool if the platform decoder supports it.
+   *
+   * @param bitmapPool optional pool to take the bitmap of a JPEG from and to release it to
+   */
+  public CloseableImage decode(
+      final EncodedImage encodedImage,
+      final int length,
+      final QualityInfo qualityInfo,
+      final ImageDecodeOptions options,
+      @Nullable final BitmapPool bitmapPool) {
     if (options.customImageDecoder != null) {
       return options.customImageDecoder.decode(encodedImage, length, qualityInfo, options);
     }
@@ -117,6 +134,9 @@ public class DefaultImageDecoder implements ImageDecoder {
         return decoder.decode(encodedImage, length, qualityInfo, options);
       }
     }
+    if (bitmapPool != null && imageFormat == DefaultImageFormats.JPEG) {
+      return decodeJpeg(encodedImage, length, qualityInfo, options, bitmapPool);
+    }
     return mDefaultDecoder.decode(encodedImage, length, qualityInfo, options);
   }
 
@@ -175,9 +195,35 @@ public class DefaultImageDecoder implements ImageDecoder {
       int length,
       QualityInfo qualityInfo,
       ImageDecodeOptions options) {
-    CloseableReference<Bitmap> bitmapReference =
-        mPlatformDecoder.decodeJPEGFromEncodedImageWithColorSpace(
-            encodedImage, options.bitmapConfig, null, length, options.colorSpace);
+    return decodeJpeg(encodedImage, length, qualityInfo, options, null);
+  }
+
+  /**
+   * Decodes a partial jpeg into a bitmap of the given pool, if the platform decoder supports it.
+   *
+   * @param encodedImage input image (encoded bytes plus meta data)
+   * @param length amount of currently available data in bytes
+   * @param qualityInfo quality info for the image
+   * @param bitmapPool optional pool to take the bitmap from and to release it to
+   * @return a CloseableStaticBitmap
+   */
+  public CloseableStaticBitmap decodeJpeg(
+      final EncodedImage encodedImage,
+      int length,
+      QualityInfo qualityInfo,
+      ImageDecodeOptions options,
+      @Nullable BitmapPool bitmapPool) {
+    final CloseableReference<Bitmap> bitmapReference;
+    if (bitmapPool != null && mPlatformDecoder instanceof DefaultDecoder) {
+      bitmapReference =
+          ((DefaultDecoder) mPlatformDecoder)
+              .decodeJPEGFromEncodedImageWithColorSpace(
+                  encodedImage, options.bitmapConfig, null, length, options.colorSpace, bitmapPool);
+    } else {
+      bitmapReference =
+          mPlatformDecoder.decodeJPEGFromEncodedImageWithColorSpace(
+              encodedImage, options.bitmapConfig, null, length, options.colorSpace);
+    }
     try {
       maybeApplyTransformation(options.bitmapTransformation, bitmapReference);
       return new CloseableStaticBitmap(
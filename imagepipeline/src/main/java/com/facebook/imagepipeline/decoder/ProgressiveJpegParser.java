@@ -12,6 +12,8 @@ import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Throwables;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteArrayBufferedInputStream;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
 import com.facebook.common.util.StreamUtil;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imageutils.JfifUtil;
@@ -96,7 +98,9 @@ public class ProgressiveJpegParser {
    * ignored and false will be returned immediately on all subsequent calls.
    *
    * <p>This object maintains state of the position of the last read byte. On repeated calls to this
-   * method, it will continue from where it left off.
+   * method, it will continue from where it left off. If the image is backed by a {@link
+   * PooledByteBuffer}, only the bytes after that position are read, in bulk, and segments are
+   * skipped without being read at all.
    *
    * @param encodedImage Next set of bytes received by the caller
    * @return true if a new full scan has been found
@@ -115,6 +119,17 @@ public class ProgressiveJpegParser {
       return false;
     }
 
+    final CloseableReference<PooledByteBuffer> byteBufferRef = encodedImage.getByteBufferRef();
+    if (byteBufferRef != null) {
+      final byte[] chunk = mByteArrayPool.get(BUFFER_SIZE);
+      try {
+        return doParseMoreData(byteBufferRef.get(), chunk);
+      } finally {
+        mByteArrayPool.release(chunk);
+        CloseableReference.closeSafely(byteBufferRef);
+      }
+    }
+
     final InputStream bufferedDataStream =
         new PooledByteArrayBufferedInputStream(
             encodedImage.getInputStream(), mByteArrayPool.get(BUFFER_SIZE), mByteArrayPool);
@@ -130,6 +145,47 @@ public class ProgressiveJpegParser {
     }
   }
 
+  /**
+   * Parses the bytes of the buffer after the last parsed one.
+   *
+   * <p>The bytes are copied to chunk one chunk at a time. Entropy coded data, which makes up most
+   * of a JPEG, is skipped over with a plain search for the next 0xFF byte.
+   *
+   * @param byteBuffer the buffer with all data received so far
+   * @param chunk array to copy bytes to
+   */
+  private boolean doParseMoreData(final PooledByteBuffer byteBuffer, final byte[] chunk) {
+    final int oldBestScanNumber = mBestScanNumber;
+    final int size = byteBuffer.size();
+    while (mParserState != NOT_A_JPEG && mBytesParsed < size) {
+      final int chunkLength =
+          byteBuffer.read(mBytesParsed, chunk, 0, Math.min(chunk.length, size - mBytesParsed));
+      int i = 0;
+      while (i < chunkLength && mParserState != NOT_A_JPEG) {
+        if (mParserState == READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA && !mEndMarkerRead) {
+          final int markerIndex = indexOfMarkerFirstByte(chunk, i, chunkLength);
+          mBytesParsed += markerIndex - i;
+          i = markerIndex;
+          if (i == chunkLength) {
+            break;
+          }
+        }
+        // skipping a segment may jump past the end of the chunk, the next chunk then starts at
+        // the end of the segment
+        i += 1 + parseNextByte(chunk[i] & 0xFF);
+      }
+    }
+    return mParserState != NOT_A_JPEG && mBestScanNumber != oldBestScanNumber;
+  }
+
+  /** Returns the index of the first 0xFF byte in buffer between from and to, or to if none. */
+  private static int indexOfMarkerFirstByte(final byte[] buffer, int from, final int to) {
+    while (from < to && buffer[from] != (byte) JfifUtil.MARKER_FIRST_BYTE) {
+      from++;
+    }
+    return from;
+  }
+
   /**
    * Parses more data from inputStream.
    *
@@ -140,89 +196,101 @@ public class ProgressiveJpegParser {
     try {
       int nextByte;
       while (mParserState != NOT_A_JPEG && (nextByte = inputStream.read()) != -1) {
-        mBytesParsed++;
-        if (mEndMarkerRead) {
-          // There should be no more data after the EOI marker, just in case there is lets
-          // bail out instead of trying to parse the unknown data
+        // We might want to skip more data than is available to read, in which case we will
+        // consume entire data in inputStream and exit this function before entering another
+        // iteration of the loop.
+        StreamUtil.skip(inputStream, parseNextByte(nextByte));
+      }
+    } catch (IOException ioe) {
+      // does not happen, input stream returned by pooled byte buffer does not throw IOExceptions
+      Throwables.propagate(ioe);
+    }
+    return mParserState != NOT_A_JPEG && mBestScanNumber != oldBestScanNumber;
+  }
+
+  /**
+   * Advances the state machine by one byte.
+   *
+   * @param nextByte the byte following the last parsed one
+   * @return the number of following bytes to skip, these are already counted as parsed
+   */
+  private int parseNextByte(final int nextByte) {
+    mBytesParsed++;
+    if (mEndMarkerRead) {
+      // There should be no more data after the EOI marker, just in case there is lets
+      // bail out instead of trying to parse the unknown data
+      mParserState = NOT_A_JPEG;
+      mEndMarkerRead = false;
+      return 0;
+    }
+    int bytesToSkip = 0;
+    switch (mParserState) {
+      case READ_FIRST_JPEG_BYTE:
+        if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
+          mParserState = READ_SECOND_JPEG_BYTE;
+        } else {
           mParserState = NOT_A_JPEG;
-          mEndMarkerRead = false;
-          return false;
         }
-        switch (mParserState) {
-          case READ_FIRST_JPEG_BYTE:
-            if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
-              mParserState = READ_SECOND_JPEG_BYTE;
-            } else {
-              mParserState = NOT_A_JPEG;
-            }
-            break;
+        break;
 
-          case READ_SECOND_JPEG_BYTE:
-            if (nextByte == JfifUtil.MARKER_SOI) {
-              mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            } else {
-              mParserState = NOT_A_JPEG;
-            }
-            break;
-
-          case READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA:
-            if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
-              mParserState = READ_MARKER_SECOND_BYTE;
-            }
-            break;
-
-          case READ_MARKER_SECOND_BYTE:
-            if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
-              mParserState = READ_MARKER_SECOND_BYTE;
-            } else if (nextByte == JfifUtil.MARKER_ESCAPE_BYTE) {
-              mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            } else if (nextByte == JfifUtil.MARKER_EOI) {
-              mEndMarkerRead = true;
-              newScanOrImageEndFound(mBytesParsed - 2);
-              // There should be no data after the EOI marker, but in case there is, let's process
-              // the next byte as a first marker byte.
-              mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            } else {
-              if (nextByte == JfifUtil.MARKER_SOS) {
-                newScanOrImageEndFound(mBytesParsed - 2);
-              }
-
-              if (doesMarkerStartSegment(nextByte)) {
-                mParserState = READ_SIZE_FIRST_BYTE;
-              } else {
-                mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-              }
-            }
-            break;
-
-          case READ_SIZE_FIRST_BYTE:
-            mParserState = READ_SIZE_SECOND_BYTE;
-            break;
+      case READ_SECOND_JPEG_BYTE:
+        if (nextByte == JfifUtil.MARKER_SOI) {
+          mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        } else {
+          mParserState = NOT_A_JPEG;
+        }
+        break;
 
-          case READ_SIZE_SECOND_BYTE:
-            final int size = (mLastByteRead << 8) + nextByte;
-            // We need to jump after the end of the segment - skip size-2 next bytes.
-            // We might want to skip more data than is available to read, in which case we will
-            // consume entire data in inputStream and exit this function before entering another
-            // iteration of the loop.
-            final int bytesToSkip = size - 2;
-            StreamUtil.skip(inputStream, bytesToSkip);
-            mBytesParsed += bytesToSkip;
+      case READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA:
+        if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
+          mParserState = READ_MARKER_SECOND_BYTE;
+        }
+        break;
+
+      case READ_MARKER_SECOND_BYTE:
+        if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
+          mParserState = READ_MARKER_SECOND_BYTE;
+        } else if (nextByte == JfifUtil.MARKER_ESCAPE_BYTE) {
+          mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        } else if (nextByte == JfifUtil.MARKER_EOI) {
+          mEndMarkerRead = true;
+          newScanOrImageEndFound(mBytesParsed - 2);
+          // There should be no data after the EOI marker, but in case there is, let's process
+          // the next byte as a first marker byte.
+          mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        } else {
+          if (nextByte == JfifUtil.MARKER_SOS) {
+            newScanOrImageEndFound(mBytesParsed - 2);
+          }
+
+          if (doesMarkerStartSegment(nextByte)) {
+            mParserState = READ_SIZE_FIRST_BYTE;
+          } else {
             mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            break;
-
-          case NOT_A_JPEG:
-          default:
-            Preconditions.checkState(false);
+          }
         }
-
-        mLastByteRead = nextByte;
-      }
-    } catch (IOException ioe) {
-      // does not happen, input stream returned by pooled byte buffer does not throw IOExceptions
-      Throwables.propagate(ioe);
+        break;
+
+      case READ_SIZE_FIRST_BYTE:
+        mParserState = READ_SIZE_SECOND_BYTE;
+        break;
+
+      case READ_SIZE_SECOND_BYTE:
+        final int size = (mLastByteRead << 8) + nextByte;
+        // We need to jump after the end of the segment - skip size-2 next bytes. Sizes below 2 are
+        // invalid, never jump backwards for them.
+        bytesToSkip = Math.max(0, size - 2);
+        mBytesParsed += bytesToSkip;
+        mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        break;
+
+      case NOT_A_JPEG:
+      default:
+        Preconditions.checkState(false);
     }
-    return mParserState != NOT_A_JPEG && mBestScanNumber != oldBestScanNumber;
+
+    mLastByteRead = nextByte;
+    return bytesToSkip;
   }
 
   /** Not every marker is followed by associated segment */
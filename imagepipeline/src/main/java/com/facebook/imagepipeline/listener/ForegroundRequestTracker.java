@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.listener;
+
+import androidx.annotation.NonNull;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Request listener keeping track of the foreground requests in flight, so that background work
+ * can be held back while images are needed on screen.
+ *
+ * <p>Foreground requests are the requests that are not prefetches and have a priority higher
+ * than {@link Priority#LOW}. A request is in flight from its start until it succeeds, fails or is
+ * cancelled, including while it waits in the executors or in the queues of the network fetcher.
+ *
+ * <p>It has to be added to the request listeners of the pipeline to see the requests.
+ */
+@ThreadSafe
+public class ForegroundRequestTracker extends BaseRequestListener2 {
+
+  /** Notified when the foreground becomes busy or idle. Called on the thread of the request. */
+  public interface Listener {
+
+    /** A foreground request started while none was in flight. */
+    void onForegroundBusy();
+
+    /** The last foreground request in flight finished. */
+    void onForegroundIdle();
+  }
+
+  /** Ids of the foreground requests in flight. */
+  @GuardedBy("this")
+  private final Set<String> mRequestIds = new HashSet<>();
+
+  private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
+
+  public void addListener(Listener listener) {
+    mListeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    mListeners.remove(listener);
+  }
+
+  /** @return whether no foreground request is in flight */
+  public synchronized boolean isIdle() {
+    return mRequestIds.isEmpty();
+  }
+
+  /** @return the number of foreground requests in flight */
+  public synchronized int getForegroundRequestCount() {
+    return mRequestIds.size();
+  }
+
+  @Override
+  public void onRequestStart(@NonNull ProducerContext producerContext) {
+    if (producerContext.isPrefetch() || producerContext.getPriority() == Priority.LOW) {
+      return;
+    }
+    final boolean becameBusy;
+    synchronized (this) {
+      becameBusy = mRequestIds.add(producerContext.getId()) && mRequestIds.size() == 1;
+    }
+    if (becameBusy) {
+      for (Listener listener : mListeners) {
+        listener.onForegroundBusy();
+      }
+    }
+  }
+
+  @Override
+  public void onRequestSuccess(@NonNull ProducerContext producerContext) {
+    onRequestFinished(producerContext);
+  }
+
+  @Override
+  public void onRequestFailure(@NonNull ProducerContext producerContext, Throwable throwable) {
+    onRequestFinished(producerContext);
+  }
+
+  @Override
+  public void onRequestCancellation(@NonNull ProducerContext producerContext) {
+    onRequestFinished(producerContext);
+  }
+
+  private void onRequestFinished(ProducerContext producerContext) {
+    final boolean becameIdle;
+    synchronized (this) {
+      becameIdle = mRequestIds.remove(producerContext.getId()) && mRequestIds.isEmpty();
+    }
+    if (becameIdle) {
+      for (Listener listener : mListeners) {
+        listener.onForegroundIdle();
+      }
+    }
+  }
+}
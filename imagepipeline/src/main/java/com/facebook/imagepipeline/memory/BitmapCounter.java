@@ -11,16 +11,20 @@ import android.graphics.Bitmap;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.references.ResourceReleaser;
 import com.facebook.imageutils.BitmapUtil;
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Counts bitmaps - keeps track of both, count and total size in bytes. */
+/**
+ * Counts bitmaps - keeps track of both, count and total size in bytes.
+ *
+ * <p>The count and the size are packed into a single atomic long (count in the upper 32 bits, size
+ * in the lower 32 bits) so that both can be checked against the limits and updated together
+ * without taking a lock.
+ */
 public class BitmapCounter {
 
-  @GuardedBy("this")
-  private int mCount;
+  private static final long SIZE_MASK = 0xFFFFFFFFL;
 
-  @GuardedBy("this")
-  private long mSize;
+  private final AtomicLong mCountAndSize = new AtomicLong();
 
   private final int mMaxCount;
   private final int mMaxSize;
@@ -51,14 +55,19 @@ public class BitmapCounter {
    * @param bitmap to include in the count
    * @return true if and only if bitmap is successfully included in the count
    */
-  public synchronized boolean increase(Bitmap bitmap) {
+  public boolean increase(Bitmap bitmap) {
     final int bitmapSize = BitmapUtil.getSizeInBytes(bitmap);
-    if (mCount >= mMaxCount || mSize + bitmapSize > mMaxSize) {
-      return false;
+    while (true) {
+      final long countAndSize = mCountAndSize.get();
+      final int count = getCount(countAndSize);
+      final long size = getSize(countAndSize);
+      if (count >= mMaxCount || size + bitmapSize > mMaxSize) {
+        return false;
+      }
+      if (mCountAndSize.compareAndSet(countAndSize, pack(count + 1, size + bitmapSize))) {
+        return true;
+      }
     }
-    mCount++;
-    mSize += bitmapSize;
-    return true;
   }
 
   /**
@@ -66,37 +75,55 @@ public class BitmapCounter {
    *
    * @param bitmap to be excluded from the count
    */
-  public synchronized void decrease(Bitmap bitmap) {
+  public void decrease(Bitmap bitmap) {
     final int bitmapSize = BitmapUtil.getSizeInBytes(bitmap);
-    Preconditions.checkArgument(mCount > 0, "No bitmaps registered.");
-    Preconditions.checkArgument(
-        bitmapSize <= mSize,
-        "Bitmap size bigger than the total registered size: %d, %d",
-        bitmapSize,
-        mSize);
-    mSize -= bitmapSize;
-    mCount--;
+    while (true) {
+      final long countAndSize = mCountAndSize.get();
+      final int count = getCount(countAndSize);
+      final long size = getSize(countAndSize);
+      Preconditions.checkArgument(count > 0, "No bitmaps registered.");
+      Preconditions.checkArgument(
+          bitmapSize <= size,
+          "Bitmap size bigger than the total registered size: %d, %d",
+          bitmapSize,
+          size);
+      if (mCountAndSize.compareAndSet(countAndSize, pack(count - 1, size - bitmapSize))) {
+        return;
+      }
+    }
   }
 
   /** @return number of counted bitmaps */
-  public synchronized int getCount() {
-    return mCount;
+  public int getCount() {
+    return getCount(mCountAndSize.get());
   }
 
   /** @return total size in bytes of counted bitmaps */
-  public synchronized long getSize() {
-    return mSize;
+  public long getSize() {
+    return getSize(mCountAndSize.get());
   }
 
-  public synchronized int getMaxCount() {
+  public int getMaxCount() {
     return mMaxCount;
   }
 
-  public synchronized int getMaxSize() {
+  public int getMaxSize() {
     return mMaxSize;
   }
 
   public ResourceReleaser<Bitmap> getReleaser() {
     return mUnpooledBitmapsReleaser;
   }
+
+  private static long pack(int count, long size) {
+    return ((long) count << 32) | (size & SIZE_MASK);
+  }
+
+  private static int getCount(long countAndSize) {
+    return (int) (countAndSize >>> 32);
+  }
+
+  private static long getSize(long countAndSize) {
+    return countAndSize & SIZE_MASK;
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import android.graphics.Bitmap;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.imageutils.BitmapUtil;
+import java.io.Closeable;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link BitmapPool} for the successive decodes of a single request, such as the scans of a
+ * progressive JPEG.
+ *
+ * <p>The first bitmap released to this pool is kept and handed out by the next {@link #get(int)}
+ * that it is big enough for. Since a bitmap is only released once all references to it are closed,
+ * a new scan is decoded into a second bitmap while the previous one is still shown, and the two
+ * are then swapped back and forth. All other bitmaps are obtained from and released to the
+ * delegate pool, as are all bitmaps released after {@link #close()}.
+ */
+@ThreadSafe
+public class DoubleBufferingBitmapPool implements BitmapPool, Closeable {
+
+  private final BitmapPool mDelegate;
+
+  @GuardedBy("this")
+  @Nullable
+  private Bitmap mSpareBitmap;
+
+  @GuardedBy("this")
+  private boolean mIsClosed;
+
+  public DoubleBufferingBitmapPool(BitmapPool delegate) {
+    mDelegate = Preconditions.checkNotNull(delegate);
+  }
+
+  @Override
+  public Bitmap get(int size) {
+    synchronized (this) {
+      if (mSpareBitmap != null && BitmapUtil.getSizeInBytes(mSpareBitmap) >= size) {
+        final Bitmap spareBitmap = mSpareBitmap;
+        mSpareBitmap = null;
+        return spareBitmap;
+      }
+    }
+    return mDelegate.get(size);
+  }
+
+  @Override
+  public void release(Bitmap value) {
+    synchronized (this) {
+      if (!mIsClosed && mSpareBitmap == null && value.isMutable() && !value.isRecycled()) {
+        mSpareBitmap = value;
+        return;
+      }
+    }
+    mDelegate.release(value);
+  }
+
+  /** Releases the kept bitmap, if any, to the delegate pool. */
+  @Override
+  public void trim(MemoryTrimType trimType) {
+    releaseSpareBitmap();
+  }
+
+  /**
+   * Stops keeping bitmaps. The kept bitmap, if any, and all bitmaps released from now on go to the
+   * delegate pool.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      mIsClosed = true;
+    }
+    releaseSpareBitmap();
+  }
+
+  private void releaseSpareBitmap() {
+    final Bitmap spareBitmap;
+    synchronized (this) {
+      spareBitmap = mSpareBitmap;
+      mSpareBitmap = null;
+    }
+    if (spareBitmap != null) {
+      mDelegate.release(spareBitmap);
+    }
+  }
+}
@@ -106,7 +106,8 @@ public abstract class DefaultDecoder implements PlatformDecoder {
     final BitmapFactory.Options options = getDecodeOptionsForStream(encodedImage, bitmapConfig);
     boolean retryOnFail = options.inPreferredConfig != Bitmap.Config.ARGB_8888;
     try {
-      return decodeFromStream(encodedImage.getInputStream(), options, regionToDecode, colorSpace);
+      return decodeFromStream(
+          encodedImage.getInputStream(), options, regionToDecode, colorSpace, mBitmapPool);
     } catch (RuntimeException re) {
       if (retryOnFail) {
         return decodeFromEncodedImageWithColorSpace(
@@ -137,6 +138,27 @@ public abstract class DefaultDecoder implements PlatformDecoder {
       @Nullable Rect regionToDecode,
       int length,
       @Nullable final ColorSpace colorSpace) {
+    return decodeJPEGFromEncodedImageWithColorSpace(
+        encodedImage, bitmapConfig, regionToDecode, length, colorSpace, mBitmapPool);
+  }
+
+  /**
+   * Creates a bitmap from encoded JPEG bytes, like {@link
+   * #decodeJPEGFromEncodedImageWithColorSpace(EncodedImage, Bitmap.Config, Rect, int,
+   * ColorSpace)}, but takes the bitmap to decode into from the given pool and releases it to that
+   * pool once the returned reference is closed.
+   *
+   * @param bitmapPool the pool to use instead of the pool of this decoder
+   * @return the bitmap
+   * @exception java.lang.OutOfMemoryError if the Bitmap cannot be allocated
+   */
+  public CloseableReference<Bitmap> decodeJPEGFromEncodedImageWithColorSpace(
+      EncodedImage encodedImage,
+      Bitmap.Config bitmapConfig,
+      @Nullable Rect regionToDecode,
+      int length,
+      @Nullable final ColorSpace colorSpace,
+      BitmapPool bitmapPool) {
     boolean isJpegComplete = encodedImage.isCompleteAt(length);
     final BitmapFactory.Options options = getDecodeOptionsForStream(encodedImage, bitmapConfig);
     InputStream jpegDataStream = encodedImage.getInputStream();
@@ -152,11 +174,11 @@ public abstract class DefaultDecoder implements PlatformDecoder {
     }
     boolean retryOnFail = options.inPreferredConfig != Bitmap.Config.ARGB_8888;
     try {
-      return decodeFromStream(jpegDataStream, options, regionToDecode, colorSpace);
+      return decodeFromStream(jpegDataStream, options, regionToDecode, colorSpace, bitmapPool);
     } catch (RuntimeException re) {
       if (retryOnFail) {
         return decodeJPEGFromEncodedImageWithColorSpace(
-            encodedImage, Bitmap.Config.ARGB_8888, regionToDecode, length, colorSpace);
+            encodedImage, Bitmap.Config.ARGB_8888, regionToDecode, length, colorSpace, bitmapPool);
       }
       throw re;
     }
@@ -172,7 +194,7 @@ public abstract class DefaultDecoder implements PlatformDecoder {
    */
   protected CloseableReference<Bitmap> decodeStaticImageFromStream(
       InputStream inputStream, BitmapFactory.Options options, @Nullable Rect regionToDecode) {
-    return decodeFromStream(inputStream, options, regionToDecode, null);
+    return decodeFromStream(inputStream, options, regionToDecode, null, mBitmapPool);
   }
 
   /**
@@ -184,13 +206,15 @@ public abstract class DefaultDecoder implements PlatformDecoder {
    * @param colorSpace the target color space of the decoded bitmap, must be one of the named color
    *     space in {@link android.graphics.ColorSpace.Named}. If null, then SRGB color space is
    *     assumed if the SDK version >= 26.
+   * @param bitmapPool the pool to take the bitmap to decode into from
    * @return the bitmap
    */
   private CloseableReference<Bitmap> decodeFromStream(
       InputStream inputStream,
       BitmapFactory.Options options,
       @Nullable Rect regionToDecode,
-      @Nullable final ColorSpace colorSpace) {
+      @Nullable final ColorSpace colorSpace,
+      BitmapPool bitmapPool) {
     Preconditions.checkNotNull(inputStream);
     int targetWidth = options.outWidth;
     int targetHeight = options.outHeight;
@@ -214,7 +238,7 @@ public abstract class DefaultDecoder implements PlatformDecoder {
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
       }
       final int sizeInBytes = getBitmapSize(targetWidth, targetHeight, options);
-      bitmapToReuse = mBitmapPool.get(sizeInBytes);
+      bitmapToReuse = bitmapPool.get(sizeInBytes);
       if (bitmapToReuse == null) {
         throw new NullPointerException("BitmapPool.get returned null");
       }
@@ -257,7 +281,7 @@ public abstract class DefaultDecoder implements PlatformDecoder {
       }
     } catch (IllegalArgumentException e) {
       if (bitmapToReuse != null) {
-        mBitmapPool.release(bitmapToReuse);
+        bitmapPool.release(bitmapToReuse);
       }
       // This is thrown if the Bitmap options are invalid, so let's just try to decode the bitmap
       // as-is, which might be inefficient - but it works.
@@ -277,7 +301,7 @@ public abstract class DefaultDecoder implements PlatformDecoder {
       }
     } catch (RuntimeException re) {
       if (bitmapToReuse != null) {
-        mBitmapPool.release(bitmapToReuse);
+        bitmapPool.release(bitmapToReuse);
       }
       throw re;
     } finally {
@@ -287,12 +311,12 @@ public abstract class DefaultDecoder implements PlatformDecoder {
     // If bitmap with Bitmap.Config.HARDWARE was used, `bitmapToReuse` will be null and it's
     // expected
     if (bitmapToReuse != null && bitmapToReuse != decodedBitmap) {
-      mBitmapPool.release(bitmapToReuse);
+      bitmapPool.release(bitmapToReuse);
       decodedBitmap.recycle();
       throw new IllegalStateException();
     }
 
-    return CloseableReference.of(decodedBitmap, mBitmapPool);
+    return CloseableReference.of(decodedBitmap, bitmapPool);
   }
 
   /**
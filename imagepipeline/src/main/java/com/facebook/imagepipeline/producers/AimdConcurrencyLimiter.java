@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.common.internal.VisibleForTesting;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link ConcurrencyLimiter} that adapts the limit with additive increase and multiplicative
+ * decrease (AIMD), based on request latency.
+ *
+ * <p>The lowest latency seen recently is taken as the latency of an uncongested request. A request
+ * finishing within {@code latencyTolerance} times that latency while the limit is in use increases
+ * the limit by about one per limit requests. A failed request, or one taking longer, decreases the
+ * limit by {@code backoffRatio}. The baseline latency is re-learned every {@link
+ * #BASELINE_RESET_INTERVAL} requests so that the limiter follows changes of the network.
+ *
+ * <p>The limit is decreased at most once per round trip: requests started before the last decrease
+ * ran under the previous limit, so their failures or slow responses are not counted again.
+ */
+@ThreadSafe
+public class AimdConcurrencyLimiter implements ConcurrencyLimiter {
+
+  public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+  public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+  @VisibleForTesting static final int BASELINE_RESET_INTERVAL = 200;
+
+  /** Latency differences below this are treated as noise rather than congestion. */
+  @VisibleForTesting static final long LATENCY_SLACK_MS = 20;
+
+  private final int mMinLimit;
+  private final int mMaxLimit;
+  private final double mBackoffRatio;
+  private final double mLatencyTolerance;
+
+  @GuardedBy("this")
+  private double mLimit;
+
+  @GuardedBy("this")
+  private long mBaselineLatencyMs = -1;
+
+  @GuardedBy("this")
+  private int mSamplesSinceBaselineReset;
+
+  /** Response time of the request that caused the last decrease. */
+  @GuardedBy("this")
+  private long mLastDecreaseTimeMs = Long.MIN_VALUE;
+
+  public AimdConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this(initialLimit, minLimit, maxLimit, DEFAULT_BACKOFF_RATIO, DEFAULT_LATENCY_TOLERANCE);
+  }
+
+  public AimdConcurrencyLimiter(
+      int initialLimit,
+      int minLimit,
+      int maxLimit,
+      double backoffRatio,
+      double latencyTolerance) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("limits should satisfy 1 <= minLimit <= maxLimit");
+    }
+    if (backoffRatio <= 0 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("backoffRatio should be in (0, 1)");
+    }
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mBackoffRatio = backoffRatio;
+    mLatencyTolerance = latencyTolerance;
+    mLimit = Math.min(maxLimit, Math.max(minLimit, initialLimit));
+  }
+
+  @Override
+  public synchronized int getLimit() {
+    return (int) mLimit;
+  }
+
+  @Override
+  public synchronized void onRequestFinished(
+      long startTimeMs, long responseTimeMs, int inFlight, boolean succeeded) {
+    if (!succeeded) {
+      decreaseLimit(startTimeMs, responseTimeMs);
+      return;
+    }
+    final long latencyMs = responseTimeMs - startTimeMs;
+    if (++mSamplesSinceBaselineReset >= BASELINE_RESET_INTERVAL) {
+      mSamplesSinceBaselineReset = 0;
+      mBaselineLatencyMs = -1;
+    }
+    if (mBaselineLatencyMs < 0 || latencyMs < mBaselineLatencyMs) {
+      mBaselineLatencyMs = latencyMs;
+    }
+    if (latencyMs > mBaselineLatencyMs * mLatencyTolerance + LATENCY_SLACK_MS) {
+      decreaseLimit(startTimeMs, responseTimeMs);
+    } else if (inFlight * 2 >= mLimit) {
+      // only grow when the current limit is actually in use
+      mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+    }
+  }
+
+  /** Returns the latency currently taken as the one of an uncongested request, or -1. */
+  public synchronized long getBaselineLatencyMs() {
+    return mBaselineLatencyMs;
+  }
+
+  @GuardedBy("this")
+  private void decreaseLimit(long startTimeMs, long responseTimeMs) {
+    if (startTimeMs <= mLastDecreaseTimeMs) {
+      return;
+    }
+    mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+    mLastDecreaseTimeMs = responseTimeMs;
+  }
+}
@@ -7,6 +7,7 @@
 
 package com.facebook.imagepipeline.producers;
 
+import android.os.SystemClock;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.image.EncodedImageOrigin;
@@ -46,6 +47,9 @@ public class BaseProducerContext implements ProducerContext {
   @GuardedBy("this")
   private boolean mIsCancelled;
 
+  @GuardedBy("this")
+  private long mDeadlineMs;
+
   @GuardedBy("this")
   private final List<ProducerContextCallbacks> mCallbacks;
 
@@ -101,6 +105,9 @@ public class BaseProducerContext implements ProducerContext {
     mIsCancelled = false;
     mCallbacks = new ArrayList<>();
 
+    final long timeToLiveMs = imageRequest != null ? imageRequest.getTimeToLiveMs() : 0;
+    mDeadlineMs = timeToLiveMs > 0 ? SystemClock.uptimeMillis() + timeToLiveMs : NO_DEADLINE;
+
     mImagePipelineConfig = imagePipelineConfig;
   }
 
@@ -153,6 +160,25 @@ public class BaseProducerContext implements ProducerContext {
     return mIsCancelled;
   }
 
+  @Override
+  public synchronized long getDeadlineMs() {
+    return mDeadlineMs;
+  }
+
+  @Override
+  public synchronized boolean isDeadlineExceeded() {
+    return mDeadlineMs != NO_DEADLINE && SystemClock.uptimeMillis() >= mDeadlineMs;
+  }
+
+  /**
+   * Changes the deadline, e.g. when the request is shared by several consumers with different
+   * deadlines. No callbacks are called, as the deadline is only checked by producers when they are
+   * about to start work.
+   */
+  public synchronized void setDeadlineMs(long deadlineMs) {
+    mDeadlineMs = deadlineMs;
+  }
+
   @Override
   public void addCallbacks(ProducerContextCallbacks callbacks) {
     boolean cancelImmediately = false;
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+/**
+ * Decides how many requests may be in flight at the same time.
+ *
+ * <p>Used by {@link ThrottlingProducer} and {@link PriorityNetworkFetcher} in place of a fixed
+ * limit. Implementations may adjust the limit based on the outcome of finished requests and must be
+ * thread-safe.
+ */
+public interface ConcurrencyLimiter {
+
+  /** Returns the current maximum number of requests in flight, at least 1. */
+  int getLimit();
+
+  /**
+   * Called when a request that was counted against the limit finishes. Cancelled requests are not
+   * reported, nor are requests that failed for reasons unrelated to the load, such as an image that
+   * cannot be decoded.
+   *
+   * <p>The latency of a request is measured up to the first bytes of its response rather than to
+   * its end, so that it does not depend on the size of the response. Both times are in
+   * milliseconds and come from the same monotonic clock.
+   *
+   * @param startTimeMs time when the request was started
+   * @param responseTimeMs time when the first bytes of the response were received, or when the
+   *     request failed
+   * @param inFlight number of requests in flight when the request finished, including itself
+   * @param succeeded whether the request succeeded
+   */
+  void onRequestFinished(long startTimeMs, long responseTimeMs, int inFlight, boolean succeeded);
+}
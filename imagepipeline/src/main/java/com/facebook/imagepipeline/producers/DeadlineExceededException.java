@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+/**
+ * Thrown when a request is dropped because its deadline passed before a producer started expensive
+ * work for it.
+ *
+ * <p>The producer that drops the request also reports the {@link #PRODUCER_EVENT} event, so that
+ * listeners can count deadline misses per producer.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+  public static final String PRODUCER_EVENT = "deadline_exceeded";
+
+  public DeadlineExceededException(String producerName) {
+    super("Deadline exceeded before " + producerName);
+  }
+
+  /**
+   * Reports the deadline miss to the listener of the request.
+   *
+   * @return the exception to fail the request with
+   */
+  public static DeadlineExceededException report(ProducerContext context, String producerName) {
+    context.getProducerListener().onProducerEvent(context, producerName, PRODUCER_EVENT);
+    return new DeadlineExceededException(producerName);
+  }
+}
@@ -11,6 +11,7 @@ import static com.facebook.imagepipeline.producers.JobScheduler.JobRunnable;
 
 import android.graphics.Bitmap;
 import android.os.Build;
+import android.os.SystemClock;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.logging.FLog;
@@ -21,9 +22,11 @@ import com.facebook.common.util.UriUtil;
 import com.facebook.imageformat.DefaultImageFormats;
 import com.facebook.imageformat.ImageFormat;
 import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.core.CloseableReferenceFactory;
 import com.facebook.imagepipeline.decoder.DecodeException;
+import com.facebook.imagepipeline.decoder.DefaultImageDecoder;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegParser;
@@ -33,6 +36,7 @@ import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.image.ImmutableQualityInfo;
 import com.facebook.imagepipeline.image.OriginalEncodedImageInfo;
 import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.memory.DoubleBufferingBitmapPool;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import com.facebook.imagepipeline.transcoder.DownsampleUtil;
@@ -142,6 +146,10 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
     private final ProducerContext mProducerContext;
     private final ProducerListener2 mProducerListener;
     private final ImageDecodeOptions mImageDecodeOptions;
+    protected final boolean mIsAdaptiveProgressiveDecodingEnabled;
+
+    /** Pool that successive decodes of this request reuse bitmaps of, if enabled. */
+    private final @Nullable DoubleBufferingBitmapPool mBitmapPool;
 
     @GuardedBy("this")
     private boolean mIsFinished;
@@ -157,6 +165,20 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       mProducerContext = producerContext;
       mProducerListener = producerContext.getProducerListener();
       mImageDecodeOptions = producerContext.getImageRequest().getImageDecodeOptions();
+      mIsAdaptiveProgressiveDecodingEnabled =
+          producerContext
+              .getImagePipelineConfig()
+              .getExperiments()
+              .isAdaptiveProgressiveDecodingEnabled();
+      mBitmapPool =
+          mImageDecoder instanceof DefaultImageDecoder
+                  && producerContext
+                      .getImagePipelineConfig()
+                      .getExperiments()
+                      .isProgressiveBitmapReuseEnabled()
+              ? new DoubleBufferingBitmapPool(
+                  producerContext.getImagePipelineConfig().getPoolFactory().getBitmapPool())
+              : null;
       mIsFinished = false;
       JobRunnable job =
           new JobRunnable() {
@@ -187,7 +209,13 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
               }
             }
           };
-      mJobScheduler = new JobScheduler(mExecutor, job, mImageDecodeOptions.minDecodeIntervalMs);
+      mJobScheduler =
+          new JobScheduler(
+              mExecutor,
+              job,
+              mImageDecodeOptions.minDecodeIntervalMs,
+              producerContext,
+              mIsAdaptiveProgressiveDecodingEnabled);
       mProducerContext.addCallbacks(
           new BaseProducerContextCallbacks() {
             @Override
@@ -268,6 +296,16 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       return mJobScheduler.updateJob(ref, status);
     }
 
+    /** Returns how long decodes of this request took on average, or 0 if none finished yet. */
+    protected long getAverageDecodeDurationMs() {
+      return mJobScheduler.getAverageJobDurationMs();
+    }
+
+    /** Returns whether the image is likely on screen, based on the priority of the request. */
+    protected boolean isLikelyVisible() {
+      return mProducerContext.getPriority() != Priority.LOW;
+    }
+
     /** Performs the decode synchronously. */
     private void doDecode(EncodedImage encodedImage, @Status int status) {
       // do not run for partial results of anything except JPEG
@@ -278,6 +316,14 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       if (isFinished() || !EncodedImage.isValid(encodedImage)) {
         return;
       }
+      if (mProducerContext.isDeadlineExceeded()) {
+        mProducerListener.onProducerStart(mProducerContext, PRODUCER_NAME);
+        final DeadlineExceededException e =
+            DeadlineExceededException.report(mProducerContext, PRODUCER_NAME);
+        mProducerListener.onProducerFinishWithFailure(mProducerContext, PRODUCER_NAME, e, null);
+        handleError(e);
+        return;
+      }
       final String imageFormatStr;
       ImageFormat imageFormat = encodedImage.getImageFormat();
       if (imageFormat != null) {
@@ -313,7 +359,7 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
         CloseableImage image = null;
         try {
           try {
-            image = mImageDecoder.decode(encodedImage, length, quality, mImageDecodeOptions);
+            image = internalDecode(encodedImage, length, quality);
           } catch (DecodeException e) {
             EncodedImage failedEncodedImage = e.getEncodedImage();
             FLog.w(
@@ -379,6 +425,15 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       }
     }
 
+    private CloseableImage internalDecode(
+        EncodedImage encodedImage, int length, QualityInfo quality) {
+      if (mBitmapPool != null) {
+        return ((DefaultImageDecoder) mImageDecoder)
+            .decode(encodedImage, length, quality, mImageDecodeOptions, mBitmapPool);
+      }
+      return mImageDecoder.decode(encodedImage, length, quality, mImageDecodeOptions);
+    }
+
     private @Nullable Map<String, String> getExtraMap(
         @Nullable CloseableImage image,
         long queueTime,
@@ -433,7 +488,8 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
     /**
      * Finishes if not already finished and <code>shouldFinish</code> is specified.
      *
-     * <p>If just finished, the intermediate image gets released.
+     * <p>If just finished, the intermediate image gets released. Bitmaps released from then on are
+     * no longer kept for reuse by this request.
      */
     private void maybeFinish(boolean shouldFinish) {
       synchronized (ProgressiveDecoder.this) {
@@ -444,6 +500,9 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
         mIsFinished = true;
       }
       mJobScheduler.clearJob();
+      if (mBitmapPool != null) {
+        mBitmapPool.close();
+      }
     }
 
     /** Notifies consumer of new result and finishes if the result is final. */
@@ -510,6 +569,11 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
     private final ProgressiveJpegConfig mProgressiveJpegConfig;
     private int mLastScheduledScanNumber;
 
+    // download rate estimation, used to skip scans in adaptive mode
+    private volatile float mProgress;
+    private long mFirstScanTimeMs;
+    private int mFirstScanSize;
+
     public NetworkImagesProgressiveDecoder(
         final Consumer<CloseableReference<CloseableImage>> consumer,
         final ProducerContext producerContext,
@@ -544,11 +608,53 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
           // are still more scans to be read (the end marker is not reached)
           return false;
         }
+        if (mIsAdaptiveProgressiveDecodingEnabled && !isScanWorthDecoding(encodedImage)) {
+          return false;
+        }
         mLastScheduledScanNumber = scanNum;
       }
       return ret;
     }
 
+    @Override
+    protected void onProgressUpdateImpl(float progress) {
+      mProgress = progress;
+      super.onProgressUpdateImpl(progress);
+    }
+
+    /**
+     * Decides whether an intermediate scan would be shown before it is superseded.
+     *
+     * <p>Scans of images that are likely off-screen are skipped, as are scans for which the rest of
+     * the image is expected to be downloaded before a decode would finish.
+     */
+    @GuardedBy("this")
+    private boolean isScanWorthDecoding(EncodedImage encodedImage) {
+      if (!isLikelyVisible()) {
+        return false;
+      }
+      final long nowMs = SystemClock.uptimeMillis();
+      final int size = encodedImage.getSize();
+      if (mFirstScanTimeMs == 0) {
+        mFirstScanTimeMs = nowMs;
+        mFirstScanSize = size;
+        return true;
+      }
+      final long elapsedMs = nowMs - mFirstScanTimeMs;
+      final float progress = mProgress;
+      final long decodeDurationMs = getAverageDecodeDurationMs();
+      if (elapsedMs <= 0
+          || size <= mFirstScanSize
+          || progress <= 0
+          || progress >= 1
+          || decodeDurationMs == 0) {
+        return true;
+      }
+      final float bytesPerMs = (float) (size - mFirstScanSize) / elapsedMs;
+      final float remainingBytes = size * (1 - progress) / progress;
+      return remainingBytes / bytesPerMs >= decodeDurationMs;
+    }
+
     @Override
     protected int getIntermediateImageEndOffset(EncodedImage encodedImage) {
       return mProgressiveJpegParser.getBestScanEndOffset();
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Response stream that writes its bytes straight to an output stream, from the buffers the network
+ * client already holds them in.
+ *
+ * <p>A {@link NetworkFetcher} may pass an {@link java.io.InputStream} implementing this interface
+ * to {@link NetworkFetcher.Callback#onResponse}, in which case {@link NetworkFetchProducer} reads
+ * the response without copying it through an array of its own first.
+ */
+public interface DirectReadable {
+
+  /**
+   * Writes the next bytes of the response to the given stream, blocking until some are available.
+   *
+   * @param maxLength maximum number of bytes to write
+   * @return number of bytes written, or -1 if the end of the response has been reached
+   */
+  int readTo(OutputStream os, int maxLength) throws IOException;
+}
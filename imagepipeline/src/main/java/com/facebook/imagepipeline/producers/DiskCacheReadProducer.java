@@ -12,15 +12,23 @@ import bolts.Task;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.time.MonotonicClock;
+import com.facebook.common.time.RealtimeSinceBootClock;
+import com.facebook.common.util.UriUtil;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.request.ImageRequest.CacheChoice;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Disk cache read producer.
@@ -31,6 +39,17 @@ import javax.annotation.Nullable;
  *
  * <p>This implementation delegates disk cache requests to BufferedDiskCache.
  *
+ * <p>If disk cache revalidation is enabled and the cached image has validators but is stale, the
+ * request is passed to the next producer with the validators so that the network fetcher can make
+ * a conditional request. The cached image is used if the image is not modified, or if the request
+ * fails.
+ *
+ * <p>If disk cache read hedging is enabled, a network fetch of the image is started in parallel to
+ * a disk cache read that takes longer than 95% of the recent ones. The first of the two to provide
+ * the image wins, and the other one is cancelled. Listeners are notified of the races, and of who
+ * wins them, with the {@link #EVENT_HEDGED_NETWORK_FETCH}, {@link #EVENT_HEDGE_WON_BY_DISK} and
+ * {@link #EVENT_HEDGE_WON_BY_NETWORK} events.
+ *
  * <p>This producer is currently used only if the media variations experiment is turned on, to
  * enable another producer to sit between cache read and write.
  */
@@ -39,21 +58,71 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
   public static final String PRODUCER_NAME = "DiskCacheProducer";
   public static final String EXTRA_CACHED_VALUE_FOUND = ProducerConstants.EXTRA_CACHED_VALUE_FOUND;
   public static final String ENCODED_IMAGE_SIZE = ProducerConstants.ENCODED_IMAGE_SIZE;
+  public static final String EVENT_HEDGED_NETWORK_FETCH = "hedged_network_fetch";
+  public static final String EVENT_HEDGE_WON_BY_DISK = "hedge_won_by_disk";
+  public static final String EVENT_HEDGE_WON_BY_NETWORK = "hedge_won_by_network";
+
+  /** Number of the most recent disk cache reads whose latency the hedging delay is based on. */
+  @VisibleForTesting static final int HEDGING_LATENCY_WINDOW = 100;
+
+  /** Number of disk cache reads to measure before hedging any. */
+  @VisibleForTesting static final int HEDGING_MIN_SAMPLES = 20;
+
+  /** Minimum hedging delay, as the network is not expected to be faster than that. */
+  @VisibleForTesting static final long HEDGING_MIN_DELAY_MS = 50;
+
+  private static final double HEDGING_LATENCY_PERCENTILE = 0.95;
 
   private final BufferedDiskCache mDefaultBufferedDiskCache;
   private final BufferedDiskCache mSmallImageBufferedDiskCache;
   private final CacheKeyFactory mCacheKeyFactory;
   private final Producer<EncodedImage> mInputProducer;
+  @VisibleForTesting
+  final LatencyTracker mReadLatencyTracker = new LatencyTracker(HEDGING_LATENCY_WINDOW);
+  private final Executor mHedgedFetchExecutor;
+  private final @Nullable ScheduledExecutorService mHedgingExecutor;
+  private final MonotonicClock mClock;
 
+  /**
+   * @param hedgedFetchExecutor executor on which hedged network fetches are started, once their
+   *     delay has elapsed
+   */
   public DiskCacheReadProducer(
       BufferedDiskCache defaultBufferedDiskCache,
       BufferedDiskCache smallImageBufferedDiskCache,
       CacheKeyFactory cacheKeyFactory,
-      Producer<EncodedImage> inputProducer) {
+      Producer<EncodedImage> inputProducer,
+      Executor hedgedFetchExecutor) {
+    this(
+        defaultBufferedDiskCache,
+        smallImageBufferedDiskCache,
+        cacheKeyFactory,
+        inputProducer,
+        hedgedFetchExecutor,
+        null,
+        RealtimeSinceBootClock.get());
+  }
+
+  /**
+   * @param hedgingExecutor executor on which the delay of hedged network fetches elapses, or null
+   *     to use the one of {@link JobScheduler}
+   */
+  @VisibleForTesting
+  DiskCacheReadProducer(
+      BufferedDiskCache defaultBufferedDiskCache,
+      BufferedDiskCache smallImageBufferedDiskCache,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<EncodedImage> inputProducer,
+      Executor hedgedFetchExecutor,
+      @Nullable ScheduledExecutorService hedgingExecutor,
+      MonotonicClock clock) {
     mDefaultBufferedDiskCache = defaultBufferedDiskCache;
     mSmallImageBufferedDiskCache = smallImageBufferedDiskCache;
     mCacheKeyFactory = cacheKeyFactory;
     mInputProducer = inputProducer;
+    mHedgedFetchExecutor = hedgedFetchExecutor;
+    mHedgingExecutor = hedgingExecutor;
+    mClock = clock;
   }
 
   public void produceResults(
@@ -72,42 +141,77 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
     final BufferedDiskCache preferredCache =
         isSmallRequest ? mSmallImageBufferedDiskCache : mDefaultBufferedDiskCache;
     final AtomicBoolean isCancelled = new AtomicBoolean(false);
+    final long readStartMs = mClock.now();
     final Task<EncodedImage> diskLookupTask = preferredCache.get(cacheKey, isCancelled);
+    final HedgedRead hedgedRead =
+        maybeHedgeRead(consumer, producerContext, isCancelled, readStartMs);
     final Continuation<EncodedImage, Void> continuation =
-        onFinishDiskReads(consumer, producerContext);
+        onFinishDiskReads(
+            consumer, producerContext, preferredCache, cacheKey, readStartMs, hedgedRead);
     diskLookupTask.continueWith(continuation);
     subscribeTaskForRequestCancellation(isCancelled, producerContext);
   }
 
   private Continuation<EncodedImage, Void> onFinishDiskReads(
-      final Consumer<EncodedImage> consumer, final ProducerContext producerContext) {
+      final Consumer<EncodedImage> consumer,
+      final ProducerContext producerContext,
+      final BufferedDiskCache preferredCache,
+      final CacheKey cacheKey,
+      final long readStartMs,
+      final @Nullable HedgedRead hedgedRead) {
     final ProducerListener2 listener = producerContext.getProducerListener();
     return new Continuation<EncodedImage, Void>() {
       @Override
       public Void then(Task<EncodedImage> task) throws Exception {
+        if (hedgedRead != null && hedgedRead.onDiskReadFinished(task)) {
+          // the latency of the read was recorded when the network fetch won
+          return null;
+        }
+        if (!isTaskCancelled(task) && isHedgingEnabled(producerContext)) {
+          mReadLatencyTracker.record(mClock.now() - readStartMs);
+        }
         if (isTaskCancelled(task)) {
           listener.onProducerFinishWithCancellation(producerContext, PRODUCER_NAME, null);
           consumer.onCancellation();
         } else if (task.isFaulted()) {
           listener.onProducerFinishWithFailure(
               producerContext, PRODUCER_NAME, task.getError(), null);
-          mInputProducer.produceResults(consumer, producerContext);
+          startInputProducer(consumer, producerContext, hedgedRead);
         } else {
-          EncodedImage cachedReference = task.getResult();
+          final EncodedImage cachedReference = task.getResult();
           if (cachedReference != null) {
             listener.onProducerFinishWithSuccess(
                 producerContext,
                 PRODUCER_NAME,
                 getExtraMap(listener, producerContext, true, cachedReference.getSize()));
-            listener.onUltimateProducerReached(producerContext, PRODUCER_NAME, true);
-            producerContext.putOriginExtra("disk");
-            consumer.onProgressUpdate(1);
-            consumer.onNewResult(cachedReference, Consumer.IS_LAST);
-            cachedReference.close();
+            if (!isRevalidationEnabled(producerContext)) {
+              onCachedImageRead(
+                  consumer, producerContext, preferredCache, cacheKey, cachedReference, null);
+              return null;
+            }
+            // the validators are read on the disk cache's read executor, even after a staging hit
+            preferredCache
+                .getValidators(cacheKey)
+                .continueWith(
+                    new Continuation<CacheValidators, Void>() {
+                      @Override
+                      public Void then(Task<CacheValidators> validatorsTask) {
+                        onCachedImageRead(
+                            consumer,
+                            producerContext,
+                            preferredCache,
+                            cacheKey,
+                            cachedReference,
+                            validatorsTask.isFaulted() || validatorsTask.isCancelled()
+                                ? null
+                                : validatorsTask.getResult());
+                        return null;
+                      }
+                    });
           } else {
             listener.onProducerFinishWithSuccess(
                 producerContext, PRODUCER_NAME, getExtraMap(listener, producerContext, false, 0));
-            mInputProducer.produceResults(consumer, producerContext);
+            startInputProducer(consumer, producerContext, hedgedRead);
           }
         }
         return null;
@@ -115,11 +219,102 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
     };
   }
 
+  /**
+   * Passes the cached image to the consumer, unless it is stale: it is then revalidated, and only
+   * passed on if the network does not provide a newer one.
+   */
+  private void onCachedImageRead(
+      Consumer<EncodedImage> consumer,
+      ProducerContext producerContext,
+      BufferedDiskCache preferredCache,
+      CacheKey cacheKey,
+      EncodedImage cachedReference,
+      @Nullable CacheValidators validators) {
+    if (validators != null && validators.isStale(System.currentTimeMillis())) {
+      producerContext.setExtra(ProducerContext.ExtraKeys.CACHED_VALIDATORS, validators);
+      mInputProducer.produceResults(
+          new RevalidationConsumer(
+              consumer, producerContext, preferredCache, cacheKey, cachedReference, validators),
+          producerContext);
+      return;
+    }
+    producerContext
+        .getProducerListener()
+        .onUltimateProducerReached(producerContext, PRODUCER_NAME, true);
+    producerContext.putOriginExtra("disk");
+    consumer.onProgressUpdate(1);
+    consumer.onNewResult(cachedReference, Consumer.IS_LAST);
+    cachedReference.close();
+  }
+
+  private void startInputProducer(
+      Consumer<EncodedImage> consumer,
+      ProducerContext producerContext,
+      @Nullable HedgedRead hedgedRead) {
+    if (hedgedRead == null || !hedgedRead.continueWithNetworkFetch()) {
+      mInputProducer.produceResults(consumer, producerContext);
+    }
+  }
+
+  /**
+   * Schedules a network fetch to race the disk cache read, if it is to be hedged.
+   *
+   * <p>The scheduled executor only hands the fetch off to {@link #mHedgedFetchExecutor}, as it is
+   * shared with {@link JobScheduler} and must not run the producers that start the fetch.
+   */
+  private @Nullable HedgedRead maybeHedgeRead(
+      Consumer<EncodedImage> consumer,
+      ProducerContext producerContext,
+      AtomicBoolean isDiskReadCancelled,
+      long readStartMs) {
+    if (!isHedgingEnabled(producerContext)
+        || producerContext.isPrefetch()
+        || producerContext.getLowestPermittedRequestLevel()
+            != ImageRequest.RequestLevel.FULL_FETCH
+        || !UriUtil.isNetworkUri(producerContext.getImageRequest().getSourceUri())) {
+      return null;
+    }
+    final long latencyMs =
+        mReadLatencyTracker.getPercentile(HEDGING_LATENCY_PERCENTILE, HEDGING_MIN_SAMPLES);
+    if (latencyMs < 0) {
+      return null;
+    }
+    final HedgedRead hedgedRead =
+        new HedgedRead(consumer, producerContext, isDiskReadCancelled, readStartMs);
+    final ScheduledExecutorService executor =
+        mHedgingExecutor != null ? mHedgingExecutor : JobScheduler.JobStartExecutorSupplier.get();
+    executor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            mHedgedFetchExecutor.execute(hedgedRead);
+          }
+        },
+        Math.max(HEDGING_MIN_DELAY_MS, latencyMs),
+        TimeUnit.MILLISECONDS);
+    return hedgedRead;
+  }
+
+  private static boolean isHedgingEnabled(ProducerContext producerContext) {
+    return producerContext
+        .getImagePipelineConfig()
+        .getExperiments()
+        .isDiskCacheReadHedgingEnabled();
+  }
+
   private static boolean isTaskCancelled(Task<?> task) {
     return task.isCancelled()
         || (task.isFaulted() && task.getError() instanceof CancellationException);
   }
 
+  static boolean isRevalidationEnabled(ProducerContext producerContext) {
+    return producerContext.getLowestPermittedRequestLevel() == ImageRequest.RequestLevel.FULL_FETCH
+        && producerContext
+            .getImagePipelineConfig()
+            .getExperiments()
+            .isDiskCacheRevalidationEnabled();
+  }
+
   private void maybeStartInputProducer(
       Consumer<EncodedImage> consumer, ProducerContext producerContext) {
     if (producerContext.getLowestPermittedRequestLevel().getValue()
@@ -162,4 +357,281 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
           }
         });
   }
+
+  /**
+   * Consumer of the revalidation of a stale cached image.
+   *
+   * <p>If the network fetch reports the image as not modified with the {@link
+   * ProducerContext.ExtraKeys#NOT_MODIFIED} extra, the validators kept with the cached image are
+   * refreshed and the cached image is passed on. The cached image is also passed on if the fetch
+   * fails or provides no image. Any new image is passed on as is, and written to the disk cache
+   * by {@link DiskCacheWriteProducer}.
+   */
+  private static class RevalidationConsumer
+      extends DelegatingConsumer<EncodedImage, EncodedImage> {
+
+    private final ProducerContext mProducerContext;
+    private final BufferedDiskCache mBufferedDiskCache;
+    private final CacheKey mCacheKey;
+    private final EncodedImage mCachedImage;
+    private final CacheValidators mCachedValidators;
+
+    private RevalidationConsumer(
+        final Consumer<EncodedImage> consumer,
+        final ProducerContext producerContext,
+        final BufferedDiskCache bufferedDiskCache,
+        final CacheKey cacheKey,
+        final EncodedImage cachedImage,
+        final CacheValidators cachedValidators) {
+      super(consumer);
+      mProducerContext = producerContext;
+      mBufferedDiskCache = bufferedDiskCache;
+      mCacheKey = cacheKey;
+      mCachedImage = cachedImage;
+      mCachedValidators = cachedValidators;
+    }
+
+    @Override
+    protected void onNewResultImpl(@Nullable EncodedImage newResult, @Status int status) {
+      if (isNotLast(status)) {
+        getConsumer().onNewResult(newResult, status);
+        return;
+      }
+      if (newResult == null
+          && Boolean.TRUE.equals(
+              mProducerContext.<Boolean>getExtra(ProducerContext.ExtraKeys.NOT_MODIFIED))) {
+        final CacheValidators responseValidators =
+            mProducerContext.getExtra(ProducerContext.ExtraKeys.RESPONSE_VALIDATORS);
+        mBufferedDiskCache.putValidators(mCacheKey, mCachedValidators.refresh(responseValidators));
+        mBufferedDiskCache.probe(mCacheKey);
+        passCachedImage("revalidated");
+      } else if (newResult == null) {
+        // nothing was fetched, e.g. the request does not go to the network
+        passCachedImage("stale");
+      } else {
+        mCachedImage.close();
+        getConsumer().onNewResult(newResult, status);
+      }
+    }
+
+    @Override
+    protected void onFailureImpl(Throwable t) {
+      passCachedImage("stale");
+    }
+
+    @Override
+    protected void onCancellationImpl() {
+      mCachedImage.close();
+      super.onCancellationImpl();
+    }
+
+    private void passCachedImage(String originSubcategory) {
+      mProducerContext.putOriginExtra("disk", originSubcategory);
+      try {
+        getConsumer().onProgressUpdate(1);
+        getConsumer().onNewResult(mCachedImage, IS_LAST);
+      } finally {
+        mCachedImage.close();
+      }
+    }
+  }
+
+  /**
+   * Race between a disk cache read that is taking long and a network fetch of the image.
+   *
+   * <p>The network fetch has a producer context of its own, so that it can be cancelled if the disk
+   * cache read provides the image first. Its intermediate results are not passed on while the race
+   * goes on. If the image is not in the disk cache, the network fetch goes on as the fetch of the
+   * image.
+   */
+  private class HedgedRead implements Runnable {
+
+    private static final int STATE_RACING = 0;
+    private static final int STATE_DISK_READ = 1;
+    private static final int STATE_NETWORK_FETCH = 2;
+    private static final int STATE_NETWORK_WON = 3;
+
+    private final Consumer<EncodedImage> mConsumer;
+    private final ProducerContext mProducerContext;
+    private final AtomicBoolean mIsDiskReadCancelled;
+    private final long mReadStartMs;
+    private final SettableProducerContext mNetworkContext;
+
+    @GuardedBy("this")
+    private int mState = STATE_RACING;
+
+    @GuardedBy("this")
+    private boolean mIsNetworkFetchStarted;
+
+    @GuardedBy("this")
+    private @Nullable Throwable mNetworkFailure;
+
+    private HedgedRead(
+        Consumer<EncodedImage> consumer,
+        ProducerContext producerContext,
+        AtomicBoolean isDiskReadCancelled,
+        long readStartMs) {
+      mConsumer = consumer;
+      mProducerContext = producerContext;
+      mIsDiskReadCancelled = isDiskReadCancelled;
+      mReadStartMs = readStartMs;
+      mNetworkContext = new SettableProducerContext(producerContext);
+      producerContext.addCallbacks(
+          new BaseProducerContextCallbacks() {
+            @Override
+            public void onCancellationRequested() {
+              mNetworkContext.cancel();
+            }
+
+            @Override
+            public void onPriorityChanged() {
+              mNetworkContext.setPriority(mProducerContext.getPriority());
+            }
+
+            @Override
+            public void onIsIntermediateResultExpectedChanged() {
+              mNetworkContext.setIsIntermediateResultExpected(
+                  mProducerContext.isIntermediateResultExpected());
+            }
+          });
+    }
+
+    /** Starts the network fetch, unless the disk cache read has finished in the meantime. */
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (mState != STATE_RACING || mNetworkContext.isCancelled()) {
+          return;
+        }
+        mIsNetworkFetchStarted = true;
+      }
+      mProducerContext
+          .getProducerListener()
+          .onProducerEvent(mProducerContext, PRODUCER_NAME, EVENT_HEDGED_NETWORK_FETCH);
+      mInputProducer.produceResults(new HedgedNetworkConsumer(mConsumer), mNetworkContext);
+    }
+
+    /**
+     * Settles the race once the disk cache read finishes.
+     *
+     * @return true if the network fetch has already passed the image on, in which case the result
+     *     of the disk cache read is dropped
+     */
+    boolean onDiskReadFinished(Task<EncodedImage> task) {
+      final boolean isCancelled = isTaskCancelled(task);
+      final boolean isHit = !isCancelled && !task.isFaulted() && task.getResult() != null;
+      final boolean isNetworkFetchStarted;
+      final int state;
+      synchronized (this) {
+        isNetworkFetchStarted = mIsNetworkFetchStarted;
+        if (mState == STATE_RACING) {
+          mState =
+              isNetworkFetchStarted && !isHit && !isCancelled
+                  ? STATE_NETWORK_FETCH
+                  : STATE_DISK_READ;
+        }
+        state = mState;
+      }
+      final ProducerListener2 listener = mProducerContext.getProducerListener();
+      if (state == STATE_NETWORK_WON) {
+        listener.onProducerFinishWithCancellation(mProducerContext, PRODUCER_NAME, null);
+        if (isHit) {
+          task.getResult().close();
+        }
+        return true;
+      }
+      if (isNetworkFetchStarted && isHit) {
+        listener.onProducerEvent(mProducerContext, PRODUCER_NAME, EVENT_HEDGE_WON_BY_DISK);
+        mNetworkContext.cancel();
+      }
+      return false;
+    }
+
+    /**
+     * Lets the network fetch provide the image if it has been started, rather than starting another
+     * one.
+     *
+     * @return whether the network fetch had been started
+     */
+    boolean continueWithNetworkFetch() {
+      final Throwable networkFailure;
+      synchronized (this) {
+        if (mState != STATE_NETWORK_FETCH) {
+          return false;
+        }
+        networkFailure = mNetworkFailure;
+      }
+      if (networkFailure != null) {
+        mConsumer.onFailure(networkFailure);
+      }
+      return true;
+    }
+
+    private synchronized boolean isNetworkFetchOnly() {
+      return mState == STATE_NETWORK_FETCH;
+    }
+
+    /** Consumer of the network fetch, passing its results on depending on the race. */
+    private class HedgedNetworkConsumer extends DelegatingConsumer<EncodedImage, EncodedImage> {
+
+      private HedgedNetworkConsumer(Consumer<EncodedImage> consumer) {
+        super(consumer);
+      }
+
+      @Override
+      protected void onNewResultImpl(@Nullable EncodedImage newResult, @Status int status) {
+        final boolean hasWon;
+        final boolean isPassedOn;
+        synchronized (HedgedRead.this) {
+          hasWon = isLast(status) && mState == STATE_RACING;
+          if (hasWon) {
+            mState = STATE_NETWORK_WON;
+          }
+          isPassedOn = hasWon || mState == STATE_NETWORK_FETCH;
+        }
+        if (hasWon) {
+          // the read is cancelled and would not be measured, which would bias the hedging delay
+          // towards the fast reads: what it took so far is recorded as a lower bound instead
+          mReadLatencyTracker.record(mClock.now() - mReadStartMs);
+          mIsDiskReadCancelled.set(true);
+          mProducerContext.putExtras(mNetworkContext.getExtras());
+          mProducerContext
+              .getProducerListener()
+              .onProducerEvent(mProducerContext, PRODUCER_NAME, EVENT_HEDGE_WON_BY_NETWORK);
+        }
+        if (isPassedOn) {
+          getConsumer().onNewResult(newResult, status);
+        }
+      }
+
+      @Override
+      protected void onFailureImpl(Throwable t) {
+        final boolean isPassedOn;
+        synchronized (HedgedRead.this) {
+          if (mState == STATE_RACING) {
+            // the disk cache read may still provide the image
+            mNetworkFailure = t;
+          }
+          isPassedOn = mState == STATE_NETWORK_FETCH;
+        }
+        if (isPassedOn) {
+          getConsumer().onFailure(t);
+        }
+      }
+
+      @Override
+      protected void onCancellationImpl() {
+        if (isNetworkFetchOnly()) {
+          getConsumer().onCancellation();
+        }
+      }
+
+      @Override
+      protected void onProgressUpdateImpl(float progress) {
+        if (isNetworkFetchOnly()) {
+          getConsumer().onProgressUpdate(progress);
+        }
+      }
+    }
+  }
 }
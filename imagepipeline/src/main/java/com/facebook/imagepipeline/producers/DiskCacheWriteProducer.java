@@ -7,13 +7,17 @@
 
 package com.facebook.imagepipeline.producers;
 
+import bolts.Task;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.webp.WebpSupportStatus;
 import com.facebook.imageformat.ImageFormat;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
+import javax.annotation.Nullable;
 
 /**
  * Disk cache write producer.
@@ -22,6 +26,9 @@ import com.facebook.imagepipeline.request.ImageRequest;
  * request level reaches beyond the disk cache. Otherwise this is a passive producer.
  *
  * <p>The final result passed to the consumer put into the disk cache as well as being passed on.
+ * If the disk cache write-through experiment is enabled, {@link NetworkFetchProducer} writes the
+ * response to the disk cache while downloading it instead, and the final result is only staged
+ * until it is written, unless the write through was abandoned.
  *
  * <p>This implementation delegates disk cache requests to BufferedDiskCache.
  *
@@ -61,13 +68,23 @@ public class DiskCacheWriteProducer implements Producer<EncodedImage> {
     } else {
       Consumer<EncodedImage> consumer;
       if (producerContext.getImageRequest().isDiskCacheEnabled()) {
+        final DiskCacheWriteThrough writeThrough = maybeCreateWriteThrough(producerContext);
+        if (writeThrough != null) {
+          producerContext.setExtra(
+              ProducerContext.ExtraKeys.DISK_CACHE_WRITE_THROUGH, writeThrough);
+        }
+        final ResumableDownload resumableDownload = maybeCreateResumableDownload(producerContext);
+        if (resumableDownload != null) {
+          producerContext.setExtra(ProducerContext.ExtraKeys.RESUMABLE_DOWNLOAD, resumableDownload);
+        }
         consumer =
             new DiskCacheWriteConsumer(
                 consumerOfDiskCacheWriteProducer,
                 producerContext,
                 mDefaultBufferedDiskCache,
                 mSmallImageBufferedDiskCache,
-                mCacheKeyFactory);
+                mCacheKeyFactory,
+                writeThrough);
       } else {
         consumer = consumerOfDiskCacheWriteProducer;
       }
@@ -76,6 +93,50 @@ public class DiskCacheWriteProducer implements Producer<EncodedImage> {
     }
   }
 
+  /**
+   * Returns the entry the network response is written to while downloading it, if enabled.
+   *
+   * <p>On devices that need WebP to be transcoded, the transcoded image is cached rather than the
+   * downloaded bytes, so the response is not written through.
+   */
+  private @Nullable DiskCacheWriteThrough maybeCreateWriteThrough(ProducerContext producerContext) {
+    if (!producerContext.getImagePipelineConfig().getExperiments().isDiskCacheWriteThroughEnabled()
+        || WebpSupportStatus.sIsWebpSupportRequired) {
+      return null;
+    }
+    final ImageRequest imageRequest = producerContext.getImageRequest();
+    return new DiskCacheWriteThrough(
+        getPreferredCache(imageRequest, mDefaultBufferedDiskCache, mSmallImageBufferedDiskCache),
+        mCacheKeyFactory.getEncodedCacheKey(imageRequest, producerContext.getCallerContext()));
+  }
+
+  /**
+   * Returns the entry keeping the bytes of an interrupted download of the image, if enabled.
+   *
+   * <p>Requests for a range of the image are left to {@link PartialDiskCacheProducer}.
+   */
+  private @Nullable ResumableDownload maybeCreateResumableDownload(
+      ProducerContext producerContext) {
+    final ImageRequest imageRequest = producerContext.getImageRequest();
+    if (!producerContext.getImagePipelineConfig().getExperiments().isResumableNetworkFetchEnabled()
+        || imageRequest.getBytesRange() != null
+        || WebpSupportStatus.sIsWebpSupportRequired) {
+      return null;
+    }
+    return new ResumableDownload(
+        getPreferredCache(imageRequest, mDefaultBufferedDiskCache, mSmallImageBufferedDiskCache),
+        mCacheKeyFactory.getEncodedCacheKey(imageRequest, producerContext.getCallerContext()));
+  }
+
+  private static BufferedDiskCache getPreferredCache(
+      ImageRequest imageRequest,
+      BufferedDiskCache defaultBufferedDiskCache,
+      BufferedDiskCache smallImageBufferedDiskCache) {
+    return imageRequest.getCacheChoice() == ImageRequest.CacheChoice.SMALL
+        ? smallImageBufferedDiskCache
+        : defaultBufferedDiskCache;
+  }
+
   /**
    * Consumer that consumes results from next producer in the sequence.
    *
@@ -89,18 +150,21 @@ public class DiskCacheWriteProducer implements Producer<EncodedImage> {
     private final BufferedDiskCache mDefaultBufferedDiskCache;
     private final BufferedDiskCache mSmallImageBufferedDiskCache;
     private final CacheKeyFactory mCacheKeyFactory;
+    private final @Nullable DiskCacheWriteThrough mWriteThrough;
 
     private DiskCacheWriteConsumer(
         final Consumer<EncodedImage> consumer,
         final ProducerContext producerContext,
         final BufferedDiskCache defaultBufferedDiskCache,
         final BufferedDiskCache smallImageBufferedDiskCache,
-        final CacheKeyFactory cacheKeyFactory) {
+        final CacheKeyFactory cacheKeyFactory,
+        final @Nullable DiskCacheWriteThrough writeThrough) {
       super(consumer);
       mProducerContext = producerContext;
       mDefaultBufferedDiskCache = defaultBufferedDiskCache;
       mSmallImageBufferedDiskCache = smallImageBufferedDiskCache;
       mCacheKeyFactory = cacheKeyFactory;
+      mWriteThrough = writeThrough;
     }
 
     @Override
@@ -123,16 +187,36 @@ public class DiskCacheWriteProducer implements Producer<EncodedImage> {
       final CacheKey cacheKey =
           mCacheKeyFactory.getEncodedCacheKey(imageRequest, mProducerContext.getCallerContext());
 
-      if (imageRequest.getCacheChoice() == ImageRequest.CacheChoice.SMALL) {
-        mSmallImageBufferedDiskCache.put(cacheKey, newResult);
+      final BufferedDiskCache preferredCache =
+          getPreferredCache(imageRequest, mDefaultBufferedDiskCache, mSmallImageBufferedDiskCache);
+      final Task<Boolean> write = mWriteThrough != null ? mWriteThrough.getWrite() : null;
+      if (write != null) {
+        // the response is being written through, the image is staged until it is written
+        preferredCache.stageUntil(cacheKey, newResult, write);
       } else {
-        mDefaultBufferedDiskCache.put(cacheKey, newResult);
+        preferredCache.put(cacheKey, newResult);
       }
+      maybeUpdateValidators(preferredCache, cacheKey);
       mProducerContext
           .getProducerListener()
           .onProducerFinishWithSuccess(mProducerContext, PRODUCER_NAME, null);
 
       getConsumer().onNewResult(newResult, status);
     }
+
+    /**
+     * Keeps the validators of the response with the new image, or removes those of the image it
+     * replaces after a failed revalidation.
+     */
+    private void maybeUpdateValidators(BufferedDiskCache preferredCache, CacheKey cacheKey) {
+      final CacheValidators responseValidators =
+          mProducerContext.getExtra(ProducerContext.ExtraKeys.RESPONSE_VALIDATORS);
+      if (responseValidators != null
+          && DiskCacheReadProducer.isRevalidationEnabled(mProducerContext)) {
+        preferredCache.putValidators(cacheKey, responseValidators);
+      } else if (mProducerContext.getExtra(ProducerContext.ExtraKeys.CACHED_VALIDATORS) != null) {
+        preferredCache.removeValidators(cacheKey);
+      }
+    }
   }
 }
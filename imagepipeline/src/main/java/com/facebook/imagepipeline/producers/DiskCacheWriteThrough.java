@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import bolts.Continuation;
+import bolts.Task;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Disk cache entry that {@link NetworkFetchProducer} writes the response to while downloading it,
+ * in place of {@link DiskCacheWriteProducer} writing the complete image once it is passed on.
+ *
+ * <p>It is passed from the former to the latter as the {@link
+ * ProducerContext.ExtraKeys#DISK_CACHE_WRITE_THROUGH} extra.
+ *
+ * <p>Each chunk of bytes the fetch thread tees to it is appended to the entry by a short task on
+ * the disk cache's write executor, see {@link BufferedDiskCache.IncrementalWrite}. Neither the
+ * fetch thread nor the write executor ever waits for the other: a slow download only holds the
+ * temporary file of the entry. The write through is abandoned, and the entry discarded, if more
+ * than {@link #MAX_PENDING_BYTES} wait to be written because the disk does not keep up, or if a
+ * chunk cannot be written. {@link DiskCacheWriteProducer} then writes the complete image as usual.
+ */
+@ThreadSafe
+class DiskCacheWriteThrough {
+
+  @VisibleForTesting static final int MAX_PENDING_BYTES = 512 * 1024;
+
+  private final BufferedDiskCache mBufferedDiskCache;
+  private final CacheKey mCacheKey;
+
+  @GuardedBy("this")
+  private @Nullable BufferedDiskCache.IncrementalWrite mWrite;
+
+  @GuardedBy("this")
+  private int mPendingByteCount;
+
+  @GuardedBy("this")
+  private boolean mIsEnded;
+
+  @GuardedBy("this")
+  private boolean mIsAbandoned;
+
+  @GuardedBy("this")
+  private @Nullable Task<Boolean> mCommit;
+
+  DiskCacheWriteThrough(BufferedDiskCache bufferedDiskCache, CacheKey cacheKey) {
+    mBufferedDiskCache = bufferedDiskCache;
+    mCacheKey = cacheKey;
+  }
+
+  /**
+   * Starts the entry, and returns a stream writing to the given one as well as to the entry. A
+   * response fetched again, after the first one was pre-empted, is not written through.
+   */
+  synchronized OutputStream start(final OutputStream os) {
+    if (mWrite != null) {
+      return os;
+    }
+    mWrite = mBufferedDiskCache.startIncrementalWrite(mCacheKey);
+    return new OutputStream() {
+      @Override
+      public void write(int oneByte) throws IOException {
+        os.write(oneByte);
+        tee(new byte[] {(byte) oneByte}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int count) throws IOException {
+        os.write(buffer, offset, count);
+        tee(buffer, offset, count);
+      }
+    };
+  }
+
+  /**
+   * Ends the bytes of the entry. It is only committed if the response is complete.
+   *
+   * <p>Only the first call has an effect.
+   */
+  synchronized void end(boolean isComplete) {
+    if (mWrite == null || mIsEnded || mIsAbandoned) {
+      return;
+    }
+    if (isComplete) {
+      mIsEnded = true;
+      mCommit = mWrite.commit();
+    } else {
+      abandon();
+    }
+  }
+
+  /**
+   * @return the commit of the entry if it has been given all the bytes of the response, which
+   *     resolves to whether it has been committed, or null if the response is not written through
+   */
+  synchronized @Nullable Task<Boolean> getWrite() {
+    return mCommit;
+  }
+
+  private synchronized void tee(byte[] buffer, int offset, final int count) {
+    if (mIsEnded || mIsAbandoned || count == 0) {
+      return;
+    }
+    if (mPendingByteCount + count > MAX_PENDING_BYTES) {
+      // the disk does not keep up
+      abandon();
+      return;
+    }
+    mPendingByteCount += count;
+    mWrite
+        .append(Arrays.copyOfRange(buffer, offset, offset + count))
+        .continueWith(
+            new Continuation<Void, Void>() {
+              @Override
+              public Void then(Task<Void> task) {
+                onChunkWritten(count, task.isFaulted() || task.isCancelled());
+                return null;
+              }
+            });
+  }
+
+  private synchronized void onChunkWritten(int count, boolean isFailed) {
+    mPendingByteCount -= count;
+    if (isFailed && !mIsEnded && !mIsAbandoned) {
+      // the entry is discarded, the commit would fail anyway
+      abandon();
+    }
+  }
+
+  @GuardedBy("this")
+  private void abandon() {
+    mIsAbandoned = true;
+    mWrite.discard();
+  }
+}
@@ -8,6 +8,7 @@
 package com.facebook.imagepipeline.producers;
 
 import android.net.Uri;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.infer.annotation.OkToExtend;
@@ -26,6 +27,13 @@ public class FetchState {
   private long mLastIntermediateResultTimeMs;
   private int mOnNewResultStatusFlags;
   private @Nullable BytesRange mResponseBytesRange;
+  private @Nullable CacheValidators mCachedValidators;
+  private @Nullable CacheValidators mResponseValidators;
+  private boolean mIsNotModified;
+  private int mResumeOffset;
+  private @Nullable CacheValidators mResumeValidators;
+  private boolean mIsResumed;
+  private @Nullable EncodedImage mResumeBody;
 
   public FetchState(Consumer<EncodedImage> consumer, ProducerContext context) {
     mConsumer = consumer;
@@ -86,4 +94,98 @@ public class FetchState {
   public void setResponseBytesRange(BytesRange bytesRange) {
     mResponseBytesRange = bytesRange;
   }
+
+  /**
+   * Gets the validators of the cached image that this fetch revalidates. Fetchers that support
+   * revalidation should send them as If-None-Match and If-Modified-Since headers.
+   *
+   * @return the validators, or null if this is not a revalidation
+   */
+  @Nullable
+  public CacheValidators getCachedValidators() {
+    return mCachedValidators;
+  }
+
+  /** Sets the validators of the cached image that this fetch revalidates. */
+  public void setCachedValidators(@Nullable CacheValidators cachedValidators) {
+    mCachedValidators = cachedValidators;
+  }
+
+  @Nullable
+  public CacheValidators getResponseValidators() {
+    return mResponseValidators;
+  }
+
+  /**
+   * EXPERIMENTAL: Allows the fetcher to provide the validators of the response, so that the image
+   * can be revalidated once it is in the disk cache.
+   */
+  public void setResponseValidators(@Nullable CacheValidators responseValidators) {
+    mResponseValidators = responseValidators;
+  }
+
+  public boolean isNotModified() {
+    return mIsNotModified;
+  }
+
+  /**
+   * EXPERIMENTAL: Allows the fetcher to identify that the server answered a revalidation with 304
+   * Not Modified. The response passed to the callback is then ignored and the cached image is used.
+   */
+  public void setNotModified(boolean isNotModified) {
+    mIsNotModified = isNotModified;
+  }
+
+  /** @return the number of bytes of the image already held, that the fetch can resume from */
+  public int getResumeOffset() {
+    return mResumeOffset;
+  }
+
+  /**
+   * Gets the validators of the response that the held bytes are part of. Fetchers that support
+   * resumption should request the bytes from {@link #getResumeOffset()} with a Range header and
+   * an If-Range header set to {@link CacheValidators#getIfRange()}.
+   *
+   * @return the validators, or null if the fetch does not resume a previous one
+   */
+  @Nullable
+  public CacheValidators getResumeValidators() {
+    return mResumeValidators;
+  }
+
+  /** Sets the held bytes of a previous fetch that this one can resume from. */
+  public void setResume(int resumeOffset, @Nullable CacheValidators resumeValidators) {
+    mResumeOffset = resumeOffset;
+    mResumeValidators = resumeValidators;
+  }
+
+  public boolean isResumed() {
+    return mIsResumed;
+  }
+
+  /**
+   * EXPERIMENTAL: Allows the fetcher to identify that the server answered with the bytes from
+   * {@link #getResumeOffset()}, so that the response passed to the callback only holds the rest of
+   * the image.
+   */
+  public void setResumed(boolean isResumed) {
+    mIsResumed = isResumed;
+  }
+
+  synchronized void setResumeBody(@Nullable EncodedImage resumeBody) {
+    EncodedImage.closeSafely(mResumeBody);
+    mResumeBody = resumeBody;
+  }
+
+  /**
+   * Takes ownership of the held bytes that the fetch resumes from. Further fetches of this state
+   * are not resumed.
+   */
+  @Nullable
+  synchronized EncodedImage takeResumeBody() {
+    final EncodedImage resumeBody = mResumeBody;
+    mResumeBody = null;
+    setResume(0, null);
+    return resumeBody;
+  }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Incremental parser of HTTP/1.x responses, fed with the bytes read from a non-blocking socket.
+ *
+ * <p>{@link #feed(byte[], int, int)} returns as soon as the headers have been parsed, so that the
+ * caller can inspect them and provide the stream that the body is written to. Bodies delimited by
+ * Content-Length, by chunked transfer encoding, or by the end of the connection are supported.
+ */
+@NotThreadSafe
+class HttpResponseParser {
+
+  private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+  private static final int STATE_STATUS_LINE = 0;
+  private static final int STATE_HEADERS = 1;
+  private static final int STATE_BODY = 2;
+  private static final int STATE_CHUNK_SIZE = 3;
+  private static final int STATE_CHUNK_DATA = 4;
+  private static final int STATE_CHUNK_END = 5;
+  private static final int STATE_TRAILERS = 6;
+  private static final int STATE_COMPLETE = 7;
+
+  private final StringBuilder mLine = new StringBuilder();
+  private final Map<String, String> mHeaders = new HashMap<>();
+  private int mState = STATE_STATUS_LINE;
+  private boolean mHasHeaders;
+  private boolean mHasReceivedData;
+  private boolean mIsHttp11;
+  private int mStatusCode;
+  private boolean mIsChunked;
+  private boolean mIsCloseDelimited;
+  private long mContentLength = -1;
+  private long mRemaining;
+  private @Nullable OutputStream mBody;
+
+  /**
+   * Parses the given bytes.
+   *
+   * @return the number of bytes consumed, which is less than length only if the headers have just
+   *     been parsed or if the response is complete
+   */
+  int feed(byte[] data, int offset, int length) throws IOException {
+    if (length > 0) {
+      mHasReceivedData = true;
+    }
+    int position = offset;
+    final int end = offset + length;
+    while (position < end && mState != STATE_COMPLETE) {
+      switch (mState) {
+        case STATE_BODY:
+        case STATE_CHUNK_DATA:
+          final int count =
+              mIsCloseDelimited ? end - position : (int) Math.min(mRemaining, end - position);
+          if (mBody != null) {
+            mBody.write(data, position, count);
+          }
+          position += count;
+          mRemaining -= count;
+          if (!mIsCloseDelimited && mRemaining == 0) {
+            mState = mState == STATE_BODY ? STATE_COMPLETE : STATE_CHUNK_END;
+          }
+          break;
+        default:
+          final char c = (char) (data[position++] & 0xFF);
+          if (c == '\n') {
+            final boolean hadHeaders = mHasHeaders;
+            onLine(trimLine());
+            if (!hadHeaders && mHasHeaders) {
+              return position - offset;
+            }
+          } else {
+            if (mLine.length() >= MAX_LINE_LENGTH) {
+              throw new IOException("HTTP response line too long");
+            }
+            mLine.append(c);
+          }
+      }
+    }
+    return position - offset;
+  }
+
+  /** Handles the end of the connection, which completes responses delimited by it. */
+  void onEndOfStream() throws IOException {
+    if (mState == STATE_BODY && mIsCloseDelimited) {
+      mState = STATE_COMPLETE;
+    } else if (mState != STATE_COMPLETE) {
+      throw new IOException("Connection closed before the end of the HTTP response");
+    }
+  }
+
+  /** Sets the stream that the body is written to. The body is discarded if none is set. */
+  void setBody(@Nullable OutputStream body) {
+    mBody = body;
+  }
+
+  boolean hasHeaders() {
+    return mHasHeaders;
+  }
+
+  boolean hasReceivedData() {
+    return mHasReceivedData;
+  }
+
+  boolean isComplete() {
+    return mState == STATE_COMPLETE;
+  }
+
+  int getStatusCode() {
+    return mStatusCode;
+  }
+
+  /** @return the value of the given header, or null if the response has no such header */
+  @Nullable
+  String getHeader(String name) {
+    return mHeaders.get(name.toLowerCase(Locale.US));
+  }
+
+  /** @return the length of the body if known, -1 otherwise */
+  long getContentLength() {
+    return mContentLength;
+  }
+
+  /** @return whether the connection can be used for another request once the response is read */
+  boolean isKeepAlive() {
+    if (mIsCloseDelimited) {
+      return false;
+    }
+    final String connection = getHeader("Connection");
+    if (connection != null) {
+      final String value = connection.toLowerCase(Locale.US);
+      if (value.contains("close")) {
+        return false;
+      } else if (value.contains("keep-alive")) {
+        return true;
+      }
+    }
+    return mIsHttp11;
+  }
+
+  private String trimLine() {
+    int length = mLine.length();
+    if (length > 0 && mLine.charAt(length - 1) == '\r') {
+      length--;
+    }
+    final String line = mLine.substring(0, length);
+    mLine.setLength(0);
+    return line;
+  }
+
+  private void onLine(String line) throws IOException {
+    switch (mState) {
+      case STATE_STATUS_LINE:
+        if (!line.isEmpty()) {
+          parseStatusLine(line);
+          mState = STATE_HEADERS;
+        }
+        break;
+      case STATE_HEADERS:
+        if (line.isEmpty()) {
+          onHeadersEnd();
+        } else {
+          parseHeader(line);
+        }
+        break;
+      case STATE_CHUNK_SIZE:
+        final int extensionStart = line.indexOf(';');
+        final String size = extensionStart >= 0 ? line.substring(0, extensionStart) : line;
+        try {
+          mRemaining = Long.parseLong(size.trim(), 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid HTTP chunk size: " + line);
+        }
+        if (mRemaining < 0) {
+          throw new IOException("Invalid HTTP chunk size: " + line);
+        }
+        mState = mRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+        break;
+      case STATE_CHUNK_END:
+        if (!line.isEmpty()) {
+          throw new IOException("Invalid end of HTTP chunk");
+        }
+        mState = STATE_CHUNK_SIZE;
+        break;
+      case STATE_TRAILERS:
+        if (line.isEmpty()) {
+          mState = STATE_COMPLETE;
+        }
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void parseStatusLine(String line) throws IOException {
+    // HTTP/1.1 200 OK
+    if (!line.startsWith("HTTP/1.") || line.length() < 12 || line.charAt(8) != ' ') {
+      throw new IOException("Invalid HTTP status line: " + line);
+    }
+    mIsHttp11 = line.charAt(7) != '0';
+    try {
+      mStatusCode = Integer.parseInt(line.substring(9, 12));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid HTTP status line: " + line);
+    }
+  }
+
+  private void parseHeader(String line) throws IOException {
+    final int colon = line.indexOf(':');
+    if (colon <= 0) {
+      throw new IOException("Invalid HTTP header: " + line);
+    }
+    mHeaders.put(
+        line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+  }
+
+  private void onHeadersEnd() throws IOException {
+    if (mStatusCode >= 100 && mStatusCode < 200) {
+      // interim response, the final one follows
+      mHeaders.clear();
+      mState = STATE_STATUS_LINE;
+      return;
+    }
+    mHasHeaders = true;
+    final String transferEncoding = getHeader("Transfer-Encoding");
+    final String contentLength = getHeader("Content-Length");
+    if (mStatusCode == 204 || mStatusCode == 304) {
+      mState = STATE_COMPLETE;
+    } else if (transferEncoding != null
+        && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+      mIsChunked = true;
+      mState = STATE_CHUNK_SIZE;
+    } else if (contentLength != null) {
+      try {
+        mRemaining = Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid HTTP Content-Length: " + contentLength);
+      }
+      if (mRemaining < 0) {
+        throw new IOException("Invalid HTTP Content-Length: " + contentLength);
+      }
+      mContentLength = mRemaining;
+      mState = mRemaining == 0 ? STATE_COMPLETE : STATE_BODY;
+    } else {
+      mIsCloseDelimited = true;
+      mState = STATE_BODY;
+    }
+  }
+}
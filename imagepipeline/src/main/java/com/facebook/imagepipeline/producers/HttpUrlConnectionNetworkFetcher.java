@@ -12,7 +12,10 @@ import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.time.MonotonicClock;
 import com.facebook.common.time.RealtimeSinceBootClock;
 import com.facebook.common.util.UriUtil;
+import com.facebook.imagepipeline.cache.CacheValidators;
+import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -24,10 +27,17 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * Network fetcher that uses the simplest Android stack.
  *
+ * <p>A download cancelled while it is in progress is stopped by disconnecting its connection, as
+ * blocking reads of the response do not respond to thread interrupts. This fails the reads on
+ * Android. Implementations of {@link HttpURLConnection} whose disconnect does not abort the reads
+ * in progress, such as the one of the JDK, complete the download before it is cancelled.
+ *
  * <p>Apps requiring more sophisticated networking should implement their own {@link
  * NetworkFetcher}.
  */
@@ -56,6 +66,7 @@ public class HttpUrlConnectionNetworkFetcher
 
   public static final int HTTP_TEMPORARY_REDIRECT = 307;
   public static final int HTTP_PERMANENT_REDIRECT = 308;
+  public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
   public static final int HTTP_DEFAULT_TIMEOUT = 30000;
 
@@ -95,12 +106,13 @@ public class HttpUrlConnectionNetworkFetcher
   @Override
   public void fetch(final HttpUrlConnectionNetworkFetchState fetchState, final Callback callback) {
     fetchState.submitTime = mMonotonicClock.now();
+    final Download download = new Download();
     final Future<?> future =
         mExecutorService.submit(
             new Runnable() {
               @Override
               public void run() {
-                fetchSync(fetchState, callback);
+                fetchSync(fetchState, callback, download);
               }
             });
     fetchState
@@ -111,6 +123,8 @@ public class HttpUrlConnectionNetworkFetcher
               public void onCancellationRequested() {
                 if (future.cancel(false)) {
                   callback.onCancellation();
+                } else {
+                  download.cancel();
                 }
               }
             });
@@ -118,18 +132,58 @@ public class HttpUrlConnectionNetworkFetcher
 
   @VisibleForTesting
   void fetchSync(HttpUrlConnectionNetworkFetchState fetchState, Callback callback) {
+    fetchSync(fetchState, callback, new Download());
+  }
+
+  private void fetchSync(
+      HttpUrlConnectionNetworkFetchState fetchState, Callback callback, Download download) {
     HttpURLConnection connection = null;
     InputStream is = null;
     try {
-      connection = downloadFrom(fetchState.getUri(), MAX_REDIRECTS);
+      final CacheValidators cachedValidators = fetchState.getCachedValidators();
+      final CacheValidators resumeValidators = fetchState.getResumeValidators();
+      final String ifRange = resumeValidators != null ? resumeValidators.getIfRange() : null;
+      final int resumeOffset = ifRange != null ? fetchState.getResumeOffset() : 0;
+      connection =
+          downloadFrom(
+              download,
+              fetchState.getUri(),
+              MAX_REDIRECTS,
+              cachedValidators,
+              resumeOffset,
+              ifRange);
+      if (resumeOffset > 0 && connection.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+        // the held bytes cannot be resumed from, the whole image is downloaded instead
+        connection.disconnect();
+        connection =
+            downloadFrom(download, fetchState.getUri(), MAX_REDIRECTS, cachedValidators, 0, null);
+      }
       fetchState.responseTime = mMonotonicClock.now();
 
       if (connection != null) {
-        is = connection.getInputStream();
-        callback.onResponse(is, -1);
+        fetchState.setResumed(
+            resumeOffset > 0 && isResumedResponse(connection, resumeOffset, fetchState.getUri()));
+        fetchState.setResponseValidators(
+            CacheValidators.fromResponseHeaders(
+                connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"),
+                connection.getHeaderField("Cache-Control"),
+                System.currentTimeMillis()));
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+          fetchState.setNotModified(true);
+          callback.onResponse(new ByteArrayInputStream(new byte[0]), 0);
+        } else {
+          is = connection.getInputStream();
+          callback.onResponse(is, -1);
+        }
       }
     } catch (IOException e) {
-      callback.onFailure(e);
+      if (download.isCancelled()) {
+        // the connection failed because it was disconnected
+        callback.onCancellation();
+      } else {
+        callback.onFailure(e);
+      }
     } finally {
       if (is != null) {
         try {
@@ -144,15 +198,60 @@ public class HttpUrlConnectionNetworkFetcher
     }
   }
 
-  private HttpURLConnection downloadFrom(Uri uri, int maxRedirects) throws IOException {
+  /**
+   * Checks whether the server answered a resumed request with the rest of the image. It may also
+   * send the whole image if it has changed since the held bytes were received.
+   */
+  private static boolean isResumedResponse(HttpURLConnection connection, int resumeOffset, Uri uri)
+      throws IOException {
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+      return false;
+    }
+    final BytesRange responseRange =
+        BytesRange.fromContentRangeHeader(connection.getHeaderField("Content-Range"));
+    if (responseRange == null || responseRange.from != resumeOffset) {
+      throw new IOException(
+          error(
+              "URL %s returned range %s for a request from byte %d",
+              uri.toString(),
+              responseRange,
+              resumeOffset));
+    }
+    return true;
+  }
+
+  private HttpURLConnection downloadFrom(
+      Download download,
+      Uri uri,
+      int maxRedirects,
+      @Nullable CacheValidators cachedValidators,
+      int resumeOffset,
+      @Nullable String ifRange)
+      throws IOException {
     HttpURLConnection connection = openConnectionTo(uri);
+    download.setConnection(connection);
     if (mUserAgent != null) {
       connection.setRequestProperty("User-Agent", mUserAgent);
     }
+    if (resumeOffset > 0 && ifRange != null) {
+      connection.setRequestProperty(
+          "Range", BytesRange.from(resumeOffset).toHttpRangeHeaderValue());
+      connection.setRequestProperty("If-Range", ifRange);
+    }
+    if (cachedValidators != null) {
+      if (cachedValidators.getETag() != null) {
+        connection.setRequestProperty("If-None-Match", cachedValidators.getETag());
+      }
+      if (cachedValidators.getLastModified() != null) {
+        connection.setRequestProperty("If-Modified-Since", cachedValidators.getLastModified());
+      }
+    }
     connection.setConnectTimeout(mHttpConnectionTimeout);
     int responseCode = connection.getResponseCode();
 
-    if (isHttpSuccess(responseCode)) {
+    if (isHttpSuccess(responseCode)
+        || (cachedValidators != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+        || (resumeOffset > 0 && responseCode == HTTP_RANGE_NOT_SATISFIABLE)) {
       return connection;
 
     } else if (isHttpRedirect(responseCode)) {
@@ -163,7 +262,8 @@ public class HttpUrlConnectionNetworkFetcher
       String originalScheme = uri.getScheme();
 
       if (maxRedirects > 0 && nextUri != null && !nextUri.getScheme().equals(originalScheme)) {
-        return downloadFrom(nextUri, maxRedirects - 1);
+        return downloadFrom(
+            download, nextUri, maxRedirects - 1, cachedValidators, resumeOffset, ifRange);
       } else {
         String message =
             maxRedirects == 0
@@ -186,6 +286,36 @@ public class HttpUrlConnectionNetworkFetcher
     return (HttpURLConnection) url.openConnection();
   }
 
+  /** Connection of a download in progress, disconnected if the download is cancelled. */
+  @ThreadSafe
+  private static class Download {
+
+    @GuardedBy("this")
+    private @Nullable HttpURLConnection mConnection;
+
+    @GuardedBy("this")
+    private boolean mIsCancelled;
+
+    synchronized void setConnection(HttpURLConnection connection) throws IOException {
+      if (mIsCancelled) {
+        throw new IOException("Download cancelled");
+      }
+      mConnection = connection;
+    }
+
+    synchronized void cancel() {
+      mIsCancelled = true;
+      if (mConnection != null) {
+        // fails the blocked reads of the response, on the download thread
+        mConnection.disconnect();
+      }
+    }
+
+    synchronized boolean isCancelled() {
+      return mIsCancelled;
+    }
+  }
+
   @Override
   public void onFetchCompletion(HttpUrlConnectionNetworkFetchState fetchState, int byteSize) {
     fetchState.fetchCompleteTime = mMonotonicClock.now();
@@ -9,22 +9,40 @@ package com.facebook.imagepipeline.producers;
 
 import android.os.SystemClock;
 import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.core.PrioritizedRunnable;
+import com.facebook.imagepipeline.core.PriorityTaskExecutor;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Manages jobs so that only one can be executed at a time and no more often than once in <code>
  * mMinimumJobIntervalMs</code> milliseconds.
+ *
+ * <p>If a producer context is given and the executor is a {@link PriorityTaskExecutor}, queued jobs
+ * are ordered by the current priority of the request and dropped from the queue when cleared.
+ *
+ * <p>With an adaptive job interval, intermediate results are not processed more often than the
+ * measured job duration allows: a job for an intermediate result starts no sooner than {@link
+ * #ADAPTIVE_INTERVAL_FACTOR} times the average job duration after the previous job started. The
+ * intermediate results arriving in the meantime replace each other, so that only the most recent
+ * one gets processed. Last results are only subject to the minimum job interval.
  */
 public class JobScheduler {
 
   static final String QUEUE_TIME_KEY = "queueTime";
 
+  @VisibleForTesting static final int ADAPTIVE_INTERVAL_FACTOR = 2;
+
+  /** Weight of the latest job duration in the average, as a fraction 1 / N. */
+  private static final int JOB_DURATION_SMOOTHING = 4;
+
   @VisibleForTesting
   static class JobStartExecutorSupplier {
 
@@ -47,6 +65,8 @@ public class JobScheduler {
   private final Runnable mDoJobRunnable;
   private final Runnable mSubmitJobRunnable;
   private final int mMinimumJobIntervalMs;
+  private final @Nullable ProducerContext mProducerContext;
+  private final boolean mIsJobIntervalAdaptive;
 
   @VisibleForTesting
   enum JobState {
@@ -79,10 +99,41 @@ public class JobScheduler {
   @VisibleForTesting
   long mJobStartTime;
 
+  /** The runnable submitted to a {@link PriorityTaskExecutor} that has not started yet. */
+  @GuardedBy("this")
+  private @Nullable PrioritizedRunnable mQueuedRunnable;
+
+  /** Kept as a double so that deltas smaller than the smoothing factor are not truncated. */
+  @GuardedBy("this")
+  private double mAverageJobDurationMs;
+
   public JobScheduler(Executor executor, JobRunnable jobRunnable, int minimumJobIntervalMs) {
+    this(executor, jobRunnable, minimumJobIntervalMs, null);
+  }
+
+  public JobScheduler(
+      Executor executor,
+      JobRunnable jobRunnable,
+      int minimumJobIntervalMs,
+      @Nullable ProducerContext producerContext) {
+    this(executor, jobRunnable, minimumJobIntervalMs, producerContext, false);
+  }
+
+  /**
+   * @param isJobIntervalAdaptive whether jobs for intermediate results are spaced according to the
+   *     measured job duration
+   */
+  public JobScheduler(
+      Executor executor,
+      JobRunnable jobRunnable,
+      int minimumJobIntervalMs,
+      @Nullable ProducerContext producerContext,
+      boolean isJobIntervalAdaptive) {
     mExecutor = executor;
     mJobRunnable = jobRunnable;
     mMinimumJobIntervalMs = minimumJobIntervalMs;
+    mIsJobIntervalAdaptive = isJobIntervalAdaptive;
+    mProducerContext = isPriorityAware(executor) ? producerContext : null;
     mDoJobRunnable =
         new Runnable() {
           @Override
@@ -102,6 +153,25 @@ public class JobScheduler {
     mJobState = JobState.IDLE;
     mJobSubmitTime = 0;
     mJobStartTime = 0;
+    if (mProducerContext != null) {
+      mProducerContext.addCallbacks(
+          new BaseProducerContextCallbacks() {
+            @Override
+            public void onPriorityChanged() {
+              final PrioritizedRunnable queuedRunnable;
+              synchronized (JobScheduler.this) {
+                queuedRunnable = mQueuedRunnable;
+              }
+              if (queuedRunnable != null) {
+                ((PriorityTaskExecutor) mExecutor).updatePriority(queuedRunnable);
+              }
+            }
+          });
+    }
+  }
+
+  private static boolean isPriorityAware(Executor executor) {
+    return executor instanceof PriorityTaskExecutor;
   }
 
   /**
@@ -112,12 +182,25 @@ public class JobScheduler {
    */
   public void clearJob() {
     EncodedImage oldEncodedImage;
+    PrioritizedRunnable queuedRunnable;
     synchronized (this) {
       oldEncodedImage = mEncodedImage;
       mEncodedImage = null;
       mStatus = 0;
+      queuedRunnable = mQueuedRunnable;
     }
     EncodedImage.closeSafely(oldEncodedImage);
+    if (queuedRunnable != null && ((PriorityTaskExecutor) mExecutor).remove(queuedRunnable)) {
+      // the job will not run, so it will not move the scheduler out of the queued state either
+      synchronized (this) {
+        if (mQueuedRunnable == queuedRunnable) {
+          mQueuedRunnable = null;
+          mJobState = JobState.IDLE;
+        }
+      }
+      // a new job may have been set and scheduled in the meantime
+      scheduleJob();
+    }
   }
 
   /**
@@ -165,7 +248,7 @@ public class JobScheduler {
       }
       switch (mJobState) {
         case IDLE:
-          when = Math.max(mJobStartTime + mMinimumJobIntervalMs, now);
+          when = Math.max(mJobStartTime + getJobIntervalMs(mStatus), now);
           shouldEnqueue = true;
           mJobSubmitTime = now;
           mJobState = JobState.QUEUED;
@@ -201,8 +284,29 @@ public class JobScheduler {
   }
 
   private void submitJob() {
-    mExecutor.execute(
-        FrescoInstrumenter.decorateRunnable(mDoJobRunnable, "JobScheduler_submitJob"));
+    final Runnable doJobRunnable =
+        FrescoInstrumenter.decorateRunnable(mDoJobRunnable, "JobScheduler_submitJob");
+    final ProducerContext producerContext = mProducerContext;
+    if (producerContext == null) {
+      mExecutor.execute(doJobRunnable);
+      return;
+    }
+    final PrioritizedRunnable prioritizedRunnable =
+        new PrioritizedRunnable() {
+          @Override
+          public Priority getPriority() {
+            return producerContext.getPriority();
+          }
+
+          @Override
+          public void run() {
+            doJobRunnable.run();
+          }
+        };
+    synchronized (this) {
+      mQueuedRunnable = prioritizedRunnable;
+    }
+    mExecutor.execute(prioritizedRunnable);
   }
 
   private void doJob() {
@@ -214,6 +318,7 @@ public class JobScheduler {
       status = mStatus;
       mEncodedImage = null;
       mStatus = 0;
+      mQueuedRunnable = null;
       mJobState = JobState.RUNNING;
       mJobStartTime = now;
     }
@@ -225,17 +330,18 @@ public class JobScheduler {
       }
     } finally {
       EncodedImage.closeSafely(input);
-      onJobFinished();
+      onJobFinished(now);
     }
   }
 
-  private void onJobFinished() {
+  private void onJobFinished(long jobStartTime) {
     long now = SystemClock.uptimeMillis();
     long when = 0;
     boolean shouldEnqueue = false;
     synchronized (this) {
+      updateAverageJobDuration(now - jobStartTime);
       if (mJobState == JobState.RUNNING_AND_PENDING) {
-        when = Math.max(mJobStartTime + mMinimumJobIntervalMs, now);
+        when = Math.max(mJobStartTime + getJobIntervalMs(mStatus), now);
         shouldEnqueue = true;
         mJobSubmitTime = now;
         mJobState = JobState.QUEUED;
@@ -248,6 +354,29 @@ public class JobScheduler {
     }
   }
 
+  @GuardedBy("this")
+  private long getJobIntervalMs(@Consumer.Status int status) {
+    if (!mIsJobIntervalAdaptive || BaseConsumer.isLast(status)) {
+      return mMinimumJobIntervalMs;
+    }
+    return Math.max(
+        mMinimumJobIntervalMs, Math.round(mAverageJobDurationMs * ADAPTIVE_INTERVAL_FACTOR));
+  }
+
+  @GuardedBy("this")
+  private void updateAverageJobDuration(long jobDurationMs) {
+    if (mAverageJobDurationMs == 0) {
+      mAverageJobDurationMs = jobDurationMs;
+    } else {
+      mAverageJobDurationMs += (jobDurationMs - mAverageJobDurationMs) / JOB_DURATION_SMOOTHING;
+    }
+  }
+
+  /** Gets the average duration in milliseconds of the jobs run so far, or 0 if none ran yet. */
+  public synchronized long getAverageJobDurationMs() {
+    return Math.round(mAverageJobDurationMs);
+  }
+
   private static boolean shouldProcess(EncodedImage encodedImage, @Consumer.Status int status) {
     // the last result should always be processed, whereas
     // an intermediate result should be processed only if valid
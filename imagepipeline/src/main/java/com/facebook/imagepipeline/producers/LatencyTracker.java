@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import java.util.Arrays;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/** Keeps the latencies of the most recent operations, to tell a percentile of them. */
+@ThreadSafe
+class LatencyTracker {
+
+  @GuardedBy("this")
+  private final long[] mSamples;
+
+  @GuardedBy("this")
+  private int mSampleCount;
+
+  @GuardedBy("this")
+  private int mNextSample;
+
+  /** @param windowSize number of the most recent latencies kept */
+  LatencyTracker(int windowSize) {
+    mSamples = new long[windowSize];
+  }
+
+  synchronized void record(long latencyMs) {
+    mSamples[mNextSample] = latencyMs;
+    mNextSample = (mNextSample + 1) % mSamples.length;
+    mSampleCount = Math.min(mSampleCount + 1, mSamples.length);
+  }
+
+  /**
+   * @param fraction fraction of the operations, in (0, 1]
+   * @param minSamples number of latencies needed for the percentile to be meaningful
+   * @return latency that the given fraction of the recent operations did not exceed, or -1 if
+   *     fewer than {@code minSamples} latencies have been recorded
+   */
+  synchronized long getPercentile(double fraction, int minSamples) {
+    if (mSampleCount == 0 || mSampleCount < minSamples) {
+      return -1;
+    }
+    final long[] samples = Arrays.copyOf(mSamples, mSampleCount);
+    Arrays.sort(samples);
+    final int index = (int) Math.ceil(fraction * mSampleCount) - 1;
+    return samples[Math.max(0, Math.min(mSampleCount - 1, index))];
+  }
+}
@@ -9,18 +9,19 @@ package com.facebook.imagepipeline.producers;
 
 import android.util.Pair;
 import com.facebook.common.internal.Preconditions;
-import com.facebook.common.internal.Sets;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.util.TriState;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -43,17 +44,14 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
   public static final String EXTRAS_STARTED_AS_PREFETCH = "started_as_prefetch";
 
   /**
-   * Map of multiplexers guarded by "this" lock. The lock should be used only to synchronize
-   * accesses to this map. In particular, no callbacks or third party code should be run under
-   * "this" lock.
+   * Map of multiplexers. The map is concurrent, so lookups, insertions and removals do not need any
+   * lock and concurrent requests for different keys do not serialize on the producer.
    *
    * <p>The map might contain entries in progress, entries in progress for which cancellation has
    * been requested and ignored, or cancelled entries for which onCancellation has not been called
    * yet.
    */
-  @GuardedBy("this")
-  @VisibleForTesting
-  final Map<K, Multiplexer> mMultiplexers;
+  @VisibleForTesting final ConcurrentMap<K, Multiplexer> mMultiplexers;
 
   private final Producer<T> mInputProducer;
 
@@ -75,7 +73,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
       @ProducerContext.ExtraKeys String dedupedRequestsCountKey,
       boolean keepCancelledFetchAsLowPriority) {
     mInputProducer = inputProducer;
-    mMultiplexers = new HashMap<>();
+    mMultiplexers = new ConcurrentHashMap<>();
     mKeepCancelledFetchAsLowPriority = keepCancelledFetchAsLowPriority;
     mProducerName = producerName;
     mDedupedRequestsCountKey = dedupedRequestsCountKey;
@@ -93,22 +91,23 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
       K key = getKey(context);
       Multiplexer multiplexer;
       boolean createdNewMultiplexer;
-      // We do want to limit scope of this lock to guard only accesses to mMultiplexers map.
-      // However what we would like to do here is to atomically lookup mMultiplexers, add new
-      // consumer to consumers set associated with the map's entry and call consumer's callback with
-      // last intermediate result. We should not do all of those things under this lock.
+      // What we would like to do here is to atomically lookup mMultiplexers, add new consumer to
+      // consumers set associated with the map's entry and call consumer's callback with last
+      // intermediate result. Instead of locking, we rely on the concurrent map for the lookup.
       do {
         createdNewMultiplexer = false;
-        synchronized (this) {
-          multiplexer = getExistingMultiplexer(key);
+        multiplexer = getExistingMultiplexer(key);
+        if (multiplexer == null) {
+          final Multiplexer newMultiplexer = new Multiplexer(key);
+          multiplexer = mMultiplexers.putIfAbsent(key, newMultiplexer);
           if (multiplexer == null) {
-            multiplexer = createAndPutNewMultiplexer(key);
+            multiplexer = newMultiplexer;
             createdNewMultiplexer = true;
           }
         }
-        // addNewConsumer may call consumer's onNewResult method immediately. For this reason
-        // we release "this" lock. If multiplexer is removed from mMultiplexers in the meantime,
-        // which is not very probable, then addNewConsumer will fail and we will be able to retry.
+        // addNewConsumer may call consumer's onNewResult method immediately. If multiplexer is
+        // removed from mMultiplexers in the meantime, which is not very probable, then
+        // addNewConsumer will fail and we will be able to retry.
       } while (!multiplexer.addNewConsumer(consumer, context));
 
       if (createdNewMultiplexer) {
@@ -122,20 +121,13 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
   }
 
-  protected synchronized Multiplexer getExistingMultiplexer(K key) {
+  protected @Nullable Multiplexer getExistingMultiplexer(K key) {
     return mMultiplexers.get(key);
   }
 
-  private synchronized Multiplexer createAndPutNewMultiplexer(K key) {
-    Multiplexer multiplexer = new Multiplexer(key);
-    mMultiplexers.put(key, multiplexer);
-    return multiplexer;
-  }
-
-  protected synchronized void removeMultiplexer(K key, Multiplexer multiplexer) {
-    if (mMultiplexers.get(key) == multiplexer) {
-      mMultiplexers.remove(key);
-    }
+  protected void removeMultiplexer(K key, Multiplexer multiplexer) {
+    // Multiplexer does not override equals, so this only removes this exact instance
+    mMultiplexers.remove(key, multiplexer);
   }
 
   protected abstract K getKey(ProducerContext producerContext);
@@ -156,6 +148,11 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
    *
    * <p>In last case new consumers may be added before onCancellation is called. When it is, the
    * Multiplexer has to check if it is the case and start next producer once again if so.
+   *
+   * <p>The prefetch, intermediate-result and priority flags and the deadline of the multiplexed
+   * request are aggregated incrementally: each consumer's last seen flags are counted, so adding,
+   * removing or updating a consumer is O(1) instead of a rescan of all consumers. The deadline is
+   * the latest deadline of the consumers seen so far, so a consumer leaving does not shorten it.
    */
   @VisibleForTesting
   class Multiplexer {
@@ -177,7 +174,32 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
      *   <li>cancellation notification is received and mConsumerContextPairs is empty
      * </ul>
      */
-    private final CopyOnWriteArraySet<Pair<Consumer<T>, ProducerContext>> mConsumerContextPairs;
+    @GuardedBy("Multiplexer.this")
+    private final LinkedHashMap<Pair<Consumer<T>, ProducerContext>, ConsumerState>
+        mConsumerContextPairs;
+
+    /**
+     * Immutable snapshot of the keys of mConsumerContextPairs used to deliver results without
+     * holding the lock. Invalidated whenever a consumer is added or removed.
+     */
+    @GuardedBy("Multiplexer.this")
+    @Nullable
+    private List<Pair<Consumer<T>, ProducerContext>> mConsumerContextPairsSnapshot;
+
+    @GuardedBy("Multiplexer.this")
+    private int mNonPrefetchConsumersCount;
+
+    @GuardedBy("Multiplexer.this")
+    private int mIntermediateResultExpectedConsumersCount;
+
+    @GuardedBy("Multiplexer.this")
+    private final int[] mPriorityCounts = new int[Priority.values().length];
+
+    @GuardedBy("Multiplexer.this")
+    private int mNoDeadlineConsumersCount;
+
+    @GuardedBy("Multiplexer.this")
+    private long mLatestDeadlineMs = ProducerContext.NO_DEADLINE;
 
     @GuardedBy("Multiplexer.this")
     @Nullable
@@ -214,7 +236,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     private ForwardingConsumer mForwardingConsumer;
 
     public Multiplexer(K key) {
-      mConsumerContextPairs = Sets.newCopyOnWriteArraySet();
+      mConsumerContextPairs = new LinkedHashMap<>();
       mKey = key;
     }
 
@@ -245,9 +267,10 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         if (getExistingMultiplexer(mKey) != this) {
           return false;
         }
-        mConsumerContextPairs.add(consumerContextPair);
+        addConsumerContextPair(consumerContextPair);
         prefetchCallbacks = updateIsPrefetch();
         priorityCallbacks = updatePriority();
+        updateDeadline();
         intermediateResultsCallbacks = updateIsIntermediateResultExpected();
         lastIntermediateResult = mLastIntermediateResult;
         lastProgress = mLastProgress;
@@ -299,7 +322,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
               final boolean pairWasRemoved;
 
               synchronized (Multiplexer.this) {
-                pairWasRemoved = mConsumerContextPairs.remove(consumerContextPair);
+                pairWasRemoved = removeConsumerContextPair(consumerContextPair);
                 if (pairWasRemoved) {
                   if (mConsumerContextPairs.isEmpty()) {
                     contextToCancel = mMultiplexProducerContext;
@@ -307,6 +330,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
                     isPrefetchCallbacks = updateIsPrefetch();
                     priorityCallbacks = updatePriority();
                     isIntermediateResultExpectedCallbacks = updateIsIntermediateResultExpected();
+                    updateDeadline();
                   }
                 }
               }
@@ -332,18 +356,35 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
 
             @Override
             public void onIsPrefetchChanged() {
-              BaseProducerContext.callOnIsPrefetchChanged(updateIsPrefetch());
+              final List<ProducerContextCallbacks> callbacks;
+              synchronized (Multiplexer.this) {
+                refreshConsumerState(consumerContextPair);
+                callbacks = updateIsPrefetch();
+                updateDeadline();
+              }
+              BaseProducerContext.callOnIsPrefetchChanged(callbacks);
             }
 
             @Override
             public void onIsIntermediateResultExpectedChanged() {
-              BaseProducerContext.callOnIsIntermediateResultExpectedChanged(
-                  updateIsIntermediateResultExpected());
+              final List<ProducerContextCallbacks> callbacks;
+              synchronized (Multiplexer.this) {
+                refreshConsumerState(consumerContextPair);
+                callbacks = updateIsIntermediateResultExpected();
+                updateDeadline();
+              }
+              BaseProducerContext.callOnIsIntermediateResultExpectedChanged(callbacks);
             }
 
             @Override
             public void onPriorityChanged() {
-              BaseProducerContext.callOnPriorityChanged(updatePriority());
+              final List<ProducerContextCallbacks> callbacks;
+              synchronized (Multiplexer.this) {
+                refreshConsumerState(consumerContextPair);
+                callbacks = updatePriority();
+                updateDeadline();
+              }
+              BaseProducerContext.callOnPriorityChanged(callbacks);
             }
           });
     }
@@ -366,7 +407,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
           return;
         }
 
-        ProducerContext producerContext = mConsumerContextPairs.iterator().next().second;
+        ProducerContext producerContext = mConsumerContextPairs.keySet().iterator().next().second;
         mMultiplexProducerContext =
             new BaseProducerContext(
                 producerContext.getImageRequest(),
@@ -378,6 +419,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
                 computeIsIntermediateResultExpected(),
                 computePriority(),
                 producerContext.getImagePipelineConfig());
+        mMultiplexProducerContext.setDeadlineMs(computeDeadline());
         if (startedAsPrefetch.isSet()) {
           mMultiplexProducerContext.setExtra(
               EXTRAS_STARTED_AS_PREFETCH, startedAsPrefetch.asBoolean());
@@ -399,12 +441,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
 
     private synchronized boolean computeIsPrefetch() {
-      for (Pair<Consumer<T>, ProducerContext> pair : mConsumerContextPairs) {
-        if (!pair.second.isPrefetch()) {
-          return false;
-        }
-      }
-      return true;
+      return mNonPrefetchConsumersCount == 0;
     }
 
     @Nullable
@@ -417,12 +454,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
 
     private synchronized boolean computeIsIntermediateResultExpected() {
-      for (Pair<Consumer<T>, ProducerContext> pair : mConsumerContextPairs) {
-        if (pair.second.isIntermediateResultExpected()) {
-          return true;
-        }
-      }
-      return false;
+      return mIntermediateResultExpectedConsumersCount > 0;
     }
 
     @Nullable
@@ -433,12 +465,99 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
       return mMultiplexProducerContext.setPriorityNoCallbacks(computePriority());
     }
 
+    private synchronized void updateDeadline() {
+      if (mMultiplexProducerContext != null) {
+        mMultiplexProducerContext.setDeadlineMs(computeDeadline());
+      }
+    }
+
+    /** The shared request is needed until the latest deadline of its consumers. */
+    private synchronized long computeDeadline() {
+      return mNoDeadlineConsumersCount > 0 ? ProducerContext.NO_DEADLINE : mLatestDeadlineMs;
+    }
+
     private synchronized Priority computePriority() {
-      Priority priority = Priority.LOW;
-      for (Pair<Consumer<T>, ProducerContext> pair : mConsumerContextPairs) {
-        priority = Priority.getHigherPriority(priority, pair.second.getPriority());
+      final Priority[] priorities = Priority.values();
+      for (int i = priorities.length - 1; i > 0; i--) {
+        if (mPriorityCounts[i] > 0) {
+          return priorities[i];
+        }
+      }
+      return Priority.LOW;
+    }
+
+    @GuardedBy("Multiplexer.this")
+    private void addConsumerContextPair(Pair<Consumer<T>, ProducerContext> consumerContextPair) {
+      if (mConsumerContextPairs.containsKey(consumerContextPair)) {
+        return;
+      }
+      final ConsumerState state = new ConsumerState(consumerContextPair.second);
+      mConsumerContextPairs.put(consumerContextPair, state);
+      mConsumerContextPairsSnapshot = null;
+      countConsumerState(state, 1);
+    }
+
+    @GuardedBy("Multiplexer.this")
+    private boolean removeConsumerContextPair(
+        Pair<Consumer<T>, ProducerContext> consumerContextPair) {
+      final ConsumerState state = mConsumerContextPairs.remove(consumerContextPair);
+      if (state == null) {
+        return false;
+      }
+      mConsumerContextPairsSnapshot = null;
+      countConsumerState(state, -1);
+      return true;
+    }
+
+    @GuardedBy("Multiplexer.this")
+    private void clearConsumerContextPairs() {
+      mConsumerContextPairs.clear();
+      mConsumerContextPairsSnapshot = null;
+      mNonPrefetchConsumersCount = 0;
+      mIntermediateResultExpectedConsumersCount = 0;
+      for (int i = 0; i < mPriorityCounts.length; i++) {
+        mPriorityCounts[i] = 0;
+      }
+      mNoDeadlineConsumersCount = 0;
+      mLatestDeadlineMs = ProducerContext.NO_DEADLINE;
+    }
+
+    /** Re-reads the flags of the given consumer's context and updates the aggregated counts. */
+    @GuardedBy("Multiplexer.this")
+    private void refreshConsumerState(Pair<Consumer<T>, ProducerContext> consumerContextPair) {
+      final ConsumerState state = mConsumerContextPairs.get(consumerContextPair);
+      if (state == null) {
+        return;
+      }
+      countConsumerState(state, -1);
+      state.read(consumerContextPair.second);
+      countConsumerState(state, 1);
+    }
+
+    @GuardedBy("Multiplexer.this")
+    private void countConsumerState(ConsumerState state, int delta) {
+      if (!state.mIsPrefetch) {
+        mNonPrefetchConsumersCount += delta;
+      }
+      if (state.mIsIntermediateResultExpected) {
+        mIntermediateResultExpectedConsumersCount += delta;
+      }
+      mPriorityCounts[state.mPriority.ordinal()] += delta;
+      if (state.mDeadlineMs == ProducerContext.NO_DEADLINE) {
+        mNoDeadlineConsumersCount += delta;
+      } else if (delta > 0) {
+        mLatestDeadlineMs = Math.max(mLatestDeadlineMs, state.mDeadlineMs);
+      }
+    }
+
+    /** Returns the consumers to deliver results to. The returned list must not be modified. */
+    @GuardedBy("Multiplexer.this")
+    private List<Pair<Consumer<T>, ProducerContext>> getConsumerContextPairsSnapshot() {
+      if (mConsumerContextPairsSnapshot == null) {
+        mConsumerContextPairsSnapshot =
+            Collections.unmodifiableList(new ArrayList<>(mConsumerContextPairs.keySet()));
       }
-      return priority;
+      return mConsumerContextPairsSnapshot;
     }
 
     public void onFailure(final ForwardingConsumer consumer, final Throwable t) {
@@ -449,9 +568,9 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
           return;
         }
 
-        iterator = mConsumerContextPairs.iterator();
+        iterator = getConsumerContextPairsSnapshot().iterator();
 
-        mConsumerContextPairs.clear();
+        clearConsumerContextPairs();
         removeMultiplexer(mKey, this);
         closeSafely(mLastIntermediateResult);
         mLastIntermediateResult = null;
@@ -483,13 +602,13 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         closeSafely(mLastIntermediateResult);
         mLastIntermediateResult = null;
 
-        iterator = mConsumerContextPairs.iterator();
+        iterator = getConsumerContextPairsSnapshot().iterator();
         size = mConsumerContextPairs.size();
         if (BaseConsumer.isNotLast(status)) {
           mLastIntermediateResult = cloneOrNull(closeableObject);
           mLastStatus = status;
         } else {
-          mConsumerContextPairs.clear();
+          clearConsumerContextPairs();
           removeMultiplexer(mKey, this);
         }
       }
@@ -536,7 +655,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         }
 
         mLastProgress = progress;
-        iterator = mConsumerContextPairs.iterator();
+        iterator = getConsumerContextPairsSnapshot().iterator();
       }
 
       while (iterator.hasNext()) {
@@ -557,6 +676,25 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
       }
     }
 
+    /** Flags of a consumer's context as last accounted for in the aggregated counts. */
+    private class ConsumerState {
+      private boolean mIsPrefetch;
+      private boolean mIsIntermediateResultExpected;
+      private Priority mPriority;
+      private long mDeadlineMs;
+
+      ConsumerState(ProducerContext producerContext) {
+        read(producerContext);
+      }
+
+      void read(ProducerContext producerContext) {
+        mIsPrefetch = producerContext.isPrefetch();
+        mIsIntermediateResultExpected = producerContext.isIntermediateResultExpected();
+        mPriority = producerContext.getPriority();
+        mDeadlineMs = producerContext.getDeadlineMs();
+      }
+    }
+
     /** Forwards {@link Consumer} methods to Multiplexer. */
     private class ForwardingConsumer extends BaseConsumer<T> {
       @Override
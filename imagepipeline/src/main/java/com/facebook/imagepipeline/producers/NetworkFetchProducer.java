@@ -8,18 +8,25 @@
 package com.facebook.imagepipeline.producers;
 
 import android.os.SystemClock;
+import bolts.Continuation;
+import bolts.Task;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
+import com.facebook.common.memory.PooledByteBufferInputStream;
 import com.facebook.common.memory.PooledByteBufferOutputStream;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imageformat.ImageFormat;
+import com.facebook.imageformat.ImageFormatChecker;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.image.EncodedImageOrigin;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -29,6 +36,20 @@ import javax.annotation.Nullable;
  * <p>Downloaded bytes may be passed to the consumer as they are downloaded, but not more often than
  * {@link #TIME_BETWEEN_PARTIAL_RESULTS_MS}.
  *
+ * <p>If {@link DiskCacheWriteProducer} provides a {@link DiskCacheWriteThrough}, downloaded bytes
+ * are also teed to the disk cache as they are downloaded, and written on its write executor. The
+ * entry is committed once the response is complete, and discarded if the download fails or is
+ * cancelled.
+ *
+ * <p>If it provides a {@link ResumableDownload}, the bytes received by a download that fails or is
+ * cancelled are kept in the disk cache, and the next download of the image resumes from them if
+ * the fetcher supports it. The bytes received by a download that is pre-empted by the fetcher are
+ * kept on the {@link FetchState} instead, for the fetcher to resume from when it fetches again.
+ *
+ * <p>The callback passed to the fetcher is a {@link NetworkFetcher.PushCallback}: a fetcher may
+ * push the bytes of the body to it as they are received, instead of passing a stream that the
+ * producer reads, blocking a thread of the fetcher until the download ends.
+ *
  * <p>Clients should provide an instance of {@link NetworkFetcher} to make use of their networking
  * stack. Use {@link HttpUrlConnectionNetworkFetcher} as a model.
  */
@@ -62,9 +83,54 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   public void produceResults(Consumer<EncodedImage> consumer, ProducerContext context) {
     context.getProducerListener().onProducerStart(context, PRODUCER_NAME);
     final FetchState fetchState = mNetworkFetcher.createFetchState(consumer, context);
+    fetchState.setCachedValidators(
+        context.<CacheValidators>getExtra(ProducerContext.ExtraKeys.CACHED_VALIDATORS));
+    final ResumableDownload resumableDownload = getResumableDownload(fetchState);
+    if (resumableDownload != null && resumableDownload.mayHavePartialBody()) {
+      resumableDownload
+          .readPartialBody()
+          .continueWith(
+              new Continuation<EncodedImage, Void>() {
+                @Override
+                public Void then(Task<EncodedImage> task) throws Exception {
+                  final EncodedImage partialBody =
+                      task.isCancelled() || task.isFaulted() ? null : task.getResult();
+                  if (partialBody == null) {
+                    fetch(fetchState);
+                    return null;
+                  }
+                  resumableDownload
+                      .readValidators()
+                      .continueWith(
+                          new Continuation<CacheValidators, Void>() {
+                            @Override
+                            public Void then(Task<CacheValidators> validatorsTask) {
+                              maybeSetResume(
+                                  fetchState,
+                                  resumableDownload,
+                                  partialBody,
+                                  validatorsTask.isCancelled() || validatorsTask.isFaulted()
+                                      ? null
+                                      : validatorsTask.getResult());
+                              fetch(fetchState);
+                              return null;
+                            }
+                          });
+                  return null;
+                }
+              });
+    } else {
+      fetch(fetchState);
+    }
+  }
+
+  private void fetch(final FetchState fetchState) {
     mNetworkFetcher.fetch(
         fetchState,
-        new NetworkFetcher.Callback() {
+        new NetworkFetcher.PushCallback() {
+          /** Receiver of the body being pushed, if any. */
+          private @Nullable ResponseReceiver mPushReceiver;
+
           @Override
           public void onResponse(InputStream response, int responseLength) throws IOException {
             if (FrescoSystrace.isTracing()) {
@@ -76,46 +142,322 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
             }
           }
 
+          @Override
+          public void onResponseStart(int responseLength) throws IOException {
+            mPushReceiver = new ResponseReceiver(fetchState);
+            mPushReceiver.start(responseLength);
+          }
+
+          @Override
+          public void onResponseBytes(byte[] buffer, int offset, int count) throws IOException {
+            mPushReceiver.write(buffer, offset, count);
+          }
+
+          @Override
+          public void onResponseEnd() throws IOException {
+            mPushReceiver.end();
+            mPushReceiver.close();
+            mPushReceiver = null;
+          }
+
           @Override
           public void onFailure(Throwable throwable) {
+            abortPushedResponse(throwable instanceof PreemptedException);
             NetworkFetchProducer.this.onFailure(fetchState, throwable);
           }
 
           @Override
           public void onCancellation() {
+            abortPushedResponse(false);
             NetworkFetchProducer.this.onCancellation(fetchState);
           }
+
+          private void abortPushedResponse(boolean isPreempted) {
+            if (mPushReceiver != null) {
+              mPushReceiver.fail(isPreempted);
+              mPushReceiver.close();
+              mPushReceiver = null;
+            }
+          }
         });
   }
 
   protected void onResponse(
       FetchState fetchState, InputStream responseData, int responseContentLength)
       throws IOException {
-    final PooledByteBufferOutputStream pooledOutputStream;
-    if (responseContentLength > 0) {
-      pooledOutputStream = mPooledByteBufferFactory.newOutputStream(responseContentLength);
-    } else {
-      pooledOutputStream = mPooledByteBufferFactory.newOutputStream();
+    final ResponseReceiver receiver = new ResponseReceiver(fetchState);
+    try {
+      receiver.start(responseContentLength);
+      while (receiver.read(responseData) >= 0) {}
+      receiver.end();
+    } catch (IOException e) {
+      receiver.fail(e instanceof PreemptedException);
+      throw e;
+    } finally {
+      receiver.close();
+    }
+  }
+
+  /**
+   * Response of a fetch, received either by reading the stream passed to {@link
+   * NetworkFetcher.Callback#onResponse}, or from the bytes pushed to a {@link
+   * NetworkFetcher.PushCallback}. It is used by one thread at a time.
+   *
+   * <p>Once {@link #end} completes, or after {@link #fail}, the receiver must be closed.
+   */
+  private class ResponseReceiver {
+
+    private final FetchState mFetchState;
+    private final @Nullable CacheValidators mResumeValidators;
+    private final @Nullable EncodedImage mResumeBody;
+    private final boolean mIsNotModified;
+    private int mTotalLength;
+    private @Nullable PooledByteBufferOutputStream mPooledOutputStream;
+    private @Nullable OutputStream mOutputStream;
+    private @Nullable DiskCacheWriteThrough mWriteThrough;
+    private @Nullable byte[] mIoArray;
+
+    ResponseReceiver(FetchState fetchState) {
+      mFetchState = fetchState;
+      mResumeValidators = fetchState.getResumeValidators();
+      mResumeBody = fetchState.takeResumeBody();
+      mIsNotModified = fetchState.isNotModified() && fetchState.getCachedValidators() != null;
+    }
+
+    void start(int responseContentLength) throws IOException {
+      if (mIsNotModified) {
+        return;
+      }
+      if (mFetchState.isResumed() && mResumeBody == null) {
+        throw new IOException("Resumed response without the bytes it resumes from");
+      }
+      final EncodedImage resumedBody = mFetchState.isResumed() ? mResumeBody : null;
+      mTotalLength =
+          resumedBody != null && responseContentLength > 0
+              ? resumedBody.getSize() + responseContentLength
+              : responseContentLength;
+      if (mTotalLength > 0) {
+        mPooledOutputStream = mPooledByteBufferFactory.newOutputStream(mTotalLength);
+      } else {
+        mPooledOutputStream = mPooledByteBufferFactory.newOutputStream();
+      }
+      mIoArray = mByteArrayPool.get(READ_SIZE);
+      mWriteThrough = getDiskCacheWriteThrough(mFetchState);
+      mOutputStream =
+          mWriteThrough != null ? mWriteThrough.start(mPooledOutputStream) : mPooledOutputStream;
+      if (resumedBody != null) {
+        copyResumedBody(resumedBody, mOutputStream, mIoArray);
+      }
+    }
+
+    /**
+     * Reads the next bytes of the response from the stream.
+     *
+     * @return number of bytes read, or -1 if the end of the response has been reached
+     */
+    int read(InputStream responseData) throws IOException {
+      if (mIsNotModified) {
+        // the body of a 304 is not read
+        return -1;
+      }
+      final int length = NetworkFetchProducer.read(responseData, mOutputStream, mIoArray);
+      if (length > 0) {
+        onBytesRead(mFetchState, mPooledOutputStream, mTotalLength);
+      }
+      return length;
+    }
+
+    void write(byte[] buffer, int offset, int count) throws IOException {
+      if (mIsNotModified || count == 0) {
+        return;
+      }
+      mOutputStream.write(buffer, offset, count);
+      onBytesRead(mFetchState, mPooledOutputStream, mTotalLength);
+    }
+
+    /** Passes the complete response to the consumer. */
+    void end() throws IOException {
+      if (mIsNotModified) {
+        mNetworkFetcher.onFetchCompletion(mFetchState, 0);
+        handleNotModified(mFetchState);
+        return;
+      }
+      if (mWriteThrough != null) {
+        // like DiskCacheWriteProducer, responses that are not images are not cached
+        mWriteThrough.end(getImageFormat(mPooledOutputStream) != ImageFormat.UNKNOWN);
+      }
+      if (mResumeBody != null) {
+        // the held bytes are not needed anymore once the whole image is downloaded
+        final ResumableDownload resumableDownload = getResumableDownload(mFetchState);
+        if (resumableDownload != null) {
+          resumableDownload.discard();
+        }
+      }
+      mNetworkFetcher.onFetchCompletion(mFetchState, mPooledOutputStream.size());
+      handleFinalResult(mPooledOutputStream, mFetchState);
+    }
+
+    /** Keeps the bytes received so far for the next fetch to resume from, if it can. */
+    void fail(boolean isPreempted) {
+      if (mPooledOutputStream != null) {
+        if (isPreempted) {
+          maybeHoldPartialBody(mFetchState, mPooledOutputStream);
+        } else {
+          maybeSavePartialBody(mFetchState, mPooledOutputStream);
+        }
+      }
+      if (isPreempted && mResumeBody != null && mFetchState.getResumeOffset() == 0) {
+        // no newer bytes were held, the next attempt resumes from the same ones as this one
+        mFetchState.setResume(mResumeBody.getSize(), mResumeValidators);
+        mFetchState.setResumeBody(EncodedImage.cloneOrNull(mResumeBody));
+      }
+    }
+
+    void close() {
+      if (mWriteThrough != null) {
+        // discards the entry if the response is not complete
+        mWriteThrough.end(false);
+      }
+      if (mIoArray != null) {
+        mByteArrayPool.release(mIoArray);
+      }
+      if (mPooledOutputStream != null) {
+        mPooledOutputStream.close();
+      }
+      EncodedImage.closeSafely(mResumeBody);
+    }
+  }
+
+  private static void copyResumedBody(
+      EncodedImage resumedBody, OutputStream outputStream, byte[] ioArray) throws IOException {
+    final InputStream is = resumedBody.getInputStream();
+    if (is == null) {
+      throw new IOException("Bytes to resume from are not available");
     }
-    final byte[] ioArray = mByteArrayPool.get(READ_SIZE);
     try {
       int length;
-      while ((length = responseData.read(ioArray)) >= 0) {
-        if (length > 0) {
-          pooledOutputStream.write(ioArray, 0, length);
-          maybeHandleIntermediateResult(pooledOutputStream, fetchState);
-          float progress = calculateProgress(pooledOutputStream.size(), responseContentLength);
-          fetchState.getConsumer().onProgressUpdate(progress);
-        }
+      while ((length = is.read(ioArray)) >= 0) {
+        outputStream.write(ioArray, 0, length);
       }
-      mNetworkFetcher.onFetchCompletion(fetchState, pooledOutputStream.size());
-      handleFinalResult(pooledOutputStream, fetchState);
     } finally {
-      mByteArrayPool.release(ioArray);
-      pooledOutputStream.close();
+      is.close();
     }
   }
 
+  /**
+   * Reads the next bytes of the response into the output stream. They are written straight from
+   * the buffers of the network client if the response is {@link DirectReadable}.
+   *
+   * @return number of bytes read, or -1 if the end of the response has been reached
+   */
+  private static int read(InputStream responseData, OutputStream outputStream, byte[] ioArray)
+      throws IOException {
+    if (responseData instanceof DirectReadable) {
+      return ((DirectReadable) responseData).readTo(outputStream, ioArray.length);
+    }
+    final int length = responseData.read(ioArray);
+    if (length > 0) {
+      outputStream.write(ioArray, 0, length);
+    }
+    return length;
+  }
+
+  private void onBytesRead(
+      FetchState fetchState,
+      PooledByteBufferOutputStream pooledOutputStream,
+      int responseContentLength)
+      throws IOException {
+    maybeHandleIntermediateResult(pooledOutputStream, fetchState);
+    float progress = calculateProgress(pooledOutputStream.size(), responseContentLength);
+    fetchState.getConsumer().onProgressUpdate(progress);
+  }
+
+  @Nullable
+  private static ResumableDownload getResumableDownload(FetchState fetchState) {
+    // revalidations of a cached image are not resumed
+    if (fetchState.getCachedValidators() != null) {
+      return null;
+    }
+    return fetchState.getContext().getExtra(ProducerContext.ExtraKeys.RESUMABLE_DOWNLOAD);
+  }
+
+  /**
+   * Sets the fetch to resume from the held bytes, if they are part of a response that can be
+   * resumed. Otherwise they are discarded.
+   */
+  private static void maybeSetResume(
+      FetchState fetchState,
+      ResumableDownload resumableDownload,
+      EncodedImage partialBody,
+      @Nullable CacheValidators validators) {
+    if (validators != null && validators.getIfRange() != null && partialBody.getSize() > 0) {
+      fetchState.setResume(partialBody.getSize(), validators);
+      fetchState.setResumeBody(partialBody);
+    } else {
+      partialBody.close();
+      resumableDownload.discard();
+    }
+  }
+
+  /** Keeps the bytes received by a fetch that failed, for the next fetch to resume from. */
+  private static void maybeSavePartialBody(
+      FetchState fetchState, PooledByteBufferOutputStream pooledOutputStream) {
+    final ResumableDownload resumableDownload = getResumableDownload(fetchState);
+    final CacheValidators validators = fetchState.getResponseValidators();
+    if (resumableDownload == null
+        || validators == null
+        || validators.getIfRange() == null
+        || fetchState.getResponseBytesRange() != null
+        || pooledOutputStream.size() == 0) {
+      return;
+    }
+    CloseableReference<PooledByteBuffer> result =
+        CloseableReference.of(pooledOutputStream.toByteBuffer());
+    EncodedImage partialBody = null;
+    try {
+      partialBody = new EncodedImage(result);
+      resumableDownload.save(partialBody, validators);
+    } finally {
+      EncodedImage.closeSafely(partialBody);
+      CloseableReference.closeSafely(result);
+    }
+  }
+
+  /**
+   * Keeps the bytes received by a fetch that was pre-empted on the fetch state, so that the fetcher
+   * resumes from them when it fetches the image again.
+   */
+  private static void maybeHoldPartialBody(
+      FetchState fetchState, PooledByteBufferOutputStream pooledOutputStream) {
+    final CacheValidators validators = fetchState.getResponseValidators();
+    if (validators == null
+        || validators.getIfRange() == null
+        || fetchState.getResponseBytesRange() != null
+        || pooledOutputStream.size() == 0) {
+      return;
+    }
+    CloseableReference<PooledByteBuffer> result =
+        CloseableReference.of(pooledOutputStream.toByteBuffer());
+    try {
+      fetchState.setResume(pooledOutputStream.size(), validators);
+      fetchState.setResumeBody(new EncodedImage(result));
+    } finally {
+      CloseableReference.closeSafely(result);
+    }
+  }
+
+  @Nullable
+  private static DiskCacheWriteThrough getDiskCacheWriteThrough(FetchState fetchState) {
+    // partial responses and the ones not to be cached are left to the producers that handle them
+    if (fetchState.getResponseBytesRange() != null
+        || (fetchState.getOnNewResultStatusFlags()
+                & (Consumer.DO_NOT_CACHE_ENCODED | Consumer.IS_PARTIAL_RESULT))
+            != 0) {
+      return null;
+    }
+    return fetchState.getContext().getExtra(ProducerContext.ExtraKeys.DISK_CACHE_WRITE_THROUGH);
+  }
+
   protected static float calculateProgress(int downloaded, int total) {
     if (total > 0) {
       return (float) downloaded / total;
@@ -162,6 +504,15 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
     listener.onProducerFinishWithSuccess(fetchState.getContext(), PRODUCER_NAME, extraMap);
     listener.onUltimateProducerReached(fetchState.getContext(), PRODUCER_NAME, true);
     fetchState.getContext().putOriginExtra("network");
+    fetchState
+        .getContext()
+        .setExtra(ProducerContext.ExtraKeys.FETCHED_SIZE, pooledOutputStream.size());
+    if (fetchState.getResponseValidators() != null) {
+      fetchState
+          .getContext()
+          .setExtra(
+              ProducerContext.ExtraKeys.RESPONSE_VALIDATORS, fetchState.getResponseValidators());
+    }
     notifyConsumer(
         pooledOutputStream,
         Consumer.IS_LAST | fetchState.getOnNewResultStatusFlags(),
@@ -170,6 +521,27 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
         fetchState.getContext());
   }
 
+  /**
+   * Handles a 304 Not Modified answer to a revalidation. No image is passed to the consumer and the
+   * {@link ProducerContext.ExtraKeys#NOT_MODIFIED} extra is set: the producer that requested the
+   * revalidation holds the cached image and uses it instead.
+   */
+  protected void handleNotModified(FetchState fetchState) {
+    ProducerListener2 listener = fetchState.getListener();
+    listener.onProducerFinishWithSuccess(
+        fetchState.getContext(), PRODUCER_NAME, getExtraMap(fetchState, 0));
+    listener.onUltimateProducerReached(fetchState.getContext(), PRODUCER_NAME, true);
+    fetchState.getContext().putOriginExtra("network", "not_modified");
+    fetchState.getContext().setExtra(ProducerContext.ExtraKeys.NOT_MODIFIED, true);
+    if (fetchState.getResponseValidators() != null) {
+      fetchState
+          .getContext()
+          .setExtra(
+              ProducerContext.ExtraKeys.RESPONSE_VALIDATORS, fetchState.getResponseValidators());
+    }
+    fetchState.getConsumer().onNewResult(null, Consumer.IS_LAST);
+  }
+
   protected static void notifyConsumer(
       PooledByteBufferOutputStream pooledOutputStream,
       @Consumer.Status int status,
@@ -192,6 +564,7 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   }
 
   private void onFailure(FetchState fetchState, Throwable e) {
+    EncodedImage.closeSafely(fetchState.takeResumeBody());
     fetchState
         .getListener()
         .onProducerFinishWithFailure(fetchState.getContext(), PRODUCER_NAME, e, null);
@@ -203,6 +576,7 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   }
 
   private void onCancellation(FetchState fetchState) {
+    EncodedImage.closeSafely(fetchState.takeResumeBody());
     fetchState
         .getListener()
         .onProducerFinishWithCancellation(fetchState.getContext(), PRODUCER_NAME, null);
@@ -228,4 +602,14 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   protected long getSystemUptime() {
     return SystemClock.uptimeMillis();
   }
+
+  private static ImageFormat getImageFormat(PooledByteBufferOutputStream pooledOutputStream) {
+    final PooledByteBuffer buffer = pooledOutputStream.toByteBuffer();
+    try {
+      return ImageFormatChecker.getImageFormat_WrapIOException(
+          new PooledByteBufferInputStream(buffer));
+    } finally {
+      buffer.close();
+    }
+  }
 }
@@ -49,6 +49,32 @@ public interface NetworkFetcher<FETCH_STATE extends FetchState> {
     void onCancellation();
   }
 
+  /**
+   * Callback that the body of a response can be pushed to as it is received, instead of being
+   * passed as a stream that a thread then blocks reading.
+   *
+   * <p>A fetcher that supports it calls {@link #onResponseStart}, then {@link #onResponseBytes}
+   * for each part of the body, and {@link #onResponseEnd} once the body is complete. If one of
+   * them throws, or the download fails or is cancelled in between, the fetcher drops the response
+   * and calls {@link #onFailure} or {@link #onCancellation} instead. The calls are made one after
+   * the other, though not necessarily on the same thread, and must not block.
+   */
+  interface PushCallback extends Callback {
+
+    /**
+     * Called upon a response whose body is pushed.
+     *
+     * @param responseLength the length of the body if known, -1 otherwise
+     */
+    void onResponseStart(int responseLength) throws IOException;
+
+    /** Called upon the next bytes of the body. The buffer is only valid during the call. */
+    void onResponseBytes(byte[] buffer, int offset, int count) throws IOException;
+
+    /** Called once the whole body has been pushed. */
+    void onResponseEnd() throws IOException;
+  }
+
   /**
    * Creates a new instance of the {@link FetchState}-derived object used to store state.
    *
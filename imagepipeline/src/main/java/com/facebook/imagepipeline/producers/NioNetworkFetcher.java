@@ -0,0 +1,1242 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
+import android.security.NetworkSecurityPolicy;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.logging.FLog;
+import com.facebook.common.time.MonotonicClock;
+import com.facebook.common.time.RealtimeSinceBootClock;
+import com.facebook.imagepipeline.cache.CacheValidators;
+import com.facebook.imagepipeline.common.BytesRange;
+import com.facebook.imagepipeline.core.PriorityThreadFactory;
+import com.facebook.imagepipeline.image.EncodedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownServiceException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Network fetcher that downloads cleartext HTTP over non-blocking sockets.
+ *
+ * <p>Unlike {@link HttpUrlConnectionNetworkFetcher}, which blocks one of its three threads for the
+ * whole duration of each download, connecting, sending the requests and receiving the responses of
+ * all downloads are multiplexed on a couple of selector threads, so that many images can be
+ * downloaded at once and slow servers do not hold up the others. Keep-alive connections are pooled
+ * per host.
+ *
+ * <p>If the callback is a {@link NetworkFetcher.PushCallback}, as the one of {@link
+ * NetworkFetchProducer} is, the selector thread pushes the bytes of the body to it as they are
+ * received, straight into the producer's pooled stream, and no thread waits on the download.
+ * Otherwise, for instance when the fetcher is wrapped by a {@link PriorityNetworkFetcher}, the body
+ * is passed as a stream read by one of {@link #NUM_WORKER_THREADS} worker threads, which blocks
+ * until the download ends. A selector thread then stops reading from the socket of a response while
+ * {@link #MAX_BUFFERED_BYTES} of its body are waiting to be read. Cancelling the request closes its
+ * socket.
+ *
+ * <p>This fetcher is limited to cleartext HTTP, as it does not implement TLS. HTTPS URIs, that is
+ * most image traffic, get none of the above: they, other schemes, and requests that the system
+ * {@link ProxySelector} sends through a SOCKS proxy, are fetched with a {@link
+ * HttpUrlConnectionNetworkFetcher} instead, one thread per download. Requests through an HTTP proxy
+ * are sent to the first proxy selected. Requests to hosts for which the {@link
+ * NetworkSecurityPolicy} does not permit cleartext traffic fail, as they would with {@link
+ * HttpURLConnection}.
+ *
+ * <p>The downloads it handles are not resumed after an interruption. Its threads are stopped with
+ * {@link #shutdown()}.
+ */
+public class NioNetworkFetcher extends BaseNetworkFetcher<NioNetworkFetcher.NioFetchState> {
+
+  public static class NioFetchState extends FetchState {
+
+    private long submitTime;
+    private long responseTime;
+    private long fetchCompleteTime;
+    private @Nullable HttpUrlConnectionNetworkFetcher.HttpUrlConnectionNetworkFetchState
+        fallbackState;
+
+    public NioFetchState(Consumer<EncodedImage> consumer, ProducerContext producerContext) {
+      super(consumer, producerContext);
+    }
+  }
+
+  /** Number of bytes of a response body waiting to be read above which the socket is not read. */
+  @VisibleForTesting static final int MAX_BUFFERED_BYTES = 256 * 1024;
+
+  private static final Class<?> TAG = NioNetworkFetcher.class;
+
+  private static final String QUEUE_TIME = "queue_time";
+  private static final String FETCH_TIME = "fetch_time";
+  private static final String TOTAL_TIME = "total_time";
+  private static final String IMAGE_SIZE = "image_size";
+
+  private static final String HTTP_SCHEME = "http";
+  private static final int HTTP_DEFAULT_PORT = 80;
+
+  private static final int NUM_SELECTOR_THREADS = 2;
+  private static final int NUM_WORKER_THREADS = 3;
+  private static final int MAX_REDIRECTS = 5;
+  private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+  private static final long KEEP_ALIVE_DURATION_MS = 30 * 1000;
+  private static final long SELECT_TIMEOUT_MS = 1000;
+  private static final int READ_SIZE = 16 * 1024;
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private final int mHttpConnectionTimeout;
+  private final @Nullable String mUserAgent;
+  private final MonotonicClock mMonotonicClock;
+  private final ThreadFactory mThreadFactory;
+  private final SelectorLoop[] mSelectorLoops;
+  private final ExecutorService mWorkerExecutor;
+  private final HttpUrlConnectionNetworkFetcher mFallbackFetcher;
+  private final AtomicBoolean mIsShutDown = new AtomicBoolean();
+  private final AtomicInteger mRunningLoopCount = new AtomicInteger(NUM_SELECTOR_THREADS);
+
+  public NioNetworkFetcher() {
+    this(null, HttpUrlConnectionNetworkFetcher.HTTP_DEFAULT_TIMEOUT);
+  }
+
+  public NioNetworkFetcher(@Nullable String userAgent, int httpConnectionTimeout) {
+    this(
+        userAgent,
+        httpConnectionTimeout,
+        RealtimeSinceBootClock.get(),
+        userAgent != null
+            ? new HttpUrlConnectionNetworkFetcher(userAgent, httpConnectionTimeout)
+            : new HttpUrlConnectionNetworkFetcher(httpConnectionTimeout));
+  }
+
+  @VisibleForTesting
+  NioNetworkFetcher(
+      @Nullable String userAgent,
+      int httpConnectionTimeout,
+      MonotonicClock monotonicClock,
+      HttpUrlConnectionNetworkFetcher fallbackFetcher) {
+    mUserAgent = userAgent;
+    mHttpConnectionTimeout = httpConnectionTimeout;
+    mMonotonicClock = monotonicClock;
+    mThreadFactory =
+        new PriorityThreadFactory(
+            Process.THREAD_PRIORITY_BACKGROUND, "FrescoNioNetworkExecutor", true);
+    mSelectorLoops = new SelectorLoop[NUM_SELECTOR_THREADS];
+    for (int i = 0; i < NUM_SELECTOR_THREADS; i++) {
+      mSelectorLoops[i] = new SelectorLoop();
+    }
+    // host name lookups, and the reading of response bodies that are not pushed, block a worker
+    mWorkerExecutor = Executors.newFixedThreadPool(NUM_WORKER_THREADS, mThreadFactory);
+    mFallbackFetcher = fallbackFetcher;
+  }
+
+  @Override
+  public NioFetchState createFetchState(Consumer<EncodedImage> consumer, ProducerContext context) {
+    return new NioFetchState(consumer, context);
+  }
+
+  @Override
+  public void fetch(final NioFetchState fetchState, final Callback callback) {
+    fetchState.submitTime = mMonotonicClock.now();
+    if (mIsShutDown.get()) {
+      callback.onFailure(new IOException("NioNetworkFetcher is shut down"));
+      return;
+    }
+    final Uri uri = fetchState.getUri();
+    final Proxy proxy = selectProxy(uri);
+    if (!isHandled(uri, proxy)) {
+      fetchWithFallback(fetchState, callback);
+      return;
+    }
+    try {
+      checkCleartextTrafficPermitted(uri.getHost());
+      final SelectorLoop loop = getSelectorLoop(uri.getHost());
+      final Exchange exchange = new Exchange(fetchState, callback, loop, uri, proxy);
+      loop.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              exchange.start();
+            }
+          });
+      fetchState
+          .getContext()
+          .addCallbacks(
+              new BaseProducerContextCallbacks() {
+                @Override
+                public void onCancellationRequested() {
+                  exchange.postToLoop(
+                      new Runnable() {
+                        @Override
+                        public void run() {
+                          exchange.cancel();
+                        }
+                      });
+                }
+              });
+    } catch (IOException e) {
+      callback.onFailure(e);
+    }
+  }
+
+  @Override
+  public void onFetchCompletion(NioFetchState fetchState, int byteSize) {
+    fetchState.fetchCompleteTime = mMonotonicClock.now();
+    if (fetchState.fallbackState != null) {
+      mFallbackFetcher.onFetchCompletion(fetchState.fallbackState, byteSize);
+    }
+  }
+
+  @Override
+  public Map<String, String> getExtraMap(NioFetchState fetchState, int byteSize) {
+    if (fetchState.fallbackState != null) {
+      return mFallbackFetcher.getExtraMap(fetchState.fallbackState, byteSize);
+    }
+    Map<String, String> extraMap = new HashMap<>(4);
+    extraMap.put(QUEUE_TIME, Long.toString(fetchState.responseTime - fetchState.submitTime));
+    extraMap.put(FETCH_TIME, Long.toString(fetchState.fetchCompleteTime - fetchState.responseTime));
+    extraMap.put(TOTAL_TIME, Long.toString(fetchState.fetchCompleteTime - fetchState.submitTime));
+    extraMap.put(IMAGE_SIZE, Integer.toString(byteSize));
+    return extraMap;
+  }
+
+  /**
+   * Stops the selector and worker threads. The downloads in flight fail, closing their connections,
+   * and so do the downloads started afterwards. The fetcher cannot be used anymore.
+   */
+  public void shutdown() {
+    if (!mIsShutDown.compareAndSet(false, true)) {
+      return;
+    }
+    for (SelectorLoop loop : mSelectorLoops) {
+      if (!loop.shutdown()) {
+        // the thread of the loop was never started
+        onSelectorLoopStopped();
+      }
+    }
+  }
+
+  private void onSelectorLoopStopped() {
+    if (mRunningLoopCount.decrementAndGet() == 0) {
+      // the failures of the downloads in flight have been posted, and are still delivered
+      mWorkerExecutor.shutdown();
+    }
+  }
+
+  /** Requests to the same host go to the same loop, so that they share its pooled connections. */
+  private SelectorLoop getSelectorLoop(String host) {
+    return mSelectorLoops[(host.hashCode() & Integer.MAX_VALUE) % mSelectorLoops.length];
+  }
+
+  /** @return whether requests to the URI through the proxy are made on the selector threads */
+  private static boolean isHandled(Uri uri, Proxy proxy) {
+    return HTTP_SCHEME.equals(uri.getScheme())
+        && uri.getHost() != null
+        && (proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP);
+  }
+
+  /** @return the first proxy that the system selects for the URI, or {@link Proxy#NO_PROXY} */
+  private static Proxy selectProxy(Uri uri) {
+    final ProxySelector proxySelector = ProxySelector.getDefault();
+    if (proxySelector == null) {
+      return Proxy.NO_PROXY;
+    }
+    final List<Proxy> proxies;
+    try {
+      proxies = proxySelector.select(URI.create(uri.toString()));
+    } catch (IllegalArgumentException e) {
+      return Proxy.NO_PROXY;
+    }
+    return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+  }
+
+  private static void checkCleartextTrafficPermitted(String host) throws IOException {
+    final boolean isPermitted;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      isPermitted = NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted(host);
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      isPermitted = NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted();
+    } else {
+      isPermitted = true;
+    }
+    if (!isPermitted) {
+      throw new UnknownServiceException(
+          error("CLEARTEXT communication to %s not permitted by network security policy", host));
+    }
+  }
+
+  private void fetchWithFallback(final NioFetchState fetchState, final Callback callback) {
+    final HttpUrlConnectionNetworkFetcher.HttpUrlConnectionNetworkFetchState fallbackState =
+        mFallbackFetcher.createFetchState(fetchState.getConsumer(), fetchState.getContext());
+    fetchState.fallbackState = fallbackState;
+    fallbackState.setCachedValidators(fetchState.getCachedValidators());
+    fallbackState.setResume(fetchState.getResumeOffset(), fetchState.getResumeValidators());
+    mFallbackFetcher.fetch(
+        fallbackState,
+        new Callback() {
+          @Override
+          public void onResponse(InputStream response, int responseLength) throws IOException {
+            fetchState.setNotModified(fallbackState.isNotModified());
+            fetchState.setResponseValidators(fallbackState.getResponseValidators());
+            fetchState.setResumed(fallbackState.isResumed());
+            callback.onResponse(response, responseLength);
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            callback.onFailure(throwable);
+          }
+
+          @Override
+          public void onCancellation() {
+            callback.onCancellation();
+          }
+        });
+  }
+
+  private static String error(String format, Object... args) {
+    return String.format(Locale.getDefault(), format, args);
+  }
+
+  /** A keep-alive connection waiting in the pool of its selector loop. */
+  private static class IdleConnection {
+
+    final String hostKey;
+    final SocketChannel channel;
+    final SelectionKey key;
+    final long idleSinceMs;
+
+    IdleConnection(String hostKey, SocketChannel channel, SelectionKey key, long idleSinceMs) {
+      this.hostKey = hostKey;
+      this.channel = channel;
+      this.key = key;
+      this.idleSinceMs = idleSinceMs;
+    }
+  }
+
+  /**
+   * Thread multiplexing the sockets of many exchanges.
+   *
+   * <p>Exchanges and pooled connections are only accessed on this thread. Other threads post tasks
+   * with {@link #execute(Runnable)}. The thread is started with the first task, and stopped by
+   * {@link #shutdown()} once the tasks posted before are run.
+   */
+  private class SelectorLoop implements Runnable {
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final Map<String, ArrayDeque<IdleConnection>> mIdleConnections = new HashMap<>();
+    private final Set<Exchange> mExchanges = new HashSet<>();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_SIZE);
+
+    @GuardedBy("this")
+    private @Nullable Selector mSelector;
+
+    @GuardedBy("this")
+    private boolean mIsShutDown;
+
+    void execute(Runnable task) throws IOException {
+      final Selector selector;
+      synchronized (this) {
+        if (mIsShutDown) {
+          throw new IOException("NioNetworkFetcher is shut down");
+        }
+        selector = getSelector();
+        mTasks.add(task);
+      }
+      selector.wakeup();
+    }
+
+    @GuardedBy("this")
+    private Selector getSelector() throws IOException {
+      if (mSelector == null) {
+        mSelector = Selector.open();
+        mThreadFactory.newThread(this).start();
+      }
+      return mSelector;
+    }
+
+    /** @return whether the thread of the loop had been started, and is now going to stop */
+    boolean shutdown() {
+      final Selector selector;
+      synchronized (this) {
+        mIsShutDown = true;
+        selector = mSelector;
+      }
+      if (selector == null) {
+        return false;
+      }
+      selector.wakeup();
+      return true;
+    }
+
+    @Override
+    public void run() {
+      final Selector selector;
+      synchronized (this) {
+        selector = mSelector;
+      }
+      while (true) {
+        try {
+          selector.select(SELECT_TIMEOUT_MS);
+        } catch (IOException e) {
+          FLog.w(TAG, e, "Selector failed");
+        }
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            FLog.e(TAG, e, "Selector loop task failed");
+          }
+        }
+        synchronized (this) {
+          if (mIsShutDown && mTasks.isEmpty()) {
+            break;
+          }
+        }
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          final Object attachment = key.attachment();
+          if (attachment instanceof Exchange) {
+            ((Exchange) attachment).onReady(key);
+          } else if (attachment instanceof IdleConnection) {
+            // the server closed the connection, or sent unexpected data
+            removeIdleConnection((IdleConnection) attachment);
+          }
+        }
+        removeExpired();
+      }
+      stop(selector);
+    }
+
+    private void stop(Selector selector) {
+      final IOException shutDown = new IOException("NioNetworkFetcher is shut down");
+      for (Exchange exchange : new ArrayList<>(mExchanges)) {
+        exchange.fail(shutDown);
+      }
+      for (ArrayDeque<IdleConnection> connections : mIdleConnections.values()) {
+        for (IdleConnection connection : connections) {
+          closeQuietly(connection.channel);
+        }
+      }
+      mIdleConnections.clear();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        FLog.w(TAG, e, "Failed to close the selector");
+      }
+      onSelectorLoopStopped();
+    }
+
+    @Nullable
+    IdleConnection takeIdleConnection(String hostKey) {
+      final ArrayDeque<IdleConnection> connections = mIdleConnections.get(hostKey);
+      if (connections == null) {
+        return null;
+      }
+      final IdleConnection connection = connections.pollLast();
+      if (connections.isEmpty()) {
+        mIdleConnections.remove(hostKey);
+      }
+      return connection;
+    }
+
+    void putIdleConnection(String hostKey, SocketChannel channel, SelectionKey key) {
+      ArrayDeque<IdleConnection> connections = mIdleConnections.get(hostKey);
+      if (connections == null) {
+        connections = new ArrayDeque<>();
+        mIdleConnections.put(hostKey, connections);
+      }
+      if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_HOST) {
+        closeQuietly(connections.pollFirst().channel);
+      }
+      final IdleConnection connection =
+          new IdleConnection(hostKey, channel, key, mMonotonicClock.now());
+      key.attach(connection);
+      key.interestOps(SelectionKey.OP_READ);
+      connections.addLast(connection);
+    }
+
+    private void removeIdleConnection(IdleConnection connection) {
+      final ArrayDeque<IdleConnection> connections = mIdleConnections.get(connection.hostKey);
+      if (connections != null) {
+        connections.remove(connection);
+        if (connections.isEmpty()) {
+          mIdleConnections.remove(connection.hostKey);
+        }
+      }
+      closeQuietly(connection.channel);
+    }
+
+    private void removeExpired() {
+      final long nowMs = mMonotonicClock.now();
+      for (Exchange exchange : new ArrayList<>(mExchanges)) {
+        // an exchange waiting for its body to be read is not timed out
+        if (!exchange.mIsPaused && nowMs - exchange.mLastActivityMs > mHttpConnectionTimeout) {
+          exchange.onTimeout();
+        }
+      }
+      final Iterator<ArrayDeque<IdleConnection>> hosts = mIdleConnections.values().iterator();
+      while (hosts.hasNext()) {
+        final ArrayDeque<IdleConnection> connections = hosts.next();
+        while (!connections.isEmpty()
+            && nowMs - connections.peekFirst().idleSinceMs > KEEP_ALIVE_DURATION_MS) {
+          closeQuietly(connections.pollFirst().channel);
+        }
+        if (connections.isEmpty()) {
+          hosts.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * One download, from the request to the end of the response, following redirects.
+   *
+   * <p>All methods are called on the thread of the selector loop.
+   */
+  private class Exchange {
+
+    private final NioFetchState mFetchState;
+    private final Callback mCallback;
+    private final SelectorLoop mLoop;
+    private Uri mUri;
+    private Proxy mProxy;
+    private int mRedirectsLeft = MAX_REDIRECTS;
+    private @Nullable SocketChannel mChannel;
+    private @Nullable SelectionKey mKey;
+    private boolean mIsReusedConnection;
+    private @Nullable ByteBuffer mRequest;
+    private HttpResponseParser mParser = new HttpResponseParser();
+    private @Nullable ResponseBody mBody;
+    private boolean mIsPushingBody;
+    private long mLastActivityMs;
+    private boolean mIsPaused;
+    private boolean mIsFinished;
+    private volatile boolean mIsCancelled;
+
+    Exchange(NioFetchState fetchState, Callback callback, SelectorLoop loop, Uri uri, Proxy proxy) {
+      mFetchState = fetchState;
+      mCallback = callback;
+      mLoop = loop;
+      mUri = uri;
+      mProxy = proxy;
+    }
+
+    void start() {
+      if (mIsFinished) {
+        return;
+      }
+      mLoop.mExchanges.add(this);
+      mLastActivityMs = mMonotonicClock.now();
+      mParser = new HttpResponseParser();
+      mRequest = ByteBuffer.wrap(buildRequest());
+      final IdleConnection idleConnection = mLoop.takeIdleConnection(getHostKey());
+      if (idleConnection != null) {
+        mIsReusedConnection = true;
+        mChannel = idleConnection.channel;
+        mKey = idleConnection.key;
+        mKey.attach(this);
+        mKey.interestOps(SelectionKey.OP_WRITE);
+      } else {
+        mIsReusedConnection = false;
+        resolve();
+      }
+    }
+
+    /** Resolves the host on a worker thread, as name lookups block. */
+    private void resolve() {
+      final String host = getConnectHost();
+      final int port = getConnectPort();
+      mWorkerExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              InetSocketAddress address = null;
+              IOException error = null;
+              try {
+                address = new InetSocketAddress(InetAddress.getByName(host), port);
+              } catch (IOException e) {
+                error = e;
+              }
+              final InetSocketAddress finalAddress = address;
+              final IOException finalError = error;
+              postToLoop(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      if (finalError != null) {
+                        onError(finalError);
+                      } else {
+                        connect(finalAddress);
+                      }
+                    }
+                  });
+            }
+          });
+    }
+
+    private void connect(InetSocketAddress address) {
+      if (mIsFinished) {
+        return;
+      }
+      try {
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.socket().setTcpNoDelay(true);
+        final boolean isConnected = mChannel.connect(address);
+        mKey =
+            mChannel.register(
+                getSelector(),
+                isConnected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT,
+                this);
+      } catch (IOException e) {
+        onError(e);
+      }
+    }
+
+    void onReady(SelectionKey key) {
+      try {
+        if (!key.isValid()) {
+          return;
+        }
+        mLastActivityMs = mMonotonicClock.now();
+        if (key.isConnectable()) {
+          if (mChannel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+          }
+        } else if (key.isWritable()) {
+          mChannel.write(mRequest);
+          if (!mRequest.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } else if (key.isReadable()) {
+          read();
+        }
+      } catch (IOException e) {
+        onError(e);
+      } catch (RuntimeException e) {
+        // a cancelled key, or a failure of the callback the body is pushed to
+        onError(new IOException(e));
+      }
+    }
+
+    private void read() throws IOException {
+      final ByteBuffer buffer = mLoop.mReadBuffer;
+      buffer.clear();
+      final int count = mChannel.read(buffer);
+      if (count < 0) {
+        mParser.onEndOfStream();
+        onComplete(false);
+        return;
+      }
+      int offset = 0;
+      while (offset < count && !mIsFinished) {
+        final boolean hadHeaders = mParser.hasHeaders();
+        offset += mParser.feed(buffer.array(), offset, count - offset);
+        if (!hadHeaders && mParser.hasHeaders()) {
+          onHeaders();
+        }
+        if (!mIsFinished && mParser.isComplete()) {
+          // leftover bytes mean the connection cannot be reused
+          onComplete(offset == count && mParser.isKeepAlive());
+          return;
+        }
+      }
+      if (!mIsFinished && mBody != null && mBody.pauseIfFull()) {
+        // the socket is read again once the producer has caught up
+        mIsPaused = true;
+        mKey.interestOps(0);
+      }
+    }
+
+    /** Reads from the socket again, once the producer has read the bytes buffered. */
+    void resumeReading() {
+      postToLoop(
+          new Runnable() {
+            @Override
+            public void run() {
+              if (!mIsPaused) {
+                return;
+              }
+              mIsPaused = false;
+              mLastActivityMs = mMonotonicClock.now();
+              if (!mIsFinished && mKey != null && mKey.isValid()) {
+                mKey.interestOps(SelectionKey.OP_READ);
+              }
+            }
+          });
+    }
+
+    private void onHeaders() throws IOException {
+      mFetchState.responseTime = mMonotonicClock.now();
+      final int statusCode = mParser.getStatusCode();
+      mFetchState.setResponseValidators(
+          CacheValidators.fromResponseHeaders(
+              mParser.getHeader("ETag"),
+              mParser.getHeader("Last-Modified"),
+              mParser.getHeader("Cache-Control"),
+              System.currentTimeMillis()));
+      if (isHttpSuccess(statusCode)) {
+        final BytesRange responseRange =
+            BytesRange.fromContentRangeHeader(mParser.getHeader("Content-Range"));
+        if (responseRange != null
+            && !(responseRange.from == 0 && responseRange.to == BytesRange.TO_END_OF_CONTENT)) {
+          mFetchState.setResponseBytesRange(responseRange);
+          mFetchState.setOnNewResultStatusFlags(Consumer.IS_PARTIAL_RESULT);
+        }
+        final long contentLength = mParser.getContentLength();
+        final int length =
+            contentLength >= 0 && contentLength <= Integer.MAX_VALUE ? (int) contentLength : -1;
+        if (mCallback instanceof PushCallback) {
+          mIsPushingBody = true;
+          ((PushCallback) mCallback).onResponseStart(length);
+          mParser.setBody(newPushedBodySink((PushCallback) mCallback));
+        } else {
+          mBody = new ResponseBody(this);
+          mParser.setBody(mBody.mSink);
+          deliverResponse(mBody, length);
+        }
+      } else if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+          && mFetchState.getCachedValidators() != null) {
+        mFetchState.setNotModified(true);
+      } else if (!isHttpRedirect(statusCode)) {
+        throw new IOException(
+            error("Image URL %s returned HTTP code %d", mUri.toString(), statusCode));
+      }
+    }
+
+    private void onComplete(boolean isKeepAlive) throws IOException {
+      final int statusCode = mParser.getStatusCode();
+      final String location = mParser.getHeader("Location");
+      releaseConnection(isKeepAlive);
+      if (isHttpRedirect(statusCode)) {
+        followRedirect(statusCode, location);
+      } else if (finish()) {
+        if (mBody != null) {
+          mBody.end();
+        } else if (mIsPushingBody) {
+          endPushedBody();
+        } else {
+          // not modified
+          deliverResponse(null, 0);
+        }
+      }
+    }
+
+    private void followRedirect(int statusCode, @Nullable String location) throws IOException {
+      if (location == null) {
+        throw new IOException(
+            error("URL %s returned %d without a valid redirect", mUri.toString(), statusCode));
+      }
+      if (mRedirectsLeft == 0) {
+        throw new IOException(error("URL %s follows too many redirects", mUri.toString()));
+      }
+      final Uri nextUri;
+      try {
+        nextUri = Uri.parse(URI.create(mUri.toString()).resolve(location).toString());
+      } catch (IllegalArgumentException e) {
+        throw new IOException(
+            error("URL %s returned %d without a valid redirect", mUri.toString(), statusCode));
+      }
+      mRedirectsLeft--;
+      final Proxy nextProxy = selectProxy(nextUri);
+      if (isHandled(nextUri, nextProxy)) {
+        checkCleartextTrafficPermitted(nextUri.getHost());
+        mUri = nextUri;
+        mProxy = nextProxy;
+        start();
+      } else if (finish()) {
+        // the fallback fetcher follows the redirects to other schemes
+        fetchWithFallback(mFetchState, mCallback);
+      }
+    }
+
+    void onError(IOException e) {
+      releaseConnection(false);
+      if (!mIsFinished && mIsReusedConnection && !mParser.hasReceivedData()) {
+        // the server closed the pooled connection before we used it, retry on another one
+        start();
+        return;
+      }
+      fail(e);
+    }
+
+    void onTimeout() {
+      onError(
+          new SocketTimeoutException(
+              error(
+                  "Image URL %s timed out after %d ms", mUri.toString(), mHttpConnectionTimeout)));
+    }
+
+    void fail(IOException e) {
+      releaseConnection(false);
+      if (!finish()) {
+        return;
+      }
+      if (mBody != null) {
+        // the producer reading the body gets the failure
+        mBody.fail(e);
+      } else {
+        deliverFailure(e);
+      }
+    }
+
+    void cancel() {
+      if (!finish()) {
+        return;
+      }
+      mIsCancelled = true;
+      releaseConnection(false);
+      if (mBody != null) {
+        // the producer reading the body stops, and the cancellation is then reported
+        mBody.fail(new IOException("Cancelled"));
+      } else {
+        mWorkerExecutor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                mCallback.onCancellation();
+              }
+            });
+      }
+    }
+
+    /** Drops the connection when the producer stops reading the body before its end. */
+    void abort() {
+      postToLoop(
+          new Runnable() {
+            @Override
+            public void run() {
+              if (finish()) {
+                releaseConnection(false);
+              }
+            }
+          });
+    }
+
+    private boolean finish() {
+      if (mIsFinished) {
+        return false;
+      }
+      mIsFinished = true;
+      mLoop.mExchanges.remove(this);
+      return true;
+    }
+
+    /** Stream the response parser writes the body to, which pushes it to the callback. */
+    private OutputStream newPushedBodySink(final PushCallback callback) {
+      return new OutputStream() {
+        @Override
+        public void write(int oneByte) throws IOException {
+          write(new byte[] {(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+          if (count > 0) {
+            callback.onResponseBytes(buffer, offset, count);
+          }
+        }
+      };
+    }
+
+    /** Ends the pushed body. The exchange is finished, so a failure is delivered directly. */
+    private void endPushedBody() {
+      try {
+        ((PushCallback) mCallback).onResponseEnd();
+      } catch (IOException e) {
+        deliverFailure(e);
+      } catch (RuntimeException e) {
+        deliverFailure(e);
+      }
+    }
+
+    /** Passes the response to the producer, which reads its body on a worker thread. */
+    private void deliverResponse(@Nullable final ResponseBody body, final int length) {
+      mWorkerExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                mCallback.onResponse(
+                    body != null ? body : new ByteArrayInputStream(new byte[0]), length);
+              } catch (IOException e) {
+                if (mIsCancelled) {
+                  mCallback.onCancellation();
+                } else {
+                  mCallback.onFailure(e);
+                }
+              } finally {
+                if (body != null) {
+                  body.close();
+                }
+              }
+            }
+          });
+    }
+
+    private void deliverFailure(final Throwable e) {
+      mWorkerExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              mCallback.onFailure(e);
+            }
+          });
+    }
+
+    private void releaseConnection(boolean isReusable) {
+      if (mChannel == null) {
+        return;
+      }
+      if (isReusable && mKey != null && mKey.isValid()) {
+        mLoop.putIdleConnection(getHostKey(), mChannel, mKey);
+      } else {
+        closeQuietly(mChannel);
+      }
+      mChannel = null;
+      mKey = null;
+    }
+
+    private void postToLoop(Runnable task) {
+      try {
+        mLoop.execute(task);
+      } catch (IOException e) {
+        // the fetcher is shut down, and the exchange has failed
+        FLog.w(TAG, e, "Failed to post to the selector loop");
+      }
+    }
+
+    private Selector getSelector() throws IOException {
+      synchronized (mLoop) {
+        return mLoop.getSelector();
+      }
+    }
+
+    private boolean isProxied() {
+      return mProxy.type() == Proxy.Type.HTTP;
+    }
+
+    private int getPort() {
+      return mUri.getPort() > 0 ? mUri.getPort() : HTTP_DEFAULT_PORT;
+    }
+
+    /** @return the host the connection is made to, either the server's or the proxy's */
+    private String getConnectHost() {
+      if (!isProxied()) {
+        return mUri.getHost();
+      }
+      final InetSocketAddress address = (InetSocketAddress) mProxy.address();
+      // getHostName() would look up the name of a resolved address
+      return address.isUnresolved()
+          ? address.getHostName()
+          : address.getAddress().getHostAddress();
+    }
+
+    private int getConnectPort() {
+      return isProxied() ? ((InetSocketAddress) mProxy.address()).getPort() : getPort();
+    }
+
+    private String getHostKey() {
+      return (isProxied() ? "proxy:" : "") + getConnectHost() + ":" + getConnectPort();
+    }
+
+    private byte[] buildRequest() {
+      final String path = mUri.getEncodedPath();
+      final String query = mUri.getEncodedQuery();
+      final String host =
+          getPort() == HTTP_DEFAULT_PORT ? mUri.getHost() : mUri.getHost() + ":" + getPort();
+      final StringBuilder request = new StringBuilder(256);
+      request.append("GET ");
+      if (isProxied()) {
+        // requests to a proxy have the absolute URI as target
+        request.append(HTTP_SCHEME).append("://").append(host);
+      }
+      request
+          .append(path == null || path.isEmpty() ? "/" : path)
+          .append(query == null ? "" : "?" + query)
+          .append(" HTTP/1.1\r\n");
+      appendHeader(request, "Host", host);
+      appendHeader(request, "Connection", "keep-alive");
+      appendHeader(request, "Accept-Encoding", "identity");
+      if (mUserAgent != null) {
+        appendHeader(request, "User-Agent", mUserAgent);
+      }
+      final BytesRange bytesRange = mFetchState.getContext().getImageRequest().getBytesRange();
+      if (bytesRange != null) {
+        appendHeader(request, "Range", bytesRange.toHttpRangeHeaderValue());
+      }
+      final CacheValidators cachedValidators = mFetchState.getCachedValidators();
+      if (cachedValidators != null) {
+        if (cachedValidators.getETag() != null) {
+          appendHeader(request, "If-None-Match", cachedValidators.getETag());
+        }
+        if (cachedValidators.getLastModified() != null) {
+          appendHeader(request, "If-Modified-Since", cachedValidators.getLastModified());
+        }
+      }
+      request.append("\r\n");
+      return request.toString().getBytes(US_ASCII);
+    }
+  }
+
+  /**
+   * Body of a response, read by the producer while it is received.
+   *
+   * <p>The selector loop appends the bytes it receives, and the producer reads them on a worker
+   * thread, straight into its pooled stream. The loop stops reading from the socket while {@link
+   * #MAX_BUFFERED_BYTES} are waiting to be read, until half of them have been read.
+   */
+  private static class ResponseBody extends InputStream implements DirectReadable {
+
+    private final Exchange mExchange;
+
+    @GuardedBy("this")
+    private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+
+    /** Offset of the next byte to read in the first chunk. Only changed by the reading thread. */
+    @GuardedBy("this")
+    private int mChunkOffset;
+
+    @GuardedBy("this")
+    private int mBufferedByteCount;
+
+    @GuardedBy("this")
+    private boolean mIsPaused;
+
+    @GuardedBy("this")
+    private boolean mIsEnded;
+
+    @GuardedBy("this")
+    private @Nullable IOException mFailure;
+
+    @GuardedBy("this")
+    private boolean mIsClosed;
+
+    /** Stream the response parser writes the body to, on the thread of the selector loop. */
+    final OutputStream mSink =
+        new OutputStream() {
+          @Override
+          public void write(int oneByte) {
+            append(new byte[] {(byte) oneByte}, 0, 1);
+          }
+
+          @Override
+          public void write(byte[] buffer, int offset, int count) {
+            append(buffer, offset, count);
+          }
+        };
+
+    ResponseBody(Exchange exchange) {
+      mExchange = exchange;
+    }
+
+    private synchronized void append(byte[] buffer, int offset, int count) {
+      if (mIsClosed || count == 0) {
+        return;
+      }
+      mChunks.addLast(Arrays.copyOfRange(buffer, offset, offset + count));
+      mBufferedByteCount += count;
+      notifyAll();
+    }
+
+    /** @return whether the selector loop has to stop reading until {@link #resumeReading} */
+    synchronized boolean pauseIfFull() {
+      mIsPaused = !mIsClosed && mBufferedByteCount >= MAX_BUFFERED_BYTES;
+      return mIsPaused;
+    }
+
+    synchronized void end() {
+      mIsEnded = true;
+      notifyAll();
+    }
+
+    synchronized void fail(IOException failure) {
+      mFailure = failure;
+      notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] oneByte = new byte[1];
+      return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      if (count == 0) {
+        return 0;
+      }
+      final byte[] chunk;
+      final int chunkOffset;
+      synchronized (this) {
+        chunk = awaitChunk();
+        chunkOffset = mChunkOffset;
+      }
+      if (chunk == null) {
+        return -1;
+      }
+      final int length = Math.min(count, chunk.length - chunkOffset);
+      System.arraycopy(chunk, chunkOffset, buffer, offset, length);
+      consume(length);
+      return length;
+    }
+
+    @Override
+    public int readTo(OutputStream os, int maxLength) throws IOException {
+      final byte[] chunk;
+      final int chunkOffset;
+      synchronized (this) {
+        chunk = awaitChunk();
+        chunkOffset = mChunkOffset;
+      }
+      if (chunk == null) {
+        return -1;
+      }
+      final int length = Math.min(maxLength, chunk.length - chunkOffset);
+      os.write(chunk, chunkOffset, length);
+      consume(length);
+      return length;
+    }
+
+    @Override
+    public synchronized int available() {
+      return mBufferedByteCount;
+    }
+
+    @Override
+    public void close() {
+      final boolean isAborted;
+      synchronized (this) {
+        if (mIsClosed) {
+          return;
+        }
+        mIsClosed = true;
+        isAborted = !mIsEnded && mFailure == null;
+        mChunks.clear();
+        mBufferedByteCount = 0;
+      }
+      if (isAborted) {
+        mExchange.abort();
+      }
+    }
+
+    /** @return the first chunk, waiting for one to be received, or null at the end of the body */
+    @GuardedBy("this")
+    private @Nullable byte[] awaitChunk() throws IOException {
+      while (true) {
+        if (mIsClosed) {
+          throw new IOException("Response body is closed");
+        }
+        if (mFailure != null) {
+          throw mFailure;
+        }
+        if (!mChunks.isEmpty()) {
+          return mChunks.peekFirst();
+        }
+        if (mIsEnded) {
+          return null;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+
+    private void consume(int length) {
+      final boolean shouldResume;
+      synchronized (this) {
+        if (mIsClosed) {
+          return;
+        }
+        mChunkOffset += length;
+        if (mChunkOffset == mChunks.peekFirst().length) {
+          mChunks.pollFirst();
+          mChunkOffset = 0;
+        }
+        mBufferedByteCount -= length;
+        shouldResume = mIsPaused && mBufferedByteCount <= MAX_BUFFERED_BYTES / 2;
+        if (shouldResume) {
+          mIsPaused = false;
+        }
+      }
+      if (shouldResume) {
+        mExchange.resumeReading();
+      }
+    }
+  }
+
+  private static void appendHeader(StringBuilder request, String name, String value) {
+    request.append(name).append(": ").append(value).append("\r\n");
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing to do, the channel is released anyway
+    }
+  }
+
+  private static boolean isHttpSuccess(int responseCode) {
+    return (responseCode >= HttpURLConnection.HTTP_OK
+        && responseCode < HttpURLConnection.HTTP_MULT_CHOICE);
+  }
+
+  private static boolean isHttpRedirect(int responseCode) {
+    switch (responseCode) {
+      case HttpURLConnection.HTTP_MULT_CHOICE:
+      case HttpURLConnection.HTTP_MOVED_PERM:
+      case HttpURLConnection.HTTP_MOVED_TEMP:
+      case HttpURLConnection.HTTP_SEE_OTHER:
+      case HttpUrlConnectionNetworkFetcher.HTTP_TEMPORARY_REDIRECT:
+      case HttpUrlConnectionNetworkFetcher.HTTP_PERMANENT_REDIRECT:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -13,6 +13,8 @@ import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.core.PrioritizedRunnable;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.image.CloseableStaticBitmap;
 import com.facebook.imagepipeline.request.Postprocessor;
@@ -154,7 +156,12 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
 
     private void submitPostprocessing() {
       mExecutor.execute(
-          new Runnable() {
+          new PrioritizedRunnable() {
+            @Override
+            public Priority getPriority() {
+              return mProducerContext.getPriority();
+            }
+
             @Override
             public void run() {
               CloseableReference<CloseableImage> closeableImageRef;
@@ -211,6 +218,9 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
       CloseableReference<CloseableImage> destImageRef = null;
       try {
         try {
+          if (mProducerContext.isDeadlineExceeded()) {
+            throw DeadlineExceededException.report(mProducerContext, NAME);
+          }
           destImageRef = postprocessInternal(sourceImageRef.get());
         } catch (Exception e) {
           mListener.onProducerFinishWithFailure(
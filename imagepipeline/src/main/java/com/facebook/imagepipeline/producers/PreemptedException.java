@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading a response whose download has been pre-empted by a more important one.
+ *
+ * <p>The fetcher fetches the image again later. {@link NetworkFetchProducer} keeps the bytes read
+ * so far on the {@link FetchState}, so that the next fetch can resume from them.
+ */
+public class PreemptedException extends IOException {
+
+  public PreemptedException() {
+    super("Pre-empted by a hi-pri request");
+  }
+}
@@ -14,14 +14,19 @@ import com.facebook.common.logging.FLog;
 import com.facebook.common.time.MonotonicClock;
 import com.facebook.common.time.RealtimeSinceBootClock;
 import com.facebook.imagepipeline.image.EncodedImage;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * PriorityNetworkFetcher fetches images using a priority queue.
@@ -42,6 +47,22 @@ import javax.annotation.Nullable;
  *   <li>When a request's priority changes, it is taken out of the queue and re-enqueued according
  *       to the rules above.
  * </ul>
+ *
+ * <p>If a {@link ConcurrencyLimiter} is given, its limit replaces 'maxOutstandingHiPri', and
+ * 'maxOutstandingLowPri' keeps its configured share of that limit.
+ *
+ * <p>If pre-emption is enabled, a hi-pri request that finds no free slot takes the slot of the
+ * low-pri download that started most recently. The pre-empted download is aborted and put back at
+ * the head of the low-pri queue, from where it is fetched again once a slot becomes available. The
+ * delegate's call is cancelled, and reading its response fails with a {@link PreemptedException}.
+ * The next fetch resumes from the bytes already received if the response can be resumed.
+ *
+ * <p>If priority aging is enabled, a low-pri request that has waited for at least
+ * 'priorityAgingMs' is dequeued ahead of the hi-pri requests once there are less than
+ * 'maxOutstandingHiPri' active downloads, and is not pre-empted anymore.
+ *
+ * <p>Requests whose deadline has passed by the time they are dequeued are failed with a {@link
+ * DeadlineExceededException} instead of being fetched.
  */
 public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     implements NetworkFetcher<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> {
@@ -52,15 +73,17 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
   private final boolean mIsHiPriFifo;
   private final int mMaxOutstandingHiPri;
   private final int mMaxOutstandingLowPri;
+  private final @Nullable ConcurrencyLimiter mConcurrencyLimiter;
+  private final boolean mIsPreemptionEnabled;
+  private final long mPriorityAgingMs;
   private final MonotonicClock mClock;
 
   private final Object mLock = new Object();
-  private final LinkedList<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mHiPriQueue =
-      new LinkedList<>();
-  private final LinkedList<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mLowPriQueue =
-      new LinkedList<>();
+  private final TreeSet<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mHiPriQueue;
+  private final TreeSet<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mLowPriQueue;
   private final HashSet<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mCurrentlyFetching =
       new HashSet<>();
+  private long mNextQueueSequence;
 
   /**
    * @param isHiPriFifo if true, hi-pri requests are dequeued in the order they were enqueued.
@@ -79,6 +102,25 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
         RealtimeSinceBootClock.get());
   }
 
+  /**
+   * @param concurrencyLimiter provides the maximum number of outstanding requests in place of
+   *     'maxOutstandingHiPri'
+   */
+  public PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      ConcurrencyLimiter concurrencyLimiter) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        concurrencyLimiter,
+        RealtimeSinceBootClock.get());
+  }
+
   @VisibleForTesting
   public PriorityNetworkFetcher(
       NetworkFetcher<FETCH_STATE> delegate,
@@ -86,6 +128,65 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
       int maxOutstandingHiPri,
       int maxOutstandingLowPri,
       MonotonicClock clock) {
+    this(delegate, isHiPriFifo, maxOutstandingHiPri, maxOutstandingLowPri, null, clock);
+  }
+
+  /**
+   * @param concurrencyLimiter if not null, provides the maximum number of outstanding requests in
+   *     place of 'maxOutstandingHiPri'
+   * @param isPreemptionEnabled if true, hi-pri requests abort low-pri downloads when there is no
+   *     free slot
+   * @param priorityAgingMs time after which a waiting low-pri request is dequeued like a hi-pri
+   *     one, or 0 to disable aging
+   */
+  public PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      @Nullable ConcurrencyLimiter concurrencyLimiter,
+      boolean isPreemptionEnabled,
+      long priorityAgingMs) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        concurrencyLimiter,
+        isPreemptionEnabled,
+        priorityAgingMs,
+        RealtimeSinceBootClock.get());
+  }
+
+  @VisibleForTesting
+  PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      @Nullable ConcurrencyLimiter concurrencyLimiter,
+      MonotonicClock clock) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        concurrencyLimiter,
+        false,
+        0,
+        clock);
+  }
+
+  @VisibleForTesting
+  PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      @Nullable ConcurrencyLimiter concurrencyLimiter,
+      boolean isPreemptionEnabled,
+      long priorityAgingMs,
+      MonotonicClock clock) {
     mDelegate = delegate;
     mIsHiPriFifo = isHiPriFifo;
 
@@ -94,7 +195,13 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     if (maxOutstandingHiPri <= maxOutstandingLowPri) {
       throw new IllegalArgumentException("maxOutstandingHiPri should be > maxOutstandingLowPri");
     }
+    this.mConcurrencyLimiter = concurrencyLimiter;
+    this.mIsPreemptionEnabled = isPreemptionEnabled;
+    this.mPriorityAgingMs = priorityAgingMs;
     this.mClock = clock;
+    // queues are ordered by the sequence number assigned when an entry is put in the queue
+    mHiPriQueue = new TreeSet<>(new QueueOrderComparator<FETCH_STATE>(!isHiPriFifo));
+    mLowPriQueue = new TreeSet<>(new QueueOrderComparator<FETCH_STATE>(false));
   }
 
   @Override
@@ -109,11 +216,25 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
               public void onCancellationRequested() {
                 removeFromQueue(fetchState, "CANCEL");
                 callback.onCancellation();
+                if (fetchState.attemptContext != null) {
+                  fetchState.attemptContext.cancel();
+                }
               }
 
               @Override
               public void onPriorityChanged() {
                 changePriority(fetchState, fetchState.getContext().getPriority() == HIGH);
+                if (fetchState.attemptContext != null) {
+                  fetchState.attemptContext.setPriority(fetchState.getContext().getPriority());
+                }
+              }
+
+              @Override
+              public void onIsIntermediateResultExpectedChanged() {
+                if (fetchState.attemptContext != null) {
+                  fetchState.attemptContext.setIsIntermediateResultExpected(
+                      fetchState.getContext().isIntermediateResultExpected());
+                }
               }
             });
 
@@ -134,6 +255,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
   @Override
   public void onFetchCompletion(
       PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState, int byteSize) {
+    reportToConcurrencyLimiter(fetchState, true);
     removeFromQueue(fetchState, "SUCCESS");
     mDelegate.onFetchCompletion(fetchState.delegatedState, byteSize);
   }
@@ -150,58 +272,202 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     dequeueIfAvailableSlots();
   }
 
+  private void reportToConcurrencyLimiter(
+      PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState, boolean succeeded) {
+    if (mConcurrencyLimiter == null) {
+      return;
+    }
+    final int inFlight;
+    synchronized (mLock) {
+      if (!mCurrentlyFetching.contains(fetchState)) {
+        return;
+      }
+      inFlight = mCurrentlyFetching.size();
+    }
+    mConcurrencyLimiter.onRequestFinished(
+        fetchState.dequeuedTimestamp,
+        succeeded ? fetchState.responseTimestamp : mClock.now(),
+        inFlight,
+        succeeded);
+  }
+
+  private int getMaxOutstandingHiPri() {
+    return mConcurrencyLimiter != null
+        ? Math.max(1, mConcurrencyLimiter.getLimit())
+        : mMaxOutstandingHiPri;
+  }
+
+  private int getMaxOutstandingLowPri() {
+    if (mConcurrencyLimiter == null || mMaxOutstandingLowPri == 0) {
+      return mMaxOutstandingLowPri;
+    }
+    return Math.max(1, getMaxOutstandingHiPri() * mMaxOutstandingLowPri / mMaxOutstandingHiPri);
+  }
+
   private void dequeueIfAvailableSlots() {
+    // the limit may have grown, in which case several requests get dequeued
+    while (dequeueIfAvailableSlot()) {}
+  }
+
+  private boolean dequeueIfAvailableSlot() {
     PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> toFetch = null;
+    PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> preempted = null;
+    final boolean isExpired;
+    final int attempt;
     synchronized (mLock) {
       int outstandingRequests = mCurrentlyFetching.size();
 
-      if (outstandingRequests < mMaxOutstandingHiPri) {
-        toFetch = mHiPriQueue.pollFirst();
+      if (outstandingRequests < getMaxOutstandingHiPri()) {
+        toFetch = pollAgedLowPri();
+        if (toFetch == null) {
+          toFetch = mHiPriQueue.pollFirst();
+        }
       }
 
-      if (toFetch == null && outstandingRequests < mMaxOutstandingLowPri) {
+      if (toFetch == null && outstandingRequests < getMaxOutstandingLowPri()) {
         toFetch = mLowPriQueue.pollFirst();
       }
+      if (toFetch == null && mIsPreemptionEnabled && !mHiPriQueue.isEmpty()) {
+        if (mHiPriQueue.first().getContext().isDeadlineExceeded()) {
+          // dropped below, no need to make room for it
+          toFetch = mHiPriQueue.pollFirst();
+        } else {
+          PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> toPreempt = findPreemptable();
+          if (toPreempt != null) {
+            preempt(toPreempt);
+            preempted = toPreempt;
+            toFetch = mHiPriQueue.pollFirst();
+          }
+        }
+      }
       if (toFetch == null) {
-        return;
+        return false;
+      }
+      isExpired = toFetch.getContext().isDeadlineExceeded();
+      attempt = toFetch.attempt;
+      if (!isExpired) {
+        toFetch.dequeuedTimestamp = mClock.now();
+        mCurrentlyFetching.add(toFetch);
+
+        FLog.v(
+            TAG,
+            "fetching: %s (concurrent: %s hi-pri queue: %s low-pri queue: %s)",
+            toFetch.getUri(),
+            outstandingRequests,
+            mHiPriQueue.size(),
+            mLowPriQueue.size());
       }
-      toFetch.dequeuedTimestamp = mClock.now();
-      mCurrentlyFetching.add(toFetch);
-
-      FLog.v(
-          TAG,
-          "fetching: %s (concurrent: %s hi-pri queue: %s low-pri queue: %s)",
-          toFetch.getUri(),
-          outstandingRequests,
-          mHiPriQueue.size(),
-          mLowPriQueue.size());
     }
 
-    delegateFetch(toFetch);
+    if (preempted != null && preempted.attemptContext != null) {
+      // outside of the lock, the delegate may call back synchronously
+      preempted.attemptContext.cancelAttempt();
+    }
+    if (isExpired) {
+      // the result is not needed anymore, so the request does not take a slot
+      FLog.v(TAG, "expired: %s", toFetch.getUri());
+      toFetch.callback.onFailure(
+          DeadlineExceededException.report(
+              toFetch.getContext(), NetworkFetchProducer.PRODUCER_NAME));
+    } else {
+      delegateFetch(toFetch, attempt);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the oldest low-pri request if it has waited for long enough to be dequeued like a
+   * hi-pri one.
+   */
+  @Nullable
+  private PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> pollAgedLowPri() {
+    if (mPriorityAgingMs <= 0 || mLowPriQueue.isEmpty()) {
+      return null;
+    }
+    PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> oldest = mLowPriQueue.first();
+    if (mClock.now() - oldest.enqueuedTimestamp < mPriorityAgingMs) {
+      return null;
+    }
+    mLowPriQueue.pollFirst();
+    oldest.isPromoted = true;
+    FLog.v(TAG, "promote: %s", oldest.getUri());
+    return oldest;
+  }
+
+  /** Returns the low-pri download that was started most recently, if any. */
+  @Nullable
+  private PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> findPreemptable() {
+    PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> latest = null;
+    for (PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> candidate : mCurrentlyFetching) {
+      if (candidate.isPromoted || candidate.getContext().getPriority() == HIGH) {
+        continue;
+      }
+      if (latest == null || candidate.dequeuedTimestamp >= latest.dequeuedTimestamp) {
+        latest = candidate;
+      }
+    }
+    return latest;
+  }
+
+  private void preempt(PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState) {
+    FLog.v(TAG, "preempt: %s", fetchState.getUri());
+    mCurrentlyFetching.remove(fetchState);
+    // callbacks of the aborted attempt are ignored from now on
+    fetchState.attempt++;
+    fetchState.preemptionCount++;
+    // the entry keeps its sequence number, so it goes back to the head of the queue
+    mLowPriQueue.add(fetchState);
+  }
+
+  private static boolean isStale(PriorityFetchState<?> fetchState, int attempt) {
+    return fetchState.attempt != attempt;
   }
 
   private void delegateFetch(
-      final PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState) {
+      final PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState, final int attempt) {
     try {
       NetworkFetcher.Callback callbackWrapper =
           new NetworkFetcher.Callback() {
             @Override
             public void onResponse(InputStream response, int responseLength) throws IOException {
-              fetchState.callback.onResponse(response, responseLength);
+              if (isStale(fetchState, attempt)) {
+                throw new PreemptedException();
+              }
+              fetchState.responseTimestamp = mClock.now();
+              fetchState.setNotModified(fetchState.delegatedState.isNotModified());
+              fetchState.setResponseValidators(fetchState.delegatedState.getResponseValidators());
+              fetchState.setResumed(fetchState.delegatedState.isResumed());
+              fetchState.callback.onResponse(
+                  mIsPreemptionEnabled
+                      ? newPreemptableInputStream(response, fetchState, attempt)
+                      : response,
+                  responseLength);
             }
 
             @Override
             public void onFailure(Throwable throwable) {
+              if (isStale(fetchState, attempt)) {
+                return;
+              }
+              if (ThrottlingProducer.isCongestionFailure(throwable)) {
+                reportToConcurrencyLimiter(fetchState, false);
+              }
               removeFromQueue(fetchState, "FAIL");
               fetchState.callback.onFailure(throwable);
             }
 
             @Override
             public void onCancellation() {
+              if (isStale(fetchState, attempt)) {
+                return;
+              }
               removeFromQueue(fetchState, "CANCEL");
               fetchState.callback.onCancellation();
             }
           };
+      fetchState.delegatedState.setCachedValidators(fetchState.getCachedValidators());
+      fetchState.delegatedState.setResume(
+          fetchState.getResumeOffset(), fetchState.getResumeValidators());
       mDelegate.fetch(fetchState.delegatedState, callbackWrapper);
     } catch (Exception e) {
       removeFromQueue(fetchState, "FAIL");
@@ -226,25 +492,22 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
 
   private void putInQueue(
       PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> entry, boolean isHiPri) {
+    entry.queueSequence = mNextQueueSequence++;
     if (isHiPri) {
-      if (mIsHiPriFifo) {
-        mHiPriQueue.addLast(entry);
-      } else {
-        mHiPriQueue.addFirst(entry);
-      }
+      mHiPriQueue.add(entry);
     } else {
-      mLowPriQueue.addLast(entry);
+      mLowPriQueue.add(entry);
     }
   }
 
   @VisibleForTesting
   List<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> getHiPriQueue() {
-    return mHiPriQueue;
+    return new ArrayList<>(mHiPriQueue);
   }
 
   @VisibleForTesting
   List<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> getLowPriQueue() {
-    return mLowPriQueue;
+    return new ArrayList<>(mLowPriQueue);
   }
 
   @VisibleForTesting
@@ -254,6 +517,13 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
 
   public static class PriorityFetchState<FETCH_STATE extends FetchState> extends FetchState {
     public final FETCH_STATE delegatedState;
+
+    /**
+     * Context of the delegated fetch when pre-emption is enabled, through which the delegate's call
+     * of an attempt is cancelled.
+     */
+    @Nullable final AttemptProducerContext attemptContext;
+
     final long enqueuedTimestamp;
 
     /** Size of hi-pri queue when this request was added. */
@@ -265,15 +535,31 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     NetworkFetcher.Callback callback;
     long dequeuedTimestamp;
 
+    /** When the response of the current attempt started arriving. */
+    volatile long responseTimestamp;
+
+    /** Order of this request in its queue, assigned whenever it is put in a queue. */
+    long queueSequence;
+
+    /** Incremented when the download is pre-empted, to tell apart callbacks of older attempts. */
+    volatile int attempt;
+
+    int preemptionCount;
+
+    /** Whether this low-pri request was dequeued because of priority aging. */
+    boolean isPromoted;
+
     private PriorityFetchState(
         Consumer<EncodedImage> consumer,
         ProducerContext producerContext,
         FETCH_STATE delegatedState,
+        @Nullable AttemptProducerContext attemptContext,
         long enqueuedTimestamp,
         int hiPriCountWhenCreated,
         int lowPriCountWhenCreated) {
       super(consumer, producerContext);
       this.delegatedState = delegatedState;
+      this.attemptContext = attemptContext;
       this.enqueuedTimestamp = enqueuedTimestamp;
       this.hiPriCountWhenCreated = hiPriCountWhenCreated;
       this.lowPriCountWhenCreated = lowPriCountWhenCreated;
@@ -283,10 +569,14 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
   @Override
   public PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> createFetchState(
       Consumer<EncodedImage> consumer, ProducerContext producerContext) {
+    final AttemptProducerContext attemptContext =
+        mIsPreemptionEnabled ? new AttemptProducerContext(producerContext) : null;
     return new PriorityFetchState<>(
         consumer,
         producerContext,
-        mDelegate.createFetchState(consumer, producerContext),
+        mDelegate.createFetchState(
+            consumer, attemptContext != null ? attemptContext : producerContext),
+        attemptContext,
         mClock.now(),
         mHiPriQueue.size(),
         mLowPriQueue.size());
@@ -309,6 +599,134 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
         "pri_queue_time", "" + (fetchState.dequeuedTimestamp - fetchState.enqueuedTimestamp));
     extras.put("hipri_queue_size", "" + fetchState.hiPriCountWhenCreated);
     extras.put("lowpri_queue_size", "" + fetchState.lowPriCountWhenCreated);
+    if (mConcurrencyLimiter != null) {
+      extras.put("concurrency_limit", "" + getMaxOutstandingHiPri());
+    }
+    if (mIsPreemptionEnabled) {
+      extras.put("preemptions", "" + fetchState.preemptionCount);
+    }
     return extras;
   }
+
+  private static class QueueOrderComparator<FETCH_STATE extends FetchState>
+      implements Comparator<PriorityFetchState<FETCH_STATE>> {
+
+    private final boolean mIsNewestFirst;
+
+    QueueOrderComparator(boolean isNewestFirst) {
+      mIsNewestFirst = isNewestFirst;
+    }
+
+    @Override
+    public int compare(PriorityFetchState<FETCH_STATE> lhs, PriorityFetchState<FETCH_STATE> rhs) {
+      if (lhs.queueSequence == rhs.queueSequence) {
+        return 0;
+      }
+      boolean isLhsFirst = lhs.queueSequence < rhs.queueSequence;
+      return isLhsFirst != mIsNewestFirst ? -1 : 1;
+    }
+  }
+
+  private static InputStream newPreemptableInputStream(
+      InputStream response, PriorityFetchState<?> fetchState, int attempt) {
+    return response instanceof DirectReadable
+        ? new PreemptableDirectReadableStream(response, fetchState, attempt)
+        : new PreemptableInputStream(response, fetchState, attempt);
+  }
+
+  /** Aborts reading the response once the download has been pre-empted. */
+  private static class PreemptableInputStream extends FilterInputStream {
+
+    private final PriorityFetchState<?> mFetchState;
+    private final int mAttempt;
+
+    PreemptableInputStream(InputStream in, PriorityFetchState<?> fetchState, int attempt) {
+      super(in);
+      mFetchState = fetchState;
+      mAttempt = attempt;
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkNotPreempted();
+      try {
+        return super.read();
+      } catch (IOException e) {
+        // the delegate's call fails once it is cancelled
+        checkNotPreempted();
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      checkNotPreempted();
+      try {
+        return super.read(b, off, len);
+      } catch (IOException e) {
+        checkNotPreempted();
+        throw e;
+      }
+    }
+
+    void checkNotPreempted() throws PreemptedException {
+      if (isStale(mFetchState, mAttempt)) {
+        throw new PreemptedException();
+      }
+    }
+  }
+
+  /** {@link PreemptableInputStream} of a response that can be read directly. */
+  private static class PreemptableDirectReadableStream extends PreemptableInputStream
+      implements DirectReadable {
+
+    PreemptableDirectReadableStream(InputStream in, PriorityFetchState<?> fetchState, int attempt) {
+      super(in, fetchState, attempt);
+    }
+
+    @Override
+    public int readTo(OutputStream os, int maxLength) throws IOException {
+      checkNotPreempted();
+      try {
+        return ((DirectReadable) in).readTo(os, maxLength);
+      } catch (IOException e) {
+        checkNotPreempted();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Context of the delegated fetch of a request that can be pre-empted. It follows the state of the
+   * request's context, and additionally lets the delegate's call of one attempt be cancelled
+   * without cancelling the request.
+   */
+  static class AttemptProducerContext extends SettableProducerContext {
+
+    @GuardedBy("this")
+    private List<ProducerContextCallbacks> mAttemptCallbacks = new ArrayList<>();
+
+    AttemptProducerContext(ProducerContext context) {
+      super(context);
+      putExtras(context.getExtras());
+    }
+
+    @Override
+    public void addCallbacks(ProducerContextCallbacks callbacks) {
+      synchronized (this) {
+        mAttemptCallbacks.add(callbacks);
+      }
+      super.addCallbacks(callbacks);
+    }
+
+    /** Requests the cancellation of the work the delegate has started for the current attempt. */
+    void cancelAttempt() {
+      final List<ProducerContextCallbacks> callbacks;
+      synchronized (this) {
+        callbacks = mAttemptCallbacks;
+        mAttemptCallbacks = new ArrayList<>();
+      }
+      callOnCancellationRequested(callbacks);
+    }
+  }
 }
@@ -28,14 +28,23 @@ import javax.annotation.Nullable;
  */
 public interface ProducerContext {
 
+  /** Value of {@link #getDeadlineMs()} for requests without a deadline. */
+  long NO_DEADLINE = 0;
+
   @StringDef({
     ExtraKeys.ORIGIN,
     ExtraKeys.ORIGIN_SUBCATEGORY,
     ExtraKeys.ENCODED_WIDTH,
     ExtraKeys.ENCODED_HEIGHT,
     ExtraKeys.ENCODED_SIZE,
+    ExtraKeys.FETCHED_SIZE,
     ExtraKeys.MULTIPLEX_BITMAP_COUNT,
     ExtraKeys.MULTIPLEX_ENCODED_COUNT,
+    ExtraKeys.CACHED_VALIDATORS,
+    ExtraKeys.RESPONSE_VALIDATORS,
+    ExtraKeys.NOT_MODIFIED,
+    ExtraKeys.DISK_CACHE_WRITE_THROUGH,
+    ExtraKeys.RESUMABLE_DOWNLOAD,
   })
   @interface ExtraKeys {
     String ORIGIN = "origin";
@@ -43,10 +52,22 @@ public interface ProducerContext {
     String ENCODED_WIDTH = "encoded_width";
     String ENCODED_HEIGHT = "encoded_height";
     String ENCODED_SIZE = "encoded_size";
+    /* number of bytes of the image downloaded by NetworkFetchProducer */
+    String FETCHED_SIZE = "fetched_size";
     /* number of deduped request in BitmapMemoryCacheKeyMultiplexProducer */
     String MULTIPLEX_BITMAP_COUNT = "multiplex_bmp_cnt";
     /* number of deduped request in EncodedCacheKeyMultiplexProducer */
     String MULTIPLEX_ENCODED_COUNT = "multiplex_enc_cnt";
+    /* validators of the stale disk cache entry being revalidated over the network */
+    String CACHED_VALIDATORS = "cached_validators";
+    /* validators of the network response */
+    String RESPONSE_VALIDATORS = "response_validators";
+    /* set when the network answered a revalidation with 304 Not Modified */
+    String NOT_MODIFIED = "not_modified";
+    /* disk cache entry the network response is written to while it is downloaded */
+    String DISK_CACHE_WRITE_THROUGH = "disk_cache_write_through";
+    /* disk cache entry keeping the bytes of an interrupted network fetch to resume from */
+    String RESUMABLE_DOWNLOAD = "resumable_download";
   }
 
   /** @return image request that is being executed */
@@ -77,6 +98,18 @@ public interface ProducerContext {
   /** @return true if request's owner expects intermediate results */
   boolean isIntermediateResultExpected();
 
+  /**
+   * @return uptime in milliseconds after which the result is not needed anymore, or {@link
+   *     #NO_DEADLINE}
+   */
+  long getDeadlineMs();
+
+  /**
+   * @return true if the deadline of the request has passed. Producers should fail the request with
+   *     a {@link DeadlineExceededException} instead of starting expensive work in that case.
+   */
+  boolean isDeadlineExceeded();
+
   /**
    * Adds callbacks to the set of callbacks that are executed at various points during the
    * processing of a request.
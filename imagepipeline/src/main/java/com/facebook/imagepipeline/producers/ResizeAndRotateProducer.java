@@ -118,7 +118,8 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
                           encodedImage.getImageFormat(), mIsResizingEnabled)));
             }
           };
-      mJobScheduler = new JobScheduler(mExecutor, job, MIN_TRANSFORM_INTERVAL_MS);
+      mJobScheduler =
+          new JobScheduler(mExecutor, job, MIN_TRANSFORM_INTERVAL_MS, mProducerContext);
 
       mProducerContext.addCallbacks(
           new BaseProducerContextCallbacks() {
@@ -220,6 +221,9 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
       Map<String, String> extraMap = null;
       EncodedImage ret;
       try {
+        if (mProducerContext.isDeadlineExceeded()) {
+          throw DeadlineExceededException.report(mProducerContext, PRODUCER_NAME);
+        }
         ImageTranscodeResult result =
             imageTranscoder.transcode(
                 encodedImage,
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import android.graphics.Bitmap;
+import android.util.Pair;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.logging.FLog;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.core.CloseableReferenceFactory;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Producer for combining requests for the same image that only differ in their {@link
+ * ResizeOptions}.
+ *
+ * <p>Requests are grouped by their bitmap cache key computed without resize options. A request
+ * joins an in-flight decode of the same group if that decode targets a size at least as large as
+ * the one requested, otherwise it starts a decode of its own that later, smaller requests can join.
+ *
+ * <p>The decoded image is delivered unchanged to the request that started the decode. Requests for
+ * a smaller size receive a downscaled copy of the final static bitmap. Final images that cannot or
+ * do not need to be downscaled (e.g. animated images) are forwarded as they are. Either way, the
+ * final image a joining request receives is put into the bitmap memory cache under the request's
+ * own key, so that the next request for that key is a cache hit. Intermediate results are
+ * forwarded as they are and are not cached.
+ */
+@ThreadSafe
+public class ResizeAwareBitmapMultiplexProducer
+    implements Producer<CloseableReference<CloseableImage>> {
+
+  public static final String PRODUCER_NAME = "ResizeAwareBitmapMultiplexProducer";
+  public static final String EXTRA_DERIVED_FROM_SHARED_DECODE = "derived_from_shared_decode";
+
+  private static final Class<?> TAG = ResizeAwareBitmapMultiplexProducer.class;
+
+  private final MemoryCache<CacheKey, CloseableImage> mMemoryCache;
+  private final CacheKeyFactory mCacheKeyFactory;
+  private final PlatformBitmapFactory mPlatformBitmapFactory;
+  private final CloseableReferenceFactory mCloseableReferenceFactory;
+  private final Producer<CloseableReference<CloseableImage>> mInputProducer;
+
+  /** In-flight decodes, by resize-agnostic bitmap cache key and lowest permitted request level. */
+  @GuardedBy("this")
+  @VisibleForTesting
+  final Map<Pair<CacheKey, ImageRequest.RequestLevel>, List<SharedDecode>> mSharedDecodes;
+
+  public ResizeAwareBitmapMultiplexProducer(
+      MemoryCache<CacheKey, CloseableImage> memoryCache,
+      CacheKeyFactory cacheKeyFactory,
+      PlatformBitmapFactory platformBitmapFactory,
+      CloseableReferenceFactory closeableReferenceFactory,
+      Producer<CloseableReference<CloseableImage>> inputProducer) {
+    mMemoryCache = memoryCache;
+    mCacheKeyFactory = cacheKeyFactory;
+    mPlatformBitmapFactory = platformBitmapFactory;
+    mCloseableReferenceFactory = closeableReferenceFactory;
+    mInputProducer = inputProducer;
+    mSharedDecodes = new HashMap<>();
+  }
+
+  @Override
+  public void produceResults(
+      Consumer<CloseableReference<CloseableImage>> consumer, ProducerContext producerContext) {
+    producerContext.getProducerListener().onProducerStart(producerContext, PRODUCER_NAME);
+
+    final ImageRequest imageRequest = producerContext.getImageRequest();
+    final Object callerContext = producerContext.getCallerContext();
+    final ResizeOptions resizeOptions = imageRequest.getResizeOptions();
+    final ImageRequest resizeAgnosticRequest =
+        resizeOptions == null
+            ? imageRequest
+            : ImageRequestBuilder.fromRequest(imageRequest).setResizeOptions(null).build();
+    final Pair<CacheKey, ImageRequest.RequestLevel> groupKey =
+        Pair.create(
+            mCacheKeyFactory.getBitmapCacheKey(resizeAgnosticRequest, callerContext),
+            producerContext.getLowestPermittedRequestLevel());
+    final Member member =
+        new Member(
+            consumer,
+            producerContext,
+            mCacheKeyFactory.getBitmapCacheKey(imageRequest, callerContext),
+            resizeOptions);
+
+    SharedDecode sharedDecode = null;
+    boolean createdNewDecode = false;
+    synchronized (this) {
+      List<SharedDecode> sharedDecodes = mSharedDecodes.get(groupKey);
+      if (sharedDecodes == null) {
+        sharedDecodes = new ArrayList<>(1);
+        mSharedDecodes.put(groupKey, sharedDecodes);
+      }
+      for (int i = 0; i < sharedDecodes.size(); i++) {
+        if (sharedDecodes.get(i).tryAddMember(member)) {
+          sharedDecode = sharedDecodes.get(i);
+          break;
+        }
+      }
+      if (sharedDecode == null) {
+        sharedDecode = new SharedDecode(groupKey, member);
+        sharedDecodes.add(sharedDecode);
+        createdNewDecode = true;
+      }
+    }
+
+    sharedDecode.addCallbacks(member);
+    if (createdNewDecode) {
+      sharedDecode.start();
+    }
+  }
+
+  private synchronized void removeSharedDecode(SharedDecode sharedDecode) {
+    final List<SharedDecode> sharedDecodes = mSharedDecodes.get(sharedDecode.mGroupKey);
+    if (sharedDecodes != null && sharedDecodes.remove(sharedDecode) && sharedDecodes.isEmpty()) {
+      mSharedDecodes.remove(sharedDecode.mGroupKey);
+    }
+  }
+
+  /** Whether an image decoded for {@code decoded} can serve a request for {@code requested}. */
+  @VisibleForTesting
+  static boolean covers(@Nullable ResizeOptions decoded, @Nullable ResizeOptions requested) {
+    if (decoded == null) {
+      return true;
+    }
+    return requested != null
+        && requested.width <= decoded.width
+        && requested.height <= decoded.height;
+  }
+
+  /**
+   * Creates a downscaled copy of {@code image} for the given member, or returns null if the image
+   * cannot or does not need to be downscaled.
+   */
+  @Nullable
+  private CloseableReference<CloseableImage> createVariant(Member member, CloseableImage image) {
+    if (member.mResizeOptions == null || !(image instanceof CloseableStaticBitmap)) {
+      return null;
+    }
+    final CloseableStaticBitmap staticBitmap = (CloseableStaticBitmap) image;
+    // width and height of the closeable bitmap take the rotation into account, as resize options do
+    final float scale =
+        Math.max(
+            member.mResizeOptions.width / (float) staticBitmap.getWidth(),
+            member.mResizeOptions.height / (float) staticBitmap.getHeight());
+    if (scale >= 1f) {
+      return null;
+    }
+    final Bitmap bitmap = staticBitmap.getUnderlyingBitmap();
+    final int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+    final int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+
+    CloseableReference<Bitmap> scaledBitmap = null;
+    CloseableReference<CloseableImage> variant = null;
+    try {
+      scaledBitmap = mPlatformBitmapFactory.createScaledBitmap(bitmap, width, height, true);
+      variant =
+          mCloseableReferenceFactory.create(
+              (CloseableImage)
+                  new CloseableStaticBitmap(
+                      scaledBitmap,
+                      staticBitmap.getQualityInfo(),
+                      staticBitmap.getRotationAngle(),
+                      staticBitmap.getExifOrientation()));
+      return cacheForMember(member, variant);
+    } catch (RuntimeException e) {
+      // fall back to forwarding the larger image
+      FLog.w(TAG, e, "Failed to downscale shared decode to %dx%d", width, height);
+      CloseableReference.closeSafely(variant);
+      return null;
+    } finally {
+      CloseableReference.closeSafely(scaledBitmap);
+    }
+  }
+
+  /**
+   * Puts the final image of a joining member into the bitmap memory cache under the member's own
+   * key, as the bitmap memory cache producer below only caches it under the starter's key.
+   *
+   * @return the reference to deliver to the member, which the caller has to close
+   */
+  private CloseableReference<CloseableImage> cacheForMember(
+      Member member, CloseableReference<CloseableImage> image) {
+    if (member.mProducerContext.getImageRequest().isMemoryCacheEnabled()) {
+      final CloseableReference<CloseableImage> cachedImage =
+          mMemoryCache.cache(member.mCacheKey, image);
+      if (cachedImage != null) {
+        CloseableReference.closeSafely(image);
+        return cachedImage;
+      }
+    }
+    return image;
+  }
+
+  /** A request participating in a shared decode. */
+  private class Member {
+    final Consumer<CloseableReference<CloseableImage>> mConsumer;
+    final ProducerContext mProducerContext;
+    final CacheKey mCacheKey;
+    @Nullable final ResizeOptions mResizeOptions;
+
+    Member(
+        Consumer<CloseableReference<CloseableImage>> consumer,
+        ProducerContext producerContext,
+        CacheKey cacheKey,
+        @Nullable ResizeOptions resizeOptions) {
+      mConsumer = consumer;
+      mProducerContext = producerContext;
+      mCacheKey = cacheKey;
+      mResizeOptions = resizeOptions;
+    }
+  }
+
+  /** A single decode whose results are shared among all its members. */
+  @VisibleForTesting
+  class SharedDecode {
+    private final Pair<CacheKey, ImageRequest.RequestLevel> mGroupKey;
+    private final Member mStarter;
+    private final BaseProducerContext mSharedProducerContext;
+
+    @GuardedBy("SharedDecode.this")
+    private final List<Member> mMembers = new ArrayList<>(2);
+
+    @GuardedBy("SharedDecode.this")
+    private boolean mIsFinished;
+
+    SharedDecode(Pair<CacheKey, ImageRequest.RequestLevel> groupKey, Member starter) {
+      mGroupKey = groupKey;
+      mStarter = starter;
+      mMembers.add(starter);
+      final ProducerContext producerContext = starter.mProducerContext;
+      mSharedProducerContext =
+          new BaseProducerContext(
+              producerContext.getImageRequest(),
+              producerContext.getId(),
+              producerContext.getProducerListener(),
+              producerContext.getCallerContext(),
+              producerContext.getLowestPermittedRequestLevel(),
+              producerContext.isPrefetch(),
+              producerContext.isIntermediateResultExpected(),
+              producerContext.getPriority(),
+              producerContext.getImagePipelineConfig());
+    }
+
+    /** Adds the member if this decode is still running and targets a large enough size. */
+    synchronized boolean tryAddMember(Member member) {
+      if (mIsFinished
+          || mMembers.isEmpty()
+          || !covers(mStarter.mResizeOptions, member.mResizeOptions)) {
+        return false;
+      }
+      mMembers.add(member);
+      return true;
+    }
+
+    void start() {
+      mInputProducer.produceResults(new SharedDecodeConsumer(), mSharedProducerContext);
+    }
+
+    void addCallbacks(final Member member) {
+      member.mProducerContext.addCallbacks(
+          new BaseProducerContextCallbacks() {
+            @Override
+            public void onCancellationRequested() {
+              final boolean wasRemoved;
+              final boolean cancelSharedDecode;
+              synchronized (SharedDecode.this) {
+                wasRemoved = mMembers.remove(member);
+                cancelSharedDecode = wasRemoved && mMembers.isEmpty();
+              }
+              if (!wasRemoved) {
+                return;
+              }
+              if (cancelSharedDecode) {
+                removeSharedDecode(SharedDecode.this);
+                mSharedProducerContext.cancel();
+              } else {
+                updateFlags();
+              }
+              member
+                  .mProducerContext
+                  .getProducerListener()
+                  .onProducerFinishWithCancellation(member.mProducerContext, PRODUCER_NAME, null);
+              member.mConsumer.onCancellation();
+            }
+
+            @Override
+            public void onIsPrefetchChanged() {
+              updateFlags();
+            }
+
+            @Override
+            public void onIsIntermediateResultExpectedChanged() {
+              updateFlags();
+            }
+
+            @Override
+            public void onPriorityChanged() {
+              updateFlags();
+            }
+          });
+      updateFlags();
+    }
+
+    /** Recomputes the shared context's flags from all current members. */
+    private void updateFlags() {
+      boolean isPrefetch = true;
+      boolean isIntermediateResultExpected = false;
+      Priority priority = Priority.LOW;
+      long deadlineMs = ProducerContext.NO_DEADLINE;
+      boolean hasMemberWithoutDeadline = false;
+      synchronized (SharedDecode.this) {
+        if (mMembers.isEmpty()) {
+          return;
+        }
+        for (int i = 0; i < mMembers.size(); i++) {
+          final ProducerContext producerContext = mMembers.get(i).mProducerContext;
+          isPrefetch &= producerContext.isPrefetch();
+          isIntermediateResultExpected |= producerContext.isIntermediateResultExpected();
+          priority = Priority.getHigherPriority(priority, producerContext.getPriority());
+          final long memberDeadlineMs = producerContext.getDeadlineMs();
+          hasMemberWithoutDeadline |= memberDeadlineMs == ProducerContext.NO_DEADLINE;
+          deadlineMs = Math.max(deadlineMs, memberDeadlineMs);
+        }
+      }
+      // the decode is needed until the latest deadline of its members
+      mSharedProducerContext.setDeadlineMs(
+          hasMemberWithoutDeadline ? ProducerContext.NO_DEADLINE : deadlineMs);
+      BaseProducerContext.callOnIsPrefetchChanged(
+          mSharedProducerContext.setIsPrefetchNoCallbacks(isPrefetch));
+      BaseProducerContext.callOnIsIntermediateResultExpectedChanged(
+          mSharedProducerContext.setIsIntermediateResultExpectedNoCallbacks(
+              isIntermediateResultExpected));
+      BaseProducerContext.callOnPriorityChanged(
+          mSharedProducerContext.setPriorityNoCallbacks(priority));
+    }
+
+    private List<Member> getMembers(boolean finish) {
+      final List<Member> members;
+      synchronized (SharedDecode.this) {
+        members = new ArrayList<>(mMembers);
+        if (finish) {
+          mIsFinished = true;
+          mMembers.clear();
+        }
+      }
+      if (finish) {
+        removeSharedDecode(this);
+      }
+      return members;
+    }
+
+    private void onNewResult(
+        @Nullable CloseableReference<CloseableImage> result, @Consumer.Status int status) {
+      final boolean isLast = BaseConsumer.isLast(status);
+      final List<Member> members = getMembers(isLast);
+      for (int i = 0; i < members.size(); i++) {
+        final Member member = members.get(i);
+        CloseableReference<CloseableImage> variant = null;
+        if (isLast
+            && member != mStarter
+            && result != null
+            && !BaseConsumer.statusHasFlag(status, Consumer.IS_PARTIAL_RESULT)) {
+          variant = createVariant(member, result.get());
+          if (variant == null) {
+            // the member gets the shared image as it is, but still under its own key
+            variant = cacheForMember(member, result.clone());
+          }
+        }
+        try {
+          if (isLast) {
+            final ProducerListener2 listener = member.mProducerContext.getProducerListener();
+            listener.onProducerFinishWithSuccess(
+                member.mProducerContext,
+                PRODUCER_NAME,
+                listener.requiresExtraMap(member.mProducerContext, PRODUCER_NAME)
+                    ? ImmutableMap.of(
+                        EXTRA_DERIVED_FROM_SHARED_DECODE, String.valueOf(variant != null))
+                    : null);
+            member.mProducerContext.putExtras(mSharedProducerContext.getExtras());
+          }
+          member.mConsumer.onNewResult(variant != null ? variant : result, status);
+        } finally {
+          CloseableReference.closeSafely(variant);
+        }
+      }
+    }
+
+    private void onFailure(Throwable t) {
+      final List<Member> members = getMembers(true);
+      for (int i = 0; i < members.size(); i++) {
+        final Member member = members.get(i);
+        member
+            .mProducerContext
+            .getProducerListener()
+            .onProducerFinishWithFailure(member.mProducerContext, PRODUCER_NAME, t, null);
+        member.mConsumer.onFailure(t);
+      }
+    }
+
+    private void onCancellation() {
+      final List<Member> members = getMembers(true);
+      for (int i = 0; i < members.size(); i++) {
+        final Member member = members.get(i);
+        member
+            .mProducerContext
+            .getProducerListener()
+            .onProducerFinishWithCancellation(member.mProducerContext, PRODUCER_NAME, null);
+        member.mConsumer.onCancellation();
+      }
+    }
+
+    private void onProgressUpdate(float progress) {
+      final List<Member> members = getMembers(false);
+      for (int i = 0; i < members.size(); i++) {
+        members.get(i).mConsumer.onProgressUpdate(progress);
+      }
+    }
+
+    /** Forwards {@link Consumer} methods to the SharedDecode. */
+    private class SharedDecodeConsumer extends BaseConsumer<CloseableReference<CloseableImage>> {
+      @Override
+      protected void onNewResultImpl(
+          @Nullable CloseableReference<CloseableImage> newResult, @Status int status) {
+        SharedDecode.this.onNewResult(newResult, status);
+      }
+
+      @Override
+      protected void onFailureImpl(Throwable t) {
+        SharedDecode.this.onFailure(t);
+      }
+
+      @Override
+      protected void onCancellationImpl() {
+        SharedDecode.this.onCancellation();
+      }
+
+      @Override
+      protected void onProgressUpdateImpl(float progress) {
+        SharedDecode.this.onProgressUpdate(progress);
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import bolts.Task;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.CacheValidators;
+import com.facebook.imagepipeline.image.EncodedImage;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Disk cache entry holding the bytes received by a network fetch that did not complete, along with
+ * the validators of the response, so that {@link NetworkFetchProducer} can resume the download
+ * from where it stopped.
+ *
+ * <p>It is passed from {@link DiskCacheWriteProducer} to the network fetch producer as the {@link
+ * ProducerContext.ExtraKeys#RESUMABLE_DOWNLOAD} extra.
+ */
+@ThreadSafe
+class ResumableDownload {
+
+  private final BufferedDiskCache mBufferedDiskCache;
+  private final CacheKey mPartialBodyKey;
+
+  ResumableDownload(BufferedDiskCache bufferedDiskCache, CacheKey cacheKey) {
+    mBufferedDiskCache = bufferedDiskCache;
+    mPartialBodyKey = new SimpleCacheKey(cacheKey.getUriString() + "#partial");
+  }
+
+  /**
+   * Tells whether bytes may be held, without reading the disk.
+   *
+   * <p>Not guaranteed to be correct, see {@link BufferedDiskCache#containsSync(CacheKey)}.
+   */
+  boolean mayHavePartialBody() {
+    return mBufferedDiskCache.containsSync(mPartialBodyKey);
+  }
+
+  /**
+   * Reads the held bytes without reporting the look up to the cache stats or to the cache event
+   * listener, as they are not an image.
+   *
+   * @return task that resolves to the held bytes, or to null if there are none
+   */
+  Task<EncodedImage> readPartialBody() {
+    return mBufferedDiskCache.getUntracked(mPartialBodyKey);
+  }
+
+  /**
+   * Reads the validators of the response that the held bytes are part of, without reporting the
+   * look up either.
+   *
+   * @return task that resolves to the validators, or to null if there are none
+   */
+  Task<CacheValidators> readValidators() {
+    return mBufferedDiskCache.getValidators(mPartialBodyKey);
+  }
+
+  /** Keeps the bytes received so far, replacing the ones held. */
+  void save(EncodedImage partialBody, CacheValidators validators) {
+    mBufferedDiskCache.put(mPartialBodyKey, partialBody);
+    mBufferedDiskCache.putValidators(mPartialBodyKey, validators);
+  }
+
+  /** Removes the held bytes, once the image has been downloaded or they cannot be resumed from. */
+  void discard() {
+    mBufferedDiskCache.remove(mPartialBodyKey);
+  }
+}
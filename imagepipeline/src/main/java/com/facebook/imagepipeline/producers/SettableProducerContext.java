@@ -17,6 +17,10 @@ import javax.annotation.concurrent.ThreadSafe;
 @ThreadSafe
 public class SettableProducerContext extends BaseProducerContext {
 
+  /**
+   * Creates a context for the same request as the given one. The deadline of the request is copied
+   * rather than computed again from its time to live.
+   */
   public SettableProducerContext(ProducerContext context) {
     this(
         context.getImageRequest(),
@@ -29,8 +33,13 @@ public class SettableProducerContext extends BaseProducerContext {
         context.isIntermediateResultExpected(),
         context.getPriority(),
         context.getImagePipelineConfig());
+    setDeadlineMs(context.getDeadlineMs());
   }
 
+  /**
+   * Creates a context for the same request as the given one, that produces {@code overrideRequest}
+   * instead. The deadline of the request is copied.
+   */
   public SettableProducerContext(ImageRequest overrideRequest, ProducerContext context) {
     this(
         overrideRequest,
@@ -43,6 +52,7 @@ public class SettableProducerContext extends BaseProducerContext {
         context.isIntermediateResultExpected(),
         context.getPriority(),
         context.getImagePipelineConfig());
+    setDeadlineMs(context.getDeadlineMs());
   }
 
   public SettableProducerContext(
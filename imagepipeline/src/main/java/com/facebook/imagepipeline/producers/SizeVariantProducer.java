@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import android.net.Uri;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.util.UriUtil;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.facebook.imagepipeline.request.SizeVariantUriRewriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Fetches a variant of a network image resized by the server instead of the original image.
+ *
+ * <p>If the request has resize options and the {@link SizeVariantUriRewriter} knows size buckets
+ * for the image, the request is passed on for the variant of the smallest size bucket at least as
+ * large as the resize options. The variant is then cached under its own key: the {@link
+ * CacheKeyFactory} is given the request for the variant.
+ *
+ * <p>If that variant is neither in the encoded memory cache nor in the disk cache, but one of a
+ * larger size bucket is, the larger variant is used instead, to be downsampled, rather than
+ * fetching the smaller one over the network. The disk cache is only checked in memory, see {@link
+ * BufferedDiskCache#containsSync}.
+ *
+ * <p>The extras that the producers after this one put on the context of the variant, like the
+ * origin of the image, are copied to the context of the request with each result.
+ *
+ * <p>Requests without resize options, or larger than the largest size bucket, are passed on as is.
+ */
+public class SizeVariantProducer implements Producer<EncodedImage> {
+
+  public static final String PRODUCER_NAME = "SizeVariantProducer";
+
+  private final SizeVariantUriRewriter mUriRewriter;
+  private final MemoryCache<CacheKey, PooledByteBuffer> mEncodedMemoryCache;
+  private final BufferedDiskCache mDefaultBufferedDiskCache;
+  private final BufferedDiskCache mSmallImageBufferedDiskCache;
+  private final CacheKeyFactory mCacheKeyFactory;
+  private final Producer<EncodedImage> mInputProducer;
+
+  public SizeVariantProducer(
+      SizeVariantUriRewriter uriRewriter,
+      MemoryCache<CacheKey, PooledByteBuffer> encodedMemoryCache,
+      BufferedDiskCache defaultBufferedDiskCache,
+      BufferedDiskCache smallImageBufferedDiskCache,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<EncodedImage> inputProducer) {
+    mUriRewriter = uriRewriter;
+    mEncodedMemoryCache = encodedMemoryCache;
+    mDefaultBufferedDiskCache = defaultBufferedDiskCache;
+    mSmallImageBufferedDiskCache = smallImageBufferedDiskCache;
+    mCacheKeyFactory = cacheKeyFactory;
+    mInputProducer = inputProducer;
+  }
+
+  @Override
+  public void produceResults(Consumer<EncodedImage> consumer, ProducerContext producerContext) {
+    final ImageRequest variantRequest = getVariantRequest(producerContext);
+    if (variantRequest == null) {
+      mInputProducer.produceResults(consumer, producerContext);
+      return;
+    }
+    final SettableProducerContext variantContext =
+        newVariantContext(variantRequest, producerContext);
+    mInputProducer.produceResults(
+        new VariantConsumer(consumer, variantContext, producerContext), variantContext);
+  }
+
+  @Nullable
+  private ImageRequest getVariantRequest(ProducerContext producerContext) {
+    final ImageRequest imageRequest = producerContext.getImageRequest();
+    final ResizeOptions resizeOptions = imageRequest.getResizeOptions();
+    if (resizeOptions == null) {
+      return null;
+    }
+    final List<ImageRequest> variantRequests =
+        getVariantRequests(
+            mUriRewriter, imageRequest, Math.max(resizeOptions.width, resizeOptions.height));
+    if (variantRequests.isEmpty()) {
+      return null;
+    }
+
+    // Use the variant of the size bucket if it's cached, or else the first larger one that is
+    for (ImageRequest variantRequest : variantRequests) {
+      if (isCached(variantRequest, producerContext.getCallerContext())) {
+        return variantRequest;
+      }
+    }
+    return variantRequests.get(0);
+  }
+
+  /**
+   * Lists the variants of a network image that are at least as large as the given size.
+   *
+   * @return requests for the variants from the smallest to the largest, or an empty list if the
+   *     server does not resize the image or the size is larger than all of its size buckets
+   */
+  public static List<ImageRequest> getVariantRequests(
+      SizeVariantUriRewriter uriRewriter, ImageRequest imageRequest, int minSize) {
+    final Uri uri = imageRequest.getSourceUri();
+    if (!UriUtil.isNetworkUri(uri)) {
+      return Collections.emptyList();
+    }
+    final int[] sizeBuckets = uriRewriter.getSizeBuckets(uri);
+    if (sizeBuckets == null) {
+      return Collections.emptyList();
+    }
+    final List<ImageRequest> variantRequests = new ArrayList<>(sizeBuckets.length);
+    for (int sizeBucket : sizeBuckets) {
+      if (sizeBucket >= minSize) {
+        variantRequests.add(
+            ImageRequestBuilder.fromRequest(imageRequest)
+                .setSource(uriRewriter.getVariantUri(uri, sizeBucket))
+                .build());
+      }
+    }
+    return variantRequests;
+  }
+
+  private boolean isCached(ImageRequest variantRequest, Object callerContext) {
+    final CacheKey cacheKey = mCacheKeyFactory.getEncodedCacheKey(variantRequest, callerContext);
+    if (mEncodedMemoryCache.contains(cacheKey)) {
+      return true;
+    }
+    final BufferedDiskCache diskCache =
+        variantRequest.getCacheChoice() == ImageRequest.CacheChoice.SMALL
+            ? mSmallImageBufferedDiskCache
+            : mDefaultBufferedDiskCache;
+    return diskCache.containsSync(cacheKey);
+  }
+
+  private static SettableProducerContext newVariantContext(
+      ImageRequest variantRequest, final ProducerContext producerContext) {
+    final SettableProducerContext variantContext =
+        new SettableProducerContext(variantRequest, producerContext);
+    variantContext.putExtras(producerContext.getExtras());
+    producerContext.addCallbacks(
+        new BaseProducerContextCallbacks() {
+          @Override
+          public void onCancellationRequested() {
+            variantContext.cancel();
+          }
+
+          @Override
+          public void onPriorityChanged() {
+            variantContext.setPriority(producerContext.getPriority());
+          }
+
+          @Override
+          public void onIsIntermediateResultExpectedChanged() {
+            variantContext.setIsIntermediateResultExpected(
+                producerContext.isIntermediateResultExpected());
+          }
+
+          @Override
+          public void onIsPrefetchChanged() {
+            variantContext.setIsPrefetch(producerContext.isPrefetch());
+          }
+        });
+    return variantContext;
+  }
+
+  /** Copies the extras of the variant context to the context of the request. */
+  private static class VariantConsumer extends DelegatingConsumer<EncodedImage, EncodedImage> {
+
+    private final ProducerContext mVariantContext;
+    private final ProducerContext mProducerContext;
+
+    VariantConsumer(
+        Consumer<EncodedImage> consumer,
+        ProducerContext variantContext,
+        ProducerContext producerContext) {
+      super(consumer);
+      mVariantContext = variantContext;
+      mProducerContext = producerContext;
+    }
+
+    @Override
+    protected void onNewResultImpl(@Nullable EncodedImage newResult, @Status int status) {
+      mProducerContext.putExtras(mVariantContext.getExtras());
+      getConsumer().onNewResult(newResult, status);
+    }
+
+    @Override
+    protected void onFailureImpl(Throwable t) {
+      mProducerContext.putExtras(mVariantContext.getExtras());
+      super.onFailureImpl(t);
+    }
+
+    @Override
+    protected void onCancellationImpl() {
+      mProducerContext.putExtras(mVariantContext.getExtras());
+      super.onCancellationImpl();
+    }
+  }
+}
@@ -48,6 +48,9 @@ public class ThreadHandoffProducer<T> implements Producer<T> {
 
             @Override
             protected @Nullable T getResult() throws Exception {
+              if (context.isDeadlineExceeded()) {
+                throw DeadlineExceededException.report(context, PRODUCER_NAME);
+              }
               return null;
             }
           };
@@ -16,10 +16,20 @@ public class ThreadHandoffProducerQueueImpl implements ThreadHandoffProducerQueu
   private boolean mQueueing = false;
   private final Deque<Runnable> mRunnableList;
   private final Executor mExecutor;
+  private final boolean mNewestFirst;
 
   public ThreadHandoffProducerQueueImpl(Executor executor) {
+    this(executor, false);
+  }
+
+  /**
+   * @param newestFirst whether runnables queued while queueing is on are handed off most recent
+   *     first when queueing stops
+   */
+  public ThreadHandoffProducerQueueImpl(Executor executor, boolean newestFirst) {
     mExecutor = Preconditions.checkNotNull(executor);
     mRunnableList = new ArrayDeque<>();
+    mNewestFirst = newestFirst;
   }
 
   @Override
@@ -44,7 +54,7 @@ public class ThreadHandoffProducerQueueImpl implements ThreadHandoffProducerQueu
 
   private void execInQueue() {
     while (!mRunnableList.isEmpty()) {
-      mExecutor.execute(mRunnableList.pop());
+      mExecutor.execute(mNewestFirst ? mRunnableList.removeLast() : mRunnableList.pop());
     }
     mRunnableList.clear();
   }
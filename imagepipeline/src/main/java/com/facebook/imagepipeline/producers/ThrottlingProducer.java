@@ -7,37 +7,91 @@
 
 package com.facebook.imagepipeline.producers;
 
+import android.os.SystemClock;
 import android.util.Pair;
+import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.internal.Preconditions;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import com.facebook.imagepipeline.common.Priority;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Only permits a configurable number of requests to be kicked off simultaneously. If that number is
  * exceeded, then requests are queued up and kicked off once other requests complete.
+ *
+ * <p>Queued requests are kicked off oldest first by default. In newest-first mode, the most recent
+ * request that is not of low priority is kicked off first, and requests that have been cancelled
+ * while queued are finished right away instead of being kicked off.
+ *
+ * <p>Queued requests whose deadline has passed are failed with a {@link DeadlineExceededException}
+ * instead of being kicked off.
+ *
+ * <p>Instead of a fixed number, the limit can be provided by a {@link ConcurrencyLimiter}, which is
+ * told about the latency and outcome of every request that is not cancelled. The latency is
+ * measured up to the first result of the request, intermediate or final. Only failures that can be
+ * caused by load, see {@link #isCongestionFailure}, are reported as such; requests failing for
+ * other reasons, such as an image that cannot be decoded, are not reported at all.
  */
 public class ThrottlingProducer<T> implements Producer<T> {
 
   public static final String PRODUCER_NAME = "ThrottlingProducer";
+  public static final String EXTRA_CONCURRENCY_LIMIT = "concurrency_limit";
+  public static final String EXTRA_QUEUE_SIZE = "queue_size";
 
   private final Producer<T> mInputProducer;
   private final int mMaxSimultaneousRequests;
+  private final @Nullable ConcurrencyLimiter mConcurrencyLimiter;
+  private final boolean mNewestFirst;
 
   @GuardedBy("this")
   private int mNumCurrentRequests;
 
   @GuardedBy("this")
-  private final ConcurrentLinkedQueue<Pair<Consumer<T>, ProducerContext>> mPendingRequests;
+  private final ArrayDeque<Pair<Consumer<T>, ProducerContext>> mPendingRequests;
 
   private final Executor mExecutor;
 
   public ThrottlingProducer(
       int maxSimultaneousRequests, Executor executor, final Producer<T> inputProducer) {
+    this(maxSimultaneousRequests, executor, inputProducer, false);
+  }
+
+  public ThrottlingProducer(
+      int maxSimultaneousRequests,
+      Executor executor,
+      final Producer<T> inputProducer,
+      boolean newestFirst) {
+    this(maxSimultaneousRequests, null, executor, inputProducer, newestFirst);
+  }
+
+  public ThrottlingProducer(
+      ConcurrencyLimiter concurrencyLimiter,
+      Executor executor,
+      final Producer<T> inputProducer,
+      boolean newestFirst) {
+    this(0, Preconditions.checkNotNull(concurrencyLimiter), executor, inputProducer, newestFirst);
+  }
+
+  private ThrottlingProducer(
+      int maxSimultaneousRequests,
+      @Nullable ConcurrencyLimiter concurrencyLimiter,
+      Executor executor,
+      final Producer<T> inputProducer,
+      boolean newestFirst) {
     mMaxSimultaneousRequests = maxSimultaneousRequests;
+    mConcurrencyLimiter = concurrencyLimiter;
     mExecutor = Preconditions.checkNotNull(executor);
     mInputProducer = Preconditions.checkNotNull(inputProducer);
-    mPendingRequests = new ConcurrentLinkedQueue<Pair<Consumer<T>, ProducerContext>>();
+    mNewestFirst = newestFirst;
+    mPendingRequests = new ArrayDeque<Pair<Consumer<T>, ProducerContext>>();
     mNumCurrentRequests = 0;
   }
 
@@ -48,7 +102,7 @@ public class ThrottlingProducer<T> implements Producer<T> {
 
     boolean delayRequest;
     synchronized (this) {
-      if (mNumCurrentRequests >= mMaxSimultaneousRequests) {
+      if (mNumCurrentRequests >= getMaxSimultaneousRequests()) {
         mPendingRequests.add(Pair.create(consumer, producerContext));
         delayRequest = true;
       } else {
@@ -64,46 +118,180 @@ public class ThrottlingProducer<T> implements Producer<T> {
 
   void produceResultsInternal(Consumer<T> consumer, ProducerContext producerContext) {
     ProducerListener2 producerListener = producerContext.getProducerListener();
-    producerListener.onProducerFinishWithSuccess(producerContext, PRODUCER_NAME, null);
+    producerListener.onProducerFinishWithSuccess(
+        producerContext, PRODUCER_NAME, getExtraMap(producerListener, producerContext));
     mInputProducer.produceResults(new ThrottlerConsumer(consumer), producerContext);
   }
 
+  private int getMaxSimultaneousRequests() {
+    return mConcurrencyLimiter != null
+        ? Math.max(1, mConcurrencyLimiter.getLimit())
+        : mMaxSimultaneousRequests;
+  }
+
+  private @Nullable Map<String, String> getExtraMap(
+      ProducerListener2 producerListener, ProducerContext producerContext) {
+    if (mConcurrencyLimiter == null
+        || !producerListener.requiresExtraMap(producerContext, PRODUCER_NAME)) {
+      return null;
+    }
+    final int queueSize;
+    synchronized (this) {
+      queueSize = mPendingRequests.size();
+    }
+    return ImmutableMap.of(
+        EXTRA_CONCURRENCY_LIMIT,
+        String.valueOf(getMaxSimultaneousRequests()),
+        EXTRA_QUEUE_SIZE,
+        String.valueOf(queueSize));
+  }
+
+  /**
+   * Removes the next request to kick off from the queue.
+   *
+   * <p>In newest-first mode, requests found to be cancelled on the way are removed as well and
+   * added to {@code cancelledRequests}.
+   */
+  @GuardedBy("this")
+  private @Nullable Pair<Consumer<T>, ProducerContext> pollNextRequest(
+      List<Pair<Consumer<T>, ProducerContext>> cancelledRequests) {
+    if (!mNewestFirst) {
+      return mPendingRequests.poll();
+    }
+    Pair<Consumer<T>, ProducerContext> newestLowPriorityRequest = null;
+    final Iterator<Pair<Consumer<T>, ProducerContext>> iterator =
+        mPendingRequests.descendingIterator();
+    while (iterator.hasNext()) {
+      final Pair<Consumer<T>, ProducerContext> request = iterator.next();
+      if (isCancelled(request.second)) {
+        iterator.remove();
+        cancelledRequests.add(request);
+      } else if (request.second.getPriority() != Priority.LOW) {
+        iterator.remove();
+        return request;
+      } else if (newestLowPriorityRequest == null) {
+        newestLowPriorityRequest = request;
+      }
+    }
+    if (newestLowPriorityRequest != null) {
+      mPendingRequests.removeLastOccurrence(newestLowPriorityRequest);
+    }
+    return newestLowPriorityRequest;
+  }
+
+  private static boolean isCancelled(ProducerContext producerContext) {
+    return producerContext instanceof BaseProducerContext
+        && ((BaseProducerContext) producerContext).isCancelled();
+  }
+
+  private void finishCancelledRequests(List<Pair<Consumer<T>, ProducerContext>> cancelledRequests) {
+    for (int i = 0; i < cancelledRequests.size(); i++) {
+      final Pair<Consumer<T>, ProducerContext> request = cancelledRequests.get(i);
+      request
+          .second
+          .getProducerListener()
+          .onProducerFinishWithCancellation(request.second, PRODUCER_NAME, null);
+      request.first.onCancellation();
+    }
+  }
+
+  private void failExpiredRequests(List<Pair<Consumer<T>, ProducerContext>> expiredRequests) {
+    for (int i = 0; i < expiredRequests.size(); i++) {
+      final Pair<Consumer<T>, ProducerContext> request = expiredRequests.get(i);
+      final DeadlineExceededException e =
+          DeadlineExceededException.report(request.second, PRODUCER_NAME);
+      request
+          .second
+          .getProducerListener()
+          .onProducerFinishWithFailure(request.second, PRODUCER_NAME, e, null);
+      request.first.onFailure(e);
+    }
+  }
+
+  /**
+   * Returns whether a request may have failed because of the load, so that a {@link
+   * ConcurrencyLimiter} should take it as a sign of congestion: time-outs and I/O failures. A
+   * request pre-empted by a more important one or whose deadline was exceeded did not fail because
+   * of the load.
+   */
+  static boolean isCongestionFailure(Throwable t) {
+    if (t instanceof PreemptedException) {
+      return false;
+    }
+    return t instanceof IOException || t instanceof TimeoutException;
+  }
+
   private class ThrottlerConsumer extends DelegatingConsumer<T, T> {
 
+    private final long mStartTimeMs;
+    private long mFirstResultTimeMs = -1;
+
     private ThrottlerConsumer(Consumer<T> consumer) {
       super(consumer);
+      mStartTimeMs = mConcurrencyLimiter != null ? SystemClock.uptimeMillis() : 0;
     }
 
     @Override
     protected void onNewResultImpl(T newResult, @Status int status) {
+      if (mConcurrencyLimiter != null && mFirstResultTimeMs < 0) {
+        mFirstResultTimeMs = SystemClock.uptimeMillis();
+      }
       getConsumer().onNewResult(newResult, status);
       if (isLast(status)) {
-        onRequestFinished();
+        onRequestFinished(true, true);
       }
     }
 
     @Override
     protected void onFailureImpl(Throwable t) {
       getConsumer().onFailure(t);
-      onRequestFinished();
+      onRequestFinished(isCongestionFailure(t), false);
     }
 
     @Override
     protected void onCancellationImpl() {
       getConsumer().onCancellation();
-      onRequestFinished();
+      onRequestFinished(false, false);
     }
 
-    private void onRequestFinished() {
-      final Pair<Consumer<T>, ProducerContext> nextRequestPair;
+    private void onRequestFinished(boolean reportToLimiter, boolean succeeded) {
+      if (mConcurrencyLimiter != null && reportToLimiter) {
+        final int inFlight;
+        synchronized (ThrottlingProducer.this) {
+          inFlight = mNumCurrentRequests;
+        }
+        final long responseTimeMs =
+            succeeded ? mFirstResultTimeMs : SystemClock.uptimeMillis();
+        mConcurrencyLimiter.onRequestFinished(mStartTimeMs, responseTimeMs, inFlight, succeeded);
+      }
+
+      final List<Pair<Consumer<T>, ProducerContext>> nextRequests = new ArrayList<>(1);
+      final List<Pair<Consumer<T>, ProducerContext>> cancelledRequests = new ArrayList<>(0);
+      final List<Pair<Consumer<T>, ProducerContext>> expiredRequests = new ArrayList<>(0);
       synchronized (ThrottlingProducer.this) {
-        nextRequestPair = mPendingRequests.poll();
-        if (nextRequestPair == null) {
-          mNumCurrentRequests--;
+        mNumCurrentRequests--;
+        // the limit may have grown, in which case several requests get kicked off
+        final int maxSimultaneousRequests = getMaxSimultaneousRequests();
+        while (mNumCurrentRequests < maxSimultaneousRequests) {
+          final Pair<Consumer<T>, ProducerContext> nextRequest =
+              pollNextRequest(cancelledRequests);
+          if (nextRequest == null) {
+            break;
+          }
+          // requests that are not needed anymore do not take a slot
+          if (nextRequest.second.isDeadlineExceeded()) {
+            expiredRequests.add(nextRequest);
+            continue;
+          }
+          mNumCurrentRequests++;
+          nextRequests.add(nextRequest);
         }
       }
+      finishCancelledRequests(cancelledRequests);
+      failExpiredRequests(expiredRequests);
 
-      if (nextRequestPair != null) {
+      for (int i = 0; i < nextRequests.size(); i++) {
+        final Pair<Consumer<T>, ProducerContext> nextRequestPair = nextRequests.get(i);
         mExecutor.execute(
             new Runnable() {
               @Override
@@ -99,6 +99,9 @@ public class ImageRequest {
    */
   private final @Nullable Boolean mResizingAllowedOverride;
 
+  /** Time after submission when the result is not needed anymore, or 0 for no deadline. */
+  private final long mTimeToLiveMs;
+
   public static @Nullable ImageRequest fromFile(@Nullable File file) {
     return (file == null) ? null : ImageRequest.fromUri(UriUtil.getUriForFile(file));
   }
@@ -139,6 +142,8 @@ public class ImageRequest {
     mRequestListener = builder.getRequestListener();
 
     mResizingAllowedOverride = builder.getResizingAllowedOverride();
+
+    mTimeToLiveMs = builder.getTimeToLiveMs();
   }
 
   public CacheChoice getCacheChoice() {
@@ -231,6 +236,10 @@ public class ImageRequest {
     return mRequestListener;
   }
 
+  public long getTimeToLiveMs() {
+    return mTimeToLiveMs;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (!(o instanceof ImageRequest)) {
@@ -299,6 +308,7 @@ public class ImageRequest {
         .add("isDiskCacheEnabled", mIsDiskCacheEnabled)
         .add("isMemoryCacheEnabled", mIsMemoryCacheEnabled)
         .add("decodePrefetches", mDecodePrefetches)
+        .add("timeToLiveMs", mTimeToLiveMs)
         .toString();
   }
 
@@ -43,6 +43,7 @@ public class ImageRequestBuilder {
   private @Nullable RequestListener mRequestListener;
   private @Nullable BytesRange mBytesRange = null;
   private @Nullable Boolean mResizingAllowedOverride = null;
+  private long mTimeToLiveMs = 0;
 
   /**
    * Creates a new request builder instance. The setting will be done according to the source type.
@@ -94,7 +95,8 @@ public class ImageRequestBuilder {
         .setResizeOptions(imageRequest.getResizeOptions())
         .setRequestListener(imageRequest.getRequestListener())
         .setRotationOptions(imageRequest.getRotationOptions())
-        .setShouldDecodePrefetches(imageRequest.shouldDecodePrefetches());
+        .setShouldDecodePrefetches(imageRequest.shouldDecodePrefetches())
+        .setTimeToLiveMs(imageRequest.getTimeToLiveMs());
   }
 
   private ImageRequestBuilder() {}
@@ -365,6 +367,26 @@ public class ImageRequestBuilder {
     return mResizingAllowedOverride;
   }
 
+  /**
+   * Sets the time after which the result of this request is not needed anymore.
+   *
+   * <p>Once the time has passed since the request was submitted, producers that are about to do
+   * expensive work fail the request with a {@link
+   * com.facebook.imagepipeline.producers.DeadlineExceededException} instead.
+   *
+   * @param timeToLiveMs time to live in milliseconds, or 0 for no deadline
+   * @return the modified builder instance
+   */
+  public ImageRequestBuilder setTimeToLiveMs(long timeToLiveMs) {
+    mTimeToLiveMs = timeToLiveMs;
+    return this;
+  }
+
+  /** @return the time to live of the request in milliseconds, or 0 for no deadline */
+  public long getTimeToLiveMs() {
+    return mTimeToLiveMs;
+  }
+
   /** An exception class for builder methods. */
   public static class BuilderException extends RuntimeException {
     public BuilderException(String message) {
@@ -399,5 +421,9 @@ public class ImageRequestBuilder {
     if (UriUtil.isLocalAssetUri(mSourceUri) && !mSourceUri.isAbsolute()) {
       throw new BuilderException("Asset URI path must be absolute.");
     }
+
+    if (mTimeToLiveMs < 0) {
+      throw new BuilderException("Time to live must not be negative.");
+    }
   }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.request;
+
+import android.net.Uri;
+import javax.annotation.Nullable;
+
+/**
+ * Maps the URI of a network image to the URIs of the variants of it that the server resizes to a
+ * fixed set of sizes, the size buckets.
+ *
+ * <p>When set on the pipeline config, requests for network images with {@link
+ * com.facebook.imagepipeline.common.ResizeOptions} fetch the smallest variant at least as large as
+ * the resize options instead of the original image.
+ */
+public interface SizeVariantUriRewriter {
+
+  /**
+   * @return the size buckets the server resizes the image to, in ascending order, or null if the
+   *     server does not resize it. A size bucket is the size of the larger side of a variant.
+   */
+  @Nullable
+  int[] getSizeBuckets(Uri uri);
+
+  /** @return the URI of the variant of the image resized to the given size bucket */
+  Uri getVariantUri(Uri uri, int sizeBucket);
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.request;
+
+import android.net.Uri;
+import com.facebook.common.internal.Preconditions;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * {@link SizeVariantUriRewriter} for the images of one host, whose variants are at URLs built from
+ * a template.
+ *
+ * <p>The template may contain the following placeholders:
+ *
+ * <ul>
+ *   <li>{@code {scheme}}, {@code {authority}} and {@code {path}}: the parts of the URL of the
+ *       original image
+ *   <li>{@code {size}}: the size bucket of the variant
+ * </ul>
+ *
+ * <p>For instance {@code "{scheme}://{authority}{path}?width={size}"} or {@code
+ * "https://cdn.example.com/{size}{path}"}. The query of the original URL is kept, after the one of
+ * the template if any.
+ */
+public class UrlTemplateSizeVariantUriRewriter implements SizeVariantUriRewriter {
+
+  public static final String PLACEHOLDER_SCHEME = "{scheme}";
+  public static final String PLACEHOLDER_AUTHORITY = "{authority}";
+  public static final String PLACEHOLDER_PATH = "{path}";
+  public static final String PLACEHOLDER_SIZE = "{size}";
+
+  private final String mHost;
+  private final String mTemplate;
+  private final int[] mSizeBuckets;
+
+  /**
+   * @param host host of the images that have variants
+   * @param template template of the URLs of the variants, containing {@link #PLACEHOLDER_SIZE}
+   * @param sizeBuckets sizes the server resizes the images to
+   */
+  public UrlTemplateSizeVariantUriRewriter(String host, String template, int... sizeBuckets) {
+    Preconditions.checkArgument(template.contains(PLACEHOLDER_SIZE));
+    Preconditions.checkArgument(sizeBuckets.length > 0);
+    mHost = host;
+    mTemplate = template;
+    mSizeBuckets = Arrays.copyOf(sizeBuckets, sizeBuckets.length);
+    Arrays.sort(mSizeBuckets);
+  }
+
+  @Override
+  @Nullable
+  public int[] getSizeBuckets(Uri uri) {
+    return mHost.equalsIgnoreCase(uri.getHost()) ? mSizeBuckets : null;
+  }
+
+  @Override
+  public Uri getVariantUri(Uri uri, int sizeBucket) {
+    final String url =
+        mTemplate
+            .replace(PLACEHOLDER_SCHEME, nullToEmpty(uri.getScheme()))
+            .replace(PLACEHOLDER_AUTHORITY, nullToEmpty(uri.getEncodedAuthority()))
+            .replace(PLACEHOLDER_PATH, nullToEmpty(uri.getEncodedPath()))
+            .replace(PLACEHOLDER_SIZE, String.valueOf(sizeBucket));
+    final Uri variantUri = Uri.parse(url);
+    final String query = uri.getEncodedQuery();
+    if (query == null) {
+      return variantUri;
+    }
+    final String variantQuery = variantUri.getEncodedQuery();
+    return variantUri
+        .buildUpon()
+        .encodedQuery(variantQuery == null ? query : variantQuery + "&" + query)
+        .build();
+  }
+
+  private static String nullToEmpty(@Nullable String string) {
+    return string == null ? "" : string;
+  }
+}
@@ -12,17 +12,20 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.same;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
 import bolts.Task;
 import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.ByteArrayBinaryResource;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.MultiCacheKey;
 import com.facebook.cache.common.SimpleCacheKey;
@@ -35,6 +38,7 @@ import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.testing.FakeClock;
 import com.facebook.imagepipeline.testing.TestExecutorService;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -148,6 +152,33 @@ public class BufferedDiskCacheTest {
     assertSame(mPooledByteBuffer, result.getByteBufferRef().get());
   }
 
+  @Test
+  public void testUntrackedGetDoesNotReportStats() throws Exception {
+    when(mFileCache.getResourceUntracked(eq(mCacheKey))).thenReturn(mBinaryResource);
+    Task<EncodedImage> readTask = mBufferedDiskCache.getUntracked(mCacheKey);
+    mReadPriorityExecutor.runUntilIdle();
+    assertSame(mPooledByteBuffer, readTask.getResult().getByteBufferRef().get());
+    verify(mFileCache, never()).getResource(any(CacheKey.class));
+    verifyZeroInteractions(mImageCacheStatsTracker);
+  }
+
+  @Test
+  public void testValidatorsAreReadUntrackedOnReadExecutor() throws Exception {
+    final CacheValidators validators = new CacheValidators("\"v0\"", null, 1000);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    validators.writeTo(bytes);
+    when(mFileCache.getResourceUntracked(any(CacheKey.class)))
+        .thenReturn(new ByteArrayBinaryResource(bytes.toByteArray()));
+
+    Task<CacheValidators> readTask = mBufferedDiskCache.getValidators(mCacheKey);
+    assertFalse(readTask.isCompleted());
+    mReadPriorityExecutor.runUntilIdle();
+
+    assertEquals(validators, readTask.getResult());
+    verify(mFileCache, never()).getResource(any(CacheKey.class));
+    verifyZeroInteractions(mImageCacheStatsTracker);
+  }
+
   @Test
   public void testCacheGetCancellation() throws Exception {
     when(mFileCache.getResource(mCacheKey)).thenReturn(mBinaryResource);
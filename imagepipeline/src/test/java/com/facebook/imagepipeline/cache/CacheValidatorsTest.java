@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CacheValidatorsTest {
+
+  private static final String ETAG = "\"abc\"";
+  private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+  private static final long NOW_MS = 1000000;
+
+  @Test
+  public void testNoValidators() {
+    assertNull(CacheValidators.fromResponseHeaders(null, null, "max-age=60", NOW_MS));
+  }
+
+  @Test
+  public void testMaxAge() {
+    CacheValidators validators =
+        CacheValidators.fromResponseHeaders(ETAG, null, "public, max-age=60", NOW_MS);
+    assertEquals(ETAG, validators.getETag());
+    assertNull(validators.getLastModified());
+    assertEquals(NOW_MS + 60000, validators.getExpiresAtMs());
+    assertFalse(validators.isStale(NOW_MS + 59999));
+    assertTrue(validators.isStale(NOW_MS + 60000));
+  }
+
+  @Test
+  public void testNoCache() {
+    CacheValidators validators =
+        CacheValidators.fromResponseHeaders(null, LAST_MODIFIED, "max-age=60, no-cache", NOW_MS);
+    assertEquals(LAST_MODIFIED, validators.getLastModified());
+    assertTrue(validators.isStale(NOW_MS));
+  }
+
+  @Test
+  public void testWithoutFreshnessLifetime() {
+    assertEquals(
+        CacheValidators.NEVER_EXPIRES,
+        CacheValidators.fromResponseHeaders(ETAG, null, null, NOW_MS).getExpiresAtMs());
+    assertEquals(
+        CacheValidators.NEVER_EXPIRES,
+        CacheValidators.fromResponseHeaders(ETAG, null, "max-age=abc", NOW_MS).getExpiresAtMs());
+  }
+
+  @Test
+  public void testRefreshKeepsMissingValidators() {
+    CacheValidators validators = new CacheValidators(ETAG, LAST_MODIFIED, NOW_MS);
+    CacheValidators refreshed =
+        validators.refresh(new CacheValidators("\"def\"", null, NOW_MS + 60000));
+    assertEquals(new CacheValidators("\"def\"", LAST_MODIFIED, NOW_MS + 60000), refreshed);
+    assertSame(validators, validators.refresh(null));
+  }
+
+  @Test
+  public void testIfRange() {
+    assertEquals(ETAG, new CacheValidators(ETAG, LAST_MODIFIED, NOW_MS).getIfRange());
+    assertEquals(
+        LAST_MODIFIED, new CacheValidators("W/" + ETAG, LAST_MODIFIED, NOW_MS).getIfRange());
+    assertNull(new CacheValidators("W/" + ETAG, null, NOW_MS).getIfRange());
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    CacheValidators validators = new CacheValidators(ETAG, null, NOW_MS);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    validators.writeTo(os);
+    assertEquals(validators, CacheValidators.readFrom(new ByteArrayInputStream(os.toByteArray())));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.net.Uri;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NormalizingCacheKeyFactoryTest {
+
+  private static final Object CALLER_CONTEXT = new Object();
+
+  @Test
+  public void testRemovedQueryParameters() {
+    NormalizingCacheKeyFactory factory =
+        NormalizingCacheKeyFactory.newBuilder()
+            .removeQueryParameters("oh", "oe")
+            .removeQueryParametersWithPrefix("utm_")
+            .build();
+    assertEquals(
+        "http://example.com/a.jpg?id=1&size=2",
+        encodedKey(factory, "http://example.com/a.jpg?size=2&oh=abc&utm_source=x&id=1&oe=def"));
+    assertEquals(
+        "http://example.com/a.jpg", encodedKey(factory, "http://example.com/a.jpg?oh=abc#top"));
+  }
+
+  @Test
+  public void testKeptQueryParameters() {
+    NormalizingCacheKeyFactory factory =
+        NormalizingCacheKeyFactory.newBuilder()
+            .removeQueryParameters("id")
+            .keepOnlyQueryParameters("id")
+            .build();
+    assertEquals(
+        "http://example.com/a.jpg?id=1",
+        encodedKey(factory, "http://example.com/a.jpg?oh=abc&id=1&sig=def"));
+  }
+
+  @Test
+  public void testHostAliasesAndSchemeFolding() {
+    NormalizingCacheKeyFactory factory =
+        NormalizingCacheKeyFactory.newBuilder()
+            .addHostAlias("Cdn2.example.com", "cdn.example.com")
+            .setIsSchemeFoldingEnabled(true)
+            .build();
+    assertEquals(
+        "http://cdn.example.com/Dir/A.jpg",
+        encodedKey(factory, "HTTPS://CDN2.Example.com/Dir/A.jpg"));
+    assertEquals(
+        "http://cdn.example.com:8080/a.jpg",
+        encodedKey(factory, "https://cdn2.example.com:8080/a.jpg"));
+  }
+
+  @Test
+  public void testSchemeIsNotFoldedByDefault() {
+    NormalizingCacheKeyFactory factory = NormalizingCacheKeyFactory.newBuilder().build();
+    assertEquals("https://example.com/a.jpg", encodedKey(factory, "https://example.com/a.jpg"));
+  }
+
+  @Test
+  public void testLocalUrisAreNotNormalized() {
+    NormalizingCacheKeyFactory factory =
+        NormalizingCacheKeyFactory.newBuilder().removeQueryParameters("oh").build();
+    assertEquals("file:///sdcard/a.jpg?oh=1", encodedKey(factory, "file:///sdcard/a.jpg?oh=1"));
+  }
+
+  @Test
+  public void testAllCacheKeysAreNormalized() {
+    NormalizingCacheKeyFactory factory =
+        NormalizingCacheKeyFactory.newBuilder().removeQueryParameters("oh").build();
+    ImageRequest request1 = newRequest("http://example.com/a.jpg?oh=1");
+    ImageRequest request2 = newRequest("http://example.com/a.jpg?oh=2");
+    ImageRequest otherRequest = newRequest("http://example.com/b.jpg?oh=1");
+    assertEquals(
+        factory.getBitmapCacheKey(request1, CALLER_CONTEXT),
+        factory.getBitmapCacheKey(request2, CALLER_CONTEXT));
+    assertEquals(
+        factory.getPostprocessedBitmapCacheKey(request1, CALLER_CONTEXT),
+        factory.getPostprocessedBitmapCacheKey(request2, CALLER_CONTEXT));
+    assertEquals(
+        factory.getEncodedCacheKey(request1, CALLER_CONTEXT),
+        factory.getEncodedCacheKey(request2, CALLER_CONTEXT));
+    assertNotEquals(
+        factory.getEncodedCacheKey(request1, CALLER_CONTEXT),
+        factory.getEncodedCacheKey(otherRequest, CALLER_CONTEXT));
+    assertEquals(Uri.parse("http://example.com/a.jpg?oh=1"), request1.getSourceUri());
+  }
+
+  private static String encodedKey(NormalizingCacheKeyFactory factory, String uri) {
+    return ((SimpleCacheKey) factory.getEncodedCacheKey(newRequest(uri), CALLER_CONTEXT))
+        .getUriString();
+  }
+
+  private static ImageRequest newRequest(String uri) {
+    return ImageRequestBuilder.newBuilderWithSource(Uri.parse(uri))
+        .setResizeOptions(new ResizeOptions(100, 100))
+        .build();
+  }
+}
@@ -16,6 +16,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.anyObject;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -35,6 +36,7 @@ import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.listener.RequestListener;
 import com.facebook.imagepipeline.listener.RequestListener2;
@@ -43,6 +45,8 @@ import com.facebook.imagepipeline.producers.Producer;
 import com.facebook.imagepipeline.producers.ProducerContext;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
 import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.facebook.imagepipeline.request.UrlTemplateSizeVariantUriRewriter;
 import java.util.ArrayList;
 import java.util.List;
 import org.junit.Before;
@@ -51,11 +55,16 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 
 /** Tests for ImagePipeline */
 @RunWith(RobolectricTestRunner.class)
 public class ImagePipelineTest {
+
+  private static final String VARIANTS_URI = "http://images.example.com/photo.jpg";
+
   @Mock public ImageRequest mImageRequest;
   @Mock public ProducerSequenceFactory mProducerSequenceFactory;
   @Mock public CacheKeyFactory mCacheKeyFactory;
@@ -465,6 +474,41 @@ public class ImagePipelineTest {
     verify(mSmallImageDiskStorageCache).remove(multiKey);
   }
 
+  @Test
+  public void testEvictFromCacheEvictsSizeVariants() {
+    Uri uri = setUpSizeVariants();
+
+    mImagePipeline.evictFromCache(uri);
+
+    verify(mEncodedMemoryCache, times(3)).removeAll(any(Predicate.class));
+    for (String key :
+        new String[] {VARIANTS_URI, VARIANTS_URI + "?w=100", VARIANTS_URI + "?w=200"}) {
+      verify(mMainDiskStorageCache).remove(new SimpleCacheKey(key));
+      verify(mSmallImageDiskStorageCache).remove(new SimpleCacheKey(key));
+    }
+  }
+
+  @Test
+  public void testIsInDiskCacheFindsSizeVariants() {
+    Uri uri = setUpSizeVariants();
+    when(mMainDiskStorageCache.diskCheckSync(new SimpleCacheKey(VARIANTS_URI + "?w=200")))
+        .thenReturn(true);
+
+    assertTrue(mImagePipeline.isInDiskCacheSync(uri, ImageRequest.CacheChoice.DEFAULT));
+    assertTrue(
+        mImagePipeline.isInDiskCacheSync(
+            ImageRequestBuilder.newBuilderWithSource(uri)
+                .setResizeOptions(new ResizeOptions(150, 100))
+                .build()));
+    // requests are only served from variants at least as large as their resize options
+    assertFalse(mImagePipeline.isInDiskCacheSync(ImageRequest.fromUri(uri)));
+    assertFalse(
+        mImagePipeline.isInDiskCacheSync(
+            ImageRequestBuilder.newBuilderWithSource(uri)
+                .setResizeOptions(new ResizeOptions(250, 100))
+                .build()));
+  }
+
   @Test
   public void testClearMemoryCaches() {
     String uriString = "http://dummy/string";
@@ -538,4 +582,22 @@ public class ImagePipelineTest {
     verify(mRequestListener1).onRequestStart(mImageRequest, mCallerContext, "0", false);
     verify(mRequestListener2).onRequestStart(mImageRequest, mCallerContext, "0", false);
   }
+
+  /** Sets up the server to resize the image of {@link #VARIANTS_URI} to 100 and 200 pixels. */
+  private Uri setUpSizeVariants() {
+    when(mConfig.getSizeVariantUriRewriter())
+        .thenReturn(
+            new UrlTemplateSizeVariantUriRewriter(
+                "images.example.com", "{scheme}://{authority}{path}?w={size}", 100, 200));
+    when(mCacheKeyFactory.getEncodedCacheKey(any(ImageRequest.class), anyObject()))
+        .thenAnswer(
+            new Answer<CacheKey>() {
+              @Override
+              public CacheKey answer(InvocationOnMock invocation) {
+                ImageRequest imageRequest = (ImageRequest) invocation.getArguments()[0];
+                return new SimpleCacheKey(imageRequest.getSourceUri().toString());
+              }
+            });
+    return Uri.parse(VARIANTS_URI);
+  }
 }
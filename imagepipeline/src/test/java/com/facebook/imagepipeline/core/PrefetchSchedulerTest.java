@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.datasource.DataSource;
+import com.facebook.datasource.SimpleDataSource;
+import com.facebook.imagepipeline.common.PrefetchBudget;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.datasource.ProducerToDataSourceAdapter;
+import com.facebook.imagepipeline.listener.ForegroundRequestTracker;
+import com.facebook.imagepipeline.listener.RequestListener2;
+import com.facebook.imagepipeline.producers.Producer;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import com.facebook.imagepipeline.producers.SettableProducerContext;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.testing.FakeClock;
+import com.facebook.imagepipeline.testing.TestScheduledExecutorService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PrefetchSchedulerTest {
+
+  private static final long IDLE_DELAY_MS = 100;
+  private static final Object CALLER_CONTEXT = new Object();
+
+  private ImagePipeline mImagePipeline;
+  private ForegroundRequestTracker mForegroundRequestTracker;
+  private FakeClock mFakeClock;
+  private TestScheduledExecutorService mScheduledExecutorService;
+  private List<ImageRequest> mSubmittedRequests;
+  private List<SimpleDataSource<Void>> mSubmittedDataSources;
+  private ProducerContext mForegroundContext;
+
+  @Before
+  public void setUp() {
+    mImagePipeline = mock(ImagePipeline.class);
+    mForegroundRequestTracker = new ForegroundRequestTracker();
+    mFakeClock = new FakeClock();
+    mScheduledExecutorService = new TestScheduledExecutorService(mFakeClock);
+    mSubmittedRequests = new ArrayList<>();
+    mSubmittedDataSources = new ArrayList<>();
+    final Answer<DataSource<Void>> submit =
+        new Answer<DataSource<Void>>() {
+          @Override
+          public DataSource<Void> answer(InvocationOnMock invocation) {
+            SimpleDataSource<Void> dataSource = SimpleDataSource.create();
+            mSubmittedRequests.add((ImageRequest) invocation.getArguments()[0]);
+            mSubmittedDataSources.add(dataSource);
+            return dataSource;
+          }
+        };
+    when(mImagePipeline.prefetchToDiskCache(any(ImageRequest.class), any(), any(Priority.class)))
+        .thenAnswer(submit);
+    when(mImagePipeline.prefetchToBitmapCache(any(ImageRequest.class), any(), any(Priority.class)))
+        .thenAnswer(submit);
+    mForegroundContext = mock(ProducerContext.class);
+    when(mForegroundContext.getId()).thenReturn("foreground");
+    when(mForegroundContext.getPriority()).thenReturn(Priority.HIGH);
+  }
+
+  @Test
+  public void testPrefetchesStartAfterIdleDelay() {
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(2));
+    ImageRequest request = newRequest(0);
+    scheduler.prefetchToDiskCache(request, CALLER_CONTEXT, Priority.LOW);
+    assertTrue(mSubmittedRequests.isEmpty());
+
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+    assertEquals(Arrays.asList(request), mSubmittedRequests);
+  }
+
+  @Test
+  public void testPrefetchesAreHeldWhileForegroundIsBusy() {
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(2));
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+    mForegroundRequestTracker.onRequestStart(mForegroundContext);
+
+    scheduler.prefetchToBitmapCache(newRequest(0), CALLER_CONTEXT, Priority.LOW);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+    assertTrue(mSubmittedRequests.isEmpty());
+    assertEquals(1, scheduler.getQueuedCount());
+
+    mForegroundRequestTracker.onRequestSuccess(mForegroundContext);
+    mFakeClock.incrementBy(IDLE_DELAY_MS - 1);
+    assertTrue(mSubmittedRequests.isEmpty());
+    mFakeClock.incrementBy(1);
+    assertEquals(1, mSubmittedRequests.size());
+  }
+
+  @Test
+  public void testForegroundRequestDemotesRunningPrefetches() {
+    final List<SettableProducerContext> prefetchContexts = new ArrayList<>();
+    when(mImagePipeline.prefetchToDiskCache(any(ImageRequest.class), any(), any(Priority.class)))
+        .thenAnswer(
+            new Answer<DataSource<Void>>() {
+              @Override
+              public DataSource<Void> answer(InvocationOnMock invocation) {
+                SettableProducerContext context =
+                    new SettableProducerContext(
+                        (ImageRequest) invocation.getArguments()[0],
+                        "prefetch",
+                        null,
+                        CALLER_CONTEXT,
+                        ImageRequest.RequestLevel.FULL_FETCH,
+                        true,
+                        false,
+                        (Priority) invocation.getArguments()[2],
+                        null);
+                prefetchContexts.add(context);
+                return ProducerToDataSourceAdapter.create(
+                    mock(Producer.class), context, mock(RequestListener2.class));
+              }
+            });
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(1));
+    DataSource<Void> dataSource =
+        scheduler.prefetchToDiskCache(newRequest(0), CALLER_CONTEXT, Priority.MEDIUM);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+    assertEquals(Priority.MEDIUM, prefetchContexts.get(0).getPriority());
+
+    mForegroundRequestTracker.onRequestStart(mForegroundContext);
+    assertEquals(Priority.LOW, prefetchContexts.get(0).getPriority());
+    assertFalse(prefetchContexts.get(0).isCancelled());
+    assertFalse(dataSource.isFinished());
+    assertEquals(1, scheduler.getRunningCount());
+
+    mForegroundRequestTracker.onRequestCancellation(mForegroundContext);
+    mFakeClock.incrementBy(IDLE_DELAY_MS - 1);
+    assertEquals(Priority.LOW, prefetchContexts.get(0).getPriority());
+    mFakeClock.incrementBy(1);
+    assertEquals(Priority.MEDIUM, prefetchContexts.get(0).getPriority());
+    assertEquals(1, prefetchContexts.size());
+  }
+
+  @Test
+  public void testPrefetchFinishingWhileForegroundIsBusyDoesNotStartNext() {
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(1));
+    DataSource<Void> dataSource =
+        scheduler.prefetchToDiskCache(newRequest(0), CALLER_CONTEXT, Priority.LOW);
+    scheduler.prefetchToDiskCache(newRequest(1), CALLER_CONTEXT, Priority.LOW);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+
+    mForegroundRequestTracker.onRequestStart(mForegroundContext);
+    assertFalse(mSubmittedDataSources.get(0).isClosed());
+    mSubmittedDataSources.get(0).setResult(null);
+    assertTrue(dataSource.isFinished());
+    assertEquals(1, mSubmittedRequests.size());
+    assertEquals(1, scheduler.getQueuedCount());
+
+    mForegroundRequestTracker.onRequestSuccess(mForegroundContext);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+    assertEquals(Arrays.asList(newRequest(0), newRequest(1)), mSubmittedRequests);
+  }
+
+  @Test
+  public void testPrefetchesAndLowPriorityRequestsAreNotForeground() {
+    ProducerContext prefetchContext = mock(ProducerContext.class);
+    when(prefetchContext.getId()).thenReturn("prefetch");
+    when(prefetchContext.isPrefetch()).thenReturn(true);
+    when(prefetchContext.getPriority()).thenReturn(Priority.HIGH);
+    ProducerContext lowPriorityContext = mock(ProducerContext.class);
+    when(lowPriorityContext.getId()).thenReturn("low");
+    when(lowPriorityContext.getPriority()).thenReturn(Priority.LOW);
+
+    mForegroundRequestTracker.onRequestStart(prefetchContext);
+    mForegroundRequestTracker.onRequestStart(lowPriorityContext);
+    assertTrue(mForegroundRequestTracker.isIdle());
+    mForegroundRequestTracker.onRequestStart(mForegroundContext);
+    assertEquals(1, mForegroundRequestTracker.getForegroundRequestCount());
+  }
+
+  @Test
+  public void testQueueOrder() {
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(1));
+    scheduler.prefetchToDiskCache(newRequest(0), CALLER_CONTEXT, Priority.LOW);
+    scheduler.prefetchToDiskCache(newRequest(1), CALLER_CONTEXT, Priority.MEDIUM);
+    scheduler.prefetchToDiskCache(newRequest(2), CALLER_CONTEXT, Priority.LOW);
+    scheduler.prefetchToDiskCache(newRequest(3), CALLER_CONTEXT, Priority.MEDIUM);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+
+    for (int i = 0; i < 3; i++) {
+      mSubmittedDataSources.get(i).setResult(null);
+    }
+    assertEquals(
+        Arrays.asList(newRequest(1), newRequest(3), newRequest(0), newRequest(2)),
+        mSubmittedRequests);
+  }
+
+  @Test
+  public void testBudget() {
+    PrefetchScheduler scheduler = createScheduler(new PrefetchBudget(10, 1000, 2));
+    for (int i = 0; i < 4; i++) {
+      scheduler.prefetchToDiskCache(newRequest(i), CALLER_CONTEXT, Priority.LOW);
+    }
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+    assertEquals(2, mSubmittedRequests.size());
+
+    mSubmittedDataSources
+        .get(0)
+        .setResult(
+            null,
+            /* isLast */ true,
+            ImmutableMap.<String, Object>of(ProducerContext.ExtraKeys.FETCHED_SIZE, 1000));
+    assertEquals(2, mSubmittedRequests.size());
+    assertEquals(2, scheduler.getQueuedCount());
+
+    scheduler.resetBudget();
+    assertEquals(3, mSubmittedRequests.size());
+  }
+
+  @Test
+  public void testCloseRemovesQueuedAndCancelsRunningPrefetches() {
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(1));
+    DataSource<Void> running =
+        scheduler.prefetchToDiskCache(newRequest(0), CALLER_CONTEXT, Priority.LOW);
+    DataSource<Void> queued =
+        scheduler.prefetchToDiskCache(newRequest(1), CALLER_CONTEXT, Priority.LOW);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+
+    queued.close();
+    assertEquals(0, scheduler.getQueuedCount());
+    running.close();
+    assertTrue(mSubmittedDataSources.get(0).isClosed());
+    assertEquals(0, scheduler.getRunningCount());
+    assertEquals(1, mSubmittedRequests.size());
+  }
+
+  @Test
+  public void testFailedPrefetch() {
+    PrefetchScheduler scheduler = createScheduler(PrefetchBudget.forConcurrency(1));
+    DataSource<Void> dataSource =
+        scheduler.prefetchToDiskCache(newRequest(0), CALLER_CONTEXT, Priority.LOW);
+    scheduler.prefetchToDiskCache(newRequest(1), CALLER_CONTEXT, Priority.LOW);
+    mFakeClock.incrementBy(IDLE_DELAY_MS);
+
+    RuntimeException failure = new RuntimeException();
+    mSubmittedDataSources.get(0).setFailure(failure);
+    assertTrue(dataSource.hasFailed());
+    assertSame(failure, dataSource.getFailureCause());
+    assertEquals(2, mSubmittedRequests.size());
+  }
+
+  private PrefetchScheduler createScheduler(PrefetchBudget budget) {
+    return new PrefetchScheduler(
+        mImagePipeline,
+        mForegroundRequestTracker,
+        budget,
+        IDLE_DELAY_MS,
+        mScheduledExecutorService);
+  }
+
+  private static ImageRequest newRequest(int index) {
+    return ImageRequest.fromUri("http://example.com/" + index + ".jpg");
+  }
+}
@@ -88,7 +88,11 @@ public class ProducerSequenceFactoryTest {
             true,
             imageTranscoderFactory,
             false,
-            false);
+            false,
+            false,
+            false,
+            null,
+            null);
 
     when(mImageRequest.getLowestPermittedRequestLevel())
         .thenReturn(ImageRequest.RequestLevel.FULL_FETCH);
@@ -326,6 +330,10 @@ public class ProducerSequenceFactoryTest {
             true,
             imageTranscoderFactory,
             false,
-            false);
+            false,
+            false,
+            false,
+            null,
+            null);
   }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.datasource;
+
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_ALREADY_CACHED;
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_CANCELLED;
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_DUPLICATE;
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_FAILED;
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_OVER_BUDGET;
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_PENDING;
+import static com.facebook.imagepipeline.datasource.BatchPrefetchDataSource.OUTCOME_PREFETCHED;
+import static org.junit.Assert.*;
+
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.datasource.DataSource;
+import com.facebook.datasource.SimpleDataSource;
+import com.facebook.imagepipeline.common.PrefetchBudget;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchPrefetchDataSourceTest {
+
+  private List<ImageRequest> mImageRequests;
+  private List<ImageRequest> mSubmittedRequests;
+  private List<SimpleDataSource<Void>> mSubmittedDataSources;
+  private BatchPrefetchDataSource.PrefetchSubmitter mPrefetchSubmitter;
+
+  @Before
+  public void setUp() {
+    mImageRequests = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      mImageRequests.add(ImageRequest.fromUri("http://example.com/" + i + ".jpg"));
+    }
+    mSubmittedRequests = new ArrayList<>();
+    mSubmittedDataSources = new ArrayList<>();
+    mPrefetchSubmitter =
+        new BatchPrefetchDataSource.PrefetchSubmitter() {
+          @Override
+          public DataSource<Void> submit(ImageRequest imageRequest, Priority priority) {
+            SimpleDataSource<Void> dataSource = SimpleDataSource.create();
+            mSubmittedRequests.add(imageRequest);
+            mSubmittedDataSources.add(dataSource);
+            return dataSource;
+          }
+        };
+  }
+
+  @Test
+  public void testConcurrencyIsLimited() {
+    BatchPrefetchDataSource dataSource =
+        create(new int[] {OUTCOME_PENDING, OUTCOME_PENDING, OUTCOME_PENDING, OUTCOME_PENDING}, 2);
+    assertEquals(mImageRequests.subList(0, 2), mSubmittedRequests);
+
+    mSubmittedDataSources.get(1).setResult(null);
+    assertEquals(mImageRequests.subList(0, 3), mSubmittedRequests);
+    assertEquals(0.25f, dataSource.getProgress(), 0);
+
+    mSubmittedDataSources.get(0).setFailure(new RuntimeException());
+    mSubmittedDataSources.get(2).setResult(null);
+    assertFalse(dataSource.isFinished());
+    mSubmittedDataSources.get(3).setResult(null);
+
+    assertTrue(dataSource.isFinished());
+    assertArrayEquals(
+        new int[] {OUTCOME_FAILED, OUTCOME_PREFETCHED, OUTCOME_PREFETCHED, OUTCOME_PREFETCHED},
+        dataSource.getResult());
+  }
+
+  @Test
+  public void testRequestsWithOutcomeAreNotSubmitted() {
+    BatchPrefetchDataSource dataSource =
+        create(
+            new int[] {
+              OUTCOME_ALREADY_CACHED, OUTCOME_PENDING, OUTCOME_DUPLICATE, OUTCOME_ALREADY_CACHED
+            },
+            4);
+    assertEquals(Arrays.asList(mImageRequests.get(1)), mSubmittedRequests);
+    assertEquals(OUTCOME_PENDING, dataSource.getOutcome(1));
+
+    mSubmittedDataSources.get(0).setResult(null);
+    assertTrue(dataSource.isFinished());
+    assertEquals(OUTCOME_PREFETCHED, dataSource.getOutcome(1));
+    assertEquals(1f, dataSource.getProgress(), 0);
+  }
+
+  @Test
+  public void testBatchWithNothingToPrefetchFinishesImmediately() {
+    BatchPrefetchDataSource dataSource =
+        create(
+            new int[] {
+              OUTCOME_ALREADY_CACHED,
+              OUTCOME_ALREADY_CACHED,
+              OUTCOME_ALREADY_CACHED,
+              OUTCOME_ALREADY_CACHED
+            },
+            2);
+    assertTrue(mSubmittedRequests.isEmpty());
+    assertTrue(dataSource.isFinished());
+  }
+
+  @Test
+  public void testCountBudget() {
+    BatchPrefetchDataSource dataSource =
+        BatchPrefetchDataSource.create(
+            mImageRequests,
+            new int[] {OUTCOME_ALREADY_CACHED, OUTCOME_PENDING, OUTCOME_PENDING, OUTCOME_PENDING},
+            new PrefetchBudget(2, PrefetchBudget.UNLIMITED_BYTES, 4),
+            Priority.LOW,
+            mPrefetchSubmitter);
+    assertEquals(mImageRequests.subList(1, 3), mSubmittedRequests);
+    mSubmittedDataSources.get(0).setResult(null);
+    mSubmittedDataSources.get(1).setResult(null);
+
+    assertTrue(dataSource.isFinished());
+    assertEquals(OUTCOME_OVER_BUDGET, dataSource.getOutcome(3));
+  }
+
+  @Test
+  public void testBytesBudget() {
+    BatchPrefetchDataSource dataSource =
+        BatchPrefetchDataSource.create(
+            mImageRequests.subList(0, 2),
+            new int[] {OUTCOME_PENDING, OUTCOME_PENDING},
+            new PrefetchBudget(PrefetchBudget.UNLIMITED_COUNT, 1000, 1),
+            Priority.LOW,
+            mPrefetchSubmitter);
+    mSubmittedDataSources
+        .get(0)
+        .setResult(
+            null,
+            /* isLast */ true,
+            ImmutableMap.<String, Object>of(ProducerContext.ExtraKeys.FETCHED_SIZE, 1000));
+
+    assertEquals(1, mSubmittedRequests.size());
+    assertTrue(dataSource.isFinished());
+    assertEquals(OUTCOME_OVER_BUDGET, dataSource.getOutcome(1));
+  }
+
+  @Test
+  public void testBytesReadFromCacheDoNotCount() {
+    BatchPrefetchDataSource dataSource =
+        BatchPrefetchDataSource.create(
+            mImageRequests.subList(0, 2),
+            new int[] {OUTCOME_PENDING, OUTCOME_PENDING},
+            new PrefetchBudget(PrefetchBudget.UNLIMITED_COUNT, 1000, 1),
+            Priority.LOW,
+            mPrefetchSubmitter);
+    mSubmittedDataSources
+        .get(0)
+        .setResult(
+            null,
+            /* isLast */ true,
+            ImmutableMap.<String, Object>of(ProducerContext.ExtraKeys.ENCODED_SIZE, 1000));
+
+    assertEquals(2, mSubmittedRequests.size());
+    assertFalse(dataSource.isFinished());
+  }
+
+  @Test
+  public void testCloseCancelsRunningPrefetches() {
+    BatchPrefetchDataSource dataSource =
+        create(new int[] {OUTCOME_PENDING, OUTCOME_PENDING, OUTCOME_PENDING, OUTCOME_PENDING}, 2);
+    dataSource.close();
+
+    assertEquals(2, mSubmittedRequests.size());
+    assertTrue(mSubmittedDataSources.get(0).isClosed());
+    assertTrue(mSubmittedDataSources.get(1).isClosed());
+  }
+
+  @Test
+  public void testPriorityChangeAppliesToNextPrefetches() {
+    final List<Priority> priorities = new ArrayList<>();
+    BatchPrefetchDataSource dataSource =
+        BatchPrefetchDataSource.create(
+            mImageRequests.subList(0, 2),
+            new int[] {OUTCOME_PENDING, OUTCOME_PENDING},
+            PrefetchBudget.forConcurrency(1),
+            Priority.LOW,
+            new BatchPrefetchDataSource.PrefetchSubmitter() {
+              @Override
+              public DataSource<Void> submit(ImageRequest imageRequest, Priority priority) {
+                priorities.add(priority);
+                return mPrefetchSubmitter.submit(imageRequest, priority);
+              }
+            });
+    dataSource.setPriority(Priority.MEDIUM);
+    mSubmittedDataSources.get(0).setResult(null);
+
+    assertEquals(Arrays.asList(Priority.LOW, Priority.MEDIUM), priorities);
+    assertEquals(Priority.MEDIUM, dataSource.getPriority());
+  }
+
+  @Test
+  public void testCancelledPrefetch() {
+    BatchPrefetchDataSource dataSource =
+        create(
+            new int[] {OUTCOME_PENDING, OUTCOME_DUPLICATE, OUTCOME_DUPLICATE, OUTCOME_DUPLICATE},
+            1);
+    mSubmittedDataSources.get(0).close();
+
+    assertTrue(dataSource.isFinished());
+    assertEquals(OUTCOME_CANCELLED, dataSource.getOutcome(0));
+  }
+
+  private BatchPrefetchDataSource create(int[] outcomes, int maxConcurrency) {
+    return BatchPrefetchDataSource.create(
+        mImageRequests,
+        outcomes,
+        PrefetchBudget.forConcurrency(maxConcurrency),
+        Priority.LOW,
+        mPrefetchSubmitter);
+  }
+}
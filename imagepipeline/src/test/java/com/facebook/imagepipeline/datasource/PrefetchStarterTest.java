@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.datasource;
+
+import static org.junit.Assert.*;
+
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.datasource.SimpleDataSource;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PrefetchStarterTest {
+
+  @Test
+  public void testStartRequestedWhileStartingIsRunAfterwards() {
+    final boolean[] isRunning = {false};
+    final int[] startedCount = {0};
+    final PrefetchStarter starter =
+        new PrefetchStarter() {
+          @Override
+          protected boolean startNextPrefetch() {
+            if (isRunning[0]) {
+              if (startedCount[0] == 1) {
+                // the running prefetch finishes right after the check
+                isRunning[0] = false;
+                startPrefetches();
+              }
+              return false;
+            }
+            isRunning[0] = true;
+            startedCount[0]++;
+            return true;
+          }
+        };
+
+    starter.startPrefetches();
+
+    assertEquals(2, startedCount[0]);
+    assertTrue(isRunning[0]);
+  }
+
+  @Test
+  public void testFetchedSize() {
+    SimpleDataSource<Void> dataSource = SimpleDataSource.create();
+    assertEquals(0, PrefetchStarter.getFetchedSize(dataSource));
+
+    dataSource.setResult(
+        null,
+        /* isLast */ true,
+        ImmutableMap.<String, Object>of(
+            ProducerContext.ExtraKeys.FETCHED_SIZE,
+            1000,
+            ProducerContext.ExtraKeys.ENCODED_SIZE,
+            2000));
+    assertEquals(1000, PrefetchStarter.getFetchedSize(dataSource));
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.debug;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.facebook.common.references.ResourceReleaser;
+import com.facebook.common.references.SharedReference;
+import com.facebook.imagepipeline.image.CloseableImage;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class SamplingCloseableReferenceLeakTrackerTest {
+
+  private static final int SAMPLE_INTERVAL = 4;
+  private static final int MAX_TRACKED_SITES = 2;
+
+  private SamplingCloseableReferenceLeakTracker mTracker;
+  private ResourceReleaser<Object> mReleaser;
+
+  @Before
+  public void setUp() {
+    mTracker = new SamplingCloseableReferenceLeakTracker(SAMPLE_INTERVAL, MAX_TRACKED_SITES);
+    mReleaser = mock(ResourceReleaser.class);
+  }
+
+  @Test
+  public void testSampling() {
+    int captured = 0;
+    for (int i = 0; i < SAMPLE_INTERVAL * 10; i++) {
+      if (mTracker.shouldCaptureStacktrace()) {
+        captured++;
+      }
+    }
+    assertEquals(10, captured);
+    assertEquals(SAMPLE_INTERVAL * 10, mTracker.getReferenceCount());
+    assertEquals(10, mTracker.getSampledReferenceCount());
+  }
+
+  @Test
+  public void testSamplingIsPerThread() throws InterruptedException {
+    for (int i = 0; i < SAMPLE_INTERVAL - 1; i++) {
+      assertFalse(mTracker.shouldCaptureStacktrace());
+    }
+    final boolean[] captured = new boolean[1];
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                captured[0] = mTracker.shouldCaptureStacktrace();
+              }
+            });
+    thread.start();
+    thread.join();
+
+    // the reference of the other thread does not complete the interval of this one
+    assertFalse(captured[0]);
+    assertEquals(0, mTracker.getSampledReferenceCount());
+    assertTrue(mTracker.shouldCaptureStacktrace());
+    assertEquals(SAMPLE_INTERVAL, mTracker.getReferenceCount());
+  }
+
+  @Test
+  public void testLeaksAggregatedBySite() {
+    Throwable stacktrace = new Throwable();
+    mTracker.trackCloseableReferenceLeak(newReference(100), stacktrace);
+    mTracker.trackCloseableReferenceLeak(newReference(200), stacktrace);
+    mTracker.trackCloseableReferenceLeak(newReference(50), null);
+
+    assertEquals(3, mTracker.getLeakCount());
+    assertEquals(350, mTracker.getLeakedBytes());
+
+    List<SamplingCloseableReferenceLeakTracker.LeakSite> leakSites = mTracker.getLeakSites();
+    assertEquals(2, leakSites.size());
+    assertEquals(
+        SamplingCloseableReferenceLeakTracker.getAllocationSite(stacktrace),
+        leakSites.get(0).getSite());
+    assertEquals(2, leakSites.get(0).getLeakCount());
+    assertEquals(300, leakSites.get(0).getLeakedBytes());
+    assertEquals(SamplingCloseableReferenceLeakTracker.UNKNOWN_SITE, leakSites.get(1).getSite());
+    assertEquals(1, leakSites.get(1).getLeakCount());
+    assertEquals(50, leakSites.get(1).getLeakedBytes());
+  }
+
+  @Test
+  public void testTrackedSitesAreBounded() {
+    mTracker.trackCloseableReferenceLeak(newReference(10), null);
+    mTracker.trackCloseableReferenceLeak(newReference(20), new Throwable());
+    mTracker.trackCloseableReferenceLeak(newReference(30), new Throwable());
+
+    List<SamplingCloseableReferenceLeakTracker.LeakSite> leakSites = mTracker.getLeakSites();
+    assertEquals(MAX_TRACKED_SITES + 1, leakSites.size());
+    assertEquals(SamplingCloseableReferenceLeakTracker.OTHER_SITES, leakSites.get(0).getSite());
+    assertEquals(60, mTracker.getLeakedBytes());
+  }
+
+  @Test
+  public void testListenerIsNotified() {
+    CloseableReferenceLeakTracker.Listener listener =
+        mock(CloseableReferenceLeakTracker.Listener.class);
+    assertFalse(mTracker.isSet());
+    mTracker.setListener(listener);
+    assertTrue(mTracker.isSet());
+
+    SharedReference<Object> reference = newReference(10);
+    Throwable stacktrace = new Throwable();
+    mTracker.trackCloseableReferenceLeak(reference, stacktrace);
+    verify(listener).onCloseableReferenceLeak(reference, stacktrace);
+  }
+
+  @Test
+  public void testReset() {
+    mTracker.shouldCaptureStacktrace();
+    mTracker.trackCloseableReferenceLeak(newReference(10), null);
+    mTracker.reset();
+    assertEquals(0, mTracker.getReferenceCount());
+    assertEquals(0, mTracker.getLeakCount());
+    assertEquals(0, mTracker.getLeakedBytes());
+    assertTrue(mTracker.getLeakSites().isEmpty());
+  }
+
+  private SharedReference<Object> newReference(int sizeInBytes) {
+    CloseableImage image = mock(CloseableImage.class);
+    when(image.getSizeInBytes()).thenReturn(sizeInBytes);
+    return new SharedReference<Object>(image, mReleaser);
+  }
+}
@@ -114,6 +114,15 @@ public class ProgressiveJpegParserTest {
     testFirstNBytes(mJpegBytes, mJpegBytes.length, true, 10, 32844);
   }
 
+  @Test
+  public void testOnRealJpegReceivedInSmallParts() {
+    for (int n = 100; n < mJpegBytes.length; n += 100) {
+      mProgressiveJpegParser.parseMoreData(
+          buildEncodedImage(new TrivialPooledByteBuffer(Arrays.copyOf(mJpegBytes, n))));
+    }
+    testFirstNBytes(mJpegBytes, mJpegBytes.length, true, 10, 32844);
+  }
+
   /**
    * Feeds mProgressiveJpegParser with n initial bytes from byteArray and checks that
    *
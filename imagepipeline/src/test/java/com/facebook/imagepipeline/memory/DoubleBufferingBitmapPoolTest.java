@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.graphics.Bitmap;
+import com.facebook.common.memory.MemoryTrimType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DoubleBufferingBitmapPoolTest {
+
+  private static final int SIZE = 128 * 128 * 2;
+
+  private BitmapPool mDelegate;
+  private DoubleBufferingBitmapPool mPool;
+  private Bitmap mFirst;
+  private Bitmap mSecond;
+
+  @Before
+  public void setup() {
+    mDelegate = mock(BitmapPool.class);
+    mPool = new DoubleBufferingBitmapPool(mDelegate);
+    mFirst = Bitmap.createBitmap(128, 128, Bitmap.Config.RGB_565);
+    mSecond = Bitmap.createBitmap(128, 128, Bitmap.Config.RGB_565);
+    when(mDelegate.get(SIZE)).thenReturn(mFirst, mSecond);
+  }
+
+  @Test
+  public void testReleasedBitmapIsReused() {
+    assertSame(mFirst, mPool.get(SIZE));
+    assertSame(mSecond, mPool.get(SIZE));
+
+    mPool.release(mFirst);
+    assertSame(mFirst, mPool.get(SIZE));
+    mPool.release(mSecond);
+    assertSame(mSecond, mPool.get(SIZE));
+
+    verify(mDelegate, never()).release(mFirst);
+    verify(mDelegate, never()).release(mSecond);
+  }
+
+  @Test
+  public void testOnlyOneBitmapIsKept() {
+    mPool.get(SIZE);
+    mPool.get(SIZE);
+
+    mPool.release(mFirst);
+    mPool.release(mSecond);
+
+    verify(mDelegate, never()).release(mFirst);
+    verify(mDelegate).release(mSecond);
+  }
+
+  @Test
+  public void testTooSmallBitmapIsNotReused() {
+    mPool.get(SIZE);
+    mPool.release(mFirst);
+
+    mPool.get(SIZE * 2);
+
+    verify(mDelegate).get(SIZE * 2);
+  }
+
+  @Test
+  public void testTrimReleasesKeptBitmap() {
+    mPool.get(SIZE);
+    mPool.release(mFirst);
+
+    mPool.trim(MemoryTrimType.OnAppBackgrounded);
+
+    verify(mDelegate).release(mFirst);
+  }
+
+  @Test
+  public void testBitmapsAreNotKeptAfterClose() {
+    mPool.get(SIZE);
+    mPool.get(SIZE);
+    mPool.release(mFirst);
+
+    mPool.close();
+    verify(mDelegate).release(mFirst);
+
+    mPool.release(mSecond);
+    verify(mDelegate).release(mSecond);
+  }
+}
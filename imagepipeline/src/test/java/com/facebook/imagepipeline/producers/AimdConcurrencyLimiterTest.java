@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class AimdConcurrencyLimiterTest {
+
+  private AimdConcurrencyLimiter mLimiter;
+  private long mNowMs;
+
+  @Before
+  public void setUp() {
+    mLimiter = new AimdConcurrencyLimiter(4, 1, 8);
+  }
+
+  @Test
+  public void testInitialLimitIsClamped() {
+    assertEquals(4, mLimiter.getLimit());
+    assertEquals(8, new AimdConcurrencyLimiter(100, 1, 8).getLimit());
+    assertEquals(2, new AimdConcurrencyLimiter(0, 2, 8).getLimit());
+  }
+
+  @Test
+  public void testFastRequestsIncreaseLimit() {
+    // about one more per limit requests
+    for (int i = 0; i < 5; i++) {
+      finish(100, 4, true);
+    }
+    assertEquals(5, mLimiter.getLimit());
+    assertEquals(100, mLimiter.getBaselineLatencyMs());
+  }
+
+  @Test
+  public void testLimitDoesNotGrowWhenUnused() {
+    for (int i = 0; i < 20; i++) {
+      finish(100, 1, true);
+    }
+    assertEquals(4, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testLimitDoesNotExceedMax() {
+    for (int i = 0; i < 100; i++) {
+      finish(100, 8, true);
+    }
+    assertEquals(8, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testSlowRequestDecreasesLimit() {
+    finish(100, 1, true);
+    finish(1000, 4, true);
+    assertEquals(3, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testSmallLatencyIncreaseIsNotCongestion() {
+    finish(1, 4, true);
+    finish(1 + AimdConcurrencyLimiter.LATENCY_SLACK_MS, 4, true);
+    assertEquals(4, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testFailuresDecreaseLimitDownToMin() {
+    for (int i = 0; i < 100; i++) {
+      finish(100, 4, false);
+    }
+    assertEquals(1, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testBaselineIsRelearned() {
+    finish(10, 1, true);
+    for (int i = 0; i < AimdConcurrencyLimiter.BASELINE_RESET_INTERVAL; i++) {
+      finish(500, 1, true);
+    }
+    assertEquals(500, mLimiter.getBaselineLatencyMs());
+  }
+
+  @Test
+  public void testOneDecreasePerRoundTrip() {
+    mLimiter = new AimdConcurrencyLimiter(8, 1, 8);
+    mLimiter.onRequestFinished(0, 10, 8, true);
+    mLimiter.onRequestFinished(20, 100, 8, false);
+    assertEquals(7, mLimiter.getLimit());
+    // started before the decrease, so they ran under the previous limit
+    mLimiter.onRequestFinished(50, 150, 8, false);
+    mLimiter.onRequestFinished(60, 5000, 8, true);
+    assertEquals(7, mLimiter.getLimit());
+
+    mLimiter.onRequestFinished(200, 300, 8, false);
+    assertEquals(6, mLimiter.getLimit());
+  }
+
+  /** Reports a request started after all the previous ones have finished. */
+  private void finish(long latencyMs, int inFlight, boolean succeeded) {
+    final long startTimeMs = ++mNowMs;
+    mNowMs += latencyMs;
+    mLimiter.onRequestFinished(startTimeMs, mNowMs, inFlight, succeeded);
+  }
+}
@@ -12,6 +12,7 @@ import static org.mockito.Mockito.*;
 
 import android.media.ExifInterface;
 import android.net.Uri;
+import android.os.SystemClock;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
@@ -29,6 +30,7 @@ import com.facebook.imagepipeline.decoder.ProgressiveJpegParser;
 import com.facebook.imagepipeline.decoder.SimpleProgressiveJpegConfig;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.image.QualityInfo;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.request.ImageRequestBuilder;
 import java.util.Arrays;
@@ -393,6 +395,35 @@ public class DecodeProducerTest {
         .onUltimateProducerReached(eq(mProducerContext), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testDecode_DeadlineExceeded() throws Exception {
+    setupNetworkUri();
+    produceResults();
+    JobScheduler.JobRunnable jobRunnable = getJobRunnable();
+
+    mProducerContext.setDeadlineMs(SystemClock.uptimeMillis());
+    jobRunnable.run(mEncodedImage, Consumer.IS_LAST);
+
+    verify(mImageDecoder, never())
+        .decode(
+            any(EncodedImage.class),
+            anyInt(),
+            any(QualityInfo.class),
+            any(ImageDecodeOptions.class));
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext,
+            DecodeProducer.PRODUCER_NAME,
+            DeadlineExceededException.PRODUCER_EVENT);
+    verify(mProducerListener)
+        .onProducerFinishWithFailure(
+            eq(mProducerContext),
+            eq(DecodeProducer.PRODUCER_NAME),
+            any(DeadlineExceededException.class),
+            nullable(Map.class));
+    verify(mConsumer).onFailure(any(DeadlineExceededException.class));
+  }
+
   @Test
   public void testDecode_WhenSmartResizingEnabledAndLocalUri_ThenPerformDownsampling()
       throws Exception {
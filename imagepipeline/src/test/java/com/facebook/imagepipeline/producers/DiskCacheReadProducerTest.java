@@ -12,19 +12,26 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
+import android.net.Uri;
 import bolts.Task;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.MultiCacheKey;
 import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.common.executors.CallerThreadExecutor;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.core.ImagePipelineExperiments;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.testing.FakeClock;
+import com.facebook.imagepipeline.testing.TestExecutorService;
+import com.facebook.imagepipeline.testing.TestScheduledExecutorService;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -58,6 +65,7 @@ public class DiskCacheReadProducerTest {
   @Mock public ProducerListener2 mProducerListener;
   @Mock public Exception mException;
   @Mock public ImagePipelineConfig mConfig;
+  @Mock public ImagePipelineExperiments mExperiments;
   private final BufferedDiskCache mDefaultBufferedDiskCache = mock(BufferedDiskCache.class);
   private final BufferedDiskCache mSmallImageBufferedDiskCache = mock(BufferedDiskCache.class);
   private SettableProducerContext mProducerContext;
@@ -73,6 +81,8 @@ public class DiskCacheReadProducerTest {
   private Task.TaskCompletionSource mTaskCompletionSource;
   private ArgumentCaptor<AtomicBoolean> mIsCancelled;
   private DiskCacheReadProducer mDiskCacheReadProducer;
+  private FakeClock mFakeClock;
+  private TestExecutorService mHedgedFetchExecutor;
 
   @Before
   public void setUp() {
@@ -82,7 +92,8 @@ public class DiskCacheReadProducerTest {
             mDefaultBufferedDiskCache,
             mSmallImageBufferedDiskCache,
             mCacheKeyFactory,
-            mInputProducer);
+            mInputProducer,
+            CallerThreadExecutor.getInstance());
     List<CacheKey> keys = new ArrayList<>(1);
     keys.add(new SimpleCacheKey("http://dummy.uri"));
     mCacheKey = new MultiCacheKey(keys);
@@ -120,6 +131,7 @@ public class DiskCacheReadProducerTest {
     when(mCacheKeyFactory.getEncodedCacheKey(mImageRequest, mCallerContext)).thenReturn(mCacheKey);
     when(mImageRequest.getCacheChoice()).thenReturn(ImageRequest.CacheChoice.DEFAULT);
     when(mImageRequest.isDiskCacheEnabled()).thenReturn(true);
+    when(mConfig.getExperiments()).thenReturn(mExperiments);
   }
 
   @Test
@@ -383,6 +395,248 @@ public class DiskCacheReadProducerTest {
         .onUltimateProducerReached(eq(mProducerContext), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testFreshEntryIsNotRevalidated() {
+    setupDiskCacheGetSuccess(mDefaultBufferedDiskCache);
+    setupValidators(CacheValidators.NEVER_EXPIRES);
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    // the validators are not read on the thread the image was found on
+    verify(mDefaultBufferedDiskCache, never()).getValidatorsSync(any(CacheKey.class));
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), eq(mProducerContext));
+  }
+
+  @Test
+  public void testStaleEntryIsNotRevalidatedIfDisabled() {
+    setupDiskCacheGetSuccess(mDefaultBufferedDiskCache);
+    setupValidators(0);
+    when(mExperiments.isDiskCacheRevalidationEnabled()).thenReturn(false);
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mDefaultBufferedDiskCache, never()).getValidators(any(CacheKey.class));
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), eq(mProducerContext));
+  }
+
+  @Test
+  public void testStaleEntryNotModified() {
+    setupDiskCacheGetSuccess(mDefaultBufferedDiskCache);
+    CacheValidators validators = setupValidators(0);
+    final CacheValidators responseValidators = new CacheValidators("\"v1\"", null, 1000);
+    doAnswer(
+            new Answer<Object>() {
+              @Override
+              public Object answer(InvocationOnMock invocation) throws Throwable {
+                ProducerContext context = (ProducerContext) invocation.getArguments()[1];
+                context.setExtra(ProducerContext.ExtraKeys.RESPONSE_VALIDATORS, responseValidators);
+                context.setExtra(ProducerContext.ExtraKeys.NOT_MODIFIED, true);
+                Consumer consumer = (Consumer) invocation.getArguments()[0];
+                consumer.onNewResult(null, Consumer.IS_LAST);
+                return null;
+              }
+            })
+        .when(mInputProducer)
+        .produceResults(any(Consumer.class), eq(mProducerContext));
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    assertSame(
+        validators, mProducerContext.getExtra(ProducerContext.ExtraKeys.CACHED_VALIDATORS));
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mDefaultBufferedDiskCache).putValidators(mCacheKey, responseValidators);
+    assertEquals("disk", mProducerContext.getExtra(ProducerContext.ExtraKeys.ORIGIN));
+    Assert.assertFalse(EncodedImage.isValid(mFinalEncodedImage));
+  }
+
+  @Test
+  public void testStaleEntryModified() {
+    setupDiskCacheGetSuccess(mDefaultBufferedDiskCache);
+    setupValidators(0);
+    final EncodedImage newImage =
+        new EncodedImage(CloseableReference.of(mock(PooledByteBuffer.class)));
+    doAnswer(
+            new Answer<Object>() {
+              @Override
+              public Object answer(InvocationOnMock invocation) throws Throwable {
+                Consumer consumer = (Consumer) invocation.getArguments()[0];
+                consumer.onNewResult(newImage, Consumer.IS_LAST);
+                return null;
+              }
+            })
+        .when(mInputProducer)
+        .produceResults(any(Consumer.class), eq(mProducerContext));
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onNewResult(newImage, Consumer.IS_LAST);
+    verify(mConsumer, never()).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mDefaultBufferedDiskCache, never())
+        .putValidators(any(CacheKey.class), any(CacheValidators.class));
+    Assert.assertFalse(EncodedImage.isValid(mFinalEncodedImage));
+  }
+
+  @Test
+  public void testStaleEntryIsUsedIfNoImageIsFetched() {
+    setupDiskCacheGetSuccess(mDefaultBufferedDiskCache);
+    setupValidators(0);
+    doAnswer(
+            new Answer<Object>() {
+              @Override
+              public Object answer(InvocationOnMock invocation) throws Throwable {
+                Consumer consumer = (Consumer) invocation.getArguments()[0];
+                consumer.onNewResult(null, Consumer.IS_LAST);
+                return null;
+              }
+            })
+        .when(mInputProducer)
+        .produceResults(any(Consumer.class), eq(mProducerContext));
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mDefaultBufferedDiskCache, never())
+        .putValidators(any(CacheKey.class), any(CacheValidators.class));
+    assertEquals("stale", mProducerContext.getExtra(ProducerContext.ExtraKeys.ORIGIN_SUBCATEGORY));
+    Assert.assertFalse(EncodedImage.isValid(mFinalEncodedImage));
+  }
+
+  @Test
+  public void testStaleEntryIsUsedIfRevalidationFails() {
+    setupDiskCacheGetSuccess(mDefaultBufferedDiskCache);
+    setupValidators(0);
+    setupInputProducerFailure();
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mConsumer, never()).onFailure(any(Throwable.class));
+    Assert.assertFalse(EncodedImage.isValid(mFinalEncodedImage));
+  }
+
+  private CacheValidators setupValidators(long expiresAtMs) {
+    CacheValidators validators = new CacheValidators("\"v0\"", null, expiresAtMs);
+    when(mExperiments.isDiskCacheRevalidationEnabled()).thenReturn(true);
+    when(mDefaultBufferedDiskCache.getValidators(mCacheKey))
+        .thenReturn(Task.forResult(validators));
+    return validators;
+  }
+
+  @Test
+  public void testHedgedReadWonByNetwork() {
+    setupHedging();
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), any(ProducerContext.class));
+
+    mFakeClock.incrementBy(DiskCacheReadProducer.HEDGING_MIN_DELAY_MS);
+    // the fetch is started on the background executor, not on the scheduling thread
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), any(ProducerContext.class));
+    mHedgedFetchExecutor.runUntilIdle();
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext, PRODUCER_NAME, DiskCacheReadProducer.EVENT_HEDGED_NETWORK_FETCH);
+    Consumer<EncodedImage> networkConsumer = captureHedgedNetworkConsumer();
+    mFakeClock.incrementBy(10);
+    networkConsumer.onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    assertTrue(mIsCancelled.getValue().get());
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext, PRODUCER_NAME, DiskCacheReadProducer.EVENT_HEDGE_WON_BY_NETWORK);
+    // the lost read is measured up to the win of the network
+    assertEquals(
+        DiskCacheReadProducer.HEDGING_MIN_DELAY_MS + 10,
+        mDiskCacheReadProducer.mReadLatencyTracker.getPercentile(1, 1));
+
+    // the disk cache read finishes anyway, its result is dropped
+    EncodedImage cachedImage =
+        new EncodedImage(CloseableReference.of(mock(PooledByteBuffer.class)));
+    mTaskCompletionSource.trySetResult(cachedImage);
+    verify(mConsumer, times(1)).onNewResult(any(EncodedImage.class), anyInt());
+    assertFalse(EncodedImage.isValid(cachedImage));
+    verify(mProducerListener)
+        .onProducerFinishWithCancellation(mProducerContext, PRODUCER_NAME, null);
+  }
+
+  @Test
+  public void testHedgedReadWonByDisk() {
+    setupHedging();
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    mFakeClock.incrementBy(DiskCacheReadProducer.HEDGING_MIN_DELAY_MS);
+    mHedgedFetchExecutor.runUntilIdle();
+    Consumer<EncodedImage> networkConsumer = captureHedgedNetworkConsumer();
+    ArgumentCaptor<ProducerContext> networkContext = ArgumentCaptor.forClass(ProducerContext.class);
+    verify(mInputProducer).produceResults(any(Consumer.class), networkContext.capture());
+
+    mTaskCompletionSource.trySetResult(mFinalEncodedImage);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    assertTrue(((SettableProducerContext) networkContext.getValue()).isCancelled());
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext, PRODUCER_NAME, DiskCacheReadProducer.EVENT_HEDGE_WON_BY_DISK);
+
+    networkConsumer.onCancellation();
+    verify(mConsumer, never()).onCancellation();
+    verify(mConsumer, times(1)).onNewResult(any(EncodedImage.class), anyInt());
+  }
+
+  @Test
+  public void testHedgedReadOfMissingImage() {
+    setupHedging();
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    mFakeClock.incrementBy(DiskCacheReadProducer.HEDGING_MIN_DELAY_MS);
+    mHedgedFetchExecutor.runUntilIdle();
+    Consumer<EncodedImage> networkConsumer = captureHedgedNetworkConsumer();
+
+    // intermediate results are only passed on once the disk cache read is known to miss
+    networkConsumer.onNewResult(mIntermediateEncodedImage, Consumer.NO_FLAGS);
+    verify(mConsumer, never()).onNewResult(any(EncodedImage.class), anyInt());
+    mTaskCompletionSource.trySetResult(null);
+    networkConsumer.onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+
+    verify(mInputProducer, times(1))
+        .produceResults(any(Consumer.class), any(ProducerContext.class));
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mConsumer, times(1)).onNewResult(any(EncodedImage.class), anyInt());
+  }
+
+  @Test
+  public void testFastReadIsNotHedged() {
+    setupHedging();
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    mTaskCompletionSource.trySetResult(mFinalEncodedImage);
+    mFakeClock.incrementBy(DiskCacheReadProducer.HEDGING_MIN_DELAY_MS);
+    mHedgedFetchExecutor.runUntilIdle();
+
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), any(ProducerContext.class));
+    verify(mProducerListener, never())
+        .onProducerEvent(any(ProducerContext.class), anyString(), anyString());
+  }
+
+  /**
+   * Enables hedging, and measures enough disk cache reads for the next one to be hedged after
+   * {@link DiskCacheReadProducer#HEDGING_MIN_DELAY_MS}.
+   */
+  private void setupHedging() {
+    mFakeClock = new FakeClock();
+    mHedgedFetchExecutor = new TestExecutorService(mFakeClock);
+    mDiskCacheReadProducer =
+        new DiskCacheReadProducer(
+            mDefaultBufferedDiskCache,
+            mSmallImageBufferedDiskCache,
+            mCacheKeyFactory,
+            mInputProducer,
+            mHedgedFetchExecutor,
+            new TestScheduledExecutorService(mFakeClock),
+            mFakeClock);
+    when(mExperiments.isDiskCacheReadHedgingEnabled()).thenReturn(true);
+    when(mImageRequest.getSourceUri()).thenReturn(Uri.parse("http://dummy.uri"));
+    when(mDefaultBufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+        .thenReturn(Task.forResult(mIntermediateEncodedImage));
+    for (int i = 0; i < DiskCacheReadProducer.HEDGING_MIN_SAMPLES; i++) {
+      mDiskCacheReadProducer.produceResults(
+          mock(Consumer.class), new SettableProducerContext(mProducerContext));
+    }
+    setupDiskCacheGetWait(mDefaultBufferedDiskCache);
+  }
+
+  private Consumer<EncodedImage> captureHedgedNetworkConsumer() {
+    ArgumentCaptor<Consumer> consumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(mInputProducer).produceResults(consumer.capture(), any(ProducerContext.class));
+    return consumer.getValue();
+  }
+
   private void setupDiskCacheGetWait(BufferedDiskCache bufferedDiskCache) {
     mTaskCompletionSource = Task.create();
     when(bufferedDiskCache.get(eq(mCacheKey), mIsCancelled.capture()))
@@ -7,6 +7,8 @@
 
 package com.facebook.imagepipeline.producers;
 
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -19,6 +21,7 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import bolts.TaskCompletionSource;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.MultiCacheKey;
 import com.facebook.cache.common.SimpleCacheKey;
@@ -29,8 +32,10 @@ import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.core.ImagePipelineExperiments;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -65,6 +70,7 @@ public class DiskCacheWriteProducerTest {
   @Mock public ProducerListener2 mProducerListener;
   @Mock public Exception mException;
   @Mock public ImagePipelineConfig mConfig;
+  @Mock public ImagePipelineExperiments mExperiments;
   private final BufferedDiskCache mDefaultBufferedDiskCache = mock(BufferedDiskCache.class);
   private final BufferedDiskCache mSmallImageBufferedDiskCache = mock(BufferedDiskCache.class);
   private SettableProducerContext mProducerContext;
@@ -130,6 +136,7 @@ public class DiskCacheWriteProducerTest {
     when(mCacheKeyFactory.getEncodedCacheKey(mImageRequest, mCallerContext)).thenReturn(mCacheKey);
     when(mImageRequest.getCacheChoice()).thenReturn(ImageRequest.CacheChoice.DEFAULT);
     when(mImageRequest.isDiskCacheEnabled()).thenReturn(true);
+    when(mConfig.getExperiments()).thenReturn(mExperiments);
   }
 
   @Test
@@ -193,6 +200,50 @@ public class DiskCacheWriteProducerTest {
     verifyZeroInteractions(mDefaultBufferedDiskCache, mSmallImageBufferedDiskCache);
   }
 
+  @Test
+  public void testWriteThroughDisabled() {
+    setupInputProducerSuccess();
+    mDiskCacheWriteProducer.produceResults(mConsumer, mProducerContext);
+    assertNull(mProducerContext.getExtra(ProducerContext.ExtraKeys.DISK_CACHE_WRITE_THROUGH));
+    verify(mDefaultBufferedDiskCache).put(mCacheKey, mFinalEncodedImage);
+  }
+
+  @Test
+  public void testWriteThroughStagesImageUntilWritten() {
+    when(mExperiments.isDiskCacheWriteThroughEnabled()).thenReturn(true);
+    BufferedDiskCache.IncrementalWrite incrementalWrite = setupIncrementalWrite();
+    TaskCompletionSource<Boolean> write = new TaskCompletionSource<>();
+    when(incrementalWrite.commit()).thenReturn(write.getTask());
+    setupInputProducerWritingThrough(/* isComplete */ true);
+    mDiskCacheWriteProducer.produceResults(mConsumer, mProducerContext);
+    verify(mDefaultBufferedDiskCache).stageUntil(mCacheKey, mFinalEncodedImage, write.getTask());
+    verify(mDefaultBufferedDiskCache, never()).put(any(CacheKey.class), any(EncodedImage.class));
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+  }
+
+  @Test
+  public void testWriteThroughAbandoned() {
+    when(mExperiments.isDiskCacheWriteThroughEnabled()).thenReturn(true);
+    BufferedDiskCache.IncrementalWrite incrementalWrite = setupIncrementalWrite();
+    setupInputProducerWritingThrough(/* isComplete */ false);
+    mDiskCacheWriteProducer.produceResults(mConsumer, mProducerContext);
+    verify(incrementalWrite).discard();
+    verify(incrementalWrite, never()).commit();
+    verify(mDefaultBufferedDiskCache).put(mCacheKey, mFinalEncodedImage);
+    verify(mConsumer).onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+  }
+
+  @Test
+  public void testResumableNetworkFetch() {
+    setupInputProducerSuccess();
+    mDiskCacheWriteProducer.produceResults(mConsumer, mProducerContext);
+    assertNull(mProducerContext.getExtra(ProducerContext.ExtraKeys.RESUMABLE_DOWNLOAD));
+
+    when(mExperiments.isResumableNetworkFetchEnabled()).thenReturn(true);
+    mDiskCacheWriteProducer.produceResults(mConsumer, mProducerContext);
+    assertNotNull(mProducerContext.getExtra(ProducerContext.ExtraKeys.RESUMABLE_DOWNLOAD));
+  }
+
   @Test
   public void testInputProducerNotFound() {
     setupInputProducerNotFound();
@@ -275,6 +326,35 @@ public class DiskCacheWriteProducerTest {
         .produceResults(any(Consumer.class), eq(mProducerContext));
   }
 
+  private BufferedDiskCache.IncrementalWrite setupIncrementalWrite() {
+    BufferedDiskCache.IncrementalWrite incrementalWrite =
+        mock(BufferedDiskCache.IncrementalWrite.class);
+    when(incrementalWrite.append(any(byte[].class)))
+        .thenReturn(new TaskCompletionSource<Void>().getTask());
+    when(mDefaultBufferedDiskCache.startIncrementalWrite(mCacheKey)).thenReturn(incrementalWrite);
+    return incrementalWrite;
+  }
+
+  private void setupInputProducerWritingThrough(final boolean isComplete) {
+    doAnswer(
+            new Answer<Object>() {
+              @Override
+              public Object answer(InvocationOnMock invocation) throws Throwable {
+                Consumer consumer = (Consumer) invocation.getArguments()[0];
+                ProducerContext producerContext = (ProducerContext) invocation.getArguments()[1];
+                DiskCacheWriteThrough writeThrough =
+                    producerContext.getExtra(ProducerContext.ExtraKeys.DISK_CACHE_WRITE_THROUGH);
+                assertNotNull(writeThrough);
+                writeThrough.start(new ByteArrayOutputStream()).write(new byte[] {1, 2, 3});
+                writeThrough.end(isComplete);
+                consumer.onNewResult(mFinalEncodedImage, Consumer.IS_LAST);
+                return null;
+              }
+            })
+        .when(mInputProducer)
+        .produceResults(any(Consumer.class), eq(mProducerContext));
+  }
+
   private void setupInputProducerFailure() {
     doAnswer(
             new Answer<Object>() {
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bolts.Task;
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.cache.common.WriterCallback;
+import com.facebook.cache.disk.FileCache;
+import com.facebook.common.memory.PooledByteBufferFactory;
+import com.facebook.common.memory.PooledByteStreams;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.ImageCacheStatsTracker;
+import com.facebook.imagepipeline.testing.FakeClock;
+import com.facebook.imagepipeline.testing.TestExecutorService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DiskCacheWriteThroughTest {
+
+  private FileCache mFileCache;
+  private FakeInsertion mInsertion;
+  private TestExecutorService mWriteExecutor;
+  private CacheKey mCacheKey;
+  private DiskCacheWriteThrough mWriteThrough;
+  private ByteArrayOutputStream mResponseStream;
+
+  @Before
+  public void setUp() throws IOException {
+    mFileCache = mock(FileCache.class);
+    mInsertion = new FakeInsertion();
+    mCacheKey = new SimpleCacheKey("http://dummy.uri");
+    when(mFileCache.startInsertion(mCacheKey)).thenReturn(mInsertion);
+    mWriteExecutor = new TestExecutorService(new FakeClock());
+    BufferedDiskCache bufferedDiskCache =
+        new BufferedDiskCache(
+            mFileCache,
+            mock(PooledByteBufferFactory.class),
+            mock(PooledByteStreams.class),
+            mock(Executor.class),
+            mWriteExecutor,
+            mock(ImageCacheStatsTracker.class));
+    mWriteThrough = new DiskCacheWriteThrough(bufferedDiskCache, mCacheKey);
+    mResponseStream = new ByteArrayOutputStream();
+  }
+
+  @Test
+  public void testResponseIsWrittenOnWriteExecutor() throws Exception {
+    OutputStream teeStream = mWriteThrough.start(mResponseStream);
+    teeStream.write(new byte[] {1, 2, 3});
+    teeStream.write(4);
+    mWriteThrough.end(true);
+
+    Task<Boolean> write = mWriteThrough.getWrite();
+    assertNotNull(write);
+    assertFalse(write.isCompleted());
+    mWriteExecutor.runUntilIdle();
+    assertTrue(write.getResult());
+    assertTrue(mInsertion.mIsCommitted);
+    assertArrayEquals(new byte[] {1, 2, 3, 4}, mInsertion.mBytes.toByteArray());
+    assertArrayEquals(new byte[] {1, 2, 3, 4}, mResponseStream.toByteArray());
+  }
+
+  @Test
+  public void testWriteExecutorDoesNotWaitForResponse() throws Exception {
+    OutputStream teeStream = mWriteThrough.start(mResponseStream);
+    teeStream.write(new byte[] {1, 2, 3});
+    mWriteExecutor.runUntilIdle();
+
+    // the bytes received so far are written, and nothing is left running for the rest
+    assertEquals(0, mWriteExecutor.getPendingCount());
+    assertArrayEquals(new byte[] {1, 2, 3}, mInsertion.mBytes.toByteArray());
+    assertFalse(mInsertion.mIsCommitted);
+
+    teeStream.write(4);
+    mWriteThrough.end(true);
+    mWriteExecutor.runUntilIdle();
+    assertTrue(mInsertion.mIsCommitted);
+    assertArrayEquals(new byte[] {1, 2, 3, 4}, mInsertion.mBytes.toByteArray());
+  }
+
+  @Test
+  public void testIncompleteResponseIsDiscarded() throws Exception {
+    OutputStream teeStream = mWriteThrough.start(mResponseStream);
+    teeStream.write(new byte[] {1, 2, 3});
+    mWriteThrough.end(false);
+    mWriteThrough.end(true);
+    mWriteExecutor.runUntilIdle();
+
+    assertNull(mWriteThrough.getWrite());
+    assertTrue(mInsertion.mIsDiscarded);
+    assertFalse(mInsertion.mIsCommitted);
+  }
+
+  @Test
+  public void testWriteThroughIsAbandonedIfDiskDoesNotKeepUp() throws Exception {
+    OutputStream teeStream = mWriteThrough.start(mResponseStream);
+    teeStream.write(new byte[DiskCacheWriteThrough.MAX_PENDING_BYTES]);
+    teeStream.write(5);
+    mWriteThrough.end(true);
+    mWriteExecutor.runUntilIdle();
+
+    assertNull(mWriteThrough.getWrite());
+    assertTrue(mInsertion.mIsDiscarded);
+    assertFalse(mInsertion.mIsCommitted);
+    assertEquals(DiskCacheWriteThrough.MAX_PENDING_BYTES + 1, mResponseStream.size());
+  }
+
+  @Test
+  public void testWriteThroughIsAbandonedOnDiskFailure() throws Exception {
+    mInsertion.mFailure = new IOException();
+
+    OutputStream teeStream = mWriteThrough.start(mResponseStream);
+    teeStream.write(1);
+    mWriteExecutor.runUntilIdle();
+    teeStream.write(2);
+    mWriteThrough.end(true);
+    mWriteExecutor.runUntilIdle();
+
+    assertNull(mWriteThrough.getWrite());
+    assertTrue(mInsertion.mIsDiscarded);
+    assertFalse(mInsertion.mIsCommitted);
+    assertArrayEquals(new byte[] {1, 2}, mResponseStream.toByteArray());
+  }
+
+  @Test
+  public void testWriteThroughIsAbandonedIfEntryCannotBeStarted() throws Exception {
+    when(mFileCache.startInsertion(mCacheKey)).thenThrow(new IOException());
+
+    OutputStream teeStream = mWriteThrough.start(mResponseStream);
+    mWriteExecutor.runUntilIdle();
+    teeStream.write(1);
+    mWriteExecutor.runUntilIdle();
+    mWriteThrough.end(true);
+
+    assertNull(mWriteThrough.getWrite());
+    assertArrayEquals(new byte[] {1}, mResponseStream.toByteArray());
+  }
+
+  @Test
+  public void testResponseFetchedAgainIsNotWrittenThrough() throws Exception {
+    mWriteThrough.start(mResponseStream);
+    mWriteThrough.end(false);
+
+    assertSame(mResponseStream, mWriteThrough.start(mResponseStream));
+    mWriteExecutor.runUntilIdle();
+    verify(mFileCache, times(1)).startInsertion(any(CacheKey.class));
+  }
+
+  /** Insertion keeping the bytes appended to it in memory. */
+  private static class FakeInsertion implements FileCache.Insertion {
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private IOException mFailure;
+    private boolean mIsCommitted;
+    private boolean mIsDiscarded;
+
+    @Override
+    public void append(WriterCallback writer) throws IOException {
+      if (mFailure != null) {
+        throw mFailure;
+      }
+      writer.write(mBytes);
+    }
+
+    @Override
+    public BinaryResource commit() {
+      mIsCommitted = true;
+      return mock(BinaryResource.class);
+    }
+
+    @Override
+    public void discard() {
+      if (!mIsCommitted) {
+        mIsDiscarded = true;
+      }
+    }
+  }
+}
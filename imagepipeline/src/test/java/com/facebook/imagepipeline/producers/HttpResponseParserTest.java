@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpResponseParserTest {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private HttpResponseParser mParser;
+  private ByteArrayOutputStream mBody;
+
+  @Before
+  public void setUp() {
+    mParser = new HttpResponseParser();
+    mBody = new ByteArrayOutputStream();
+  }
+
+  @Test
+  public void testContentLength() throws Exception {
+    byte[] response = bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nETag: \"v1\"\r\n\r\nhello");
+    int consumed = mParser.feed(response, 0, response.length);
+
+    assertTrue(mParser.hasHeaders());
+    assertFalse(mParser.isComplete());
+    assertEquals(200, mParser.getStatusCode());
+    assertEquals(5, mParser.getContentLength());
+    assertEquals("\"v1\"", mParser.getHeader("etag"));
+    assertTrue(mParser.isKeepAlive());
+
+    mParser.setBody(mBody);
+    consumed += mParser.feed(response, consumed, response.length - consumed);
+
+    assertEquals(response.length, consumed);
+    assertTrue(mParser.isComplete());
+    assertEquals("hello", mBody.toString("US-ASCII"));
+  }
+
+  @Test
+  public void testResponseInSmallParts() throws Exception {
+    byte[] response =
+        bytes(
+            "HTTP/1.1 100 Continue\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\n");
+    mParser.setBody(mBody);
+    for (int i = 0; i < response.length; i++) {
+      assertFalse(mParser.isComplete());
+      assertEquals(1, mParser.feed(response, i, 1));
+    }
+
+    assertTrue(mParser.isComplete());
+    assertEquals(200, mParser.getStatusCode());
+    assertEquals(-1, mParser.getContentLength());
+    assertEquals("hello world", mBody.toString("US-ASCII"));
+    assertTrue(mParser.isKeepAlive());
+  }
+
+  @Test
+  public void testBodyDelimitedByEndOfStream() throws Exception {
+    byte[] response = bytes("HTTP/1.0 200 OK\r\n\r\nhello");
+    feedAll(response);
+
+    assertFalse(mParser.isComplete());
+    mParser.onEndOfStream();
+    assertTrue(mParser.isComplete());
+    assertEquals("hello", mBody.toString("US-ASCII"));
+    assertFalse(mParser.isKeepAlive());
+  }
+
+  @Test
+  public void testNotModifiedHasNoBody() throws Exception {
+    byte[] response = bytes("HTTP/1.1 304 Not Modified\r\nContent-Length: 100\r\n\r\n");
+    feedAll(response);
+
+    assertTrue(mParser.isComplete());
+    assertEquals(304, mParser.getStatusCode());
+  }
+
+  @Test
+  public void testConnectionClose() throws Exception {
+    feedAll(bytes("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+
+    assertTrue(mParser.isComplete());
+    assertFalse(mParser.isKeepAlive());
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedBody() throws Exception {
+    feedAll(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello"));
+    mParser.onEndOfStream();
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidStatusLine() throws Exception {
+    feedAll(bytes("<html>\r\n"));
+  }
+
+  @Test
+  public void testNoDataReceived() throws Exception {
+    assertFalse(mParser.hasReceivedData());
+    try {
+      mParser.onEndOfStream();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private void feedAll(byte[] response) throws IOException {
+    mParser.setBody(mBody);
+    int offset = 0;
+    while (offset < response.length && !mParser.isComplete()) {
+      offset += mParser.feed(response, offset, response.length - offset);
+    }
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(US_ASCII);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.common.time.MonotonicClock;
+import com.facebook.imagepipeline.cache.CacheValidators;
+import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher.HttpUrlConnectionNetworkFetchState;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.testing.TestHttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests {@link HttpUrlConnectionNetworkFetcher} against a local HTTP server. */
+@RunWith(RobolectricTestRunner.class)
+public class HttpUrlConnectionNetworkFetcherServerTest {
+
+  private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+  private TestHttpServer mServer;
+  private HttpUrlConnectionNetworkFetcher mFetcher;
+  private HttpUrlConnectionNetworkFetchState mFetchState;
+  private RecordingCallback mCallback;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new TestHttpServer();
+    mFetcher = new HttpUrlConnectionNetworkFetcher("user-agent", mock(MonotonicClock.class));
+    ProducerContext context = mock(ProducerContext.class);
+    when(context.getImageRequest()).thenReturn(ImageRequest.fromUri(mServer.getUrl("/image")));
+    mFetchState = mFetcher.createFetchState(mock(Consumer.class), context);
+    mCallback = new RecordingCallback();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    mServer.close();
+  }
+
+  @Test
+  public void testResponseValidators() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .addHeader("ETag", "\"v1\"")
+            .addHeader("Last-Modified", LAST_MODIFIED)
+            .addHeader("Cache-Control", "max-age=60")
+            .setBody(new byte[] {1, 2, 3}));
+
+    mFetcher.fetchSync(mFetchState, mCallback);
+
+    assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+    assertArrayEquals(new byte[] {1, 2, 3}, mCallback.mBody);
+    assertFalse(mFetchState.isNotModified());
+    CacheValidators validators = mFetchState.getResponseValidators();
+    assertEquals("\"v1\"", validators.getETag());
+    assertEquals(LAST_MODIFIED, validators.getLastModified());
+    assertFalse(validators.isStale(System.currentTimeMillis()));
+  }
+
+  @Test
+  public void testConditionalRequestNotModified() throws Exception {
+    mFetchState.setCachedValidators(new CacheValidators("\"v0\"", LAST_MODIFIED, 0));
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_NOT_MODIFIED)
+            .addHeader("ETag", "\"v0\"")
+            .addHeader("Cache-Control", "max-age=60"));
+
+    mFetcher.fetchSync(mFetchState, mCallback);
+
+    TestHttpServer.Request request = mServer.takeRequest();
+    assertEquals("\"v0\"", request.getHeader("If-None-Match"));
+    assertEquals(LAST_MODIFIED, request.getHeader("If-Modified-Since"));
+    assertTrue(mFetchState.isNotModified());
+    assertEquals(0, mCallback.mResponseLength);
+    assertEquals("\"v0\"", mFetchState.getResponseValidators().getETag());
+    assertNull(mCallback.mFailure);
+  }
+
+  @Test
+  public void testConditionalRequestModified() throws Exception {
+    mFetchState.setCachedValidators(new CacheValidators("\"v0\"", null, 0));
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .addHeader("ETag", "\"v1\"")
+            .setBody(new byte[] {4, 5}));
+
+    mFetcher.fetchSync(mFetchState, mCallback);
+
+    assertEquals("\"v0\"", mServer.takeRequest().getHeader("If-None-Match"));
+    assertFalse(mFetchState.isNotModified());
+    assertArrayEquals(new byte[] {4, 5}, mCallback.mBody);
+    assertEquals("\"v1\"", mFetchState.getResponseValidators().getETag());
+  }
+
+  @Test
+  public void testNotModifiedWithoutValidatorsFails() throws Exception {
+    mServer.enqueue(new TestHttpServer.Response(HttpURLConnection.HTTP_NOT_MODIFIED));
+
+    mFetcher.fetchSync(mFetchState, mCallback);
+
+    assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+    assertTrue(mCallback.mFailure instanceof IOException);
+    assertFalse(mFetchState.isNotModified());
+    assertNull(mCallback.mBody);
+  }
+
+  private static class RecordingCallback implements NetworkFetcher.Callback {
+
+    private byte[] mBody;
+    private int mResponseLength = -2;
+    private Throwable mFailure;
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) throws IOException {
+      mResponseLength = responseLength;
+      mBody = ByteStreams.toByteArray(response);
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      mFailure = throwable;
+    }
+
+    @Override
+    public void onCancellation() {
+      fail();
+    }
+  }
+}
@@ -7,11 +7,16 @@
 
 package com.facebook.imagepipeline.producers;
 
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -21,6 +26,7 @@ import android.net.Uri;
 import android.provider.ContactsContract;
 import com.facebook.common.time.MonotonicClock;
 import com.facebook.common.util.UriUtil;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher.HttpUrlConnectionNetworkFetchState;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,10 +36,13 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -241,6 +250,115 @@ public class HttpUrlConnectionNetworkFetcherTest {
     verify(mockConnection).setRequestProperty(eq("User-Agent"), eq("user-agent-blabla"));
   }
 
+  @Test
+  public void testResumedDownload() throws Exception {
+    mockResume(100);
+    InputStream mockInputStream = mock(InputStream.class);
+    HttpURLConnection mockResponse = mock(HttpURLConnection.class);
+    when(mockResponse.getResponseCode()).thenReturn(HttpURLConnection.HTTP_PARTIAL);
+    when(mockResponse.getHeaderField("Content-Range")).thenReturn("bytes 100-199/200");
+    when(mockResponse.getInputStream()).thenReturn(mockInputStream);
+    queueConnection(mockResponse);
+
+    runFetch();
+
+    verify(mockResponse).setRequestProperty("Range", "bytes=100-");
+    verify(mockResponse).setRequestProperty("If-Range", "\"v0\"");
+    verify(mMockFetchState).setResumed(true);
+    verify(mMockCallback).onResponse(mockInputStream, -1);
+    verifyNoMoreInteractions(mMockCallback);
+  }
+
+  @Test
+  public void testResumedDownloadFromWrongOffsetFails() throws Exception {
+    mockResume(100);
+    HttpURLConnection mockResponse = mock(HttpURLConnection.class);
+    when(mockResponse.getResponseCode()).thenReturn(HttpURLConnection.HTTP_PARTIAL);
+    when(mockResponse.getHeaderField("Content-Range")).thenReturn("bytes 0-199/200");
+    queueConnection(mockResponse);
+
+    runFetch();
+
+    verify(mMockCallback).onFailure(any(IOException.class));
+    verify(mockResponse, never()).getInputStream();
+    verifyNoMoreInteractions(mMockCallback);
+  }
+
+  @Test
+  public void testRangeNotSatisfiableRestartsDownload() throws Exception {
+    mockResume(100);
+    HttpURLConnection mockRangeNotSatisfiable = mock(HttpURLConnection.class);
+    when(mockRangeNotSatisfiable.getResponseCode())
+        .thenReturn(HttpUrlConnectionNetworkFetcher.HTTP_RANGE_NOT_SATISFIABLE);
+    queueConnection(mockRangeNotSatisfiable);
+    InputStream mockInputStream = mock(InputStream.class);
+    HttpURLConnection mockResponse = mockSuccessWithStream(mockInputStream);
+
+    runFetch();
+
+    verify(mockRangeNotSatisfiable).disconnect();
+    verify(mockResponse, never()).setRequestProperty(eq("Range"), anyString());
+    verify(mMockFetchState).setResumed(false);
+    verify(mMockCallback).onResponse(mockInputStream, -1);
+    verifyNoMoreInteractions(mMockCallback);
+  }
+
+  @Test
+  public void testCancellationDisconnectsDownloadInProgress() throws Exception {
+    final CountDownLatch disconnected = new CountDownLatch(1);
+    HttpURLConnection mockConnection =
+        mockSuccessWithStream(
+            new InputStream() {
+              @Override
+              public int read() throws IOException {
+                try {
+                  disconnected.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                  // fails below
+                }
+                throw new IOException("Disconnected");
+              }
+            });
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) {
+                disconnected.countDown();
+                return null;
+              }
+            })
+        .when(mockConnection)
+        .disconnect();
+    final CountDownLatch responseStarted = new CountDownLatch(1);
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                responseStarted.countDown();
+                ((InputStream) invocation.getArguments()[0]).read();
+                return null;
+              }
+            })
+        .when(mMockCallback)
+        .onResponse(any(InputStream.class), anyInt());
+    ArgumentCaptor<ProducerContextCallbacks> callbacks =
+        ArgumentCaptor.forClass(ProducerContextCallbacks.class);
+
+    mFetcher.fetch(mMockFetchState, mMockCallback);
+    verify(mMockProducerContext).addCallbacks(callbacks.capture());
+    assertTrue(responseStarted.await(5, TimeUnit.SECONDS));
+    callbacks.getValue().onCancellationRequested();
+
+    verify(mMockCallback, timeout(5000)).onCancellation();
+    verify(mMockCallback, never()).onFailure(any(Throwable.class));
+  }
+
+  private void mockResume(int resumeOffset) {
+    when(mMockFetchState.getResumeOffset()).thenReturn(resumeOffset);
+    when(mMockFetchState.getResumeValidators())
+        .thenReturn(new CacheValidators("\"v0\"", "Wed, 21 Oct 2015 07:28:00 GMT", 0));
+  }
+
   private HttpURLConnection mockSuccess() throws IOException {
     return mockSuccessWithStream(mock(InputStream.class));
   }
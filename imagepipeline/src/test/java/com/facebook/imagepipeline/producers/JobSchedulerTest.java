@@ -124,6 +124,12 @@ public class JobSchedulerTest {
     mJobScheduler = new JobScheduler(mTestExecutorService, mTestJobRunnable, INTERVAL);
   }
 
+  private void runJob() {
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.IS_LAST);
+    mJobScheduler.scheduleJob();
+    mFakeClockForWorker.incrementBy(0);
+  }
+
   private EncodedImage fakeEncodedImage() {
     PooledByteBuffer buf = mock(PooledByteBuffer.class);
     CloseableReference<PooledByteBuffer> ref = CloseableReference.of(buf);
@@ -395,6 +401,85 @@ public class JobSchedulerTest {
     assertEquals(0, mTestJobRunnable.jobs.size());
   }
 
+  @Test
+  public void testAdaptiveInterval() {
+    mJobScheduler =
+        new JobScheduler(
+            mTestExecutorService,
+            new JobScheduler.JobRunnable() {
+              @Override
+              public void run(EncodedImage encodedImage, @Consumer.Status int status) {
+                mFakeClockForTime.incrementBy(3 * INTERVAL);
+              }
+            },
+            INTERVAL,
+            null,
+            true);
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    mJobScheduler.scheduleJob();
+    mFakeClockForWorker.incrementBy(0);
+    assertEquals(3 * INTERVAL, mJobScheduler.getAverageJobDurationMs());
+
+    // the next intermediate result waits until twice the job duration since the last job started
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    mJobScheduler.scheduleJob();
+    assertEquals(1, mTestScheduledExecutorService.getPendingCount());
+    assertEquals(
+        3 * INTERVAL,
+        mTestScheduledExecutorService.getScheduledQueue().getNextPendingCommandDelay());
+    assertEquals(0, mTestExecutorService.getPendingCount());
+  }
+
+  @Test
+  public void testAverageJobDurationFollowsSmallChanges() {
+    final int[] jobDurationMs = {8};
+    mJobScheduler =
+        new JobScheduler(
+            mTestExecutorService,
+            new JobScheduler.JobRunnable() {
+              @Override
+              public void run(EncodedImage encodedImage, @Consumer.Status int status) {
+                mFakeClockForTime.incrementBy(jobDurationMs[0]);
+              }
+            },
+            INTERVAL);
+    runJob();
+    assertEquals(8, mJobScheduler.getAverageJobDurationMs());
+
+    // each change is smaller than the smoothing factor, truncating it would keep the average at 8
+    jobDurationMs[0] = 11;
+    for (int i = 0; i < 4; i++) {
+      mFakeClockForTime.incrementBy(INTERVAL);
+      runJob();
+    }
+    assertEquals(10, mJobScheduler.getAverageJobDurationMs());
+  }
+
+  @Test
+  public void testAdaptiveInterval_Last() {
+    mJobScheduler =
+        new JobScheduler(
+            mTestExecutorService,
+            new JobScheduler.JobRunnable() {
+              @Override
+              public void run(EncodedImage encodedImage, @Consumer.Status int status) {
+                mFakeClockForTime.incrementBy(3 * INTERVAL);
+              }
+            },
+            INTERVAL,
+            null,
+            true);
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    mJobScheduler.scheduleJob();
+    mFakeClockForWorker.incrementBy(0);
+
+    // the last result is only subject to the minimum interval, which has already passed
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.IS_LAST);
+    mJobScheduler.scheduleJob();
+    assertEquals(0, mTestScheduledExecutorService.getPendingCount());
+    assertEquals(1, mTestExecutorService.getPendingCount());
+  }
+
   private static void assertJobsEqual(
       TestJobRunnable.Job job, EncodedImage encodedImage, @Consumer.Status int status) {
     assertReferencesEqual(encodedImage, job.encodedImage);
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class LatencyTrackerTest {
+
+  @Test
+  public void testPercentile() {
+    LatencyTracker tracker = new LatencyTracker(100);
+    for (int i = 100; i > 0; i--) {
+      tracker.record(i);
+    }
+    assertEquals(95, tracker.getPercentile(0.95, 1));
+    assertEquals(50, tracker.getPercentile(0.5, 1));
+    assertEquals(100, tracker.getPercentile(1, 1));
+  }
+
+  @Test
+  public void testNotEnoughSamples() {
+    LatencyTracker tracker = new LatencyTracker(100);
+    assertEquals(-1, tracker.getPercentile(0.95, 0));
+    tracker.record(10);
+    assertEquals(-1, tracker.getPercentile(0.95, 2));
+    tracker.record(20);
+    assertEquals(20, tracker.getPercentile(0.95, 2));
+  }
+
+  @Test
+  public void testOnlyRecentSamplesAreKept() {
+    LatencyTracker tracker = new LatencyTracker(2);
+    tracker.record(1000);
+    tracker.record(10);
+    tracker.record(20);
+    assertEquals(20, tracker.getPercentile(0.95, 2));
+  }
+}
@@ -19,6 +19,8 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import android.util.Pair;
+import com.facebook.cache.common.CacheKey;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.cache.BitmapMemoryCacheKey;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
@@ -26,6 +28,8 @@ import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.*;
 import org.junit.runner.*;
 import org.mockito.*;
@@ -636,4 +640,122 @@ public class MultiplexProducerTest {
     mProducerContext1.setPriority(Priority.MEDIUM);
     assertEquals(Priority.HIGH, mMultiplexedContext1.getPriority());
   }
+
+  @Test
+  public void testDuplicateConsumerIsCountedOnce() {
+    mProducerContext2.setIsPrefetch(true);
+    mMultiplexProducer.produceResults(mConsumer1, mProducerContext1);
+    mMultiplexProducer.produceResults(mConsumer1, mProducerContext1);
+    mMultiplexProducer.produceResults(mConsumer2, mProducerContext2);
+    assertFalse(mMultiplexedContext1.isPrefetch());
+    mProducerContext1.cancel();
+    assertTrue(mMultiplexedContext1.isPrefetch());
+  }
+
+  @Test
+  public void testAggregatedPriorityFollowsConsumersLeaving() {
+    final Priority[] priorities = {
+      Priority.LOW, Priority.HIGH, Priority.MEDIUM, Priority.HIGH, Priority.LOW, Priority.MEDIUM
+    };
+    final SettableProducerContext[] contexts = new SettableProducerContext[priorities.length];
+    for (int i = 0; i < priorities.length; i++) {
+      contexts[i] = newProducerContext("id" + i, mImageRequest1);
+      contexts[i].setPriority(priorities[i]);
+      mMultiplexProducer.produceResults(mConsumer1, contexts[i]);
+    }
+    for (int i = 0; i < priorities.length - 1; i++) {
+      contexts[i].cancel();
+      Priority expected = Priority.LOW;
+      for (int j = i + 1; j < priorities.length; j++) {
+        expected = Priority.getHigherPriority(expected, priorities[j]);
+      }
+      assertEquals(expected, mMultiplexedContext1.getPriority());
+    }
+  }
+
+  @Test
+  public void testDeadlineIsLatestDeadlineOfConsumers() {
+    mProducerContext1.setDeadlineMs(1000);
+    mProducerContext2.setDeadlineMs(2000);
+    mMultiplexProducer.produceResults(mConsumer1, mProducerContext1);
+    assertEquals(1000, mMultiplexedContext1.getDeadlineMs());
+    mMultiplexProducer.produceResults(mConsumer2, mProducerContext2);
+    assertEquals(2000, mMultiplexedContext1.getDeadlineMs());
+  }
+
+  @Test
+  public void testConsumerWithoutDeadlineRemovesDeadline() {
+    mProducerContext1.setDeadlineMs(1000);
+    mMultiplexProducer.produceResults(mConsumer1, mProducerContext1);
+    mMultiplexProducer.produceResults(mConsumer2, mProducerContext2);
+    assertEquals(ProducerContext.NO_DEADLINE, mMultiplexedContext1.getDeadlineMs());
+    mProducerContext2.cancel();
+    assertEquals(1000, mMultiplexedContext1.getDeadlineMs());
+  }
+
+  @Test
+  public void testConsumerLeavingDoesNotShortenDeadline() {
+    mProducerContext1.setDeadlineMs(1000);
+    mProducerContext2.setDeadlineMs(2000);
+    mMultiplexProducer.produceResults(mConsumer1, mProducerContext1);
+    mMultiplexProducer.produceResults(mConsumer2, mProducerContext2);
+    mProducerContext2.cancel();
+    assertEquals(2000, mMultiplexedContext1.getDeadlineMs());
+  }
+
+  @Test
+  public void testRemoveMultiplexerOnlyRemovesSameInstance() {
+    mMultiplexProducer.produceResults(mConsumer1, mProducerContext1);
+    Pair<CacheKey, ImageRequest.RequestLevel> key =
+        mMultiplexProducer.mMultiplexers.keySet().iterator().next();
+    Object multiplexer = mMultiplexProducer.mMultiplexers.get(key);
+    mMultiplexProducer.removeMultiplexer(key, mMultiplexProducer.new Multiplexer(key));
+    assertEquals(multiplexer, mMultiplexProducer.getExistingMultiplexer(key));
+    mMultiplexProducer.removeMultiplexer(key, mMultiplexProducer.getExistingMultiplexer(key));
+    assertTrue(mMultiplexProducer.mMultiplexers.isEmpty());
+  }
+
+  @Test
+  public void testConcurrentIdenticalRequestsStartOneInputRequest() throws Exception {
+    final int threadCount = 8;
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      final SettableProducerContext producerContext =
+          newProducerContext("concurrent" + i, mImageRequest1);
+      new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    startLatch.await();
+                    mMultiplexProducer.produceResults(mConsumer1, producerContext);
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                  } finally {
+                    doneLatch.countDown();
+                  }
+                }
+              })
+          .start();
+    }
+    startLatch.countDown();
+    assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+
+    verify(mInputProducer).produceResults(any(Consumer.class), any(ProducerContext.class));
+    assertEquals(1, mMultiplexProducer.mMultiplexers.size());
+  }
+
+  private SettableProducerContext newProducerContext(String id, ImageRequest imageRequest) {
+    return new SettableProducerContext(
+        imageRequest,
+        id,
+        mProducerListener,
+        mCallerContext,
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false,
+        true,
+        Priority.MEDIUM,
+        mConfig);
+  }
 }
@@ -10,15 +10,22 @@ package com.facebook.imagepipeline.producers;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import bolts.TaskCompletionSource;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.common.internal.Throwables;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.memory.PooledByteBufferOutputStream;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
@@ -48,6 +55,7 @@ public class NetworkFetchProducerTest {
   @Mock public NetworkFetcher mNetworkFetcher;
   @Mock public Map<String, String> mExtrasMap;
   @Mock public ImagePipelineConfig mConfig;
+  @Mock public BufferedDiskCache mBufferedDiskCache;
 
   private byte[] mCommonByteArray;
   private final String mRequestId = "mRequestId";
@@ -235,6 +243,256 @@ public class NetworkFetchProducerTest {
     }
   }
 
+  @Test
+  public void testDirectReadableResponse() throws Exception {
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream response =
+        mock(InputStream.class, withSettings().extraInterfaces(DirectReadable.class));
+    when(((DirectReadable) response).readTo(mPooledByteBufferOutputStream, 10))
+        .thenReturn(10, 5, -1);
+
+    callback.onResponse(response, 15);
+
+    verify((DirectReadable) response, times(3)).readTo(mPooledByteBufferOutputStream, 10);
+    verify(response, never()).read(any(byte[].class));
+    verify(mPooledByteBufferOutputStream, never()).write(any(byte[].class), anyInt(), anyInt());
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+  }
+
+  @Test
+  public void testPushedResponse() throws Exception {
+    NetworkFetcher.PushCallback callback = (NetworkFetcher.PushCallback) performFetch();
+    final byte[] buffer = new byte[8];
+
+    callback.onResponseStart(15);
+    callback.onResponseBytes(buffer, 0, 8);
+    callback.onResponseBytes(buffer, 1, 7);
+    verify(mConsumer, never()).onNewResult(any(), eq(Consumer.IS_LAST));
+    callback.onResponseEnd();
+
+    verify(mPooledByteBufferFactory).newOutputStream(15);
+    verify(mPooledByteBufferOutputStream).write(buffer, 0, 8);
+    verify(mPooledByteBufferOutputStream).write(buffer, 1, 7);
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+    verify(mPooledByteBufferOutputStream).close();
+    verify(mByteArrayPool).release(mCommonByteArray);
+  }
+
+  @Test
+  public void testPushedResponseFailure() throws Exception {
+    final CacheKey partialBodyKey = setUpResumableDownload();
+    final BufferedDiskCache.IncrementalWrite incrementalWrite =
+        mock(BufferedDiskCache.IncrementalWrite.class);
+    final DiskCacheWriteThrough writeThrough = setUpWriteThrough(incrementalWrite);
+    NetworkFetcher.PushCallback callback = (NetworkFetcher.PushCallback) performFetch();
+    final CacheValidators validators = new CacheValidators("\"v1\"", null, 0);
+    mFetchState.setResponseValidators(validators);
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+
+    callback.onResponseStart(100);
+    callback.onResponseBytes(new byte[10], 0, 10);
+    callback.onFailure(new IOException());
+
+    assertNull(writeThrough.getWrite());
+    verify(incrementalWrite).discard();
+    verify(mBufferedDiskCache).put(eq(partialBodyKey), any(EncodedImage.class));
+    verify(mBufferedDiskCache).putValidators(partialBodyKey, validators);
+    verify(mPooledByteBufferOutputStream).close();
+    verify(mConsumer, never()).onNewResult(any(), anyInt());
+    verify(mConsumer).onFailure(any(IOException.class));
+  }
+
+  @Test
+  public void testWriteThroughTeesResponse() throws Exception {
+    final BufferedDiskCache.IncrementalWrite incrementalWrite =
+        mock(BufferedDiskCache.IncrementalWrite.class);
+    final DiskCacheWriteThrough writeThrough = setUpWriteThrough(incrementalWrite);
+    NetworkFetcher.Callback callback = performFetch();
+
+    callback.onResponse(new ByteArrayInputStream(new byte[25]), 25);
+
+    verify(incrementalWrite, times(3)).append(new byte[10]);
+    verify(incrementalWrite).append(new byte[5]);
+    verify(mPooledByteBufferOutputStream, times(3)).write(mCommonByteArray, 0, 10);
+    verify(mPooledByteBufferOutputStream).write(mCommonByteArray, 0, 5);
+    // the response is not an image, so the entry is discarded
+    assertNull(writeThrough.getWrite());
+    verify(incrementalWrite).discard();
+    verify(incrementalWrite, never()).commit();
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+  }
+
+  @Test
+  public void testWriteThroughDiscardedOnNetworkFailure() throws Exception {
+    final BufferedDiskCache.IncrementalWrite incrementalWrite =
+        mock(BufferedDiskCache.IncrementalWrite.class);
+    final DiskCacheWriteThrough writeThrough = setUpWriteThrough(incrementalWrite);
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenReturn(10).thenThrow(new IOException());
+
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      assertNull(writeThrough.getWrite());
+      verify(incrementalWrite).discard();
+      verify(incrementalWrite, never()).commit();
+      verify(mConsumer, never()).onNewResult(any(), anyInt());
+      verify(mPooledByteBufferOutputStream).close();
+    }
+  }
+
+  @Test
+  public void testPartialBodySavedOnNetworkFailure() throws Exception {
+    final CacheKey partialBodyKey = setUpResumableDownload();
+    NetworkFetcher.Callback callback = performFetch();
+    final CacheValidators validators = new CacheValidators("\"v1\"", null, 0);
+    mFetchState.setResponseValidators(validators);
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenThrow(new IOException());
+
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      verify(mBufferedDiskCache).put(eq(partialBodyKey), any(EncodedImage.class));
+      verify(mBufferedDiskCache).putValidators(partialBodyKey, validators);
+      verify(mPooledByteBuffer).close();
+    }
+  }
+
+  @Test
+  public void testPartialBodyNotSavedWithoutValidators() throws Exception {
+    setUpResumableDownload();
+    NetworkFetcher.Callback callback = performFetch();
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenThrow(new IOException());
+
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      verify(mBufferedDiskCache, never()).put(any(CacheKey.class), any(EncodedImage.class));
+    }
+  }
+
+  @Test
+  public void testPartialBodyHeldOnPreemption() throws Exception {
+    setUpResumableDownload();
+    NetworkFetcher.Callback callback = performFetch();
+    final CacheValidators validators = new CacheValidators("\"v1\"", null, 0);
+    mFetchState.setResponseValidators(validators);
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenThrow(new PreemptedException());
+
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (PreemptedException e) {
+      // the fetcher resumes from the held bytes, they are not saved to the disk cache
+      verify(mBufferedDiskCache, never()).put(any(CacheKey.class), any(EncodedImage.class));
+      assertEquals(10, mFetchState.getResumeOffset());
+      assertSame(validators, mFetchState.getResumeValidators());
+      final EncodedImage resumeBody = mFetchState.takeResumeBody();
+      assertNotNull(resumeBody);
+      resumeBody.close();
+      verify(mPooledByteBuffer).close();
+    }
+  }
+
+  @Test
+  public void testResumeRearmedOnPreemptionWithoutNewerBytes() throws Exception {
+    final CacheKey partialBodyKey = setUpResumableDownload();
+    NetworkFetcher.Callback callback = performFetch();
+    final EncodedImage resumeBody = mockResumeBody(5);
+    final EncodedImage resumeBodyClone = mock(EncodedImage.class);
+    when(resumeBody.cloneOrNull()).thenReturn(resumeBodyClone);
+    final CacheValidators resumeValidators = mFetchState.getResumeValidators();
+    mFetchState.setResumed(true);
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenThrow(new PreemptedException());
+
+    try {
+      callback.onResponse(inputStream, 10);
+      fail();
+    } catch (PreemptedException e) {
+      // the response had no validators, so the next attempt resumes from the same bytes
+      assertEquals(5, mFetchState.getResumeOffset());
+      assertSame(resumeValidators, mFetchState.getResumeValidators());
+      assertSame(resumeBodyClone, mFetchState.takeResumeBody());
+      verify(resumeBody).close();
+      verify(mBufferedDiskCache, never()).remove(partialBodyKey);
+    }
+  }
+
+  @Test
+  public void testResumedResponse() throws Exception {
+    final CacheKey partialBodyKey = setUpResumableDownload();
+    NetworkFetcher.Callback callback = performFetch();
+    final EncodedImage resumeBody = mockResumeBody(5);
+    mFetchState.setResumed(true);
+
+    callback.onResponse(new ByteArrayInputStream(new byte[10]), 10);
+
+    InOrder inOrder = inOrder(mPooledByteBufferFactory, mPooledByteBufferOutputStream);
+    inOrder.verify(mPooledByteBufferFactory).newOutputStream(15);
+    inOrder.verify(mPooledByteBufferOutputStream).write(mCommonByteArray, 0, 5);
+    inOrder.verify(mPooledByteBufferOutputStream).write(mCommonByteArray, 0, 10);
+    verify(mBufferedDiskCache).remove(partialBodyKey);
+    verify(resumeBody).close();
+    assertEquals(0, mFetchState.getResumeOffset());
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+  }
+
+  @Test
+  public void testResponseNotResumed() throws Exception {
+    final CacheKey partialBodyKey = setUpResumableDownload();
+    NetworkFetcher.Callback callback = performFetch();
+    final EncodedImage resumeBody = mockResumeBody(5);
+
+    callback.onResponse(new ByteArrayInputStream(new byte[10]), 10);
+
+    verify(mPooledByteBufferFactory).newOutputStream(10);
+    verify(mPooledByteBufferOutputStream).write(mCommonByteArray, 0, 10);
+    verify(mPooledByteBufferOutputStream, never()).write(mCommonByteArray, 0, 5);
+    verify(mBufferedDiskCache).remove(partialBodyKey);
+    verify(resumeBody).close();
+    verify(mConsumer).onNewResult(any(), eq(Consumer.IS_LAST));
+  }
+
+  /** Sets up a disk cache entry keeping the bytes of interrupted fetches, that holds none. */
+  private CacheKey setUpResumableDownload() {
+    final ResumableDownload resumableDownload =
+        new ResumableDownload(mBufferedDiskCache, new SimpleCacheKey("http://dummy.uri"));
+    mProducerContext.setExtra(ProducerContext.ExtraKeys.RESUMABLE_DOWNLOAD, resumableDownload);
+    return new SimpleCacheKey("http://dummy.uri#partial");
+  }
+
+  /** Sets the fetch to resume from the given number of held bytes. */
+  private EncodedImage mockResumeBody(int size) {
+    final EncodedImage resumeBody = mock(EncodedImage.class);
+    when(resumeBody.getSize()).thenReturn(size);
+    when(resumeBody.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[size]));
+    mFetchState.setResume(size, new CacheValidators("\"v1\"", null, 0));
+    mFetchState.setResumeBody(resumeBody);
+    return resumeBody;
+  }
+
+  /** Sets up a disk cache entry whose parts are scheduled but not written. */
+  private DiskCacheWriteThrough setUpWriteThrough(BufferedDiskCache.IncrementalWrite write) {
+    final CacheKey cacheKey = new SimpleCacheKey("http://dummy.uri");
+    when(write.append(any(byte[].class))).thenReturn(new TaskCompletionSource<Void>().getTask());
+    when(mBufferedDiskCache.startIncrementalWrite(cacheKey)).thenReturn(write);
+    final DiskCacheWriteThrough writeThrough =
+        new DiskCacheWriteThrough(mBufferedDiskCache, cacheKey);
+    mProducerContext.setExtra(ProducerContext.ExtraKeys.DISK_CACHE_WRITE_THROUGH, writeThrough);
+    return writeThrough;
+  }
+
   private void verifyPooledByteBufferUsed(int times) {
     verify(mPooledByteBufferOutputStream, times(times)).toByteBuffer();
     verify(mPooledByteBuffer, times(times)).close();
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.common.time.RealtimeSinceBootClock;
+import com.facebook.imagepipeline.cache.CacheValidators;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher.HttpUrlConnectionNetworkFetchState;
+import com.facebook.imagepipeline.producers.NioNetworkFetcher.NioFetchState;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.testing.TestHttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests {@link NioNetworkFetcher} against a local HTTP server. */
+@RunWith(RobolectricTestRunner.class)
+public class NioNetworkFetcherTest {
+
+  private static final long TIMEOUT_MS = 5000;
+
+  private TestHttpServer mServer;
+  private HttpUrlConnectionNetworkFetcher mFallbackFetcher;
+  private NioNetworkFetcher mFetcher;
+  private Consumer<EncodedImage> mConsumer;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new TestHttpServer();
+    mFallbackFetcher = mock(HttpUrlConnectionNetworkFetcher.class);
+    mFetcher =
+        new NioNetworkFetcher(
+            "user-agent",
+            HttpUrlConnectionNetworkFetcher.HTTP_DEFAULT_TIMEOUT,
+            RealtimeSinceBootClock.get(),
+            mFallbackFetcher);
+    mConsumer = mock(Consumer.class);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    mFetcher.shutdown();
+    mServer.close();
+  }
+
+  @Test
+  public void testKeepAliveConnectionIsReused() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      mServer.enqueue(new TestHttpServer.Response(HttpURLConnection.HTTP_OK).setBody(newBody(10)));
+      RecordingCallback callback = fetch(newFetchState(mServer.getUrl("/image" + i)));
+      assertArrayEquals(newBody(10), callback.mBody);
+      assertEquals(10, callback.mResponseLength);
+      TestHttpServer.Request request = mServer.takeRequest();
+      assertEquals("GET /image" + i + " HTTP/1.1", request.getRequestLine());
+      assertEquals("user-agent", request.getHeader("User-Agent"));
+      assertEquals(0, request.getConnectionIndex());
+    }
+    assertEquals(1, mServer.getConnectionCount());
+  }
+
+  @Test
+  public void testClosedConnectionIsNotReused() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .setBody(newBody(10))
+            .closeConnection());
+    mServer.enqueue(new TestHttpServer.Response(HttpURLConnection.HTTP_OK).setBody(newBody(20)));
+
+    assertArrayEquals(newBody(10), fetch(newFetchState(mServer.getUrl("/a"))).mBody);
+    assertArrayEquals(newBody(20), fetch(newFetchState(mServer.getUrl("/b"))).mBody);
+    assertEquals(2, mServer.getConnectionCount());
+  }
+
+  @Test
+  public void testChunkedBody() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .setBody(newBody(100 * 1024))
+            .setChunked(1000));
+
+    RecordingCallback callback = fetch(newFetchState(mServer.getUrl("/image")));
+
+    assertNull(callback.mFailure);
+    assertArrayEquals(newBody(100 * 1024), callback.mBody);
+    assertEquals(-1, callback.mResponseLength);
+  }
+
+  @Test
+  public void testBodyLargerThanBuffer() throws Exception {
+    final int length = 4 * NioNetworkFetcher.MAX_BUFFERED_BYTES;
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK).setBody(newBody(length)));
+
+    RecordingCallback callback = fetch(newFetchState(mServer.getUrl("/image")));
+
+    assertNull(callback.mFailure);
+    assertArrayEquals(newBody(length), callback.mBody);
+  }
+
+  @Test
+  public void testBodyIsPushedToPushCallback() throws Exception {
+    final int length = 4 * NioNetworkFetcher.MAX_BUFFERED_BYTES;
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK).setBody(newBody(length)));
+    RecordingPushCallback callback = new RecordingPushCallback();
+
+    mFetcher.fetch(newFetchState(mServer.getUrl("/image")), callback);
+
+    callback.await();
+    assertNull(callback.mFailure);
+    assertArrayEquals(newBody(length), callback.mBody);
+    assertEquals(length, callback.mResponseLength);
+    assertFalse(callback.mIsStreamed);
+  }
+
+  @Test
+  public void testPushCallbackFailureFailsDownload() throws Exception {
+    mServer.enqueue(new TestHttpServer.Response(HttpURLConnection.HTTP_OK).setBody(newBody(10)));
+    RecordingPushCallback callback = new RecordingPushCallback();
+    callback.mBytesFailure = new IOException("Disk full");
+
+    mFetcher.fetch(newFetchState(mServer.getUrl("/image")), callback);
+
+    callback.await();
+    assertNull(callback.mBody);
+    assertSame(callback.mBytesFailure, callback.mFailure);
+  }
+
+  @Test
+  public void testCancellationWhilePushingBody() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .setBody(newBody(100))
+            .stallAfter(10));
+    NioFetchState fetchState = newFetchState(mServer.getUrl("/image"));
+    RecordingPushCallback callback = new RecordingPushCallback();
+    mFetcher.fetch(fetchState, callback);
+    mServer.takeRequest();
+    assertTrue(callback.mResponseStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    ((SettableProducerContext) fetchState.getContext()).cancel();
+
+    callback.await();
+    assertTrue(callback.mIsCancelled);
+    assertNull(callback.mFailure);
+    assertNull(callback.mBody);
+  }
+
+  @Test
+  public void testNotModified() throws Exception {
+    NioFetchState fetchState = newFetchState(mServer.getUrl("/image"));
+    fetchState.setCachedValidators(new CacheValidators("\"v0\"", null, 0));
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_NOT_MODIFIED)
+            .addHeader("ETag", "\"v0\""));
+
+    RecordingCallback callback = fetch(fetchState);
+
+    assertEquals("\"v0\"", mServer.takeRequest().getHeader("If-None-Match"));
+    assertNull(callback.mFailure);
+    assertTrue(fetchState.isNotModified());
+    assertEquals(0, callback.mResponseLength);
+  }
+
+  @Test
+  public void testRedirect() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_MOVED_TEMP)
+            .addHeader("Location", "/redirected"));
+    mServer.enqueue(new TestHttpServer.Response(HttpURLConnection.HTTP_OK).setBody(newBody(5)));
+
+    RecordingCallback callback = fetch(newFetchState(mServer.getUrl("/image")));
+
+    assertArrayEquals(newBody(5), callback.mBody);
+    assertEquals("GET /image HTTP/1.1", mServer.takeRequest().getRequestLine());
+    assertEquals("GET /redirected HTTP/1.1", mServer.takeRequest().getRequestLine());
+  }
+
+  @Test
+  public void testServerErrorFails() throws Exception {
+    mServer.enqueue(new TestHttpServer.Response(HttpURLConnection.HTTP_NOT_FOUND));
+
+    RecordingCallback callback = fetch(newFetchState(mServer.getUrl("/image")));
+
+    assertTrue(callback.mFailure instanceof IOException);
+    assertNull(callback.mBody);
+  }
+
+  @Test
+  public void testCancellationWhileReceivingBody() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .setBody(newBody(100))
+            .stallAfter(10));
+    NioFetchState fetchState = newFetchState(mServer.getUrl("/image"));
+    RecordingCallback callback = new RecordingCallback();
+    mFetcher.fetch(fetchState, callback);
+    mServer.takeRequest();
+    assertTrue(callback.mResponseStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    ((SettableProducerContext) fetchState.getContext()).cancel();
+
+    callback.await();
+    assertTrue(callback.mIsCancelled);
+    assertNull(callback.mFailure);
+  }
+
+  @Test
+  public void testShutdownFailsDownloadsInFlight() throws Exception {
+    mServer.enqueue(
+        new TestHttpServer.Response(HttpURLConnection.HTTP_OK)
+            .setBody(newBody(100))
+            .stallAfter(10));
+    RecordingCallback inFlight = new RecordingCallback();
+    mFetcher.fetch(newFetchState(mServer.getUrl("/image")), inFlight);
+    mServer.takeRequest();
+
+    mFetcher.shutdown();
+
+    inFlight.await();
+    assertTrue(inFlight.mFailure instanceof IOException);
+    RecordingCallback afterShutdown = fetch(newFetchState(mServer.getUrl("/image")));
+    assertTrue(afterShutdown.mFailure instanceof IOException);
+  }
+
+  @Test
+  public void testHttpsFallsBack() throws Exception {
+    NioFetchState fetchState = newFetchState("https://example.com/image.jpg");
+    CacheValidators cachedValidators = new CacheValidators("\"v0\"", null, 0);
+    fetchState.setCachedValidators(cachedValidators);
+    HttpUrlConnectionNetworkFetchState fallbackState =
+        new HttpUrlConnectionNetworkFetchState(mConsumer, fetchState.getContext());
+    when(mFallbackFetcher.createFetchState(mConsumer, fetchState.getContext()))
+        .thenReturn(fallbackState);
+
+    mFetcher.fetch(fetchState, new RecordingCallback());
+
+    verify(mFallbackFetcher).fetch(eq(fallbackState), any(NetworkFetcher.Callback.class));
+    assertSame(cachedValidators, fallbackState.getCachedValidators());
+    assertEquals(0, mServer.getConnectionCount());
+  }
+
+  private NioFetchState newFetchState(String url) {
+    return mFetcher.createFetchState(
+        mConsumer,
+        new SettableProducerContext(
+            ImageRequest.fromUri(url), "id", null, null, null, false, true, Priority.HIGH, null));
+  }
+
+  private RecordingCallback fetch(NioFetchState fetchState) throws InterruptedException {
+    RecordingCallback callback = new RecordingCallback();
+    mFetcher.fetch(fetchState, callback);
+    callback.await();
+    return callback;
+  }
+
+  private static byte[] newBody(int length) {
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) (i * 31);
+    }
+    return body;
+  }
+
+  /** Callbacks are run on the fetcher's worker threads. */
+  private static class RecordingCallback implements NetworkFetcher.Callback {
+
+    final CountDownLatch mResponseStarted = new CountDownLatch(1);
+    final CountDownLatch mDone = new CountDownLatch(1);
+    volatile byte[] mBody;
+    volatile int mResponseLength = -2;
+    volatile Throwable mFailure;
+    volatile boolean mIsCancelled;
+    volatile boolean mIsStreamed;
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) throws IOException {
+      mIsStreamed = true;
+      mResponseLength = responseLength;
+      mResponseStarted.countDown();
+      mBody = ByteStreams.toByteArray(response);
+      mDone.countDown();
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      mFailure = throwable;
+      mDone.countDown();
+    }
+
+    @Override
+    public void onCancellation() {
+      mIsCancelled = true;
+      mDone.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  /** Body callbacks are run on the fetcher's selector threads. */
+  private static class RecordingPushCallback extends RecordingCallback
+      implements NetworkFetcher.PushCallback {
+
+    private final ByteArrayOutputStream mPushedBytes = new ByteArrayOutputStream();
+    volatile IOException mBytesFailure;
+
+    @Override
+    public void onResponseStart(int responseLength) {
+      mResponseLength = responseLength;
+      mResponseStarted.countDown();
+    }
+
+    @Override
+    public void onResponseBytes(byte[] buffer, int offset, int count) throws IOException {
+      if (mBytesFailure != null) {
+        throw mBytesFailure;
+      }
+      mPushedBytes.write(buffer, offset, count);
+    }
+
+    @Override
+    public void onResponseEnd() {
+      mBody = mPushedBytes.toByteArray();
+      mDone.countDown();
+    }
+  }
+}
@@ -10,19 +10,26 @@ package com.facebook.imagepipeline.producers;
 import static com.facebook.imagepipeline.common.Priority.HIGH;
 import static com.facebook.imagepipeline.common.Priority.LOW;
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
+import android.os.SystemClock;
 import com.facebook.common.logging.FLog;
+import com.facebook.imagepipeline.cache.CacheValidators;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.producers.PriorityNetworkFetcher.PriorityFetchState;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.testing.FakeClock;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -32,6 +39,7 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricTestRunner;
 
 @RunWith(RobolectricTestRunner.class)
@@ -355,6 +363,119 @@ public class PriorityNetworkFetcherTest {
     assertThat(lowpri2Extras).containsEntry("lowpri_queue_size", "1");
   }
 
+  @Test
+  public void hiPriRequestPreemptsLowPriDownload() {
+    // Max hi-pri: 2, max low-pri: 1, with pre-emption
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(delegate, false, 2, 1, null, true, 0, new FakeClock());
+
+    PriorityFetchState<FetchState> lowpri = fetch(fetcher, "lowpri", callback, false);
+    ArgumentCaptor<NetworkFetcher.Callback> lowpriCallback =
+        ArgumentCaptor.forClass(NetworkFetcher.Callback.class);
+    verify(delegate).fetch(eq(lowpri.delegatedState), lowpriCallback.capture());
+    PriorityFetchState<FetchState> hipri1 = fetch(fetcher, "hipri1", callback, true);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(lowpri, hipri1);
+
+    // No slot is left, so the low-pri download makes room and goes back to the queue
+    PriorityFetchState<FetchState> hipri2 = fetch(fetcher, "hipri2", callback, true);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(hipri1, hipri2);
+    assertThat(toTestEntry(fetcher.getLowPriQueue()))
+        .containsExactlyElementsIn(toTestEntry(lowpri));
+    assertThat(fetcher.getExtraMap(lowpri, 0)).containsEntry("preemptions", "1");
+
+    // The aborted download fails, which is not passed on
+    lowpriCallback.getValue().onFailure(new Exception());
+    verify(callback, never()).onFailure(any(Throwable.class));
+    assertThat(toTestEntry(fetcher.getLowPriQueue()))
+        .containsExactlyElementsIn(toTestEntry(lowpri));
+
+    // The low-pri request is fetched again once the hi-pri ones are done
+    fetcher.onFetchCompletion(hipri1, 123);
+    fetcher.onFetchCompletion(hipri2, 123);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(lowpri);
+    verify(delegate, times(2)).fetch(eq(lowpri.delegatedState), any(NetworkFetcher.Callback.class));
+  }
+
+  @Test
+  public void preemptionCancelsDelegateCallAndResumes() throws Exception {
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(delegate, false, 2, 1, null, true, 0, new FakeClock());
+    PriorityFetchState<FetchState> lowpri = fetch(fetcher, "lowpri", callback, false);
+    ArgumentCaptor<NetworkFetcher.Callback> lowpriCallback =
+        ArgumentCaptor.forClass(NetworkFetcher.Callback.class);
+    verify(delegate).fetch(eq(lowpri.delegatedState), lowpriCallback.capture());
+    // as the delegate does to cancel its call
+    ProducerContextCallbacks delegateCallbacks = mock(ProducerContextCallbacks.class);
+    lowpri.attemptContext.addCallbacks(delegateCallbacks);
+    lowpriCallback.getValue().onResponse(mock(InputStream.class), 100);
+    ArgumentCaptor<InputStream> passedResponse = ArgumentCaptor.forClass(InputStream.class);
+    verify(callback).onResponse(passedResponse.capture(), eq(100));
+    PriorityFetchState<FetchState> hipri1 = fetch(fetcher, "hipri1", callback, true);
+
+    // Pre-emption cancels the delegate's call, but not the request
+    PriorityFetchState<FetchState> hipri2 = fetch(fetcher, "hipri2", callback, true);
+    verify(delegateCallbacks).onCancellationRequested();
+    assertThat(((BaseProducerContext) lowpri.getContext()).isCancelled()).isFalse();
+    try {
+      passedResponse.getValue().read(new byte[10], 0, 10);
+      fail();
+    } catch (PreemptedException e) {
+      // reading the aborted response fails
+    }
+
+    // The bytes held by the request are passed to the next attempt
+    CacheValidators validators = new CacheValidators("\"v1\"", null, 0);
+    lowpri.setResume(10, validators);
+    fetcher.onFetchCompletion(hipri1, 123);
+    fetcher.onFetchCompletion(hipri2, 123);
+    verify(delegate, times(2)).fetch(eq(lowpri.delegatedState), any(NetworkFetcher.Callback.class));
+    assertThat(lowpri.delegatedState.getResumeOffset()).isEqualTo(10);
+    assertThat(lowpri.delegatedState.getResumeValidators()).isEqualTo(validators);
+
+    // A later attempt is not cancelled along with the previous one
+    verify(delegateCallbacks, times(1)).onCancellationRequested();
+  }
+
+  @Test
+  public void preemptableResponseCanBeReadDirectly() throws Exception {
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(delegate, false, 2, 1, null, true, 0, new FakeClock());
+    PriorityFetchState<FetchState> hipri = fetch(fetcher, "hipri", callback, true);
+    ArgumentCaptor<NetworkFetcher.Callback> delegateCallback =
+        ArgumentCaptor.forClass(NetworkFetcher.Callback.class);
+    verify(delegate).fetch(eq(hipri.delegatedState), delegateCallback.capture());
+
+    InputStream response =
+        mock(InputStream.class, withSettings().extraInterfaces(DirectReadable.class));
+    delegateCallback.getValue().onResponse(response, 100);
+
+    ArgumentCaptor<InputStream> passedResponse = ArgumentCaptor.forClass(InputStream.class);
+    verify(callback).onResponse(passedResponse.capture(), eq(100));
+    assertThat(passedResponse.getValue()).isInstanceOf(DirectReadable.class);
+    OutputStream os = mock(OutputStream.class);
+    ((DirectReadable) passedResponse.getValue()).readTo(os, 10);
+    verify((DirectReadable) response).readTo(os, 10);
+  }
+
+  @Test
+  public void agedLowPriRequestIsDequeuedFirst() {
+    FakeClock clock = new FakeClock();
+    // Max hi-pri: 1, max low-pri: 0, low-pri requests age after 100ms
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(delegate, false, 1, 0, null, false, 100, clock);
+
+    PriorityFetchState<FetchState> hipri1 = fetch(fetcher, "hipri1", callback, true);
+    PriorityFetchState<FetchState> lowpri = fetch(fetcher, "lowpri", callback, false);
+    PriorityFetchState<FetchState> hipri2 = fetch(fetcher, "hipri2", callback, true);
+
+    clock.incrementBy(100);
+    fetcher.onFetchCompletion(hipri1, 123);
+
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(lowpri);
+    assertThat(toTestEntry(fetcher.getHiPriQueue())).containsExactlyElementsIn(toTestEntry(hipri2));
+    assertThat(fetcher.getLowPriQueue()).isEmpty();
+  }
+
   private PriorityFetchState<FetchState> fetch(
       PriorityNetworkFetcher<FetchState> fetcher,
       String uri,
@@ -373,7 +494,9 @@ public class PriorityNetworkFetcherTest {
             isHiPri ? HIGH : LOW,
             null);
     FetchState delegateFetchState = new FetchState(consumer, context);
-    when(delegate.createFetchState(eq(consumer), eq(context))).thenReturn(delegateFetchState);
+    // with pre-emption, the delegate gets a context of its own
+    when(delegate.createFetchState(eq(consumer), any(ProducerContext.class)))
+        .thenReturn(delegateFetchState);
     PriorityFetchState<FetchState> fetchState = fetcher.createFetchState(consumer, context);
     fetcher.fetch(fetchState, callback);
     return fetchState;
@@ -427,4 +550,40 @@ public class PriorityNetworkFetcherTest {
           fetchState.dequeuedTimestamp);
     }
   }
+
+  @Test
+  public void expiredRequestIsFailedInsteadOfFetched() {
+    // Max hi-pri: 1, max low-pri: 0
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(delegate, false, 1, 0, new FakeClock());
+    PriorityFetchState<FetchState> hipri = fetch(fetcher, "hipri", callback, true);
+
+    ProducerListener2 listener = mock(ProducerListener2.class);
+    Consumer<EncodedImage> consumer = mock(Consumer.class);
+    SettableProducerContext context =
+        new SettableProducerContext(
+            ImageRequest.fromUri("expired"),
+            "expired",
+            listener,
+            null,
+            null,
+            false,
+            false,
+            HIGH,
+            null);
+    when(delegate.createFetchState(eq(consumer), any(ProducerContext.class)))
+        .thenReturn(new FetchState(consumer, context));
+    PriorityFetchState<FetchState> expired = fetcher.createFetchState(consumer, context);
+    NetworkFetcher.Callback expiredCallback = mock(NetworkFetcher.Callback.class);
+    fetcher.fetch(expired, expiredCallback);
+    context.setDeadlineMs(SystemClock.uptimeMillis());
+
+    fetcher.onFetchCompletion(hipri, 123);
+    verify(delegate, never()).fetch(eq(expired.delegatedState), any(NetworkFetcher.Callback.class));
+    verify(expiredCallback).onFailure(any(DeadlineExceededException.class));
+    verify(listener)
+        .onProducerEvent(
+            context, NetworkFetchProducer.PRODUCER_NAME, DeadlineExceededException.PRODUCER_EVENT);
+    assertThat(fetcher.getCurrentlyFetching()).isEmpty();
+  }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.DefaultCacheKeyFactory;
+import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.core.CloseableReferenceFactory;
+import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.debug.NoOpCloseableReferenceLeakTracker;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ResizeAwareBitmapMultiplexProducerTest {
+
+  private static final Uri URI = Uri.parse("http://example.com/image.jpg");
+
+  @Mock public MemoryCache<CacheKey, CloseableImage> mMemoryCache;
+  @Mock public PlatformBitmapFactory mPlatformBitmapFactory;
+  @Mock public Producer<CloseableReference<CloseableImage>> mInputProducer;
+  @Mock public ProducerListener2 mProducerListener;
+  @Mock public ImagePipelineConfig mConfig;
+  @Mock public ResourceReleaser<Bitmap> mBitmapReleaser;
+
+  private final Object mCallerContext = new Object();
+  private CacheKeyFactory mCacheKeyFactory;
+  private ResizeAwareBitmapMultiplexProducer mProducer;
+  private List<Consumer<CloseableReference<CloseableImage>>> mSharedConsumers;
+  private List<ProducerContext> mSharedContexts;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    mCacheKeyFactory = DefaultCacheKeyFactory.getInstance();
+    mProducer =
+        new ResizeAwareBitmapMultiplexProducer(
+            mMemoryCache,
+            mCacheKeyFactory,
+            mPlatformBitmapFactory,
+            new CloseableReferenceFactory(new NoOpCloseableReferenceLeakTracker()),
+            mInputProducer);
+    mSharedConsumers = new ArrayList<>();
+    mSharedContexts = new ArrayList<>();
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) {
+                mSharedConsumers.add(
+                    (Consumer<CloseableReference<CloseableImage>>) invocation.getArguments()[0]);
+                mSharedContexts.add((ProducerContext) invocation.getArguments()[1]);
+                return null;
+              }
+            })
+        .when(mInputProducer)
+        .produceResults(any(Consumer.class), any(ProducerContext.class));
+    when(mPlatformBitmapFactory.createScaledBitmap(
+            any(Bitmap.class), anyInt(), anyInt(), anyBoolean()))
+        .thenAnswer(
+            new Answer<CloseableReference<Bitmap>>() {
+              @Override
+              public CloseableReference<Bitmap> answer(InvocationOnMock invocation) {
+                return CloseableReference.of(
+                    Bitmap.createBitmap(
+                        (Integer) invocation.getArguments()[1],
+                        (Integer) invocation.getArguments()[2],
+                        Bitmap.Config.ARGB_8888),
+                    mBitmapReleaser);
+              }
+            });
+  }
+
+  @Test
+  public void testSmallerRequestJoinsLargerDecode() {
+    mProducer.produceResults(mock(Consumer.class), newContext("large", 200));
+    mProducer.produceResults(mock(Consumer.class), newContext("small", 100));
+
+    assertEquals(1, mSharedContexts.size());
+    assertEquals(1, mProducer.mSharedDecodes.size());
+  }
+
+  @Test
+  public void testLargerRequestStartsOwnDecode() {
+    mProducer.produceResults(mock(Consumer.class), newContext("small", 100));
+    mProducer.produceResults(mock(Consumer.class), newContext("large", 200));
+
+    assertEquals(2, mSharedContexts.size());
+    assertEquals(200, mSharedContexts.get(1).getImageRequest().getResizeOptions().width);
+  }
+
+  @Test
+  public void testJoiningMemberRaisesSharedPriority() {
+    mProducer.produceResults(mock(Consumer.class), newContext("large", 200));
+    SettableProducerContext small = newContext("small", 100);
+    small.setPriority(Priority.HIGH);
+    mProducer.produceResults(mock(Consumer.class), small);
+
+    assertEquals(Priority.HIGH, mSharedContexts.get(0).getPriority());
+  }
+
+  @Test
+  public void testJoiningMemberGetsDownscaledImageCachedUnderItsOwnKey() {
+    Consumer<CloseableReference<CloseableImage>> largeConsumer = mock(Consumer.class);
+    List<CloseableImage> smallImages = new ArrayList<>();
+    SettableProducerContext large = newContext("large", 200);
+    SettableProducerContext small = newContext("small", 100);
+    mProducer.produceResults(largeConsumer, large);
+    mProducer.produceResults(newImageRecordingConsumer(smallImages), small);
+
+    CloseableReference<CloseableImage> result = newStaticBitmap(200);
+    mSharedConsumers.get(0).onNewResult(result, Consumer.IS_LAST);
+
+    verify(largeConsumer).onNewResult(result, Consumer.IS_LAST);
+    assertEquals(1, smallImages.size());
+    assertEquals(100, smallImages.get(0).getWidth());
+    verify(mMemoryCache).cache(eq(getBitmapCacheKey(small)), any(CloseableReference.class));
+    verify(mMemoryCache, never())
+        .cache(eq(getBitmapCacheKey(large)), any(CloseableReference.class));
+    assertTrue(mProducer.mSharedDecodes.isEmpty());
+  }
+
+  @Test
+  public void testJoiningMemberGetsSharedImageCachedUnderItsOwnKeyIfNotDownscaled() {
+    List<CloseableImage> smallImages = new ArrayList<>();
+    SettableProducerContext small = newContext("small", 100);
+    mProducer.produceResults(mock(Consumer.class), newContext("large", 200));
+    mProducer.produceResults(newImageRecordingConsumer(smallImages), small);
+
+    CloseableImage animatedImage = mock(CloseableImage.class);
+    CloseableReference<CloseableImage> result = CloseableReference.of(animatedImage);
+    mSharedConsumers.get(0).onNewResult(result, Consumer.IS_LAST);
+
+    assertEquals(1, smallImages.size());
+    assertSame(animatedImage, smallImages.get(0));
+    verify(mMemoryCache).cache(eq(getBitmapCacheKey(small)), any(CloseableReference.class));
+    verifyZeroInteractions(mPlatformBitmapFactory);
+  }
+
+  @Test
+  public void testIntermediateResultsAreForwardedToAllMembers() {
+    Consumer<CloseableReference<CloseableImage>> largeConsumer = mock(Consumer.class);
+    Consumer<CloseableReference<CloseableImage>> smallConsumer = mock(Consumer.class);
+    mProducer.produceResults(largeConsumer, newContext("large", 200));
+    mProducer.produceResults(smallConsumer, newContext("small", 100));
+
+    CloseableReference<CloseableImage> result = newStaticBitmap(200);
+    mSharedConsumers.get(0).onNewResult(result, Consumer.NO_FLAGS);
+
+    verify(largeConsumer).onNewResult(result, Consumer.NO_FLAGS);
+    verify(smallConsumer).onNewResult(result, Consumer.NO_FLAGS);
+    verifyZeroInteractions(mMemoryCache);
+    assertEquals(1, mProducer.mSharedDecodes.size());
+  }
+
+  @Test
+  public void testLeavingMemberIsCancelledAlone() {
+    Consumer<CloseableReference<CloseableImage>> largeConsumer = mock(Consumer.class);
+    Consumer<CloseableReference<CloseableImage>> smallConsumer = mock(Consumer.class);
+    SettableProducerContext small = newContext("small", 100);
+    mProducer.produceResults(largeConsumer, newContext("large", 200));
+    mProducer.produceResults(smallConsumer, small);
+
+    small.cancel();
+    verify(smallConsumer).onCancellation();
+    assertFalse(mSharedContexts.get(0).isCancelled());
+
+    CloseableReference<CloseableImage> result = newStaticBitmap(200);
+    mSharedConsumers.get(0).onNewResult(result, Consumer.IS_LAST);
+    verify(largeConsumer).onNewResult(result, Consumer.IS_LAST);
+    verify(smallConsumer, never()).onNewResult(any(CloseableReference.class), anyInt());
+  }
+
+  @Test
+  public void testCancellingAllMembersCancelsSharedDecode() {
+    SettableProducerContext large = newContext("large", 200);
+    SettableProducerContext small = newContext("small", 100);
+    mProducer.produceResults(mock(Consumer.class), large);
+    mProducer.produceResults(mock(Consumer.class), small);
+
+    large.cancel();
+    assertFalse(mSharedContexts.get(0).isCancelled());
+    small.cancel();
+    assertTrue(mSharedContexts.get(0).isCancelled());
+    assertTrue(mProducer.mSharedDecodes.isEmpty());
+  }
+
+  @Test
+  public void testFinishedDecodeIsNotJoined() {
+    mProducer.produceResults(mock(Consumer.class), newContext("large", 200));
+    mSharedConsumers.get(0).onNewResult(newStaticBitmap(200), Consumer.IS_LAST);
+
+    mProducer.produceResults(mock(Consumer.class), newContext("small", 100));
+    assertEquals(2, mSharedContexts.size());
+  }
+
+  @Test
+  public void testFailureIsForwardedToAllMembers() {
+    Consumer<CloseableReference<CloseableImage>> largeConsumer = mock(Consumer.class);
+    Consumer<CloseableReference<CloseableImage>> smallConsumer = mock(Consumer.class);
+    mProducer.produceResults(largeConsumer, newContext("large", 200));
+    mProducer.produceResults(smallConsumer, newContext("small", 100));
+
+    RuntimeException failure = new RuntimeException();
+    mSharedConsumers.get(0).onFailure(failure);
+    verify(largeConsumer).onFailure(failure);
+    verify(smallConsumer).onFailure(failure);
+    assertTrue(mProducer.mSharedDecodes.isEmpty());
+  }
+
+  @Test
+  public void testCovers() {
+    assertTrue(ResizeAwareBitmapMultiplexProducer.covers(null, new ResizeOptions(10, 10)));
+    assertTrue(ResizeAwareBitmapMultiplexProducer.covers(null, null));
+    assertFalse(ResizeAwareBitmapMultiplexProducer.covers(new ResizeOptions(10, 10), null));
+    assertTrue(
+        ResizeAwareBitmapMultiplexProducer.covers(
+            new ResizeOptions(20, 10), new ResizeOptions(10, 10)));
+    assertFalse(
+        ResizeAwareBitmapMultiplexProducer.covers(
+            new ResizeOptions(20, 10), new ResizeOptions(10, 20)));
+  }
+
+  private SettableProducerContext newContext(String id, int size) {
+    ImageRequest imageRequest =
+        ImageRequestBuilder.newBuilderWithSource(URI)
+            .setResizeOptions(new ResizeOptions(size, size))
+            .build();
+    return new SettableProducerContext(
+        imageRequest,
+        id,
+        mProducerListener,
+        mCallerContext,
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false,
+        false,
+        Priority.MEDIUM,
+        mConfig);
+  }
+
+  /** The results are closed once delivered, so the images are recorded while they are valid. */
+  private static Consumer<CloseableReference<CloseableImage>> newImageRecordingConsumer(
+      final List<CloseableImage> images) {
+    return new BaseConsumer<CloseableReference<CloseableImage>>() {
+      @Override
+      protected void onNewResultImpl(CloseableReference<CloseableImage> newResult, int status) {
+        if (isLast(status)) {
+          images.add(newResult.get());
+        }
+      }
+
+      @Override
+      protected void onFailureImpl(Throwable t) {}
+
+      @Override
+      protected void onCancellationImpl() {}
+    };
+  }
+
+  private CacheKey getBitmapCacheKey(ProducerContext producerContext) {
+    return mCacheKeyFactory.getBitmapCacheKey(producerContext.getImageRequest(), mCallerContext);
+  }
+
+  private CloseableReference<CloseableImage> newStaticBitmap(int size) {
+    return CloseableReference.<CloseableImage>of(
+        new CloseableStaticBitmap(
+            Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888),
+            mBitmapReleaser,
+            ImmutableQualityInfo.FULL_QUALITY,
+            0));
+  }
+}
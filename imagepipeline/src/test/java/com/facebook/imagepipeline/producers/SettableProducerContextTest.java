@@ -115,4 +115,17 @@ public class SettableProducerContextTest {
     verify(mCallbacks2).onIsPrefetchChanged();
     verify(mCallbacks2, never()).onCancellationRequested();
   }
+
+  @Test
+  public void testCopiesDeadline() {
+    mSettableProducerContext.setDeadlineMs(1234);
+    final ImageRequest otherRequest = mock(ImageRequest.class);
+    // a copy is part of the same request, so the time to live does not start again
+    when(otherRequest.getTimeToLiveMs()).thenReturn(10000L);
+
+    assertEquals(1234, new SettableProducerContext(mSettableProducerContext).getDeadlineMs());
+    assertEquals(
+        1234,
+        new SettableProducerContext(otherRequest, mSettableProducerContext).getDeadlineMs());
+  }
 }
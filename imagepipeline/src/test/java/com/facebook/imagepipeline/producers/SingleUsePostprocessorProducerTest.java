@@ -184,4 +184,21 @@ public class SingleUsePostprocessorProducerTest {
     verify(mInputProducer).produceResults(consumerCaptor.capture(), eq(mProducerContext));
     return (SingleUsePostprocessorConsumer) consumerCaptor.getValue();
   }
+
+  @Test
+  public void testDeadlineExceeded() {
+    SingleUsePostprocessorConsumer postprocessorConsumer = produceResults();
+    when(mProducerContext.isDeadlineExceeded()).thenReturn(true);
+    postprocessorConsumer.onNewResult(mSourceCloseableImageRef, Consumer.IS_LAST);
+    mSourceCloseableImageRef.close();
+    mTestExecutorService.runUntilIdle();
+
+    verify(mPostprocessor, never()).process(any(Bitmap.class), any(PlatformBitmapFactory.class));
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext, PostprocessorProducer.NAME, DeadlineExceededException.PRODUCER_EVENT);
+    verify(mConsumer).onFailure(any(DeadlineExceededException.class));
+    assertEquals(0, mResults.size());
+    verify(mSourceCloseableStaticBitmap).close();
+  }
 }
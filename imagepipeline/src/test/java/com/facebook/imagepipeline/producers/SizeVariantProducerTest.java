@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import android.net.Uri;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.cache.DefaultCacheKeyFactory;
+import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.facebook.imagepipeline.request.SizeVariantUriRewriter;
+import com.facebook.imagepipeline.request.UrlTemplateSizeVariantUriRewriter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SizeVariantProducerTest {
+
+  private static final Uri URI = Uri.parse("http://images.example.com/photo.jpg");
+
+  @Mock public MemoryCache<CacheKey, PooledByteBuffer> mEncodedMemoryCache;
+  @Mock public BufferedDiskCache mDefaultBufferedDiskCache;
+  @Mock public BufferedDiskCache mSmallImageBufferedDiskCache;
+  @Mock public Producer<EncodedImage> mInputProducer;
+  @Mock public Consumer<EncodedImage> mConsumer;
+  @Mock public ProducerListener2 mProducerListener;
+  @Mock public ImagePipelineConfig mConfig;
+  private final Object mCallerContext = new Object();
+  private final CacheKeyFactory mCacheKeyFactory = DefaultCacheKeyFactory.getInstance();
+  private SizeVariantUriRewriter mUriRewriter;
+  private SizeVariantProducer mSizeVariantProducer;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    mUriRewriter =
+        new UrlTemplateSizeVariantUriRewriter(
+            "images.example.com", "{scheme}://{authority}{path}?w={size}", 100, 200, 400);
+    mSizeVariantProducer =
+        new SizeVariantProducer(
+            mUriRewriter,
+            mEncodedMemoryCache,
+            mDefaultBufferedDiskCache,
+            mSmallImageBufferedDiskCache,
+            mCacheKeyFactory,
+            mInputProducer);
+  }
+
+  @Test
+  public void testRequestWithoutResizeOptionsIsPassedOn() {
+    SettableProducerContext producerContext =
+        newProducerContext(ImageRequestBuilder.newBuilderWithSource(URI).build());
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    verify(mInputProducer).produceResults(mConsumer, producerContext);
+  }
+
+  @Test
+  public void testRequestLargerThanSizeBucketsIsPassedOn() {
+    SettableProducerContext producerContext = newProducerContext(newResizedRequest(URI, 800));
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    verify(mInputProducer).produceResults(mConsumer, producerContext);
+  }
+
+  @Test
+  public void testRequestForOtherHostIsPassedOn() {
+    SettableProducerContext producerContext =
+        newProducerContext(newResizedRequest(Uri.parse("http://other.example.com/a.jpg"), 150));
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    verify(mInputProducer).produceResults(mConsumer, producerContext);
+  }
+
+  @Test
+  public void testFetchesVariantOfSizeBucket() {
+    SettableProducerContext producerContext = newProducerContext(newResizedRequest(URI, 150));
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    ProducerContext variantContext = captureVariantContext();
+    assertNotSame(producerContext, variantContext);
+    assertEquals(
+        Uri.parse("http://images.example.com/photo.jpg?w=200"),
+        variantContext.getImageRequest().getSourceUri());
+    assertEquals(
+        producerContext.getImageRequest().getResizeOptions(),
+        variantContext.getImageRequest().getResizeOptions());
+  }
+
+  @Test
+  public void testFallsBackToLargerCachedVariant() {
+    when(mDefaultBufferedDiskCache.containsSync(variantCacheKey(400))).thenReturn(true);
+    mSizeVariantProducer.produceResults(mConsumer, newProducerContext(newResizedRequest(URI, 80)));
+    assertEquals(
+        Uri.parse("http://images.example.com/photo.jpg?w=400"),
+        captureVariantContext().getImageRequest().getSourceUri());
+  }
+
+  @Test
+  public void testPrefersCachedVariantOfSizeBucket() {
+    when(mEncodedMemoryCache.contains(variantCacheKey(100))).thenReturn(true);
+    when(mDefaultBufferedDiskCache.containsSync(variantCacheKey(400))).thenReturn(true);
+    mSizeVariantProducer.produceResults(mConsumer, newProducerContext(newResizedRequest(URI, 80)));
+    assertEquals(
+        Uri.parse("http://images.example.com/photo.jpg?w=100"),
+        captureVariantContext().getImageRequest().getSourceUri());
+  }
+
+  @Test
+  public void testCancellationIsForwardedToVariant() {
+    SettableProducerContext producerContext = newProducerContext(newResizedRequest(URI, 150));
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    ProducerContext variantContext = captureVariantContext();
+    producerContext.setPriority(Priority.HIGH);
+    assertSame(Priority.HIGH, variantContext.getPriority());
+    producerContext.cancel();
+    assertTrue(((SettableProducerContext) variantContext).isCancelled());
+  }
+
+  @Test
+  public void testExtrasAreCopiedFromVariant() {
+    SettableProducerContext producerContext = newProducerContext(newResizedRequest(URI, 150));
+    producerContext.setExtra(ProducerContext.ExtraKeys.ENCODED_SIZE, 1);
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    ProducerContext variantContext = captureVariantContext();
+    Integer encodedSize = variantContext.getExtra(ProducerContext.ExtraKeys.ENCODED_SIZE);
+    assertEquals(Integer.valueOf(1), encodedSize);
+
+    variantContext.putOriginExtra("network");
+    EncodedImage result = mock(EncodedImage.class);
+    captureVariantConsumer().onNewResult(result, Consumer.IS_LAST);
+
+    assertEquals("network", producerContext.getExtra(ProducerContext.ExtraKeys.ORIGIN));
+    verify(mConsumer).onNewResult(result, Consumer.IS_LAST);
+  }
+
+  @Test
+  public void testExtrasAreCopiedFromVariantOnFailure() {
+    SettableProducerContext producerContext = newProducerContext(newResizedRequest(URI, 150));
+    mSizeVariantProducer.produceResults(mConsumer, producerContext);
+    captureVariantContext().putOriginExtra("network");
+    Throwable failure = new Exception();
+    captureVariantConsumer().onFailure(failure);
+
+    assertEquals("network", producerContext.getExtra(ProducerContext.ExtraKeys.ORIGIN));
+    verify(mConsumer).onFailure(failure);
+  }
+
+  private ProducerContext captureVariantContext() {
+    ArgumentCaptor<ProducerContext> contextCaptor = ArgumentCaptor.forClass(ProducerContext.class);
+    verify(mInputProducer).produceResults(any(Consumer.class), contextCaptor.capture());
+    return contextCaptor.getValue();
+  }
+
+  private Consumer<EncodedImage> captureVariantConsumer() {
+    ArgumentCaptor<Consumer> consumerCaptor = ArgumentCaptor.forClass(Consumer.class);
+    verify(mInputProducer).produceResults(consumerCaptor.capture(), any(ProducerContext.class));
+    return consumerCaptor.getValue();
+  }
+
+  private CacheKey variantCacheKey(int sizeBucket) {
+    return mCacheKeyFactory.getEncodedCacheKey(
+        ImageRequest.fromUri(mUriRewriter.getVariantUri(URI, sizeBucket)), mCallerContext);
+  }
+
+  private static ImageRequest newResizedRequest(Uri uri, int size) {
+    return ImageRequestBuilder.newBuilderWithSource(uri)
+        .setResizeOptions(new ResizeOptions(size, size / 2))
+        .build();
+  }
+
+  private SettableProducerContext newProducerContext(ImageRequest imageRequest) {
+    return new SettableProducerContext(
+        imageRequest,
+        "id",
+        mProducerListener,
+        mCallerContext,
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false /* isPrefetch */,
+        true /* isIntermediateResultExpected */,
+        Priority.MEDIUM,
+        mConfig);
+  }
+}
@@ -9,6 +9,7 @@ package com.facebook.imagepipeline.producers;
 
 import static org.mockito.Mockito.*;
 
+import android.os.SystemClock;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.request.ImageRequest;
@@ -82,4 +83,18 @@ public class ThreadHandoffProducerTest {
             mProducerContext, ThreadHandoffProducer.PRODUCER_NAME, null);
     verifyNoMoreInteractions(mProducerListener);
   }
+
+  @Test
+  public void testDeadlineExceeded() {
+    mThreadHandoffProducer.produceResults(mConsumer, mProducerContext);
+    mProducerContext.setDeadlineMs(SystemClock.uptimeMillis());
+    mTestExecutorService.runUntilIdle();
+    verify(mInputProducer, never()).produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onFailure(any(DeadlineExceededException.class));
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext,
+            ThreadHandoffProducer.PRODUCER_NAME,
+            DeadlineExceededException.PRODUCER_EVENT);
+  }
 }
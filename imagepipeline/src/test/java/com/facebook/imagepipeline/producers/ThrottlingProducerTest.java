@@ -11,6 +11,11 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import com.facebook.common.executors.CallerThreadExecutor;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.decoder.DecodeException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
 import org.junit.*;
 import org.junit.runner.*;
 import org.mockito.*;
@@ -171,4 +176,119 @@ public class ThrottlingProducerTest {
     mThrottlerConsumers[2].onNewResult(mResults[3], Consumer.IS_LAST);
     mThrottlerConsumers[3].onNewResult(mResults[4], Consumer.IS_LAST);
   }
+
+  @Test
+  public void testNewestFirst() {
+    mThrottlingProducer =
+        new ThrottlingProducer<Object>(
+            MAX_SIMULTANEOUS_REQUESTS, CallerThreadExecutor.getInstance(), mInputProducer, true);
+    for (int i = 0; i < 5; i++) {
+      when(mProducerContexts[i].getPriority()).thenReturn(i == 2 ? Priority.LOW : Priority.HIGH);
+    }
+
+    // First two requests are passed on immediately, the others are queued up
+    for (int i = 0; i < 5; i++) {
+      mThrottlingProducer.produceResults(mConsumers[i], mProducerContexts[i]);
+    }
+    assertNotNull(mThrottlerConsumers[0]);
+    assertNotNull(mThrottlerConsumers[1]);
+    assertNull(mThrottlerConsumers[2]);
+    assertNull(mThrottlerConsumers[3]);
+    assertNull(mThrottlerConsumers[4]);
+
+    // Newest request is kicked off first
+    mThrottlerConsumers[0].onNewResult(mResults[0], Consumer.IS_LAST);
+    assertNotNull(mThrottlerConsumers[4]);
+    assertNull(mThrottlerConsumers[3]);
+
+    // Low priority third request is passed over
+    mThrottlerConsumers[1].onNewResult(mResults[1], Consumer.IS_LAST);
+    assertNotNull(mThrottlerConsumers[3]);
+    assertNull(mThrottlerConsumers[2]);
+
+    // Low priority request is kicked off once nothing else is queued
+    mThrottlerConsumers[4].onNewResult(mResults[4], Consumer.IS_LAST);
+    assertNotNull(mThrottlerConsumers[2]);
+    verify(mProducerListeners[2])
+        .onProducerFinishWithSuccess(mProducerContexts[2], PRODUCER_NAME, null);
+  }
+
+  @Test
+  public void testExpiredRequestIsFailedInsteadOfKickedOff() {
+    when(mProducerContexts[2].isDeadlineExceeded()).thenReturn(true);
+    for (int i = 0; i < 4; i++) {
+      mThrottlingProducer.produceResults(mConsumers[i], mProducerContexts[i]);
+    }
+    assertNull(mThrottlerConsumers[2]);
+    assertNull(mThrottlerConsumers[3]);
+
+    // First request finishes, third request is failed and fourth request is kicked off
+    mThrottlerConsumers[0].onNewResult(mResults[0], Consumer.IS_LAST);
+    assertNull(mThrottlerConsumers[2]);
+    verify(mConsumers[2]).onFailure(any(DeadlineExceededException.class));
+    verify(mProducerListeners[2])
+        .onProducerEvent(
+            mProducerContexts[2], PRODUCER_NAME, DeadlineExceededException.PRODUCER_EVENT);
+    verify(mProducerListeners[2])
+        .onProducerFinishWithFailure(
+            eq(mProducerContexts[2]),
+            eq(PRODUCER_NAME),
+            any(DeadlineExceededException.class),
+            isNull(Map.class));
+    assertNotNull(mThrottlerConsumers[3]);
+  }
+
+  @Test
+  public void testConcurrencyLimiter() {
+    final AimdConcurrencyLimiter limiter =
+        new AimdConcurrencyLimiter(
+            4, 1, 8, /* backoffRatio */ 0.5, AimdConcurrencyLimiter.DEFAULT_LATENCY_TOLERANCE);
+    mThrottlingProducer =
+        new ThrottlingProducer<Object>(
+            limiter, CallerThreadExecutor.getInstance(), mInputProducer, false);
+
+    // First four requests are passed on immediately, the fifth one is queued up
+    for (int i = 0; i < 5; i++) {
+      mThrottlingProducer.produceResults(mConsumers[i], mProducerContexts[i]);
+    }
+    for (int i = 0; i < 4; i++) {
+      assertNotNull(mThrottlerConsumers[i]);
+    }
+    assertNull(mThrottlerConsumers[4]);
+
+    // The first failure halves the limit, the second one is part of the same round trip
+    mThrottlerConsumers[0].onFailure(new IOException());
+    assertEquals(2, limiter.getLimit());
+    mThrottlerConsumers[1].onFailure(new SocketTimeoutException());
+    assertEquals(2, limiter.getLimit());
+    assertNull(mThrottlerConsumers[4]);
+
+    // Cancellations are not reported to the limiter, but free a slot under the new limit
+    mThrottlerConsumers[2].onCancellation();
+    assertEquals(2, limiter.getLimit());
+    assertNotNull(mThrottlerConsumers[4]);
+  }
+
+  @Test
+  public void testOnlyCongestionFailuresAreReportedToConcurrencyLimiter() {
+    final ConcurrencyLimiter limiter = mock(ConcurrencyLimiter.class);
+    when(limiter.getLimit()).thenReturn(4);
+    mThrottlingProducer =
+        new ThrottlingProducer<Object>(
+            limiter, CallerThreadExecutor.getInstance(), mInputProducer, false);
+    for (int i = 0; i < 5; i++) {
+      mThrottlingProducer.produceResults(mConsumers[i], mProducerContexts[i]);
+    }
+
+    // Failures unrelated to the load only free their slot
+    mThrottlerConsumers[0].onFailure(new DecodeException("undecodable", null));
+    mThrottlerConsumers[1].onFailure(new DeadlineExceededException(PRODUCER_NAME));
+    mThrottlerConsumers[2].onFailure(new PreemptedException());
+    verify(limiter, never()).onRequestFinished(anyLong(), anyLong(), anyInt(), anyBoolean());
+    assertNotNull(mThrottlerConsumers[4]);
+    verify(mConsumers[0]).onFailure(any(DecodeException.class));
+
+    mThrottlerConsumers[3].onFailure(new IOException());
+    verify(limiter).onRequestFinished(anyLong(), anyLong(), anyInt(), eq(false));
+  }
 }
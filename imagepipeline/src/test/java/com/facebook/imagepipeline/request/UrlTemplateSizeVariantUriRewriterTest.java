@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.request;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.net.Uri;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class UrlTemplateSizeVariantUriRewriterTest {
+
+  @Test
+  public void testSizeBucketsAreSortedAndOnlyForHost() {
+    UrlTemplateSizeVariantUriRewriter rewriter =
+        new UrlTemplateSizeVariantUriRewriter(
+            "images.example.com", "https://cdn.example.com/{size}{path}", 640, 160, 320);
+    assertArrayEquals(
+        new int[] {160, 320, 640},
+        rewriter.getSizeBuckets(Uri.parse("http://IMAGES.example.com/a.jpg")));
+    assertNull(rewriter.getSizeBuckets(Uri.parse("http://other.example.com/a.jpg")));
+  }
+
+  @Test
+  public void testPathTemplate() {
+    UrlTemplateSizeVariantUriRewriter rewriter =
+        new UrlTemplateSizeVariantUriRewriter(
+            "images.example.com", "https://cdn.example.com/{size}{path}", 160, 320);
+    assertEquals(
+        Uri.parse("https://cdn.example.com/320/dir/a.jpg"),
+        rewriter.getVariantUri(Uri.parse("http://images.example.com/dir/a.jpg"), 320));
+  }
+
+  @Test
+  public void testQueriesAreMerged() {
+    UrlTemplateSizeVariantUriRewriter rewriter =
+        new UrlTemplateSizeVariantUriRewriter(
+            "images.example.com", "{scheme}://{authority}{path}?w={size}", 160, 320);
+    assertEquals(
+        Uri.parse("http://images.example.com/a.jpg?w=160"),
+        rewriter.getVariantUri(Uri.parse("http://images.example.com/a.jpg"), 160));
+    assertEquals(
+        Uri.parse("http://images.example.com/a.jpg?w=160&sig=abc"),
+        rewriter.getVariantUri(Uri.parse("http://images.example.com/a.jpg?sig=abc"), 160));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTemplateWithoutSize() {
+    new UrlTemplateSizeVariantUriRewriter("images.example.com", "{scheme}://{authority}{path}", 1);
+  }
+}
@@ -14,6 +14,7 @@ import com.facebook.drawee.backends.pipeline.Fresco;
 import com.facebook.imagepipeline.core.DefaultExecutorSupplier;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.core.MemoryChunkType;
+import com.facebook.imagepipeline.core.SharedPoolExecutorSupplier;
 import com.facebook.samples.scrollperf.conf.Config;
 import com.facebook.samples.scrollperf.conf.Const;
 import com.facebook.samples.scrollperf.internal.ScrollPerfExecutorSupplier;
@@ -35,6 +36,9 @@ public class ScrollPerfApplication extends Application {
     if (config.decodingThreadCount == 0) {
       imagePipelineConfigBuilder.setExecutorSupplier(
           new DefaultExecutorSupplier(Const.NUMBER_OF_PROCESSORS));
+    } else if (config.decodingThreadCount < 0) {
+      imagePipelineConfigBuilder.setExecutorSupplier(
+          new SharedPoolExecutorSupplier(Const.NUMBER_OF_PROCESSORS));
     } else {
       imagePipelineConfigBuilder.setExecutorSupplier(
           new ScrollPerfExecutorSupplier(Const.NUMBER_OF_PROCESSORS, config.decodingThreadCount));